@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.blob;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+
+/**
+ * Input stream of a single blob. Reads no more than blob length from
+ * the connection and waits through socket timeouts.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class BlobInputStream extends InputStream {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	private final InputStream in;
+	private final long length;
+	
+	/** Bytes left to read */
+	private long remaining;
+	
+	public BlobInputStream(InputStream in, long length) {
+		this.in = in;
+		this.length = length;
+		this.remaining = length;
+	}
+	
+	/*
+	 * @see java.io.InputStream#available()
+	 */
+	@Override
+	public int available() throws IOException {
+		return (int) Math.min(in.available(), remaining);
+	}
+	
+	/**
+	 * Skips the rest of blob, so the connection can be used again.
+	 * Doesn't close the connection.
+	 * 
+	 * @see java.io.InputStream#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		final byte[] buffer = new byte[BUFFER_SIZE];
+		
+		while (remaining > 0) {
+			read(buffer, 0, buffer.length);
+		}
+	}
+	
+	/**
+	 * @return Total length of the blob.
+	 */
+	public long getLength() {
+		return length;
+	}
+	
+	/*
+	 * @see java.io.InputStream#read()
+	 */
+	@Override
+	public int read() throws IOException {
+		final byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+	}
+	
+	/*
+	 * @see java.io.InputStream#read(byte[], int, int)
+	 */
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (remaining == 0) {
+			return -1;
+		}
+		
+		while (true) {
+			
+			int count;
+			
+			try {
+				count = in.read(b, off, (int) Math.min(len, remaining));
+			} catch (SocketTimeoutException e) {
+				// the rest of blob is still on its way
+				if (Thread.currentThread().isInterrupted()) {
+					throw new InterruptedIOException("interrupted while reading a blob");
+				}
+				
+				continue;
+			}
+			
+			if (count < 0) {
+				throw new EOFException("connection closed in the middle of a blob");
+			}
+			
+			remaining -= count;
+			return count;
+		}
+	}
+	
+	/**
+	 * Writes the rest of blob to a file.
+	 */
+	public void saveTo(File file) throws IOException {
+		final FileOutputStream out = new FileOutputStream(file);
+		
+		try {
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			int count;
+			
+			while ((count = read(buffer, 0, buffer.length)) >= 0) {
+				out.write(buffer, 0, count);
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
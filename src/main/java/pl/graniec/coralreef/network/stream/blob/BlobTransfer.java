@@ -0,0 +1,148 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.blob;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.logging.Logger;
+
+import pl.graniec.coralreef.network.stream.frame.Frame;
+import pl.graniec.coralreef.network.stream.frame.FrameOutput;
+
+/**
+ * Sends and receives blobs.
+ * <p>
+ * Blob is sent as a {@link Frame#BLOB} frame with its name and length,
+ * followed by the raw data. If the socket has a channel, the data goes
+ * from the file to the socket using {@link FileChannel#transferTo(long, long, WritableByteChannel)},
+ * so it's never copied through the heap.
+ * <p>
+ * Blobs are not stored in the replay buffer, so they are not sent again
+ * when a session is resumed.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class BlobTransfer {
+
+	private static final Logger logger = Logger.getLogger(BlobTransfer.class.getName());
+	
+	private BlobTransfer() {
+	}
+	
+	/**
+	 * Writes the blob. Caller must make sure that nothing else
+	 * is written to the connection at the same time.
+	 * 
+	 * @param writer Frame output of the connection.
+	 * @param out Raw output of the connection, used if there's no channel.
+	 * @param channel Channel of the socket or <code>null</code>.
+	 */
+	public static void send(FrameOutput writer, OutputStream out, WritableByteChannel channel,
+			String name, FileChannel file, long position, long count) throws IOException {
+		
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream header = new DataOutputStream(bytes);
+		
+		header.writeLong(count);
+		header.writeUTF(name);
+		header.close();
+		
+		writer.write(new Frame(Frame.BLOB, 0, 0, bytes.toByteArray()));
+		
+		final boolean copying = channel == null;
+		
+		if (copying) {
+			// no zero-copy for this socket
+			channel = Channels.newChannel(out);
+		}
+		
+		long sent = 0;
+		
+		while (sent < count) {
+			final long transferred = file.transferTo(position + sent, count - sent, channel);
+			
+			if (transferred <= 0 && position + sent >= file.size()) {
+				throw new IOException("file is shorter than requested region");
+			}
+			
+			sent += transferred;
+		}
+		
+		if (copying) {
+			out.flush();
+		}
+	}
+	
+	/**
+	 * Reads the blob that follows the given frame and passes it to
+	 * the listeners.
+	 * 
+	 * @param frame {@link Frame#BLOB} frame.
+	 * @param in Raw input of the connection.
+	 * @param listeners Blob listeners, they all share the same stream.
+	 */
+	public static void receive(Frame frame, InputStream in, BlobListener[] listeners) throws IOException {
+		
+		final DataInputStream header = new DataInputStream(new ByteArrayInputStream(frame.getPayload()));
+		
+		final long length = header.readLong();
+		final String name = header.readUTF();
+		
+		final BlobInputStream data = new BlobInputStream(in, length);
+		
+		if (listeners.length == 0) {
+			logger.warning("Blob " + name + " lost because there is no blob listener to receive it");
+		}
+		
+		try {
+			for (BlobListener l : listeners) {
+				l.blobReceived(name, data);
+			}
+		} finally {
+			// leave the connection right after the blob
+			data.close();
+		}
+	}
+	
+	/**
+	 * @return Length of the blob that follows the given frame.
+	 */
+	public static long length(Frame frame) throws IOException {
+		return new DataInputStream(new ByteArrayInputStream(frame.getPayload())).readLong();
+	}
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.cache;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import pl.graniec.coralreef.network.stream.frame.PacketCodec;
+
+/**
+ * Keeps encoded form of packets that are sent many times, so they're
+ * serialized only once. Only {@link ImmutablePacket} (by identity) and
+ * {@link VersionedPacket} (by key and version) instances are cached,
+ * other packets are just encoded.
+ * <p>
+ * Cache is limited by the sum of encoded sizes. When it's exceeded,
+ * least recently used packets are evicted. Cached bytes are shared
+ * and must not be modified.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class EncodedCache {
+
+	/** Key of immutable packet, compared by identity */
+	private static class IdentityKey {
+		private final Object packet;
+		
+		public IdentityKey(Object packet) {
+			this.packet = packet;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof IdentityKey && ((IdentityKey) obj).packet == packet;
+		}
+		
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(packet);
+		}
+	}
+	
+	/** Key of versioned packet */
+	private static class VersionKey {
+		private final Object key;
+		private final long version;
+		
+		public VersionKey(VersionedPacket packet) {
+			this.key = packet.getPacketKey();
+			this.version = packet.getPacketVersion();
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof VersionKey)) {
+				return false;
+			}
+			
+			final VersionKey other = (VersionKey) obj;
+			return version == other.version && key.equals(other.key);
+		}
+		
+		@Override
+		public int hashCode() {
+			return key.hashCode() * 31 + (int) (version ^ (version >>> 32));
+		}
+	}
+	
+	private final int maxBytes;
+	
+	/** Entries in access order */
+	private final LinkedHashMap<Object, byte[]> entries = new LinkedHashMap<Object, byte[]>(16, 0.75f, true);
+	
+	/** Sum of cached sizes */
+	private int bytes;
+	
+	private long hits;
+	private long misses;
+	private long evictions;
+	
+	/**
+	 * @param maxBytes Limit of encoded bytes kept in the cache.
+	 */
+	public EncodedCache(int maxBytes) {
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("limit must be positive");
+		}
+		
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * Encodes the packet or takes its cached encoded form.
+	 */
+	public byte[] encode(Object packet) throws NotSerializableException, IOException {
+		
+		final Object key = keyOf(packet);
+		
+		if (key == null) {
+			return PacketCodec.encode(packet);
+		}
+		
+		synchronized (this) {
+			final byte[] cached = entries.get(key);
+			
+			if (cached != null) {
+				++hits;
+				return cached;
+			}
+			
+			++misses;
+		}
+		
+		// encode without holding the lock, other packets can be taken meanwhile
+		final byte[] encoded = PacketCodec.encode(packet);
+		
+		if (encoded.length <= maxBytes) {
+			put(key, encoded);
+		}
+		
+		return encoded;
+	}
+	
+	private synchronized void put(Object key, byte[] encoded) {
+		
+		final byte[] previous = entries.put(key, encoded);
+		
+		if (previous != null) {
+			bytes -= previous.length;
+		}
+		
+		bytes += encoded.length;
+		
+		final Iterator<byte[]> itor = entries.values().iterator();
+		
+		while (bytes > maxBytes) {
+			bytes -= itor.next().length;
+			itor.remove();
+			++evictions;
+		}
+	}
+	
+	private static Object keyOf(Object packet) {
+		if (packet instanceof VersionedPacket) {
+			return new VersionKey((VersionedPacket) packet);
+		}
+		
+		if (packet instanceof ImmutablePacket) {
+			return new IdentityKey(packet);
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Removes all cached packets.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+	
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+	
+	/**
+	 * @return Number of cached packets.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * @return Sum of cached encoded sizes.
+	 */
+	public synchronized int getBytes() {
+		return bytes;
+	}
+	
+	/*
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public synchronized String toString() {
+		return "EncodedCache[" + entries.size() + " packets, " + bytes + "/" + maxBytes
+			+ " bytes, " + hits + " hits, " + misses + " misses, " + evictions + " evictions]";
+	}
+}
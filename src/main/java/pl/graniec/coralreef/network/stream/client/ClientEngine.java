@@ -0,0 +1,317 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pl.graniec.coralreef.network.exceptions.NetworkException;
+import pl.graniec.coralreef.network.stream.flow.SendCredits;
+
+/**
+ * Shared event loop for many {@link StreamClient}s.
+ * <p>
+ * Clients created with an engine don't have their own listener threads.
+ * Instead, their non-blocking sockets are handled by a few engine threads,
+ * so a single process can keep thousands of connections. Such clients
+ * always use the framed protocol.
+ * <p>
+ * Packet and connection listeners of these clients are called from
+ * engine threads, so they should never block.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ClientEngine {
+
+	/** How often clients get their maintenance ticks */
+	private static final int TICK_INTERVAL = 100;
+	/** Default limit of bytes waiting to be written to each connection */
+	private static final int DEFAULT_WRITE_LIMIT = 4 * 1024 * 1024;
+	
+	/** Single thread with its own selector */
+	class EventLoop extends Thread {
+		
+		private final Selector selector;
+		/** Tasks to run on this thread */
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		/** Connections handled by this loop, used only from this thread */
+		private final Set<EngineConnection> connections = new HashSet<EngineConnection>();
+		/** Number of connections, for choosing the least loaded loop */
+		private final AtomicInteger load = new AtomicInteger();
+		
+		private volatile boolean running = true;
+		
+		EventLoop(int index) throws IOException {
+			super("ClientEngine-" + index);
+			setDaemon(true);
+			
+			selector = Selector.open();
+		}
+		
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+		
+		void register(final EngineConnection connection) {
+			load.incrementAndGet();
+			
+			execute(new Runnable() {
+				public void run() {
+					try {
+						final int ops = connection.isConnected() ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT;
+						connection.key = connection.channel.register(selector, ops, connection);
+						connections.add(connection);
+						
+						if (connection.isConnected()) {
+							connection.client.engineConnected(connection);
+						}
+						
+					} catch (IOException e) {
+						connection.failed(e);
+					}
+				}
+			});
+		}
+		
+		void interestWrite(final EngineConnection connection) {
+			execute(new Runnable() {
+				public void run() {
+					final SelectionKey key = connection.key;
+					
+					if (key != null && key.isValid()) {
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					}
+				}
+			});
+		}
+		
+		/**
+		 * Called when connection is closed.
+		 */
+		void removed(EngineConnection connection) {
+			if (connections.remove(connection)) {
+				load.decrementAndGet();
+			}
+		}
+		
+		/*
+		 * @see java.lang.Thread#run()
+		 */
+		@Override
+		public void run() {
+			
+			SendCredits.markReaderThread();
+			
+			long lastTick = System.currentTimeMillis();
+			
+			while (running) {
+				
+				try {
+					selector.select(TICK_INTERVAL);
+				} catch (IOException e) {
+					e.printStackTrace();
+					break;
+				}
+				
+				Runnable task;
+				
+				while ((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						// don't let it kill the loop
+						e.printStackTrace();
+					}
+				}
+				
+				final Iterator<SelectionKey> itor = selector.selectedKeys().iterator();
+				
+				while (itor.hasNext()) {
+					final SelectionKey key = itor.next();
+					itor.remove();
+					
+					final EngineConnection connection = (EngineConnection) key.attachment();
+					
+					try {
+						
+						if (key.isValid() && key.isConnectable()) {
+							connection.finishConnect();
+						}
+						
+						if (key.isValid() && key.isReadable()) {
+							connection.read();
+						}
+						
+						if (key.isValid() && key.isWritable()) {
+							connection.flush();
+						}
+						
+					} catch (CancelledKeyException e) {
+						// closed in the meantime
+					} catch (IOException e) {
+						connection.failed(e);
+					}
+				}
+				
+				final long now = System.currentTimeMillis();
+				
+				if (now - lastTick >= TICK_INTERVAL) {
+					lastTick = now;
+					
+					for (EngineConnection connection : copyConnections()) {
+						connection.tick(now);
+					}
+				}
+			}
+			
+			for (EngineConnection connection : copyConnections()) {
+				connection.failed(new IOException("client engine shut down"));
+			}
+			
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// ignore the closing exception
+			}
+		}
+		
+		private EngineConnection[] copyConnections() {
+			return connections.toArray(new EngineConnection[connections.size()]);
+		}
+	}
+	
+	private final EventLoop[] loops;
+	
+	private volatile int writeLimit = DEFAULT_WRITE_LIMIT;
+	
+	/**
+	 * Creates engine with one thread for every available processor.
+	 */
+	public ClientEngine() throws NetworkException {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * @param threads Number of event loop threads.
+	 */
+	public ClientEngine(int threads) throws NetworkException {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("number of threads must be positive");
+		}
+		
+		loops = new EventLoop[threads];
+		
+		try {
+			for (int i = 0; i < threads; ++i) {
+				loops[i] = new EventLoop(i);
+			}
+		} catch (IOException e) {
+			throw new NetworkException(e);
+		}
+		
+		for (EventLoop loop : loops) {
+			loop.start();
+		}
+	}
+	
+	/**
+	 * Starts non-blocking connection of the client on the least
+	 * loaded event loop.
+	 */
+	EngineConnection connect(StreamClient client, InetSocketAddress address) throws IOException {
+		EventLoop chosen = loops[0];
+		
+		for (EventLoop loop : loops) {
+			if (loop.load.get() < chosen.load.get()) {
+				chosen = loop;
+			}
+		}
+		
+		final EngineConnection connection = new EngineConnection(client, chosen, address, writeLimit);
+		chosen.register(connection);
+		
+		return connection;
+	}
+	
+	/**
+	 * @return Number of connections handled by this engine.
+	 */
+	public int getConnectionCount() {
+		int count = 0;
+		
+		for (EventLoop loop : loops) {
+			count += loop.load.get();
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Sets how many bytes may wait to be written to each connection.
+	 * Writing never blocks engine threads, so a connection to a server
+	 * that doesn't keep up is closed when it goes past the limit. Applies
+	 * to connections started afterwards. The default is 4 MB.
+	 */
+	public void setWriteLimit(int bytes) {
+		if (bytes <= 0) {
+			throw new IllegalArgumentException("limit must be positive");
+		}
+		
+		this.writeLimit = bytes;
+	}
+	
+	/**
+	 * Stops all event loops. Connections that are still open
+	 * are reported as lost.
+	 */
+	public void shutdown() {
+		for (EventLoop loop : loops) {
+			loop.running = false;
+			loop.selector.wakeup();
+		}
+		
+		for (EventLoop loop : loops) {
+			try {
+				loop.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.client;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of {@link StreamClient#connectAsync(String, int)}. Completed
+ * when the client is connected and ready to send packets.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+class ConnectFuture implements Future<StreamClient> {
+
+	private final CountDownLatch done = new CountDownLatch(1);
+	
+	private StreamClient client;
+	private Throwable failure;
+	
+	void set(StreamClient client) {
+		this.client = client;
+		done.countDown();
+	}
+	
+	void fail(Throwable failure) {
+		this.failure = failure;
+		done.countDown();
+	}
+	
+	/**
+	 * Connecting cannot be cancelled, use {@link StreamClient#disconnect()}
+	 * when it's done.
+	 * 
+	 * @see java.util.concurrent.Future#cancel(boolean)
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	/*
+	 * @see java.util.concurrent.Future#get()
+	 */
+	public StreamClient get() throws InterruptedException, ExecutionException {
+		done.await();
+		return result();
+	}
+
+	/*
+	 * @see java.util.concurrent.Future#get(long, java.util.concurrent.TimeUnit)
+	 */
+	public StreamClient get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException("still connecting");
+		}
+		
+		return result();
+	}
+
+	/*
+	 * @see java.util.concurrent.Future#isCancelled()
+	 */
+	public boolean isCancelled() {
+		return false;
+	}
+
+	/*
+	 * @see java.util.concurrent.Future#isDone()
+	 */
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+	
+	private StreamClient result() throws ExecutionException {
+		if (failure != null) {
+			throw new ExecutionException(failure);
+		}
+		
+		return client;
+	}
+
+}
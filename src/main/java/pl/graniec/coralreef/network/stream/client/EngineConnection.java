@@ -0,0 +1,357 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.client;
+
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.logging.Logger;
+
+import pl.graniec.coralreef.network.stream.blob.BlobTransfer;
+import pl.graniec.coralreef.network.stream.frame.Frame;
+import pl.graniec.coralreef.network.stream.frame.FrameDecoder;
+import pl.graniec.coralreef.network.stream.frame.FrameOutput;
+import pl.graniec.coralreef.network.stream.jfr.NetworkEvents;
+
+/**
+ * Non-blocking connection of a {@link StreamClient} handled by
+ * one of {@link ClientEngine} event loops.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+class EngineConnection implements FrameOutput {
+
+	private static final Logger logger = Logger.getLogger(EngineConnection.class.getName());
+	
+	/** Default size of read buffer, grows for bigger frames */
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	final StreamClient client;
+	final SocketChannel channel;
+	final ClientEngine.EventLoop loop;
+	
+	/** Selection key, set by event loop */
+	SelectionKey key;
+	
+	private final FrameDecoder decoder;
+	private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+	
+	/** Bytes of unsupported blob left to skip */
+	private long skip;
+	
+	/** Frames waiting for socket to be writable */
+	private final LinkedList<ByteBuffer> writeQueue = new LinkedList<ByteBuffer>();
+	/** Bytes waiting in write queue */
+	private int queuedBytes;
+	/** Most bytes that may wait in write queue */
+	private final int writeLimit;
+	
+	/** Set when channel is connected */
+	private boolean connected;
+	/** Set when channel is closed */
+	private boolean closed;
+	/** Set when write queue went past its limit */
+	private boolean overflowed;
+	
+	/** Time when connection was started */
+	final long started = System.currentTimeMillis();
+	
+	/**
+	 * @param writeLimit Most bytes waiting in write queue.
+	 */
+	EngineConnection(StreamClient client, ClientEngine.EventLoop loop, InetSocketAddress address, int writeLimit) throws IOException {
+		this.client = client;
+		this.decoder = new FrameDecoder(client.getMaxFrameSize());
+		this.loop = loop;
+		this.writeLimit = writeLimit;
+		
+		channel = SocketChannel.open();
+		
+		boolean started = false;
+		
+		try {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			
+			if (channel.connect(address)) {
+				connected = true;
+			}
+			
+			started = true;
+		} finally {
+			if (!started) {
+				// nobody else knows about the channel yet
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// ignore the closing exception
+				}
+			}
+		}
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.stream.frame.FrameOutput#write(pl.graniec.coralreef.network.stream.frame.Frame)
+	 */
+	public void write(Frame frame) throws IOException {
+		final ByteBuffer buffer = frame.toByteBuffer();
+		
+		synchronized (writeQueue) {
+			if (closed || overflowed) {
+				throw new IOException("connection closed");
+			}
+			
+			if (writeQueue.isEmpty() && connected) {
+				// most of the time socket can take it right away
+				channel.write(buffer);
+				
+				if (!buffer.hasRemaining()) {
+					return;
+				}
+			}
+			
+			if (queuedBytes + buffer.remaining() > writeLimit) {
+				overflowed = true;
+			} else {
+				writeQueue.add(buffer);
+				queuedBytes += buffer.remaining();
+			}
+		}
+		
+		if (overflowed) {
+			NetworkEvents.overflow("engine write queue", writeLimit);
+			
+			loop.execute(new Runnable() {
+				public void run() {
+					failed(new IOException("write queue limit exceeded"));
+				}
+			});
+			
+			throw new IOException("write queue limit exceeded");
+		}
+		
+		loop.interestWrite(this);
+	}
+	
+	boolean isConnected() {
+		synchronized (writeQueue) {
+			return connected;
+		}
+	}
+	
+	/**
+	 * Called by event loop when channel can finish connecting.
+	 */
+	void finishConnect() throws IOException {
+		if (!channel.finishConnect()) {
+			return;
+		}
+		
+		synchronized (writeQueue) {
+			connected = true;
+		}
+		
+		key.interestOps(SelectionKey.OP_READ);
+		
+		client.engineConnected(this);
+	}
+	
+	/**
+	 * Called by event loop when there is data to read.
+	 */
+	void read() throws IOException {
+		
+		final int count = channel.read(readBuffer);
+		
+		if (count < 0) {
+			throw new IOException("connection closed");
+		}
+		
+		readBuffer.flip();
+		
+		while (true) {
+			
+			if (skip > 0) {
+				final int skipped = (int) Math.min(skip, readBuffer.remaining());
+				
+				readBuffer.position(readBuffer.position() + skipped);
+				skip -= skipped;
+				
+				if (skip > 0) {
+					break;
+				}
+			}
+			
+			final Frame frame = decoder.decode(readBuffer);
+			
+			if (frame == null) {
+				break;
+			}
+			
+			if (frame.getType() == Frame.BLOB) {
+				logger.warning("Blobs are not supported by clients handled by ClientEngine, skipping");
+				skip = BlobTransfer.length(frame);
+				continue;
+			}
+			
+			try {
+				client.engineFrameReceived(frame);
+			} catch (ClassNotFoundException e) {
+				e.printStackTrace();
+			} catch (InvalidClassException e) {
+				logger.severe(e.getMessage());
+			}
+			
+			if (closed) {
+				break;
+			}
+		}
+		
+		client.engineReadFinished();
+		
+		if (closed) {
+			return;
+		}
+		
+		final int required = skip > 0 ? -1 : decoder.requiredLength(readBuffer);
+		
+		if (required > readBuffer.capacity()) {
+			// next frame won't fit
+			final ByteBuffer bigger = ByteBuffer.allocate(required);
+			bigger.put(readBuffer);
+			readBuffer = bigger;
+			
+		} else if (readBuffer.capacity() > BUFFER_SIZE && readBuffer.remaining() <= BUFFER_SIZE) {
+			// big frame is gone, so give back the memory
+			final ByteBuffer smaller = ByteBuffer.allocate(BUFFER_SIZE);
+			smaller.put(readBuffer);
+			readBuffer = smaller;
+			
+		} else {
+			readBuffer.compact();
+		}
+	}
+	
+	/**
+	 * Called by event loop when socket is writable.
+	 */
+	void flush() throws IOException {
+		synchronized (writeQueue) {
+			if (!connected) {
+				return;
+			}
+			
+			while (!writeQueue.isEmpty()) {
+				final ByteBuffer buffer = writeQueue.getFirst();
+				
+				queuedBytes -= channel.write(buffer);
+				
+				if (buffer.hasRemaining()) {
+					return;
+				}
+				
+				writeQueue.removeFirst();
+			}
+			
+			if (key != null && key.isValid()) {
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+	}
+	
+	/**
+	 * Called by event loop every now and then.
+	 */
+	void tick(long now) {
+		client.engineTick(this, now - started);
+	}
+	
+	/**
+	 * Closes the connection after sending what's left in write queue.
+	 */
+	void close() {
+		loop.execute(new Runnable() {
+			public void run() {
+				try {
+					flush();
+				} catch (IOException e) {
+					// closing anyway
+				}
+				
+				closeNow();
+			}
+		});
+	}
+	
+	/**
+	 * Closes the connection immediately. Must be called
+	 * from event loop thread.
+	 * 
+	 * @return <code>false</code> if it was already closed.
+	 */
+	boolean closeNow() {
+		synchronized (writeQueue) {
+			if (closed) {
+				return false;
+			}
+			
+			closed = true;
+			writeQueue.clear();
+			queuedBytes = 0;
+		}
+		
+		if (key != null) {
+			key.cancel();
+		}
+		
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// ignore the closing exception
+		}
+		
+		loop.removed(this);
+		
+		return true;
+	}
+	
+	/**
+	 * Called by event loop when connection is broken.
+	 */
+	void failed(IOException e) {
+		if (closeNow()) {
+			client.engineFailed(e);
+		}
+	}
+}
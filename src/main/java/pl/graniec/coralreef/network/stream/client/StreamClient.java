@@ -28,6 +28,9 @@
  */
 package pl.graniec.coralreef.network.stream.client;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InvalidClassException;
@@ -35,11 +38,21 @@ import java.io.NotSerializableException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import pl.graniec.coralreef.network.DisconnectReason;
@@ -47,8 +60,43 @@ import pl.graniec.coralreef.network.PacketListener;
 import pl.graniec.coralreef.network.client.Client;
 import pl.graniec.coralreef.network.client.ConnectionListener;
 import pl.graniec.coralreef.network.exceptions.NetworkException;
+import pl.graniec.coralreef.network.stream.BatchPacketListener;
+import pl.graniec.coralreef.network.stream.blob.BlobListener;
+import pl.graniec.coralreef.network.stream.blob.BlobTransfer;
+import pl.graniec.coralreef.network.stream.cache.EncodedCache;
+import pl.graniec.coralreef.network.stream.flow.CreditPolicy;
+import pl.graniec.coralreef.network.stream.flow.ReceiveCredits;
+import pl.graniec.coralreef.network.stream.flow.SendCredits;
+import pl.graniec.coralreef.network.stream.frame.Compression;
+import pl.graniec.coralreef.network.stream.frame.FragmentAssembler;
+import pl.graniec.coralreef.network.stream.frame.Frame;
+import pl.graniec.coralreef.network.stream.frame.FrameOutput;
+import pl.graniec.coralreef.network.stream.frame.FrameReader;
+import pl.graniec.coralreef.network.stream.frame.FrameWriter;
+import pl.graniec.coralreef.network.stream.frame.PacketCodec;
+import pl.graniec.coralreef.network.stream.handshake.Capabilities;
+import pl.graniec.coralreef.network.stream.jfr.NetworkEvents;
+import pl.graniec.coralreef.network.stream.latency.LatencyListener;
+import pl.graniec.coralreef.network.stream.latency.LatencyTracker;
+import pl.graniec.coralreef.network.stream.latency.TimestampingFrameOutput;
+import pl.graniec.coralreef.network.stream.poll.BusyPollSocket;
+import pl.graniec.coralreef.network.stream.route.RoutedPacket;
+import pl.graniec.coralreef.network.stream.serial.ClassFilter;
+import pl.graniec.coralreef.network.stream.serial.ClassResolver;
+import pl.graniec.coralreef.network.stream.serial.ResolvingObjectInputStream;
+import pl.graniec.coralreef.network.stream.session.ReplayBuffer;
+import pl.graniec.coralreef.network.stream.session.Session;
+import pl.graniec.coralreef.network.stream.shm.SharedMemory;
+import pl.graniec.coralreef.network.stream.shm.WaitStrategy;
+import pl.graniec.coralreef.network.stream.unix.UnixSockets;
 
 /**
+ * Client that uses TCP stream sockets to transfer packets between client
+ * and server.
+ * <p>
+ * By default every client has its own listener thread. Clients created
+ * with a {@link ClientEngine} share the engine threads instead.
+ * 
  * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
  *
  */
@@ -64,6 +112,13 @@ public class StreamClient implements Client {
 		@Override
 		public void run() {
 			
+			SendCredits.markReaderThread();
+			
+			if (reader != null) {
+				readFrames();
+				return;
+			}
+			
 			Object data;
 			
 			while (!isInterrupted()) {
@@ -90,9 +145,57 @@ public class StreamClient implements Client {
 			}
 			
 		}
+		
+		private void readFrames() {
+			
+			final FrameReader reader = StreamClient.this.reader;
+			
+			while (!isInterrupted()) {
+				
+				try {
+					
+					frameReceived(reader.read(), reader.getInputStream());
+					
+					// deliver when everything that came at once is decoded
+					if (batch.size() >= MAX_BATCH || reader.getInputStream().available() == 0) {
+						flushBatch();
+					}
+					
+					pingIfDue();
+					
+				} catch (SocketTimeoutException e) {
+					// good time to acknowledge what was received
+					sendPendingAck();
+					pingIfDue();
+					
+				} catch (InvalidClassException e) {
+					logger.severe(e.getMessage());
+				} catch (IOException e) {
+					
+					flushBatch();
+					
+					// disconnection
+					if (!isInterrupted() && !closing) {
+						connectionLost(e.getMessage());
+					}
+					
+					break;
+					
+				} catch (ClassNotFoundException e) {
+					e.printStackTrace();
+				}
+				
+			}
+		}
 	}
 
 	private static final int SO_TIMEOUT = 100;
+	/** Most packets delivered to batch listeners at once */
+	private static final int MAX_BATCH = 256;
+	/** Default limit of bytes waiting for credits */
+	private static final int DEFAULT_SEND_QUEUE_LIMIT = 1024 * 1024;
+	/** How long to wait for WELCOME frame */
+	private static final int HANDSHAKE_TIMEOUT = 5000;
 	
 	/** Client socket */
 	private Socket socket;
@@ -102,14 +205,167 @@ public class StreamClient implements Client {
 	/** Input stream */
 	private ObjectInputStream ois;
 	
+	/** Frame output when framed protocol is used */
+	private FrameOutput writer;
+	/** Frame input when framed protocol is used */
+	private FrameReader reader;
+	/** Guards the frame writer */
+	private final Object writeLock = new Object();
+	/** Set when {@link #disconnect()} have sent CLOSE frame */
+	private volatile boolean closing;
+	
+	/** Use frames instead of plain object streams */
+	private boolean framedProtocol;
+	/** Ask server for resumable session */
+	private boolean sessionResumption;
+	/** Replay buffer limit of frames */
+	private int replayBufferFrames = ReplayBuffer.DEFAULT_MAX_FRAMES;
+	/** Replay buffer limit of bytes */
+	private int replayBufferBytes = ReplayBuffer.DEFAULT_MAX_BYTES;
+	/** Packets bigger than that are sent in fragments */
+	private int fragmentSize = FragmentAssembler.DEFAULT_FRAGMENT_SIZE;
+	/** Limit of incoming packet size */
+	private int maxMessageSize = FragmentAssembler.DEFAULT_MAX_MESSAGE_SIZE;
+	/** Limit of incoming frame payload size */
+	private int maxFrameSize = FrameReader.DEFAULT_MAX_PAYLOAD;
+	/** Ask the server for compression of payloads */
+	private boolean compression;
+	/** Features agreed with the server, <code>null</code> if it didn't negotiate them */
+	private volatile Capabilities capabilities;
+	/** Joins fragments of incoming packets */
+	private FragmentAssembler assembler = new FragmentAssembler();
+	/** Ids of outgoing fragmented packets */
+	private final AtomicInteger messageIds = new AtomicInteger();
+	/** Current session, kept after connection loss to resume it later */
+	private Session session;
+	/** Tells if last connection resumed previous session */
+	private boolean resumed;
+	/** Time between pings, 0 if disabled */
+	private volatile long pingInterval;
+	/** Send packets with timestamps */
+	private boolean packetTimestamps;
+	/** Encoded forms of packets sent many times, <code>null</code> if disabled */
+	private volatile EncodedCache encodedCache;
+	/** Packets the server may send ahead of listeners, 0 if flow control is disabled */
+	private int receiveWindow;
+	/** How the listener waits for data, <code>null</code> if it blocks */
+	private WaitStrategy busyPoll;
+	/** Connect with a socket channel, so blobs are sent without copying */
+	private boolean zeroCopyBlobs;
+	/** What sending does when the server has no credits */
+	private CreditPolicy sendPolicy = CreditPolicy.BLOCK;
+	/** Most bytes waiting for credits */
+	private int sendQueueLimit = DEFAULT_SEND_QUEUE_LIMIT;
+	/** Credits for packets sent to the server, kept when session resumes */
+	private volatile SendCredits sendCredits = new SendCredits(CreditPolicy.BLOCK, 0);
+	/** Credits granted to the server, <code>null</code> if flow control is disabled */
+	private volatile ReceiveCredits receiveCredits;
+	
+	/** Writes packets that got their credits */
+	private final SendCredits.Output payloadOutput = new SendCredits.Output() {
+		
+		public void sendPayload(byte[] payload) {
+			writePayload(payload);
+		}
+		
+	};
+	
+	/** Finds classes of received packets */
+	private ClassResolver classResolver = new ClassResolver(null, StreamClient.class.getClassLoader());
+	/** Round trip time to the server */
+	private final LatencyTracker latency = new LatencyTracker();
+	
 	/** Packet listeners */
 	private final Set<PacketListener> packetListeners = new HashSet<PacketListener>();
+	/** Batch packet listeners */
+	private final Set<BatchPacketListener> batchPacketListeners = new HashSet<BatchPacketListener>();
+	/** Packets decoded from data that came at once, used only by reading thread */
+	private List<Object> batch = new ArrayList<Object>();
+	/** Blob listeners */
+	private final Set<BlobListener> blobListeners = new HashSet<BlobListener>();
+	/** Latency listeners */
+	private final Set<LatencyListener> latencyListeners = new HashSet<LatencyListener>();
 	/** Connection listeners */
 	private final Set<ConnectionListener> connectionListeners = new HashSet<ConnectionListener>();
 	
 	/** Incoming data listener */
 	private Listener listener;
 	
+	/** Engine handling this client, <code>null</code> if client has its own thread */
+	private final ClientEngine engine;
+	/** Connection handled by the engine */
+	private EngineConnection connection;
+	/** WELCOME frame waiting for capabilities that follow it, used by engine only */
+	private Frame welcome;
+	/** Pending connection result, <code>null</code> if not connecting */
+	private ConnectFuture connecting;
+	/** Tells if engine connection is up */
+	private volatile boolean connected;
+	
+	/**
+	 * Creates client with its own listener thread.
+	 */
+	public StreamClient() {
+		this(null);
+	}
+	
+	/**
+	 * Creates client handled by given engine. Such client
+	 * always uses the framed protocol.
+	 * 
+	 * @param engine Engine or <code>null</code> to use own thread.
+	 */
+	public StreamClient(ClientEngine engine) {
+		this.engine = engine;
+		
+		if (engine != null) {
+			framedProtocol = true;
+		}
+	}
+	
+	/**
+	 * Adds listener that receives packets in batches.
+	 */
+	public boolean addBatchPacketListener(BatchPacketListener l) {
+		
+		if (l == null) {
+			throw new IllegalArgumentException("cannot take null values");
+		}
+		
+		synchronized (batchPacketListeners) {
+			return batchPacketListeners.add(l);
+		}
+	}
+	
+	/**
+	 * Adds listener of blobs sent by the server.
+	 */
+	public boolean addBlobListener(BlobListener l) {
+		
+		if (l == null) {
+			throw new IllegalArgumentException("cannot take null values");
+		}
+		
+		synchronized (blobListeners) {
+			return blobListeners.add(l);
+		}
+	}
+	
+	/**
+	 * Adds listener of latency of packets that the server sends
+	 * with timestamps.
+	 */
+	public boolean addLatencyListener(LatencyListener l) {
+		
+		if (l == null) {
+			throw new IllegalArgumentException("cannot take null values");
+		}
+		
+		synchronized (latencyListeners) {
+			return latencyListeners.add(l);
+		}
+	}
+	
 	/*
 	 * @see pl.graniec.coralreef.network.client.Client#addConnectionListener(pl.graniec.coralreef.network.client.ConnectionListener)
 	 */
@@ -145,27 +401,43 @@ public class StreamClient implements Client {
 			throw new IllegalStateException("cliedatant is already connected");
 		}
 		
+		if (engine != null) {
+			// there is no other way than waiting for the engine
+			try {
+				connectAsync(host, port).get();
+				return;
+			} catch (InterruptedException e) {
+				throw new NetworkException(e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof NetworkException) {
+					throw (NetworkException) e.getCause();
+				}
+				
+				throw new NetworkException(e.getCause());
+			}
+		}
+		
 		try {
 			
-			socket = new Socket(host, port);
-			socket.setTcpNoDelay(true);
-			
-			// configure socket
-			socket.setSoTimeout(SO_TIMEOUT);
-			
-			// create streams
-			final OutputStream os = socket.getOutputStream();
-			oos = new ObjectOutputStream(os);
-			
-			final InputStream is = socket.getInputStream();
-			ois = new ObjectInputStream(is);
+			if (zeroCopyBlobs || busyPoll != null) {
+				// adaptors of channels lock them during timed reads on older
+				// runtimes, so they're used only by features that need them
+				final InetSocketAddress address = new InetSocketAddress(host, port);
+				
+				if (address.isUnresolved()) {
+					throw new UnknownHostException(host);
+				}
+				
+				final SocketChannel channel = SocketChannel.open(address);
+				
+				socket = busyPoll != null ? new BusyPollSocket(channel, busyPoll) : channel.socket();
+			} else {
+				socket = new Socket(host, port);
+			}
 			
-			// notify this client connected
-			notifyConnected();
+			socket.setTcpNoDelay(true);
 			
-			// start the listener
-			listener = new Listener();
-			listener.start();
+			start();
 			
 		} catch (UnknownHostException e) {
 			throw new NetworkException(e);
@@ -173,111 +445,1390 @@ public class StreamClient implements Client {
 			throw new NetworkException(e);
 		}
 	}
-
-	/*
-	 * @see pl.graniec.coralreef.network.client.Client#disconnect()
+	
+	/**
+	 * Connects to the server listening on a Unix domain socket at given
+	 * path. Processes on the same machine skip the TCP stack this way.
+	 * Clients handled by a {@link ClientEngine} cannot use it.
+	 * <p>
+	 * Unix domain sockets require Java 16 or later.
+	 * 
+	 * @see UnixSockets#isSupported()
 	 */
-	public void disconnect() {
-		if (!isConnected()) {
-			throw new IllegalStateException("client is not connected");
+	public void connect(File path) throws NetworkException {
+		if (path == null) {
+			throw new IllegalArgumentException("parameters cannot be null");
 		}
 		
-		// first stop the listener
+		final Socket socket;
+		
 		try {
-			listener.interrupt();
-			listener.join();
-		} catch (InterruptedException e1) {
-			e1.printStackTrace();
+			socket = UnixSockets.connect(path);
+		} catch (IOException e) {
+			throw new NetworkException(e);
+		}
+		
+		connect(socket);
+	}
+	
+	/**
+	 * Talks to the server through a socket connected by other means,
+	 * like {@link UnixSockets#connect(File)} or
+	 * {@link SharedMemory#connect(File)}. The client takes the socket
+	 * over and closes it on disconnection.
+	 * Clients handled by a {@link ClientEngine} cannot use it.
+	 */
+	public void connect(Socket socket) throws NetworkException {
+		if (socket == null) {
+			throw new IllegalArgumentException("parameters cannot be null");
+		}
+		
+		if (isConnected()) {
+			throw new IllegalStateException("client is already connected");
+		}
+		
+		if (engine != null) {
+			throw new IllegalStateException("engine clients connect by host and port only");
 		}
 		
-		// then close the socket
 		try {
-			socket.close();
-			socket = null;
+			this.socket = socket;
+			start();
 		} catch (IOException e) {
-			// ignore this exception
+			throw new NetworkException(e);
 		}
 	}
-
-	/*
-	 * @see pl.graniec.coralreef.network.client.Client#isConnected()
+	
+	/**
+	 * Sets up freshly connected socket and starts listening on it.
 	 */
-	public boolean isConnected() {
-		return socket != null && socket.isConnected();
+	private void start() throws IOException {
+		// configure socket
+		socket.setSoTimeout(SO_TIMEOUT);
+		
+		if (framedProtocol) {
+			
+			try {
+				handshake();
+			} catch (IOException e) {
+				socket.close();
+				socket = null;
+				throw e;
+			}
+			
+		} else {
+			
+			try {
+				// create streams
+				final OutputStream os = socket.getOutputStream();
+				oos = new ObjectOutputStream(os);
+				
+				final InputStream is = socket.getInputStream();
+				ois = new ResolvingObjectInputStream(is, classResolver);
+			} catch (IOException e) {
+				socket.close();
+				socket = null;
+				throw e;
+			}
+		}
+		
+		// notify this client connected
+		notifyConnected();
+		
+		// start the listener
+		closing = false;
+		listener = new Listener();
+		listener.start();
 	}
-
-	private void notifyConnected() {
-		ConnectionListener[] copy;
+	
+	/**
+	 * Connects to the server without blocking the calling thread.
+	 * <p>
+	 * Clients handled by a {@link ClientEngine} connect using non-blocking
+	 * sockets, after the host name is looked up on a short-lived thread.
+	 * Other clients connect on a separate thread.
+	 * 
+	 * @return Future that is done when client is connected.
+	 */
+	public Future<StreamClient> connectAsync(final String host, final int port) {
+		if (host == null) {
+			throw new IllegalArgumentException("parameters cannot be null");
+		}
 		
-		synchronized (connectionListeners) {
-			copy = connectionListeners.toArray(new ConnectionListener[connectionListeners.size()]);
+		final ConnectFuture future = new ConnectFuture();
+		
+		synchronized (writeLock) {
+			if (isConnected() || connecting != null) {
+				throw new IllegalStateException("client is already connected");
+			}
+			
+			if (engine == null) {
+				new Thread() {
+					/*
+					 * @see java.lang.Thread#run()
+					 */
+					@Override
+					public void run() {
+						try {
+							connect(host, port);
+							future.set(StreamClient.this);
+						} catch (NetworkException e) {
+							future.fail(e);
+						}
+					}
+				}.start();
+				
+				return future;
+			}
+			
+			connecting = future;
 		}
 		
-		for (ConnectionListener l : copy) {
-			l.clientConnected();
+		final Thread resolver = new Thread("ClientEngine-resolver") {
+			/*
+			 * @see java.lang.Thread#run()
+			 */
+			@Override
+			public void run() {
+				// name lookup blocks, so it's kept off the caller and the engine
+				engineConnect(future, new InetSocketAddress(host, port));
+			}
+		};
+		
+		resolver.setDaemon(true);
+		resolver.start();
+		
+		return future;
+	}
+	
+	/**
+	 * Starts connecting on the engine once the address is resolved.
+	 */
+	private void engineConnect(ConnectFuture future, InetSocketAddress address) {
+		synchronized (writeLock) {
+			if (connecting != future) {
+				return;
+			}
+			
+			try {
+				if (address.isUnresolved()) {
+					throw new UnknownHostException(address.getHostName());
+				}
+				
+				connection = engine.connect(this, address);
+				writer = createOutput(connection);
+			} catch (IOException e) {
+				connecting = null;
+				future.fail(new NetworkException(e));
+			} catch (RuntimeException e) {
+				// like unsupported address types, thrown by the channel
+				connecting = null;
+				future.fail(new NetworkException(e));
+			}
 		}
 	}
-
-	private void notifyDisconnected(int reason, String reasonString) {
-		ConnectionListener[] copy;
+	
+	private FrameOutput createOutput(FrameOutput output) {
+		return packetTimestamps ? new TimestampingFrameOutput(output) : output;
+	}
+	
+	/**
+	 * Sends HELLO frame and waits for server's WELCOME.
+	 */
+	private void handshake() throws IOException {
 		
-		synchronized (connectionListeners) {
-			copy = connectionListeners.toArray(new ConnectionListener[connectionListeners.size()]);
+		writer = createOutput(new FrameWriter(socket.getOutputStream()));
+		reader = new FrameReader(new BufferedInputStream(socket.getInputStream()), maxFrameSize);
+		
+		writer.write(createHello());
+		writer.write(createCapabilities());
+		
+		final Frame welcome = reader.read(HANDSHAKE_TIMEOUT);
+		
+		if (welcome.getType() == Frame.WELCOME && welcome.hasFlag(Frame.FLAG_CAPABILITIES)) {
+			welcomeReceived(welcome, capabilitiesReceived(reader.read(HANDSHAKE_TIMEOUT)));
+		} else {
+			// server of older version
+			welcomeReceived(welcome, null);
 		}
+	}
+	
+	/**
+	 * Creates CAPABILITIES frame that follows HELLO.
+	 */
+	private Frame createCapabilities() {
+		final Capabilities offered = new Capabilities(
+				Capabilities.CODEC_SERIALIZATION,
+				compression ? Capabilities.COMPRESSION_DEFLATE : 0,
+				(int) Math.min(pingInterval, Integer.MAX_VALUE),
+				maxFrameSize
+		);
 		
-		for (ConnectionListener l : copy) {
-			l.clientDisconnected(reason, reasonString);
+		return new Frame(Frame.CAPABILITIES, 0, 0, offered.toBytes());
+	}
+	
+	/**
+	 * Parses capabilities frame that follows WELCOME.
+	 */
+	private static Capabilities capabilitiesReceived(Frame frame) throws IOException {
+		if (frame.getType() != Frame.CAPABILITIES) {
+			throw new IOException("expected CAPABILITIES frame but got " + frame);
 		}
+		
+		return Capabilities.fromBytes(frame.getPayload());
 	}
-
-	private void notifyPacketReveived(Object data) {
-		PacketListener[] copy;
+	
+	/**
+	 * Creates HELLO frame. If there is a session left from the previous
+	 * connection then the server is asked to resume it.
+	 */
+	private Frame createHello() {
+		// older servers ignore the capabilities frame
+		final byte flags = (byte) ((sessionResumption ? Frame.FLAG_SESSION : 0) | Frame.FLAG_CAPABILITIES);
+		final Session previous = session;
 		
-		synchronized (packetListeners) {
-			copy = packetListeners.toArray(new PacketListener[packetListeners.size()]);
+		if (previous != null) {
+			return new Frame(
+					Frame.HELLO, flags, previous.getDiscarded(), previous.getLastReceived(),
+					Session.tokenToBytes(previous.getToken())
+			);
 		}
 		
-		for (PacketListener l : copy) {
-			l.packetReceived(data);
+		return new Frame(Frame.HELLO, flags, 0, 0, null);
+	}
+	
+	/**
+	 * Handles server's response to HELLO.
+	 * 
+	 * @param agreed Capabilities agreed by the server or <code>null</code>.
+	 */
+	private void welcomeReceived(Frame welcome, Capabilities agreed) throws IOException {
+		
+		if (welcome.getType() != Frame.WELCOME) {
+			throw new IOException("expected WELCOME frame but got " + welcome);
+		}
+		
+		capabilities = agreed;
+		
+		final Session previous = session;
+		
+		resumed = previous != null && welcome.hasFlag(Frame.FLAG_RESUMED);
+		
+		if (resumed) {
+			// send everything that server have missed
+			synchronized (writeLock) {
+				for (Frame frame : previous.framesToReplay(welcome.getAcknowledgment())) {
+					writer.write(frame);
+				}
+			}
+			
+			// credits are counted from the start of the session
+			sendCredits.reopen();
+			grantInitialCredits();
+			return;
+		}
+		
+		sendCredits = new SendCredits(sendPolicy, sendQueueLimit);
+		receiveCredits = receiveWindow > 0 ? new ReceiveCredits(receiveWindow) : null;
+		grantInitialCredits();
+		
+		// fragments from previous connection won't be completed
+		assembler = new FragmentAssembler(maxMessageSize);
+		
+		final UUID token = Session.tokenFromBytes(welcome.getPayload());
+		
+		if (sessionResumption && token != null) {
+			session = new Session(token, new ReplayBuffer(replayBufferFrames, replayBufferBytes));
+		} else {
+			session = null;
 		}
 	}
 	
-	/*
-	 * @see pl.graniec.coralreef.network.client.Client#removeConnectionListener(pl.graniec.coralreef.network.client.ConnectionListener)
+	/**
+	 * Tells the server how many packets it may send.
 	 */
-	public boolean removeConnectionListener(ConnectionListener l) {
-		synchronized (connectionListeners) {
-			return connectionListeners.remove(l);
+	private void grantInitialCredits() throws IOException {
+		final ReceiveCredits credits = receiveCredits;
+		
+		if (credits != null) {
+			synchronized (writeLock) {
+				writer.write(new Frame(Frame.CREDIT, 0, credits.getLimit(), null));
+			}
 		}
 	}
 	
-	/*
-	 * @see pl.graniec.coralreef.network.client.Client#removePacketListener(pl.graniec.coralreef.network.PacketListener)
+	/**
+	 * Gives the server new credits if listeners have consumed enough.
 	 */
-	public boolean removePacketListener(PacketListener l) {
+	private void grantCredits(int consumed) {
+		final ReceiveCredits credits = receiveCredits;
 		
-		if (l == null) {
-			throw new IllegalArgumentException("parameters cannot be null");
+		if (credits == null) {
+			return;
 		}
 		
-		synchronized (packetListeners) {
-			return packetListeners.remove(l);
+		final long limit = credits.consumed(consumed);
+		
+		if (limit >= 0) {
+			writeControl(new Frame(Frame.CREDIT, 0, limit, null));
 		}
 	}
 	
-	/*
-	 * @see pl.graniec.coralreef.network.client.Client#send(java.lang.Object)
+	/**
+	 * Called by engine when socket is connected.
 	 */
-	public void send(Object data) throws NotSerializableException, NetworkException {
-		if (!isConnected()) {
-			throw new IllegalStateException("not connected");
+	void engineConnected(EngineConnection connection) {
+		synchronized (writeLock) {
+			this.connection = connection;
+			writer = createOutput(connection);
 		}
 		
+		welcome = null;
+		
 		try {
-			oos.writeObject(data);
+			connection.write(createHello());
+			connection.write(createCapabilities());
 		} catch (IOException e) {
-			// probably disconnected
-			notifyDisconnected(DisconnectReason.Reset, e.getMessage());
+			connection.failed(e);
+		}
+	}
+	
+	/**
+	 * Called by engine for every incoming frame.
+	 */
+	void engineFrameReceived(Frame frame) throws IOException, ClassNotFoundException {
+		
+		final ConnectFuture future = connecting;
+		
+		if (future == null) {
+			frameReceived(frame, null);
+			return;
+		}
+		
+		final Frame welcome = this.welcome;
+		
+		if (welcome != null) {
+			this.welcome = null;
+			welcomeReceived(welcome, capabilitiesReceived(frame));
+			
+		} else if (frame.getType() == Frame.WELCOME && frame.hasFlag(Frame.FLAG_CAPABILITIES)) {
+			// wait for the next frame
+			this.welcome = frame;
+			return;
+			
+		} else {
+			welcomeReceived(frame, null);
+		}
+		
+		synchronized (writeLock) {
+			connecting = null;
+			connected = true;
+		}
+		
+		notifyConnected();
+		future.set(this);
+	}
+	
+	/**
+	 * Called by engine after all frames from one read were passed
+	 * to {@link #engineFrameReceived(Frame)}.
+	 */
+	void engineReadFinished() {
+		flushBatch();
+	}
+	
+	/**
+	 * Called by engine when connection is broken.
+	 */
+	void engineFailed(IOException e) {
+		
+		final ConnectFuture future;
+		
+		synchronized (writeLock) {
+			future = connecting;
+			
+			connecting = null;
+			connection = null;
+			writer = null;
+		}
+		
+		if (future != null) {
+			future.fail(new NetworkException(e));
+			return;
+		}
+		
+		if (connected) {
+			connected = false;
+			notifyDisconnected(DisconnectReason.Reset, e.getMessage());
+		}
+	}
+	
+	/**
+	 * Called by engine every now and then.
+	 * 
+	 * @param age Time since connection was started.
+	 */
+	void engineTick(EngineConnection connection, long age) {
+		if (connecting != null && age > HANDSHAKE_TIMEOUT) {
+			connection.failed(new IOException("handshake timed out"));
+			return;
+		}
+		
+		sendPendingAck();
+		pingIfDue();
+	}
+
+	/*
+	 * @see pl.graniec.coralreef.network.client.Client#disconnect()
+	 */
+	public void disconnect() {
+		if (!isConnected()) {
+			throw new IllegalStateException("client is not connected");
+		}
+		
+		// threads waiting for credits won't get them
+		sendCredits.close();
+		
+		// listeners aren't told about it, but the recording is
+		NetworkEvents.disconnected(NetworkEvents.CLIENT, System.identityHashCode(this), "client disconnected");
+		
+		if (engine != null) {
+			final EngineConnection connection;
+			
+			synchronized (writeLock) {
+				// the engine may have dropped the connection meanwhile
+				if (writer != null) {
+					try {
+						writer.write(new Frame(Frame.CLOSE, 0, 0, null));
+					} catch (IOException e) {
+						// closing anyway
+					}
+				}
+				
+				connection = this.connection;
+				
+				this.connection = null;
+				writer = null;
+				session = null;
+				connected = false;
+			}
+			
+			if (connection != null) {
+				connection.close();
+			}
+			
+			return;
+		}
+		
+		if (framedProtocol) {
+			// tell the server that we won't come back; this goes first
+			// since interrupting a listener blocked on a socket channel
+			// closes the channel
+			closing = true;
+			
+			synchronized (writeLock) {
+				if (writer != null) {
+					try {
+						writer.write(new Frame(Frame.CLOSE, 0, 0, null));
+					} catch (IOException e) {
+						// closing anyway
+					}
+				}
+				
+				writer = null;
+				session = null;
+			}
+		}
+		
+		// then stop the listener
+		try {
+			listener.interrupt();
+			listener.join();
+		} catch (InterruptedException e1) {
+			e1.printStackTrace();
+		}
+		
+		// then close the socket
+		final Socket socket = this.socket;
+		
+		if (socket == null) {
+			// listener have noticed the connection loss already
+			return;
+		}
+		
+		try {
+			socket.close();
+			this.socket = null;
+		} catch (IOException e) {
+			// ignore this exception
+		}
+	}
+
+	/*
+	 * @see pl.graniec.coralreef.network.client.Client#isConnected()
+	 */
+	public boolean isConnected() {
+		if (engine != null) {
+			return connected;
+		}
+		
+		final Socket socket = this.socket;
+		return socket != null && socket.isConnected();
+	}
+	
+	/**
+	 * @return Smoothed round trip time to the server in milliseconds,
+	 * or -1 if it was not measured yet.
+	 * @see #setPingInterval(long)
+	 */
+	public float getRoundTripTime() {
+		return latency.getRoundTripTime();
+	}
+	
+	/**
+	 * @return Smoothed variation of round trip time in milliseconds.
+	 */
+	public float getRoundTripJitter() {
+		return latency.getJitter();
+	}
+	
+	/**
+	 * Tells if the last {@link #connect(String, int)} have resumed the
+	 * previous session. If so, all packets that were lost during
+	 * disconnection were sent again and there is no need to synchronize
+	 * the state from the beginning.
+	 */
+	public boolean isResumed() {
+		return resumed;
+	}
+	
+	/**
+	 * Called from listener when connection is broken.
+	 */
+	private void connectionLost(String reasonString) {
+		
+		synchronized (writeLock) {
+			writer = null;
+		}
+		
+		final Socket socket = this.socket;
+		
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// ignore this exception
+		}
+		
+		// session stays for the next connect()
+		this.socket = null;
+		
+		notifyDisconnected(DisconnectReason.Reset, reasonString);
+	}
+
+	private void notifyConnected() {
+		final Socket socket = this.socket;
+		
+		NetworkEvents.connected(NetworkEvents.CLIENT, System.identityHashCode(this),
+				socket != null ? String.valueOf(socket.getRemoteSocketAddress()) : null);
+		
+		ConnectionListener[] copy;
+		
+		synchronized (connectionListeners) {
+			copy = connectionListeners.toArray(new ConnectionListener[connectionListeners.size()]);
+		}
+		
+		for (ConnectionListener l : copy) {
+			l.clientConnected();
+		}
+	}
+
+	private void notifyDisconnected(int reason, String reasonString) {
+		sendCredits.close();
+		
+		NetworkEvents.disconnected(NetworkEvents.CLIENT, System.identityHashCode(this), reasonString);
+		
+		ConnectionListener[] copy;
+		
+		synchronized (connectionListeners) {
+			copy = connectionListeners.toArray(new ConnectionListener[connectionListeners.size()]);
+		}
+		
+		for (ConnectionListener l : copy) {
+			l.clientDisconnected(reason, reasonString);
+		}
+	}
+
+	private void notifyPacketReveived(Object data) {
+		notifyPacketsReceived(Collections.singletonList(data));
+	}
+	
+	private void notifyPacketsReceived(List<Object> packets) {
+		PacketListener[] copy;
+		BatchPacketListener[] batchCopy;
+		
+		synchronized (packetListeners) {
+			copy = packetListeners.toArray(new PacketListener[packetListeners.size()]);
+		}
+		
+		synchronized (batchPacketListeners) {
+			batchCopy = batchPacketListeners.toArray(new BatchPacketListener[batchPacketListeners.size()]);
+		}
+		
+		for (PacketListener l : copy) {
+			for (Object data : packets) {
+				l.packetReceived(data);
+			}
+		}
+		
+		for (BatchPacketListener l : batchCopy) {
+			l.packetsReceived(packets);
+		}
+	}
+	
+	/**
+	 * Delivers packets collected so far.
+	 */
+	private void flushBatch() {
+		if (batch.isEmpty()) {
+			return;
+		}
+		
+		final List<Object> packets = batch;
+		batch = new ArrayList<Object>();
+		
+		notifyPacketsReceived(Collections.unmodifiableList(packets));
+		grantCredits(packets.size());
+	}
+	
+	private void notifyPacketLatency(Object data, byte[] stamped, long receivedAt) {
+		
+		LatencyListener[] copy;
+		
+		synchronized (latencyListeners) {
+			copy = latencyListeners.toArray(new LatencyListener[latencyListeners.size()]);
+		}
+		
+		final long queueTime = LatencyTracker.getQueueTime(stamped);
+		final long transitTime = latency.getTransitTime(stamped, receivedAt);
+		
+		for (LatencyListener l : copy) {
+			l.packetLatency(data, queueTime, transitTime);
+		}
+	}
+	
+	private void frameReceived(Frame frame, InputStream in) throws IOException, ClassNotFoundException {
+		
+		final Session session = this.session;
+		
+		switch (frame.getType()) {
+			case Frame.PACKET:
+			case Frame.FRAGMENT:
+				final long receivedAt = LatencyTracker.now();
+				
+				if (session != null) {
+					session.acknowledged(frame.getAcknowledgment());
+					
+					if (!session.received(frame.getSequence())) {
+						// duplicate from replay
+						return;
+					}
+				}
+				
+				final boolean stamped = frame.hasFlag(Frame.FLAG_TIMESTAMP);
+				byte[] payload = stamped ? LatencyTracker.strip(frame.getPayload()) : frame.getPayload();
+				
+				if (frame.hasFlag(Frame.FLAG_COMPRESSED)) {
+					payload = Compression.decompress(payload, maxFrameSize);
+				}
+				
+				final byte[] data = frame.getType() == Frame.PACKET
+					? payload : assembler.add(payload);
+				
+				if (data != null) {
+					// routed packets are decoded by listeners if they need them
+					final NetworkEvents.Span span = NetworkEvents.beginPacketReceived();
+					final Object packet;
+					
+					try {
+						packet = RoutedPacket.isRouted(data)
+							? RoutedPacket.fromBytes(data, classResolver) : PacketCodec.decode(data, classResolver);
+					} catch (ClassNotFoundException e) {
+						// never reaches listeners, so its credit is freed now
+						grantCredits(1);
+						throw e;
+					} catch (InvalidClassException e) {
+						grantCredits(1);
+						throw e;
+					}
+					
+					if (span != null) {
+						span.packet(NetworkEvents.CLIENT, System.identityHashCode(StreamClient.this), packet, data.length);
+					}
+					
+					if (stamped) {
+						notifyPacketLatency(packet, frame.getPayload(), receivedAt);
+					}
+					
+					// delivered by the reader with the rest of the batch
+					batch.add(packet);
+				}
+				
+				if (session != null && session.isAckRequired()) {
+					sendPendingAck();
+				}
+				break;
+				
+			case Frame.ACK:
+				if (session != null) {
+					session.acknowledged(frame.getAcknowledgment());
+				}
+				break;
+				
+			case Frame.BLOB:
+				// packets sent before the blob go first
+				flushBatch();
+				BlobTransfer.receive(frame, in, copyBlobListeners());
+				break;
+				
+			case Frame.PING:
+				writeControl(LatencyTracker.createPong(frame));
+				break;
+				
+			case Frame.PONG:
+				latency.pongReceived(frame);
+				break;
+				
+			case Frame.CREDIT:
+				sendCredits.grant(frame.getAcknowledgment(), payloadOutput);
+				break;
+				
+			case Frame.CLOSE:
+				flushBatch();
+				
+				// server won't resume this session
+				this.session = null;
+				throw new IOException("connection closed by server");
+				
+			default:
+				logger.warning("Unexpected frame " + frame + " ignored");
+		}
+	}
+	
+	private void sendPendingAck() {
+		synchronized (writeLock) {
+			final Session session = this.session;
+			
+			if (session == null || writer == null || !session.isAckPending()) {
+				return;
+			}
+			
+			try {
+				writer.write(session.createAck());
+			} catch (IOException e) {
+				// listener will notice broken connection
+			}
+		}
+	}
+	
+	private void pingIfDue() {
+		final Capabilities agreed = capabilities;
+		
+		if (latency.isPingDue(agreed != null ? agreed.getHeartbeat() : pingInterval)) {
+			writeControl(latency.createPing());
+		}
+	}
+	
+	/**
+	 * Writes frame that is not a part of the session.
+	 */
+	private void writeControl(Frame frame) {
+		synchronized (writeLock) {
+			if (writer == null) {
+				return;
+			}
+			
+			try {
+				writer.write(frame);
+			} catch (IOException e) {
+				// listener will notice broken connection
+			}
+		}
+	}
+	
+	private BlobListener[] copyBlobListeners() {
+		synchronized (blobListeners) {
+			return blobListeners.toArray(new BlobListener[blobListeners.size()]);
+		}
+	}
+	
+	public boolean removeBatchPacketListener(BatchPacketListener l) {
+		
+		if (l == null) {
+			throw new IllegalArgumentException("parameters cannot be null");
+		}
+		
+		synchronized (batchPacketListeners) {
+			return batchPacketListeners.remove(l);
+		}
+	}
+	
+	public boolean removeLatencyListener(LatencyListener l) {
+		
+		if (l == null) {
+			throw new IllegalArgumentException("parameters cannot be null");
+		}
+		
+		synchronized (latencyListeners) {
+			return latencyListeners.remove(l);
+		}
+	}
+	
+	public boolean removeBlobListener(BlobListener l) {
+		
+		if (l == null) {
+			throw new IllegalArgumentException("parameters cannot be null");
+		}
+		
+		synchronized (blobListeners) {
+			return blobListeners.remove(l);
+		}
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.client.Client#removeConnectionListener(pl.graniec.coralreef.network.client.ConnectionListener)
+	 */
+	public boolean removeConnectionListener(ConnectionListener l) {
+		synchronized (connectionListeners) {
+			return connectionListeners.remove(l);
+		}
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.client.Client#removePacketListener(pl.graniec.coralreef.network.PacketListener)
+	 */
+	public boolean removePacketListener(PacketListener l) {
+		
+		if (l == null) {
+			throw new IllegalArgumentException("parameters cannot be null");
+		}
+		
+		synchronized (packetListeners) {
+			return packetListeners.remove(l);
+		}
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.client.Client#send(java.lang.Object)
+	 */
+	public void send(Object data) throws NotSerializableException, NetworkException {
+		if (!isConnected()) {
+			throw new IllegalStateException("not connected");
+		}
+		
+		if (framedProtocol) {
+			sendFrame(data);
+			return;
+		}
+		
+		try {
+			oos.writeObject(data);
+		} catch (IOException e) {
+			// probably disconnected
+			notifyDisconnected(DisconnectReason.Reset, e.getMessage());
+		}
+	}
+	
+	/**
+	 * Sends packet with a routing header, so the receiver can see
+	 * where the packet goes without decoding it. Requires the framed
+	 * protocol.
+	 * 
+	 * @see RoutedPacket
+	 */
+	public void sendRouted(int type, int destination, Object data) throws NotSerializableException, NetworkException {
+		
+		if (data == null) {
+			throw new IllegalArgumentException("data cannot be null");
+		}
+		
+		checkRouting();
+		
+		final byte[] encoded;
+		
+		try {
+			encoded = encode(data);
+		} catch (NotSerializableException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new NetworkException(e);
+		}
+		
+		sendCredits.send(RoutedPacket.encode(type, destination, encoded), payloadOutput);
+	}
+	
+	/**
+	 * Sends received routed packet to the server as it is, without
+	 * decoding and encoding it again.
+	 */
+	public void forward(RoutedPacket packet) {
+		
+		if (packet == null) {
+			throw new IllegalArgumentException("packet cannot be null");
+		}
+		
+		checkRouting();
+		sendCredits.send(packet.getData(), payloadOutput);
+	}
+	
+	private void checkRouting() {
+		if (!isConnected()) {
+			throw new IllegalStateException("not connected");
+		}
+		
+		if (!framedProtocol) {
+			throw new IllegalStateException("routed packets require the framed protocol");
+		}
+	}
+	
+	/**
+	 * Sends the whole file as a blob.
+	 * 
+	 * @see #sendFile(String, FileChannel, long, long)
+	 */
+	public void sendFile(File file) throws NetworkException {
+		
+		if (file == null) {
+			throw new IllegalArgumentException("file cannot be null");
+		}
+		
+		try {
+			final FileInputStream in = new FileInputStream(file);
+			
+			try {
+				final FileChannel channel = in.getChannel();
+				sendFile(file.getName(), channel, 0, channel.size());
+			} finally {
+				in.close();
+			}
+			
+		} catch (IOException e) {
+			throw new NetworkException(e);
+		}
+	}
+	
+	/**
+	 * Sends region of a file as a blob. The server receives it with a
+	 * {@link BlobListener}. Data goes straight from the file to the
+	 * socket if zero copy blobs are enabled, otherwise it's copied
+	 * through the heap.
+	 * <p>
+	 * Requires the framed protocol and is not available for clients
+	 * handled by {@link ClientEngine}. Other packets wait until the blob
+	 * is sent, and blobs are not sent again when session is resumed.
+	 */
+	public void sendFile(String name, FileChannel channel, long position, long count) throws NetworkException {
+		
+		if (name == null || channel == null) {
+			throw new IllegalArgumentException("parameters cannot be null");
+		}
+		
+		if (!framedProtocol || engine != null) {
+			throw new IllegalStateException("blobs require the framed protocol and own listener thread");
+		}
+		
+		synchronized (writeLock) {
+			
+			if (writer == null) {
+				throw new IllegalStateException("not connected");
+			}
+			
+			try {
+				BlobTransfer.send(writer, socket.getOutputStream(), socket.getChannel(), name, channel, position, count);
+			} catch (IOException e) {
+				throw new NetworkException(e);
+			}
+		}
+	}
+	
+	private byte[] encode(Object data) throws NotSerializableException, IOException {
+		final NetworkEvents.Span span = NetworkEvents.beginPacketSent();
+		final EncodedCache cache = encodedCache;
+		final byte[] payload = cache != null ? cache.encode(data) : PacketCodec.encode(data);
+		
+		if (span != null) {
+			span.packet(NetworkEvents.CLIENT, System.identityHashCode(this), data, payload.length);
+		}
+		
+		return payload;
+	}
+	
+	private void sendFrame(Object data) throws NotSerializableException, NetworkException {
+		
+		final byte[] payload;
+		
+		try {
+			payload = encode(data);
+		} catch (NotSerializableException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new NetworkException(e);
+		}
+		
+		sendCredits.send(payload, payloadOutput);
+	}
+	
+	private void writePayload(byte[] payload) {
+		
+		final Capabilities agreed = capabilities;
+		int fragmentSize = this.fragmentSize;
+		
+		if (agreed != null) {
+			// fragments must fit in frames that server accepts
+			fragmentSize = Math.min(fragmentSize,
+					agreed.getMaxFrameSize() - FragmentAssembler.HEADER_SIZE - LatencyTracker.TIMESTAMP_SIZE);
+		}
+		
+		if (payload.length <= fragmentSize) {
+			writeData(Frame.PACKET, payload);
+			return;
+		}
+		
+		// big packet goes in pieces, so other packets can be sent in between
+		final int messageId = messageIds.incrementAndGet();
+		
+		for (int offset = 0; offset < payload.length; offset += fragmentSize) {
+			final int length = Math.min(fragmentSize, payload.length - offset);
+			
+			writeData(Frame.FRAGMENT, FragmentAssembler.createFragment(messageId, payload, offset, length));
+			Thread.yield();
+		}
+	}
+	
+	private void writeData(byte type, byte[] payload) {
+		
+		byte flags = 0;
+		
+		final Capabilities agreed = capabilities;
+		
+		if (agreed != null && agreed.isCompressed()) {
+			final byte[] compressed = Compression.compress(payload);
+			
+			if (compressed != null) {
+				payload = compressed;
+				flags = Frame.FLAG_COMPRESSED;
+			}
+		}
+		
+		if (packetTimestamps) {
+			payload = LatencyTracker.stamp(payload);
+			flags |= Frame.FLAG_TIMESTAMP;
+		}
+		
+		synchronized (writeLock) {
+			
+			if (writer == null) {
+				throw new IllegalStateException("not connected");
+			}
+			
+			final Session session = this.session;
+			final Frame frame;
+			
+			if (session != null) {
+				frame = session.createFrame(type, flags, payload);
+			} else {
+				frame = new Frame(type, flags, 0, 0, payload);
+			}
+			
+			try {
+				writer.write(frame);
+			} catch (IOException e) {
+				// listener will notice broken connection, and the
+				// frame will be sent again if session is resumed
+			}
+		}
+	}
+	
+	/**
+	 * Limits classes that the server can send to the ones allowed by
+	 * given filter. Any other class is rejected before it's loaded.
+	 * 
+	 * @param filter Allowed classes or <code>null</code> to allow all.
+	 * @see pl.graniec.coralreef.network.stream.server.StreamServer#setClassFilter(ClassFilter)
+	 */
+	public void setClassFilter(ClassFilter filter) {
+		checkNotConnected();
+		classResolver = new ClassResolver(filter, StreamClient.class.getClassLoader());
+	}
+	
+	/**
+	 * Makes blobs go straight from files to the socket, without copying
+	 * them through the heap. Connecting by host and port opens a socket
+	 * channel for this, which is not used otherwise, as reads with
+	 * timeout hold a lock of the channel on Java 8 to 12.
+	 * <p>
+	 * This enables the framed protocol.
+	 * 
+	 * @see pl.graniec.coralreef.network.stream.server.StreamServer#setZeroCopyBlobs(boolean)
+	 */
+	public void setZeroCopyBlobs(boolean zeroCopyBlobs) {
+		checkNotConnected();
+		
+		this.zeroCopyBlobs = zeroCopyBlobs;
+		
+		if (zeroCopyBlobs) {
+			framedProtocol = true;
+		}
+	}
+	
+	/**
+	 * Enables low latency mode for the price of CPU time. The socket
+	 * becomes non-blocking and the listener thread polls it as the wait
+	 * strategy says instead of sleeping until the kernel wakes it up.
+	 * Works with the framed protocol when connecting by host and port.
+	 * 
+	 * @param strategy How to wait for data, like
+	 * {@link WaitStrategy#BUSY_SPIN}, or <code>null</code> to block.
+	 * @see pl.graniec.coralreef.network.stream.server.StreamServer#setBusyPoll(WaitStrategy)
+	 */
+	public void setBusyPoll(WaitStrategy strategy) {
+		checkNotConnected();
+		
+		if (engine != null && strategy != null) {
+			throw new IllegalStateException("clients handled by engine cannot busy poll");
+		}
+		
+		this.busyPoll = strategy;
+		
+		if (strategy != null) {
+			framedProtocol = true;
+		}
+	}
+	
+	/**
+	 * Enables flow control of packets coming from the server. It may
+	 * send at most <code>window</code> packets that listeners haven't
+	 * consumed yet.
+	 * 
+	 * @param window Number of packets or 0 to disable flow control.
+	 * @see pl.graniec.coralreef.network.stream.server.StreamServer#setReceiveWindow(int)
+	 */
+	public void setReceiveWindow(int window) {
+		checkNotConnected();
+		
+		if (window < 0) {
+			throw new IllegalArgumentException("window cannot be negative");
+		}
+		
+		this.receiveWindow = window;
+		
+		if (window > 0) {
+			framedProtocol = true;
+		}
+	}
+	
+	/**
+	 * Sets what {@link #send(Object)} does when the server uses flow
+	 * control and has no credits left.
+	 * 
+	 * @see pl.graniec.coralreef.network.stream.server.StreamServer#setSendPolicy(CreditPolicy, int)
+	 */
+	public void setSendPolicy(CreditPolicy policy, int queueLimit) {
+		checkNotConnected();
+		
+		if (policy == null) {
+			throw new IllegalArgumentException("policy cannot be null");
+		}
+		
+		if (queueLimit < 0) {
+			throw new IllegalArgumentException("queue limit cannot be negative");
+		}
+		
+		this.sendPolicy = policy;
+		this.sendQueueLimit = queueLimit;
+	}
+	
+	/**
+	 * @return Packets that can be sent before the server grants more
+	 * credits or -1 if the server doesn't limit them.
+	 */
+	public long getSendCredits() {
+		return sendCredits.getCredits();
+	}
+	
+	/**
+	 * @return Number of packets waiting for credits.
+	 */
+	public int getSendQueueSize() {
+		return sendCredits.getQueued();
+	}
+	
+	/**
+	 * Sets cache of encoded packets used with the framed protocol.
+	 * Packets that implement {@link pl.graniec.coralreef.network.stream.cache.ImmutablePacket}
+	 * or {@link pl.graniec.coralreef.network.stream.cache.VersionedPacket}
+	 * are then serialized once and the bytes reused for next sends.
+	 * 
+	 * @param cache Cache to use or <code>null</code> to disable caching.
+	 * @see pl.graniec.coralreef.network.stream.server.StreamServer#setEncodedCache(EncodedCache)
+	 */
+	public void setEncodedCache(EncodedCache cache) {
+		this.encodedCache = cache;
+	}
+	
+	/**
+	 * Makes client send packets with the time they were queued and
+	 * written to the socket, so the server can tell their queueing and
+	 * transit latency. Server must support the framed protocol of
+	 * this version.
+	 * <p>
+	 * This enables the framed protocol.
+	 */
+	public void setPacketTimestamps(boolean packetTimestamps) {
+		checkNotConnected();
+		
+		this.packetTimestamps = packetTimestamps;
+		
+		if (packetTimestamps) {
+			framedProtocol = true;
+		}
+	}
+	
+	/**
+	 * Sets how often (in milliseconds) the server is pinged to measure
+	 * round trip time, 0 disables pinging. Works with the framed protocol.
+	 * 
+	 * @see #getRoundTripTime()
+	 */
+	public void setPingInterval(long pingInterval) {
+		if (pingInterval < 0) {
+			throw new IllegalArgumentException("interval cannot be negative");
+		}
+		
+		this.pingInterval = pingInterval;
+	}
+	
+	/**
+	 * Asks the server for compression of packets. It's used if the
+	 * server enables it too, and only for payloads that get smaller.
+	 * Works with the framed protocol only.
+	 * 
+	 * @see pl.graniec.coralreef.network.stream.server.StreamServer#setCompression(boolean)
+	 */
+	public void setCompression(boolean compression) {
+		checkNotConnected();
+		
+		this.compression = compression;
+		
+		if (compression) {
+			framedProtocol = true;
+		}
+	}
+	
+	/**
+	 * Sets limit of payload size of frames coming from the server.
+	 * Servers that negotiate it in the handshake split their packets
+	 * into fragments that fit.
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		checkNotConnected();
+		
+		if (maxFrameSize <= FragmentAssembler.HEADER_SIZE + LatencyTracker.TIMESTAMP_SIZE) {
+			throw new IllegalArgumentException("frame size too small");
+		}
+		
+		this.maxFrameSize = maxFrameSize;
+	}
+	
+	int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+	
+	/**
+	 * @return Features agreed with the server in the handshake or
+	 * <code>null</code> if it didn't negotiate them or the client is
+	 * not connected by the framed protocol.
+	 */
+	public Capabilities getCapabilities() {
+		return capabilities;
+	}
+	
+	/**
+	 * Sets size of fragments that big packets are split into when the
+	 * framed protocol is used. Smaller packets can be sent between the
+	 * fragments, so big transfers don't hold them back.
+	 */
+	public void setFragmentSize(int fragmentSize) {
+		if (fragmentSize <= 0) {
+			throw new IllegalArgumentException("fragment size must be positive");
+		}
+		
+		this.fragmentSize = fragmentSize;
+	}
+	
+	/**
+	 * Sets limit of incoming packet size when the framed protocol is used.
+	 * Bigger packets are discarded before they're assembled.
+	 */
+	public void setMaxMessageSize(int maxMessageSize) {
+		checkNotConnected();
+		
+		if (maxMessageSize <= 0) {
+			throw new IllegalArgumentException("message size must be positive");
+		}
+		
+		this.maxMessageSize = maxMessageSize;
+	}
+	
+	/**
+	 * Makes client use frames instead of plain object streams.
+	 * Server must be configured the same way.
+	 */
+	public void setFramedProtocol(boolean framedProtocol) {
+		checkNotConnected();
+		
+		if (engine != null && !framedProtocol) {
+			throw new IllegalStateException("clients handled by engine need framed protocol");
+		}
+		
+		this.framedProtocol = framedProtocol;
+	}
+	
+	/**
+	 * Sets limits of unacknowledged packets kept for resuming the session.
+	 */
+	public void setReplayBufferLimits(int frames, int bytes) {
+		checkNotConnected();
+		
+		if (frames <= 0 || bytes <= 0) {
+			throw new IllegalArgumentException("limits must be positive");
+		}
+		
+		this.replayBufferFrames = frames;
+		this.replayBufferBytes = bytes;
+	}
+	
+	/**
+	 * Asks the server for a resumable session. When connection is lost
+	 * then next {@link #connect(String, int)} to the same server will
+	 * try to resume it, so only the missed packets are sent again.
+	 * <p>
+	 * This enables the framed protocol.
+	 */
+	public void setSessionResumption(boolean sessionResumption) {
+		checkNotConnected();
+		
+		this.sessionResumption = sessionResumption;
+		
+		if (sessionResumption) {
+			framedProtocol = true;
+		} else {
+			session = null;
+		}
+	}
+	
+	private void checkNotConnected() {
+		if (isConnected()) {
+			throw new IllegalStateException("client is already connected");
 		}
 	}
 
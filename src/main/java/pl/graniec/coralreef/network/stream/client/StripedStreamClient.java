@@ -0,0 +1,343 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.client;
+
+import java.io.NotSerializableException;
+import java.util.HashSet;
+import java.util.Set;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.client.Client;
+import pl.graniec.coralreef.network.client.ConnectionListener;
+import pl.graniec.coralreef.network.exceptions.NetworkException;
+
+/**
+ * Client that opens several parallel connections to the same server
+ * and spreads packets over them.
+ * <p>
+ * Packets sent with the same key always go through the same connection,
+ * so their order is preserved. Packets sent without a key go through
+ * the first connection. Each connection has its own socket and listener
+ * thread, so different keys can be sent and received in parallel.
+ * <p>
+ * Server sees every connection as a separate remote client. Packets
+ * received on any of them are delivered to packet listeners of this
+ * client.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class StripedStreamClient implements Client {
+
+	/** Passes events of single connection to this client */
+	private class StripeListener implements PacketListener, ConnectionListener {
+
+		/*
+		 * @see pl.graniec.coralreef.network.PacketListener#packetReceived(java.lang.Object)
+		 */
+		public void packetReceived(Object data) {
+			notifyPacketReceived(data);
+		}
+
+		/*
+		 * @see pl.graniec.coralreef.network.client.ConnectionListener#clientConnected()
+		 */
+		public void clientConnected() {
+			// reported when all connections are ready
+		}
+
+		/*
+		 * @see pl.graniec.coralreef.network.client.ConnectionListener#clientDisconnected(int, java.lang.String)
+		 */
+		public void clientDisconnected(int reason, String reasonString) {
+			stripeDisconnected(reason, reasonString);
+		}
+		
+	}
+	
+	/** Connections */
+	private final StreamClient[] stripes;
+	
+	/** Tells if connection loss was already reported */
+	private boolean disconnectReported;
+	
+	/** Packet listeners */
+	private final Set<PacketListener> packetListeners = new HashSet<PacketListener>();
+	/** Connection listeners */
+	private final Set<ConnectionListener> connectionListeners = new HashSet<ConnectionListener>();
+	
+	/**
+	 * @param connections Number of parallel connections.
+	 */
+	public StripedStreamClient(int connections) {
+		if (connections <= 0) {
+			throw new IllegalArgumentException("number of connections must be positive");
+		}
+		
+		stripes = new StreamClient[connections];
+		
+		final StripeListener listener = new StripeListener();
+		
+		for (int i = 0; i < connections; ++i) {
+			stripes[i] = new StreamClient();
+			stripes[i].addPacketListener(listener);
+			stripes[i].addConnectionListener(listener);
+		}
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.client.Client#addConnectionListener(pl.graniec.coralreef.network.client.ConnectionListener)
+	 */
+	public boolean addConnectionListener(ConnectionListener l) {
+		synchronized (connectionListeners) {
+			return connectionListeners.add(l);
+		}
+	}
+
+	/*
+	 * @see pl.graniec.coralreef.network.client.Client#addPacketListener(pl.graniec.coralreef.network.PacketListener)
+	 */
+	public boolean addPacketListener(PacketListener l) {
+		
+		if (l == null) {
+			throw new IllegalArgumentException("cannot take null values");
+		}
+		
+		synchronized (packetListeners) {
+			return packetListeners.add(l);
+		}
+	}
+
+	/*
+	 * @see pl.graniec.coralreef.network.client.Client#connect(java.lang.String, int)
+	 */
+	public void connect(String host, int port) throws NetworkException {
+		if (host == null) {
+			throw new IllegalArgumentException("parameters cannot be null");
+		}
+		
+		if (isConnected()) {
+			throw new IllegalStateException("client is already connected");
+		}
+		
+		synchronized (this) {
+			disconnectReported = false;
+		}
+		
+		try {
+			for (StreamClient stripe : stripes) {
+				stripe.connect(host, port);
+			}
+		} catch (NetworkException e) {
+			synchronized (this) {
+				// never reported as connected, so nothing to report
+				disconnectReported = true;
+			}
+			
+			disconnectStripes();
+			throw e;
+		}
+		
+		notifyConnected();
+	}
+
+	/*
+	 * @see pl.graniec.coralreef.network.client.Client#disconnect()
+	 */
+	public void disconnect() {
+		if (!isConnected()) {
+			throw new IllegalStateException("client is not connected");
+		}
+		
+		synchronized (this) {
+			// losing other connections is expected now
+			disconnectReported = true;
+		}
+		
+		disconnectStripes();
+	}
+	
+	private void disconnectStripes() {
+		for (StreamClient stripe : stripes) {
+			if (stripe.isConnected()) {
+				try {
+					stripe.disconnect();
+				} catch (IllegalStateException e) {
+					// lost meanwhile, the other stripes still go down
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return Number of parallel connections.
+	 */
+	public int getConnectionCount() {
+		return stripes.length;
+	}
+
+	/**
+	 * Tells if all connections are up.
+	 * 
+	 * @see pl.graniec.coralreef.network.client.Client#isConnected()
+	 */
+	public boolean isConnected() {
+		for (StreamClient stripe : stripes) {
+			if (!stripe.isConnected()) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	private void notifyConnected() {
+		ConnectionListener[] copy;
+		
+		synchronized (connectionListeners) {
+			copy = connectionListeners.toArray(new ConnectionListener[connectionListeners.size()]);
+		}
+		
+		for (ConnectionListener l : copy) {
+			l.clientConnected();
+		}
+	}
+	
+	private void notifyDisconnected(int reason, String reasonString) {
+		ConnectionListener[] copy;
+		
+		synchronized (connectionListeners) {
+			copy = connectionListeners.toArray(new ConnectionListener[connectionListeners.size()]);
+		}
+		
+		for (ConnectionListener l : copy) {
+			l.clientDisconnected(reason, reasonString);
+		}
+	}
+	
+	private void notifyPacketReceived(Object data) {
+		PacketListener[] copy;
+		
+		synchronized (packetListeners) {
+			copy = packetListeners.toArray(new PacketListener[packetListeners.size()]);
+		}
+		
+		for (PacketListener l : copy) {
+			l.packetReceived(data);
+		}
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.client.Client#removeConnectionListener(pl.graniec.coralreef.network.client.ConnectionListener)
+	 */
+	public boolean removeConnectionListener(ConnectionListener l) {
+		synchronized (connectionListeners) {
+			return connectionListeners.remove(l);
+		}
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.client.Client#removePacketListener(pl.graniec.coralreef.network.PacketListener)
+	 */
+	public boolean removePacketListener(PacketListener l) {
+		
+		if (l == null) {
+			throw new IllegalArgumentException("parameters cannot be null");
+		}
+		
+		synchronized (packetListeners) {
+			return packetListeners.remove(l);
+		}
+	}
+	
+	/**
+	 * Sends packet through the first connection.
+	 * 
+	 * @see pl.graniec.coralreef.network.client.Client#send(java.lang.Object)
+	 */
+	public void send(Object data) throws NotSerializableException, NetworkException {
+		send(stripes[0], data);
+	}
+	
+	/**
+	 * Sends packet through connection chosen by <code>key</code>. Packets
+	 * with equal keys are received in the same order as they were sent.
+	 */
+	public void send(Object key, Object data) throws NotSerializableException, NetworkException {
+		if (key == null) {
+			throw new IllegalArgumentException("key cannot be null");
+		}
+		
+		send(stripes[(key.hashCode() & 0x7fffffff) % stripes.length], data);
+	}
+	
+	private void send(StreamClient stripe, Object data) throws NotSerializableException, NetworkException {
+		// object streams cannot be written by two threads at once
+		synchronized (stripe) {
+			stripe.send(data);
+		}
+	}
+	
+	/**
+	 * @see StreamClient#setFramedProtocol(boolean)
+	 */
+	public void setFramedProtocol(boolean framedProtocol) {
+		for (StreamClient stripe : stripes) {
+			stripe.setFramedProtocol(framedProtocol);
+		}
+	}
+	
+	/**
+	 * Called when any of connections is lost. Others are closed
+	 * too, because order of packets cannot be kept anymore.
+	 */
+	private void stripeDisconnected(int reason, String reasonString) {
+		synchronized (this) {
+			if (disconnectReported) {
+				return;
+			}
+			
+			disconnectReported = true;
+		}
+		
+		new Thread() {
+			/*
+			 * @see java.lang.Thread#run()
+			 */
+			@Override
+			public void run() {
+				// can't be done from listener thread of the broken connection
+				disconnectStripes();
+			}
+		}.start();
+		
+		notifyDisconnected(reason, reasonString);
+	}
+
+}
@@ -0,0 +1,254 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.conflate;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import pl.graniec.coralreef.network.stream.jfr.NetworkEvents;
+
+/**
+ * Queue of encoded packets where only the latest packet of each key
+ * waits. A packet with a key that is already queued takes the place of
+ * the queued one, so stale updates of the same thing are never sent.
+ * Packets without a key are never replaced and keep their order.
+ * <p>
+ * Packets without a key wait for room when the queue is full, packets
+ * that replace others never wait.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ConflatingQueue {
+
+	/** Queued packet */
+	private static class Entry {
+		private final Object key;
+		private byte[] payload;
+		
+		public Entry(Object key, byte[] payload) {
+			this.key = key;
+			this.payload = payload;
+		}
+	}
+	
+	/** Most bytes queued before adding waits */
+	private final int limit;
+	
+	private final LinkedList<Entry> entries = new LinkedList<Entry>();
+	/** Queued packets that have keys, by their keys */
+	private final Map<Object, Entry> keyed = new HashMap<Object, Entry>();
+	
+	/** Sum of queued payload sizes */
+	private int bytes;
+	/** Packets replaced so far */
+	private long conflated;
+	/** Set while the last taken packet is being sent */
+	private boolean sending;
+	
+	private boolean closed;
+	
+	/**
+	 * @param limit Most bytes queued before adding waits for room. At
+	 * least one packet is always taken.
+	 */
+	public ConflatingQueue(int limit) {
+		if (limit < 0) {
+			throw new IllegalArgumentException("limit cannot be negative");
+		}
+		
+		this.limit = limit;
+	}
+	
+	/**
+	 * Adds packet at the end of the queue or in place of queued packet
+	 * with the same key. Does nothing when the queue is closed.
+	 * 
+	 * @param key Key of the packet or <code>null</code> if it should
+	 * never be replaced.
+	 */
+	public synchronized void offer(Object key, byte[] payload) throws InterruptedException {
+		if (payload == null) {
+			throw new IllegalArgumentException("payload cannot be null");
+		}
+		
+		while (!closed) {
+			
+			if (put(key, payload)) {
+				return;
+			}
+			
+			final NetworkEvents.Span stall = NetworkEvents.beginStall();
+			
+			wait();
+			
+			if (stall != null) {
+				stall.stall("conflating queue");
+			}
+		}
+	}
+	
+	/**
+	 * Adds packet like {@link #offer(Object, byte[])}, but never waits
+	 * for room.
+	 * 
+	 * @return <code>false</code> if the queue is full.
+	 */
+	public synchronized boolean tryOffer(Object key, byte[] payload) {
+		if (payload == null) {
+			throw new IllegalArgumentException("payload cannot be null");
+		}
+		
+		return closed || put(key, payload);
+	}
+	
+	/**
+	 * @return <code>false</code> if there's no room for the packet.
+	 */
+	private boolean put(Object key, byte[] payload) {
+		final Entry queued = key != null ? keyed.get(key) : null;
+		
+		if (queued != null) {
+			bytes += payload.length - queued.payload.length;
+			queued.payload = payload;
+			++conflated;
+			return true;
+		}
+		
+		if (entries.isEmpty() || bytes + payload.length <= limit) {
+			final Entry entry = new Entry(key, payload);
+			
+			entries.addLast(entry);
+			bytes += payload.length;
+			
+			if (key != null) {
+				keyed.put(key, entry);
+			}
+			
+			notifyAll();
+			return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Takes the first packet, waiting until there is one. The previous
+	 * packet is considered sent.
+	 * 
+	 * @return The packet or <code>null</code> if the queue is closed.
+	 */
+	public synchronized byte[] take() throws InterruptedException {
+		sending = false;
+		notifyAll();
+		
+		while (entries.isEmpty() && !closed) {
+			wait();
+		}
+		
+		if (closed) {
+			return null;
+		}
+		
+		final Entry entry = entries.removeFirst();
+		
+		if (entry.key != null) {
+			keyed.remove(entry.key);
+		}
+		
+		bytes -= entry.payload.length;
+		sending = true;
+		notifyAll();
+		
+		return entry.payload;
+	}
+	
+	/**
+	 * Waits until all queued packets are taken and sent.
+	 * 
+	 * @param timeout Time limit in milliseconds, 0 means no limit.
+	 * @return <code>true</code> if all packets were sent.
+	 */
+	public synchronized boolean awaitDrained(long timeout) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + timeout;
+		
+		while (!closed && (sending || !entries.isEmpty())) {
+			
+			if (timeout == 0) {
+				wait();
+				continue;
+			}
+			
+			final long left = deadline - System.currentTimeMillis();
+			
+			if (left <= 0) {
+				return false;
+			}
+			
+			wait(left);
+		}
+		
+		return !closed;
+	}
+	
+	/**
+	 * Drops queued packets and releases waiting threads.
+	 */
+	public synchronized void close() {
+		closed = true;
+		
+		entries.clear();
+		keyed.clear();
+		bytes = 0;
+		
+		notifyAll();
+	}
+	
+	/**
+	 * @return Sum of sizes of queued packets.
+	 */
+	public synchronized int getBytes() {
+		return bytes;
+	}
+	
+	/**
+	 * @return Number of packets replaced by newer ones so far.
+	 */
+	public synchronized long getConflated() {
+		return conflated;
+	}
+	
+	/**
+	 * @return Number of queued packets.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+}
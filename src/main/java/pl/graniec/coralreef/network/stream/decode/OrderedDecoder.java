@@ -0,0 +1,275 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.decode;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import pl.graniec.coralreef.network.stream.jfr.NetworkEvents;
+
+/**
+ * Decodes packets of one connection on a shared executor, so many
+ * of them can be decoded at once, and hands them over in the order
+ * they were added.
+ * <p>
+ * Decoded packets are passed to the output by executor threads, but
+ * never by two threads at once. A packet waits until all packets
+ * added before it are passed. Threads don't wait for each other: the
+ * one that passes packets passes also the ones decoded meanwhile, so
+ * a slow output holds up only one thread. When the executor is shut
+ * down, packets are decoded by the thread that adds them.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class OrderedDecoder {
+
+	private static final Logger logger = Logger.getLogger(OrderedDecoder.class.getName());
+	
+	/**
+	 * Receives decoded packets.
+	 */
+	public interface Output {
+		
+		/**
+		 * @param packets Decoded packets in order they were added.
+		 */
+		void decoded(List<Object> packets);
+	}
+	
+	private class Task implements Runnable {
+		
+		/** Decodes the packet, <code>null</code> for completion tasks */
+		private final Callable<Object> decoder;
+		/** Runs after packets before it are passed, <code>null</code> for packets */
+		private final Runnable completion;
+		
+		/** Decoded packet, <code>null</code> if it should be skipped */
+		private Object packet;
+		private boolean done;
+		
+		public Task(Callable<Object> decoder, Runnable completion) {
+			this.decoder = decoder;
+			this.completion = completion;
+		}
+		
+		public void run() {
+			Object packet = null;
+			
+			try {
+				if (decoder != null) {
+					packet = decoder.call();
+				}
+			} catch (Exception e) {
+				logger.log(Level.SEVERE, "Packet decoding failed", e);
+			}
+			
+			synchronized (OrderedDecoder.this) {
+				this.packet = packet;
+				done = true;
+			}
+			
+			deliver();
+		}
+	}
+	
+	private final Executor executor;
+	private final Output output;
+	
+	/** Most packets being decoded at once */
+	private final int limit;
+	
+	/** Tasks in order they were added, guarded by this */
+	private final LinkedList<Task> pending = new LinkedList<Task>();
+	
+	/** Set while a thread passes packets to the output, guarded by this */
+	private boolean delivering;
+	
+	/**
+	 * @param limit Most packets decoded at once. When it's reached,
+	 * {@link #add(Callable)} waits for the oldest one.
+	 */
+	public OrderedDecoder(Executor executor, Output output, int limit) {
+		if (limit <= 0) {
+			throw new IllegalArgumentException("limit must be positive");
+		}
+		
+		this.executor = executor;
+		this.output = output;
+		this.limit = limit;
+	}
+	
+	/**
+	 * Schedules decoding of next packet.
+	 * 
+	 * @param decoder Decodes the packet. It may return <code>null</code>
+	 * if the packet should be skipped. Exceptions are logged and the
+	 * packet is skipped too.
+	 */
+	public void add(Callable<Object> decoder) throws InterruptedException {
+		add(decoder, true);
+	}
+	
+	/**
+	 * Schedules decoding of next packet.
+	 * 
+	 * @param wait Tells if the limit should be waited for. Callers that
+	 * can't wait check {@link #isFull()} and stop adding by themselves.
+	 * @see #add(Callable)
+	 */
+	public void add(Callable<Object> decoder, boolean wait) throws InterruptedException {
+		final Task task = new Task(decoder, null);
+		
+		synchronized (this) {
+			while (wait && pending.size() >= limit) {
+				final NetworkEvents.Span stall = NetworkEvents.beginStall();
+				
+				wait();
+				
+				if (stall != null) {
+					stall.stall("decoder");
+				}
+			}
+			
+			pending.add(task);
+		}
+		
+		execute(task);
+	}
+	
+	/**
+	 * Schedules an action that runs once all packets added so far are
+	 * passed to the output. Packets added later wait until it finishes.
+	 * It runs on an executor thread, so callers never wait for it.
+	 */
+	public void addCompletion(Runnable action) {
+		final Task task = new Task(null, action);
+		
+		synchronized (this) {
+			pending.add(task);
+		}
+		
+		execute(task);
+	}
+	
+	private void execute(Task task) {
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			// executor is shut down, packets scheduled before still go first
+			task.run();
+		}
+	}
+	
+	/**
+	 * Waits until all added packets are decoded and passed to the output.
+	 */
+	public synchronized void await() throws InterruptedException {
+		// the last packets might still be in the output
+		while (!pending.isEmpty() || delivering) {
+			wait();
+		}
+	}
+	
+	/**
+	 * Passes packets that are decoded and have no packets waiting
+	 * before them, unless another thread does it already.
+	 */
+	private void deliver() {
+		while (true) {
+			final List<Object> packets = new ArrayList<Object>();
+			Runnable completion = null;
+			
+			synchronized (this) {
+				if (delivering) {
+					// that thread passes our packets too
+					return;
+				}
+				
+				// packets after a completion wait until it's run
+				while (completion == null && !pending.isEmpty() && pending.getFirst().done) {
+					final Task task = pending.removeFirst();
+					
+					if (task.packet != null) {
+						packets.add(task.packet);
+					}
+					
+					completion = task.completion;
+				}
+				
+				notifyAll();
+				
+				if (packets.isEmpty() && completion == null) {
+					return;
+				}
+				
+				delivering = true;
+			}
+			
+			try {
+				try {
+					if (!packets.isEmpty()) {
+						output.decoded(packets);
+					}
+				} finally {
+					if (completion != null) {
+						completion.run();
+					}
+				}
+			} finally {
+				synchronized (this) {
+					delivering = false;
+					notifyAll();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return <code>true</code> if the limit of packets decoded at once
+	 * is reached.
+	 */
+	public synchronized boolean isFull() {
+		return pending.size() >= limit;
+	}
+	
+	/**
+	 * @return Number of packets that are being decoded or wait for
+	 * packets before them.
+	 */
+	public synchronized int getPending() {
+		return pending.size();
+	}
+}
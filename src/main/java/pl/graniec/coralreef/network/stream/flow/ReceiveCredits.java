@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.flow;
+
+/**
+ * Receiving side of flow control. It lets the sender have at most
+ * <i>window</i> packets that listeners haven't consumed yet.
+ * <p>
+ * Credits are granted as a total number of packets the sender may
+ * have sent so far, so a lost or repeated grant does no harm. New
+ * credits are granted when half of the window is consumed, so there's
+ * no grant for every single packet.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ReceiveCredits {
+
+	private final int window;
+	
+	/** Packets consumed by listeners */
+	private long consumed;
+	
+	/** Last limit granted to the sender */
+	private long granted;
+	
+	public ReceiveCredits(int window) {
+		if (window <= 0) {
+			throw new IllegalArgumentException("window must be positive");
+		}
+		
+		this.window = window;
+		this.granted = window;
+	}
+	
+	/**
+	 * Counts packets passed to listeners.
+	 * 
+	 * @return New limit to grant or -1 if it's not worth it yet.
+	 */
+	public synchronized long consumed(int count) {
+		consumed += count;
+		
+		if (consumed + window - granted < Math.max(window / 2, 1)) {
+			return -1;
+		}
+		
+		granted = consumed + window;
+		return granted;
+	}
+	
+	/**
+	 * @return Current limit, sent when a connection starts.
+	 */
+	public synchronized long getLimit() {
+		return granted;
+	}
+	
+	public int getWindow() {
+		return window;
+	}
+}
@@ -0,0 +1,286 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.flow;
+
+import java.util.LinkedList;
+
+import pl.graniec.coralreef.network.stream.jfr.NetworkEvents;
+
+/**
+ * Sending side of flow control. Every packet takes one credit and the
+ * receiver grants new ones as its listeners consume packets. When
+ * there are no credits left, {@link CreditPolicy} decides what happens.
+ * <p>
+ * Until the first grant comes the receiver is assumed not to use flow
+ * control, so packets go without limits. Thanks to that peers of older
+ * versions work as before.
+ * <p>
+ * Threads marked with {@link #markReaderThread()} never wait for
+ * credits, since the grant they would wait for can only be read by
+ * them. With {@link CreditPolicy#BLOCK} their packets are queued
+ * instead, as with {@link CreditPolicy#QUEUE}.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class SendCredits {
+
+	/**
+	 * Writes packets that got their credits.
+	 */
+	public interface Output {
+		void sendPayload(byte[] payload);
+	}
+	
+	/** Set on threads that read frames or deliver received packets */
+	private static final ThreadLocal<Boolean> readerThread = new ThreadLocal<Boolean>();
+	
+	private final CreditPolicy policy;
+	
+	/** Most bytes waiting in the queue */
+	private final int queueLimit;
+	
+	private final LinkedList<byte[]> queue = new LinkedList<byte[]>();
+	private int queueBytes;
+	
+	/** Total number of packets that may be sent, -1 if unlimited */
+	private long limit = -1;
+	
+	/** Packets sent so far */
+	private long sent;
+	
+	private boolean closed;
+	
+	/** Tells if a thread is writing queued packets */
+	private boolean draining;
+	
+	/**
+	 * @param queueLimit Most bytes queued with {@link CreditPolicy#QUEUE},
+	 * and by reader threads with {@link CreditPolicy#BLOCK}.
+	 */
+	public SendCredits(CreditPolicy policy, int queueLimit) {
+		if (policy == null) {
+			throw new IllegalArgumentException("policy cannot be null");
+		}
+		
+		if (queueLimit < 0) {
+			throw new IllegalArgumentException("queue limit cannot be negative");
+		}
+		
+		this.policy = policy;
+		this.queueLimit = queueLimit;
+	}
+	
+	/**
+	 * Marks the current thread as one that reads frames or delivers
+	 * received packets to listeners. It won't wait for credits from
+	 * now on.
+	 */
+	public static void markReaderThread() {
+		readerThread.set(Boolean.TRUE);
+	}
+	
+	/**
+	 * Stops waiting for credits and drops queued packets. Threads
+	 * blocked in {@link #send(byte[], Output)} send their packets
+	 * without credits, so they find out about the connection state.
+	 */
+	public synchronized void close() {
+		closed = true;
+		
+		queue.clear();
+		queueBytes = 0;
+		
+		notifyAll();
+	}
+	
+	/**
+	 * Lets packets be sent again after the connection was resumed.
+	 * Credits granted so far still count.
+	 */
+	public synchronized void reopen() {
+		closed = false;
+	}
+	
+	/**
+	 * @return Credits left or -1 if there's no limit.
+	 */
+	public synchronized long getCredits() {
+		return limit < 0 ? -1 : limit - sent;
+	}
+	
+	/**
+	 * @return Number of packets waiting for credits.
+	 */
+	public synchronized int getQueued() {
+		return queue.size();
+	}
+	
+	/**
+	 * Takes a new limit from the receiver and sends queued packets that
+	 * fit in it.
+	 */
+	public void grant(long limit, Output output) {
+		synchronized (this) {
+			if (limit <= this.limit) {
+				return;
+			}
+			
+			this.limit = limit;
+			notifyAll();
+			
+			if (draining) {
+				// the draining thread sends what fits in the new limit
+				return;
+			}
+			
+			draining = true;
+		}
+		
+		drain(output);
+	}
+	
+	/**
+	 * Writes queued packets outside of the lock. Packets sent meanwhile
+	 * are queued behind them, so they don't overtake.
+	 */
+	private void drain(Output output) {
+		while (true) {
+			final byte[] payload;
+			
+			synchronized (this) {
+				if (queue.isEmpty() || sent >= limit) {
+					draining = false;
+					notifyAll();
+					return;
+				}
+				
+				payload = queue.removeFirst();
+				
+				queueBytes -= payload.length;
+				++sent;
+			}
+			
+			output.sendPayload(payload);
+		}
+	}
+	
+	/**
+	 * Sends the packet if there's a credit for it. Otherwise the policy
+	 * decides what to do.
+	 * 
+	 * @throws NoCreditException If the packet cannot be sent or queued.
+	 */
+	public void send(byte[] payload, Output output) {
+		send(payload, output, readerThread.get() == null);
+	}
+	
+	/**
+	 * Sends the packet like {@link #send(byte[], Output)}, but never
+	 * waits for credits. With {@link CreditPolicy#BLOCK} the packet is
+	 * queued instead, so one receiver can't hold up sending to others.
+	 * 
+	 * @throws NoCreditException If the packet cannot be sent or queued.
+	 */
+	public void offer(byte[] payload, Output output) {
+		send(payload, output, false);
+	}
+	
+	private void send(byte[] payload, Output output, boolean mayWait) {
+		synchronized (this) {
+			if (!take(payload, mayWait)) {
+				// queued
+				return;
+			}
+		}
+		
+		output.sendPayload(payload);
+	}
+	
+	/**
+	 * @return <code>true</code> if the packet can be sent right away.
+	 */
+	private boolean take(byte[] payload, boolean mayWait) {
+		if (limit < 0 || closed) {
+			return true;
+		}
+		
+		final boolean waiting = sent >= limit || draining || !queue.isEmpty();
+		
+		if (policy == CreditPolicy.BLOCK && waiting && !mayWait) {
+			enqueue(payload);
+			return false;
+		}
+		
+		switch (policy) {
+			case BLOCK:
+				try {
+					while ((sent >= limit || draining || !queue.isEmpty()) && !closed) {
+						final NetworkEvents.Span stall = NetworkEvents.beginStall();
+						
+						wait();
+						
+						if (stall != null) {
+							stall.stall("send credits");
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new NoCreditException("interrupted while waiting for credits");
+				}
+				break;
+				
+			case FAIL:
+				if (sent >= limit) {
+					throw new NoCreditException("receiver has no room for more packets");
+				}
+				break;
+				
+			case QUEUE:
+				if (waiting) {
+					enqueue(payload);
+					return false;
+				}
+				break;
+		}
+		
+		++sent;
+		return true;
+	}
+	
+	private void enqueue(byte[] payload) {
+		if (queueBytes + payload.length > queueLimit) {
+			NetworkEvents.overflow("send queue", queueLimit);
+			throw new NoCreditException("send queue is full");
+		}
+		
+		queue.addLast(payload);
+		queueBytes += payload.length;
+	}
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.frame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StreamCorruptedException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates payloads of connections that agreed on compression.
+ * Small payloads are not worth it, so they are sent as they are.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class Compression {
+
+	/** Payloads smaller than that are never compressed */
+	public static final int MIN_SIZE = 256;
+	
+	private Compression() {
+	}
+	
+	/**
+	 * @return Deflated data or <code>null</code> if it's too small or
+	 * doesn't get any smaller.
+	 */
+	public static byte[] compress(byte[] data) {
+		if (data.length < MIN_SIZE) {
+			return null;
+		}
+		
+		final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			
+			final byte[] buffer = new byte[data.length];
+			int length = 0;
+			
+			while (!deflater.finished() && length < buffer.length) {
+				length += deflater.deflate(buffer, length, buffer.length - length);
+			}
+			
+			if (!deflater.finished()) {
+				// bigger than the original
+				return null;
+			}
+			
+			final byte[] compressed = new byte[length];
+			System.arraycopy(buffer, 0, compressed, 0, length);
+			
+			return compressed;
+			
+		} finally {
+			deflater.end();
+		}
+	}
+	
+	/**
+	 * @param limit Largest size of inflated data.
+	 * @throws StreamCorruptedException If data is not valid or inflates
+	 * over the limit.
+	 */
+	public static byte[] decompress(byte[] data, int limit) throws StreamCorruptedException {
+		final Inflater inflater = new Inflater();
+		
+		try {
+			inflater.setInput(data);
+			
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 2);
+			final byte[] buffer = new byte[Math.min(limit, 64 * 1024) + 1];
+			
+			while (!inflater.finished()) {
+				final int count = inflater.inflate(buffer);
+				
+				if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new StreamCorruptedException("truncated compressed payload");
+				}
+				
+				if (out.size() + count > limit) {
+					throw new StreamCorruptedException("compressed payload inflates over " + limit + " bytes");
+				}
+				
+				out.write(buffer, 0, count);
+			}
+			
+			return out.toByteArray();
+			
+		} catch (DataFormatException e) {
+			throw new StreamCorruptedException("invalid compressed payload: " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.frame;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Joins {@link Frame#FRAGMENT} frames back into whole packets.
+ * <p>
+ * Big packets are sent in many fragments, so that smaller packets can
+ * be sent between them. Each fragment payload starts with message id,
+ * total message length and offset of the fragment, followed by the
+ * fragment data. Fragments of many messages can arrive interleaved.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class FragmentAssembler {
+
+	private static final Logger logger = Logger.getLogger(FragmentAssembler.class.getName());
+	
+	/** Size of fragment header */
+	public static final int HEADER_SIZE = 4 + 4 + 4;
+	
+	/** Default size of single fragment */
+	public static final int DEFAULT_FRAGMENT_SIZE = 64 * 1024;
+	/** Default limit of whole message size */
+	public static final int DEFAULT_MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+	
+	/** Limit of messages that are assembled at once */
+	private static final int MAX_PARTIAL_MESSAGES = 256;
+	
+	/** Message that is being assembled */
+	private static class Partial {
+		/** Length of whole message */
+		final int total;
+		/** Tells if message is too big and its data is dropped */
+		final boolean discarded;
+		/** Data received so far, grows as fragments come */
+		byte[] data;
+		/** Bytes received so far */
+		int received;
+		
+		Partial(int total, boolean discarded) {
+			this.total = total;
+			this.discarded = discarded;
+			this.data = new byte[0];
+		}
+	}
+	
+	private final int maxMessageSize;
+	/** Limit of bytes buffered for all messages being assembled */
+	private final long maxBufferedBytes;
+	
+	private final Map<Integer, Partial> partials = new HashMap<Integer, Partial>();
+	/** Bytes buffered for all messages being assembled */
+	private long buffered;
+	
+	public FragmentAssembler() {
+		this(DEFAULT_MAX_MESSAGE_SIZE);
+	}
+	
+	/**
+	 * Creates assembler that buffers up to twice the limit of message
+	 * size, for all messages being assembled.
+	 */
+	public FragmentAssembler(int maxMessageSize) {
+		this(maxMessageSize, 2L * maxMessageSize);
+	}
+	
+	/**
+	 * @param maxBufferedBytes Limit of bytes buffered for all messages
+	 * being assembled. Memory is taken as fragments come, not when the
+	 * first one announces the message length.
+	 */
+	public FragmentAssembler(int maxMessageSize, long maxBufferedBytes) {
+		this.maxMessageSize = maxMessageSize;
+		this.maxBufferedBytes = maxBufferedBytes;
+	}
+	
+	/**
+	 * Creates payload of a fragment frame.
+	 * 
+	 * @param messageId Id of message, unique among messages being sent at the same time.
+	 * @param message Whole message.
+	 * @param offset Offset of the fragment in message.
+	 * @param length Length of the fragment.
+	 */
+	public static byte[] createFragment(int messageId, byte[] message, int offset, int length) {
+		final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + length);
+		
+		buffer.putInt(messageId);
+		buffer.putInt(message.length);
+		buffer.putInt(offset);
+		buffer.put(message, offset, length);
+		
+		return buffer.array();
+	}
+	
+	/**
+	 * Adds a fragment. Fragments of each message must come in order.
+	 * 
+	 * @param fragment Payload of fragment frame.
+	 * @return Whole message if this was the last missing fragment,
+	 * <code>null</code> otherwise.
+	 * @throws StreamCorruptedException If fragment is invalid, out of
+	 * order or doesn't fit in the limit of buffered bytes.
+	 */
+	public synchronized byte[] add(byte[] fragment) throws StreamCorruptedException {
+		
+		if (fragment.length < HEADER_SIZE) {
+			throw new StreamCorruptedException("fragment too short");
+		}
+		
+		final ByteBuffer buffer = ByteBuffer.wrap(fragment);
+		
+		final Integer messageId = Integer.valueOf(buffer.getInt());
+		final int total = buffer.getInt();
+		final int offset = buffer.getInt();
+		final int length = buffer.remaining();
+		
+		if (total < 0 || offset < 0 || offset > total - length) {
+			throw new StreamCorruptedException("invalid fragment of message " + messageId);
+		}
+		
+		Partial partial = partials.get(messageId);
+		
+		if (partial == null) {
+			
+			if (partials.size() >= MAX_PARTIAL_MESSAGES) {
+				throw new StreamCorruptedException("too many fragmented messages at once");
+			}
+			
+			if (total > maxMessageSize) {
+				logger.warning("Message of " + total + " bytes exceeds the limit of " + maxMessageSize + " bytes and will be discarded");
+				partial = new Partial(total, true);
+			} else {
+				partial = new Partial(total, false);
+			}
+			
+			partials.put(messageId, partial);
+		}
+		
+		// only the next fragment is accepted, so every byte is received once
+		if (total != partial.total || offset != partial.received) {
+			throw new StreamCorruptedException("fragment of message " + messageId + " out of order");
+		}
+		
+		if (!partial.discarded) {
+			reserve(partial, offset + length);
+			System.arraycopy(fragment, HEADER_SIZE, partial.data, offset, length);
+		}
+		
+		partial.received += length;
+		
+		if (partial.received < total) {
+			return null;
+		}
+		
+		partials.remove(messageId);
+		buffered -= partial.data.length;
+		
+		return partial.discarded ? null : partial.data;
+	}
+	
+	/**
+	 * Grows message buffer to hold at least <code>length</code> bytes.
+	 */
+	private void reserve(Partial partial, int length) throws StreamCorruptedException {
+		final int capacity = partial.data.length;
+		
+		if (length <= capacity) {
+			return;
+		}
+		
+		final int grown = (int) Math.min(partial.total, Math.max(length, 2L * capacity));
+		
+		if (buffered + grown - capacity > maxBufferedBytes) {
+			throw new StreamCorruptedException("fragmented messages exceed the limit of " + maxBufferedBytes + " bytes");
+		}
+		
+		final byte[] data = new byte[grown];
+		System.arraycopy(partial.data, 0, data, 0, partial.received);
+		
+		buffered += grown - capacity;
+		partial.data = data;
+	}
+	
+	/**
+	 * @return Number of messages that are not complete yet.
+	 */
+	public synchronized int getPartialCount() {
+		return partials.size();
+	}
+}
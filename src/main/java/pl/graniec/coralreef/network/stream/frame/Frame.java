@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.frame;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Single unit of data sent using the framed protocol.
+ * <p>
+ * On the wire every frame is written as: payload length (int),
+ * type (byte), flags (byte), sequence number (long), acknowledgment
+ * (long) and then the payload bytes.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class Frame {
+
+	/** Size of frame header in bytes */
+	public static final int HEADER_SIZE = 4 + 1 + 1 + 8 + 8;
+	
+	/** Frame carrying a serialized packet */
+	public static final byte PACKET = 1;
+	/** Cumulative acknowledgment of received packets */
+	public static final byte ACK = 2;
+	/** First frame sent by the client */
+	public static final byte HELLO = 3;
+	/** Server response to the {@link #HELLO} frame */
+	public static final byte WELCOME = 4;
+	/** Graceful end of connection and its session */
+	public static final byte CLOSE = 5;
+	/** Part of a packet that was too big to be sent at once */
+	public static final byte FRAGMENT = 6;
+	/** Name and length of a blob, followed by its raw data */
+	public static final byte BLOB = 7;
+	/** Round trip time probe, answered with {@link #PONG} */
+	public static final byte PING = 8;
+	/** Response to the {@link #PING} frame */
+	public static final byte PONG = 9;
+	/** Flow control grant: total number of packets the receiver accepts, in the acknowledgment field */
+	public static final byte CREDIT = 10;
+	/** Features supported or agreed on, sent right after {@link #HELLO} and {@link #WELCOME} */
+	public static final byte CAPABILITIES = 11;
+	
+	/** {@link #HELLO} flag: client wants a resumable session */
+	public static final byte FLAG_SESSION = 0x01;
+	/** {@link #WELCOME} flag: previous session has been resumed */
+	public static final byte FLAG_RESUMED = 0x02;
+	/** {@link #PACKET} and {@link #FRAGMENT} flag: payload starts with send timestamps */
+	public static final byte FLAG_TIMESTAMP = 0x04;
+	/** {@link #HELLO} and {@link #WELCOME} flag: followed by {@link #CAPABILITIES} frame */
+	public static final byte FLAG_CAPABILITIES = 0x08;
+	/** {@link #PACKET} and {@link #FRAGMENT} flag: payload is deflated */
+	public static final byte FLAG_COMPRESSED = 0x10;
+	
+	private static final byte[] EMPTY = new byte[0];
+	
+	private final byte type;
+	private final byte flags;
+	private final long sequence;
+	private final long acknowledgment;
+	private final byte[] payload;
+	
+	public Frame(byte type, byte flags, long sequence, long acknowledgment, byte[] payload) {
+		this.type = type;
+		this.flags = flags;
+		this.sequence = sequence;
+		this.acknowledgment = acknowledgment;
+		this.payload = payload != null ? payload : EMPTY;
+	}
+	
+	public Frame(byte type, long sequence, long acknowledgment, byte[] payload) {
+		this(type, (byte) 0, sequence, acknowledgment, payload);
+	}
+	
+	public long getAcknowledgment() {
+		return acknowledgment;
+	}
+	
+	public byte getFlags() {
+		return flags;
+	}
+	
+	public byte[] getPayload() {
+		return payload;
+	}
+	
+	public long getSequence() {
+		return sequence;
+	}
+	
+	public byte getType() {
+		return type;
+	}
+	
+	public boolean hasFlag(byte flag) {
+		return (flags & flag) != 0;
+	}
+	
+	/**
+	 * @return Number of bytes this frame takes on the wire.
+	 */
+	public int size() {
+		return HEADER_SIZE + payload.length;
+	}
+	
+	/**
+	 * @return New buffer with this frame as it would be sent on the
+	 * wire, ready for reading.
+	 */
+	public ByteBuffer toByteBuffer() {
+		final ByteBuffer buffer = ByteBuffer.allocate(size());
+		
+		writeTo(buffer);
+		
+		buffer.flip();
+		return buffer;
+	}
+	
+	/**
+	 * Puts this frame as it would be sent on the wire into the buffer.
+	 * Buffer must have at least {@link #size()} bytes remaining.
+	 */
+	public void writeTo(ByteBuffer buffer) {
+		buffer.putInt(payload.length);
+		buffer.put(type);
+		buffer.put(flags);
+		buffer.putLong(sequence);
+		buffer.putLong(acknowledgment);
+		buffer.put(payload);
+	}
+	
+	/*
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "Frame[type=" + type + ", seq=" + sequence + ", ack=" + acknowledgment + ", length=" + payload.length + "]";
+	}
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.frame;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes frames from a byte buffer filled by non-blocking reads.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class FrameDecoder {
+
+	/** Frames with payload bigger than that are considered as corrupted */
+	private final int maxPayload;
+	
+	public FrameDecoder() {
+		this(FrameReader.DEFAULT_MAX_PAYLOAD);
+	}
+	
+	public FrameDecoder(int maxPayload) {
+		this.maxPayload = maxPayload;
+	}
+	
+	/**
+	 * Decodes next frame from the buffer.
+	 * 
+	 * @param buffer Buffer ready for reading.
+	 * @return Decoded frame or <code>null</code> if there is not enough
+	 * data yet. In that case buffer position is left untouched.
+	 * @throws StreamCorruptedException If frame header is invalid.
+	 */
+	public Frame decode(ByteBuffer buffer) throws StreamCorruptedException {
+		
+		final int length = requiredLength(buffer);
+		
+		if (length < 0 || buffer.remaining() < length) {
+			return null;
+		}
+		
+		final int payloadLength = buffer.getInt();
+		final byte type = buffer.get();
+		final byte flags = buffer.get();
+		final long sequence = buffer.getLong();
+		final long acknowledgment = buffer.getLong();
+		
+		final byte[] payload = new byte[payloadLength];
+		buffer.get(payload);
+		
+		return new Frame(type, flags, sequence, acknowledgment, payload);
+	}
+	
+	/**
+	 * Tells how many bytes the next frame takes.
+	 * 
+	 * @return Size of next frame with header or -1 if the
+	 * length is not known yet.
+	 * @throws StreamCorruptedException If frame length is invalid.
+	 */
+	public int requiredLength(ByteBuffer buffer) throws StreamCorruptedException {
+		if (buffer.remaining() < 4) {
+			return -1;
+		}
+		
+		final int length = buffer.getInt(buffer.position());
+		
+		if (length < 0 || length > maxPayload) {
+			throw new StreamCorruptedException("invalid frame length: " + length);
+		}
+		
+		return Frame.HEADER_SIZE + length;
+	}
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.frame;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.StreamCorruptedException;
+import java.net.SocketTimeoutException;
+
+/**
+ * Reads frames from the input stream.
+ * <p>
+ * Socket timeouts are reported to the caller only when they happen
+ * between frames. If a frame was already started then reader keeps
+ * waiting for the rest of it, so a timeout never breaks the stream.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class FrameReader {
+
+	/** Default limit of a single frame payload */
+	public static final int DEFAULT_MAX_PAYLOAD = 16 * 1024 * 1024;
+	
+	private final InputStream in;
+	
+	/** Frames with payload bigger than that are considered as corrupted */
+	private final int maxPayload;
+	
+	private final byte[] header = new byte[Frame.HEADER_SIZE];
+	
+	public FrameReader(InputStream in) {
+		this(in, DEFAULT_MAX_PAYLOAD);
+	}
+	
+	public FrameReader(InputStream in, int maxPayload) {
+		this.in = in;
+		this.maxPayload = maxPayload;
+	}
+	
+	/**
+	 * Reads next frame.
+	 * 
+	 * @throws SocketTimeoutException If no frame has arrived in time.
+	 * @throws IOException On connection problems or when stream is corrupted.
+	 */
+	public Frame read() throws IOException {
+		
+		// this one may time out
+		final int first = in.read();
+		
+		if (first < 0) {
+			throw new EOFException("connection closed");
+		}
+		
+		header[0] = (byte) first;
+		readFully(header, 1, header.length - 1);
+		
+		final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(header));
+		
+		final int length = dis.readInt();
+		final byte type = dis.readByte();
+		final byte flags = dis.readByte();
+		final long sequence = dis.readLong();
+		final long acknowledgment = dis.readLong();
+		
+		if (length < 0 || length > maxPayload) {
+			throw new StreamCorruptedException("invalid frame length: " + length);
+		}
+		
+		final byte[] payload = new byte[length];
+		readFully(payload, 0, length);
+		
+		return new Frame(type, flags, sequence, acknowledgment, payload);
+	}
+	
+	/**
+	 * Reads next frame waiting no longer than given time. Used
+	 * during handshake, when there is nothing else to do.
+	 * 
+	 * @throws SocketTimeoutException If no frame has arrived in time.
+	 */
+	public Frame read(long timeout) throws IOException {
+		final long deadline = System.currentTimeMillis() + timeout;
+		
+		while (true) {
+			try {
+				return read();
+			} catch (SocketTimeoutException e) {
+				if (System.currentTimeMillis() >= deadline) {
+					throw e;
+				}
+				
+				if (Thread.currentThread().isInterrupted()) {
+					throw new InterruptedIOException("interrupted while waiting for a frame");
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return Underlying input stream.
+	 */
+	public InputStream getInputStream() {
+		return in;
+	}
+	
+	/**
+	 * Reads exactly <code>len</code> bytes waiting through socket timeouts.
+	 */
+	public void readFully(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			
+			int count;
+			
+			try {
+				count = in.read(b, off, len);
+			} catch (SocketTimeoutException e) {
+				// middle of a frame, so keep waiting
+				if (Thread.currentThread().isInterrupted()) {
+					throw new InterruptedIOException("interrupted while reading a frame");
+				}
+				
+				continue;
+			}
+			
+			if (count < 0) {
+				throw new EOFException("connection closed in the middle of a frame");
+			}
+			
+			off += count;
+			len -= count;
+		}
+	}
+}
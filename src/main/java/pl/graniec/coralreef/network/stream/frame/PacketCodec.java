@@ -0,0 +1,97 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.frame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import pl.graniec.coralreef.network.stream.serial.ClassResolver;
+import pl.graniec.coralreef.network.stream.serial.ResolvingObjectInputStream;
+
+/**
+ * Converts packets to frame payloads and back.
+ * <p>
+ * Every packet is serialized on its own, so the encoded bytes don't
+ * depend on anything that was sent before. Thanks to that they can
+ * be stored and sent again through another connection.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class PacketCodec {
+
+	private PacketCodec() {
+	}
+	
+	public static byte[] encode(Object packet) throws NotSerializableException, IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream oos = new ObjectOutputStream(bytes);
+		
+		oos.writeObject(packet);
+		oos.close();
+		
+		return bytes.toByteArray();
+	}
+	
+	public static Object decode(byte[] data) throws IOException, ClassNotFoundException {
+		return decode(data, null);
+	}
+	
+	/**
+	 * Decodes packet taking its classes from given resolver.
+	 * 
+	 * @param resolver Resolver to use or <code>null</code> for the
+	 * default resolution of {@link ObjectInputStream}.
+	 */
+	public static Object decode(byte[] data, ClassResolver resolver) throws IOException, ClassNotFoundException {
+		return decode(data, 0, data.length, resolver);
+	}
+	
+	/**
+	 * Decodes packet that takes only a part of given array.
+	 * 
+	 * @see #decode(byte[], ClassResolver)
+	 */
+	public static Object decode(byte[] data, int offset, int length, ClassResolver resolver) throws IOException, ClassNotFoundException {
+		final InputStream in = new ByteArrayInputStream(data, offset, length);
+		final ObjectInputStream ois = resolver != null
+			? new ResolvingObjectInputStream(in, resolver) : new ObjectInputStream(in);
+		
+		try {
+			return ois.readObject();
+		} finally {
+			ois.close();
+		}
+	}
+}
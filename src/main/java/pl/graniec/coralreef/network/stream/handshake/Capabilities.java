@@ -0,0 +1,217 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.handshake;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Features of a connection negotiated during the handshake. The client
+ * sends what it supports in a {@link pl.graniec.coralreef.network.stream.frame.Frame#CAPABILITIES}
+ * frame right after HELLO, and the server answers with what was agreed
+ * right after WELCOME, so it takes no extra round trip.
+ * <p>
+ * Encoded form is a version byte, a number of entries and the entries,
+ * each a key byte and an int value. Entries of unknown keys are
+ * skipped, so newer peers can add their own.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class Capabilities {
+
+	/** Version of encoded form */
+	public static final int VERSION = 1;
+	
+	/** Packets are serialized with Java serialization */
+	public static final int CODEC_SERIALIZATION = 0x01;
+	
+	/** Payloads can be deflated */
+	public static final int COMPRESSION_DEFLATE = 0x01;
+	
+	private static final byte CODECS = 1;
+	private static final byte COMPRESSIONS = 2;
+	private static final byte HEARTBEAT = 3;
+	private static final byte MAX_FRAME_SIZE = 4;
+	
+	/** Size of single entry */
+	private static final int ENTRY_SIZE = 1 + 4;
+	
+	private final int codecs;
+	private final int compressions;
+	private final int heartbeat;
+	private final int maxFrameSize;
+	
+	/**
+	 * @param codecs Bits of supported codecs, or a single one when agreed.
+	 * @param compressions Bits of supported compressions, or 0 for none.
+	 * @param heartbeat Wanted time between pings in milliseconds, or 0 for none.
+	 * @param maxFrameSize Largest frame payload accepted.
+	 */
+	public Capabilities(int codecs, int compressions, int heartbeat, int maxFrameSize) {
+		if (heartbeat < 0 || maxFrameSize <= 0) {
+			throw new IllegalArgumentException("invalid heartbeat or frame size");
+		}
+		
+		this.codecs = codecs;
+		this.compressions = compressions;
+		this.heartbeat = heartbeat;
+		this.maxFrameSize = maxFrameSize;
+	}
+	
+	/**
+	 * Agrees on features supported by both sides: the lowest common
+	 * codec and compression, the shorter heartbeat and the smaller
+	 * frame size.
+	 * 
+	 * @throws IOException If there's no common codec.
+	 */
+	public Capabilities negotiate(Capabilities remote) throws IOException {
+		final int codec = Integer.lowestOneBit(codecs & remote.codecs);
+		
+		if (codec == 0) {
+			throw new IOException("no common codec in " + this + " and " + remote);
+		}
+		
+		final int heartbeat;
+		
+		if (this.heartbeat == 0 || remote.heartbeat == 0) {
+			heartbeat = Math.max(this.heartbeat, remote.heartbeat);
+		} else {
+			heartbeat = Math.min(this.heartbeat, remote.heartbeat);
+		}
+		
+		return new Capabilities(
+				codec,
+				Integer.lowestOneBit(compressions & remote.compressions),
+				heartbeat,
+				Math.min(maxFrameSize, remote.maxFrameSize)
+		);
+	}
+	
+	public byte[] toBytes() {
+		final ByteBuffer buffer = ByteBuffer.allocate(2 + 4 * ENTRY_SIZE);
+		
+		buffer.put((byte) VERSION);
+		buffer.put((byte) 4);
+		
+		buffer.put(CODECS).putInt(codecs);
+		buffer.put(COMPRESSIONS).putInt(compressions);
+		buffer.put(HEARTBEAT).putInt(heartbeat);
+		buffer.put(MAX_FRAME_SIZE).putInt(maxFrameSize);
+		
+		return buffer.array();
+	}
+	
+	/**
+	 * @throws StreamCorruptedException If data is not valid.
+	 */
+	public static Capabilities fromBytes(byte[] data) throws StreamCorruptedException {
+		final ByteBuffer buffer = ByteBuffer.wrap(data);
+		
+		int codecs = 0;
+		int compressions = 0;
+		int heartbeat = 0;
+		int maxFrameSize = Integer.MAX_VALUE;
+		
+		try {
+			if (buffer.get() < 1) {
+				throw new StreamCorruptedException("invalid capabilities version");
+			}
+			
+			final int count = buffer.get() & 0xff;
+			
+			for (int i = 0; i < count; ++i) {
+				final byte key = buffer.get();
+				final int value = buffer.getInt();
+				
+				switch (key) {
+					case CODECS:
+						codecs = value;
+						break;
+					case COMPRESSIONS:
+						compressions = value;
+						break;
+					case HEARTBEAT:
+						heartbeat = value;
+						break;
+					case MAX_FRAME_SIZE:
+						maxFrameSize = value;
+						break;
+					default:
+						// added by newer version
+				}
+			}
+			
+			return new Capabilities(codecs, compressions, heartbeat, maxFrameSize);
+			
+		} catch (BufferUnderflowException e) {
+			throw new StreamCorruptedException("truncated capabilities");
+		} catch (IllegalArgumentException e) {
+			throw new StreamCorruptedException("invalid capabilities: " + e.getMessage());
+		}
+	}
+	
+	public int getCodecs() {
+		return codecs;
+	}
+	
+	public int getCompressions() {
+		return compressions;
+	}
+	
+	/**
+	 * @return Time between pings in milliseconds, or 0 for none.
+	 */
+	public int getHeartbeat() {
+		return heartbeat;
+	}
+	
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+	
+	/**
+	 * @return <code>true</code> if payloads can be deflated.
+	 */
+	public boolean isCompressed() {
+		return (compressions & COMPRESSION_DEFLATE) != 0;
+	}
+	
+	/*
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "Capabilities[codecs=" + codecs + ", compressions=" + compressions
+			+ ", heartbeat=" + heartbeat + ", maxFrameSize=" + maxFrameSize + "]";
+	}
+}
@@ -0,0 +1,433 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.jfr;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Emits Java Flight Recorder events of connections and packets, so
+ * network activity can be matched with GC and CPU time in profiles.
+ * Flight recorder is available since Java 11, so event types are
+ * created at runtime through <code>jdk.jfr.EventFactory</code>,
+ * reached through reflection, and nothing is emitted on older runtimes.
+ * When no recording is running, events cost only a check.
+ * <p>
+ * Events of "Coral Reef / Network" category:
+ * <ul>
+ * <li><i>Connect</i> and <i>Disconnect</i> of clients, on both sides</li>
+ * <li><i>Packet Sent</i> and <i>Packet Received</i>, lasting as long as
+ * the packet was encoded or decoded</li>
+ * <li><i>Queue Stall</i>, lasting as long as a thread waited for a queue</li>
+ * <li><i>Buffer Overflow</i>, when data was dropped or refused because
+ * a buffer was full</li>
+ * </ul>
+ * Packet events can be sampled and both packet and stall events can
+ * be limited to the slow ones, so they can be recorded in production.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public final class NetworkEvents {
+
+	private static final Logger logger = Logger.getLogger(NetworkEvents.class.getName());
+	
+	/** Side of the connection that emits the event */
+	public static final String SERVER = "server";
+	/** Side of the connection that emits the event */
+	public static final String CLIENT = "client";
+	
+	private static final String[] CATEGORY = { "Coral Reef", "Network" };
+	
+	/**
+	 * Event that lasts, started but not committed yet.
+	 */
+	public static final class Span {
+		
+		private final Type type;
+		private final Object event;
+		private final long start;
+		private final long threshold;
+		
+		private Span(Type type, long threshold) throws Exception {
+			this.type = type;
+			this.threshold = threshold;
+			this.event = type.begin();
+			this.start = System.nanoTime();
+		}
+		
+		/**
+		 * Ends packet event.
+		 * 
+		 * @param connectionId Id of the connection on the server side,
+		 * identity of the client on the client side.
+		 * @param size Size of encoded packet.
+		 */
+		public void packet(String side, int connectionId, Object packet, int size) {
+			end(side, Integer.valueOf(connectionId), packet != null ? packet.getClass().getName() : null, Integer.valueOf(size));
+		}
+		
+		/**
+		 * Ends queue stall event.
+		 * 
+		 * @param queue Name of the queue.
+		 */
+		public void stall(String queue) {
+			end(queue);
+		}
+		
+		private void end(Object... values) {
+			if (System.nanoTime() - start < threshold) {
+				return;
+			}
+			
+			type.commit(event, values);
+		}
+	}
+	
+	/**
+	 * Event type created by the flight recorder.
+	 */
+	private static final class Type {
+		
+		private final Object factory;
+		private final Object eventType;
+		
+		public Type(String name, String label, String description, boolean stackTrace, Object... fields) throws Exception {
+			final List<Object> annotations = new ArrayList<Object>();
+			
+			annotations.add(annotation("jdk.jfr.Name", name));
+			annotations.add(annotation("jdk.jfr.Label", label));
+			annotations.add(annotation("jdk.jfr.Description", description));
+			annotations.add(annotation("jdk.jfr.Category", CATEGORY));
+			annotations.add(annotation("jdk.jfr.StackTrace", Boolean.valueOf(stackTrace)));
+			
+			factory = create.invoke(null, annotations, Arrays.asList(fields));
+			eventType = getEventType.invoke(factory);
+		}
+		
+		public boolean isEnabled() {
+			try {
+				return ((Boolean) isEnabled.invoke(eventType)).booleanValue();
+			} catch (Exception e) {
+				return false;
+			}
+		}
+		
+		public Object begin() throws Exception {
+			final Object event = newEvent.invoke(factory);
+			begin.invoke(event);
+			return event;
+		}
+		
+		public void commit(Object event, Object[] values) {
+			try {
+				end.invoke(event);
+				set(event, values);
+				commit.invoke(event);
+			} catch (Exception e) {
+				// recording goes on without this event
+			}
+		}
+		
+		/**
+		 * Commits event that doesn't last.
+		 */
+		public void emit(Object... values) {
+			try {
+				final Object event = newEvent.invoke(factory);
+				set(event, values);
+				commit.invoke(event);
+			} catch (Exception e) {
+				// recording goes on without this event
+			}
+		}
+		
+		private void set(Object event, Object[] values) throws Exception {
+			for (int i = 0; i < values.length; ++i) {
+				NetworkEvents.set.invoke(event, Integer.valueOf(i), values[i]);
+			}
+		}
+	}
+	
+	/* Flight recorder API, null if not available */
+	private static Constructor<?> annotationElement;
+	private static Constructor<?> valueDescriptor;
+	private static Method create;
+	private static Method getEventType;
+	private static Method newEvent;
+	private static Method isEnabled;
+	private static Method begin;
+	private static Method end;
+	private static Method set;
+	private static Method commit;
+	
+	private static final Type CONNECT;
+	private static final Type DISCONNECT;
+	private static final Type PACKET_SENT;
+	private static final Type PACKET_RECEIVED;
+	private static final Type QUEUE_STALL;
+	private static final Type BUFFER_OVERFLOW;
+	
+	/** One of that many packets is recorded */
+	private static volatile int packetSampling = 1;
+	/** Packets encoded or decoded faster are not recorded, in nanoseconds */
+	private static volatile long packetThreshold;
+	/** Shorter stalls are not recorded, in nanoseconds */
+	private static volatile long stallThreshold;
+	
+	/** Packets seen while recording, for sampling */
+	private static final AtomicLong packets = new AtomicLong();
+	
+	static {
+		Type connect = null;
+		Type disconnect = null;
+		Type packetSent = null;
+		Type packetReceived = null;
+		Type queueStall = null;
+		Type bufferOverflow = null;
+		
+		try {
+			final Class<?> factoryType = Class.forName("jdk.jfr.EventFactory");
+			final Class<?> eventType = Class.forName("jdk.jfr.Event");
+			
+			annotationElement = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class);
+			valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class, List.class);
+			create = factoryType.getMethod("create", List.class, List.class);
+			getEventType = factoryType.getMethod("getEventType");
+			newEvent = factoryType.getMethod("newEvent");
+			isEnabled = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+			begin = eventType.getMethod("begin");
+			end = eventType.getMethod("end");
+			set = eventType.getMethod("set", int.class, Object.class);
+			commit = eventType.getMethod("commit");
+			
+			connect = new Type("pl.graniec.coralreef.Connect", "Connect",
+					"Client connected", false,
+					field(String.class, "side", "Side"),
+					field(int.class, "connectionId", "Connection Id"),
+					field(String.class, "address", "Remote Address"));
+			
+			disconnect = new Type("pl.graniec.coralreef.Disconnect", "Disconnect",
+					"Client disconnected", false,
+					field(String.class, "side", "Side"),
+					field(int.class, "connectionId", "Connection Id"),
+					field(String.class, "reason", "Reason"));
+			
+			packetSent = new Type("pl.graniec.coralreef.PacketSent", "Packet Sent",
+					"Packet encoded and sent, lasts as long as encoding", false,
+					field(String.class, "side", "Side"),
+					field(int.class, "connectionId", "Connection Id"),
+					field(String.class, "packetClass", "Packet Class"),
+					bytes("size", "Size"));
+			
+			packetReceived = new Type("pl.graniec.coralreef.PacketReceived", "Packet Received",
+					"Packet received and decoded, lasts as long as decoding", false,
+					field(String.class, "side", "Side"),
+					field(int.class, "connectionId", "Connection Id"),
+					field(String.class, "packetClass", "Packet Class"),
+					bytes("size", "Size"));
+			
+			queueStall = new Type("pl.graniec.coralreef.QueueStall", "Queue Stall",
+					"Thread waited for room in a queue or for its credits", true,
+					field(String.class, "queue", "Queue"));
+			
+			bufferOverflow = new Type("pl.graniec.coralreef.BufferOverflow", "Buffer Overflow",
+					"Data dropped or refused because a buffer was full", true,
+					field(String.class, "buffer", "Buffer"),
+					field(long.class, "limit", "Limit"));
+			
+		} catch (Exception e) {
+			logger.fine("Flight recorder events are not available: " + e);
+			connect = null;
+		} catch (LinkageError e) {
+			logger.fine("Flight recorder events are not available: " + e);
+			connect = null;
+		}
+		
+		if (connect == null) {
+			disconnect = packetSent = packetReceived = queueStall = bufferOverflow = null;
+		}
+		
+		CONNECT = connect;
+		DISCONNECT = disconnect;
+		PACKET_SENT = packetSent;
+		PACKET_RECEIVED = packetReceived;
+		QUEUE_STALL = queueStall;
+		BUFFER_OVERFLOW = bufferOverflow;
+	}
+	
+	private NetworkEvents() {
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static Object annotation(String type, Object value) throws Exception {
+		return annotationElement.newInstance(Class.forName(type), value);
+	}
+	
+	private static Object field(Class<?> type, String name, String label, Object... annotations) throws Exception {
+		final List<Object> list = new ArrayList<Object>(Arrays.asList(annotations));
+		list.add(annotation("jdk.jfr.Label", label));
+		
+		return valueDescriptor.newInstance(type, name, list);
+	}
+	
+	private static Object bytes(String name, String label) throws Exception {
+		return field(int.class, name, label, annotation("jdk.jfr.DataAmount", "BYTES"));
+	}
+	
+	/**
+	 * @return <code>true</code> if this Java runtime has flight recorder.
+	 */
+	public static boolean isAvailable() {
+		return CONNECT != null;
+	}
+	
+	private static boolean isEnabled(Type type) {
+		return type != null && type.isEnabled();
+	}
+	
+	/**
+	 * Records only one of <code>rate</code> packets. The default is to
+	 * record every packet.
+	 */
+	public static void setPacketSampling(int rate) {
+		if (rate <= 0) {
+			throw new IllegalArgumentException("sampling rate must be positive");
+		}
+		
+		packetSampling = rate;
+	}
+	
+	/**
+	 * Records only packets that took at least that long to encode or
+	 * decode. The default is 0, to record all of them.
+	 */
+	public static void setPacketThreshold(long nanos) {
+		if (nanos < 0) {
+			throw new IllegalArgumentException("threshold cannot be negative");
+		}
+		
+		packetThreshold = nanos;
+	}
+	
+	/**
+	 * Records only queue stalls that took at least that long. The
+	 * default is 0, to record all of them.
+	 */
+	public static void setStallThreshold(long nanos) {
+		if (nanos < 0) {
+			throw new IllegalArgumentException("threshold cannot be negative");
+		}
+		
+		stallThreshold = nanos;
+	}
+	
+	public static void connected(String side, int connectionId, String address) {
+		if (isEnabled(CONNECT)) {
+			CONNECT.emit(side, Integer.valueOf(connectionId), address);
+		}
+	}
+	
+	public static void disconnected(String side, int connectionId, String reason) {
+		if (isEnabled(DISCONNECT)) {
+			DISCONNECT.emit(side, Integer.valueOf(connectionId), reason);
+		}
+	}
+	
+	/**
+	 * @param limit Capacity of the buffer, in its own units.
+	 */
+	public static void overflow(String buffer, long limit) {
+		if (isEnabled(BUFFER_OVERFLOW)) {
+			BUFFER_OVERFLOW.emit(buffer, Long.valueOf(limit));
+		}
+	}
+	
+	/**
+	 * Starts packet event, to be ended with {@link Span#packet(String, int, Object, int)}
+	 * when the packet is encoded.
+	 * 
+	 * @return The event or <code>null</code> if it's not recorded.
+	 */
+	public static Span beginPacketSent() {
+		return beginPacket(PACKET_SENT);
+	}
+	
+	/**
+	 * Starts packet event, to be ended with {@link Span#packet(String, int, Object, int)}
+	 * when the packet is decoded.
+	 * 
+	 * @return The event or <code>null</code> if it's not recorded.
+	 */
+	public static Span beginPacketReceived() {
+		return beginPacket(PACKET_RECEIVED);
+	}
+	
+	private static Span beginPacket(Type type) {
+		if (!isEnabled(type)) {
+			return null;
+		}
+		
+		final int sampling = packetSampling;
+		
+		if (sampling > 1 && packets.incrementAndGet() % sampling != 0) {
+			return null;
+		}
+		
+		return begin(type, packetThreshold);
+	}
+	
+	/**
+	 * Starts stall event, to be ended with {@link Span#stall(String)}
+	 * when the thread stops waiting.
+	 * 
+	 * @return The event or <code>null</code> if it's not recorded.
+	 */
+	public static Span beginStall() {
+		if (!isEnabled(QUEUE_STALL)) {
+			return null;
+		}
+		
+		return begin(QUEUE_STALL, stallThreshold);
+	}
+	
+	private static Span begin(Type type, long threshold) {
+		try {
+			return new Span(type, threshold);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.latency;
+
+import java.nio.ByteBuffer;
+
+import pl.graniec.coralreef.network.stream.frame.Frame;
+
+/**
+ * Measures round trip time of a connection with {@link Frame#PING} and
+ * {@link Frame#PONG} frames, and handles send timestamps of packets.
+ * <p>
+ * Round trip time and its variation are smoothed the way TCP does it:
+ * <code>srtt = 7/8 srtt + 1/8 sample</code>,
+ * <code>jitter = 3/4 jitter + 1/4 |srtt - sample|</code>.
+ * Each pong also carries the clock of the other side, so the difference
+ * between clocks can be estimated and used for transit times.
+ * <p>
+ * Timestamped payload starts with two longs: time when the packet was
+ * queued and time when it was written to the socket, both in microseconds
+ * of the sender's clock.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class LatencyTracker {
+
+	/** Size of timestamps before the payload */
+	public static final int TIMESTAMP_SIZE = 8 + 8;
+	
+	private static final long BASE_MILLIS = System.currentTimeMillis();
+	private static final long BASE_NANOS = System.nanoTime();
+	
+	/** Smoothed round trip time in microseconds, -1 if not measured */
+	private long roundTripTime = -1;
+	/** Smoothed variation of round trip time in microseconds */
+	private long jitter;
+	/** Clock of the other side minus our clock, in microseconds */
+	private long clockOffset;
+	
+	/** When the last ping was sent */
+	private long lastPing;
+	
+	/**
+	 * @return Wall clock time in microseconds that doesn't jump
+	 * when system time is changed.
+	 */
+	public static long now() {
+		return BASE_MILLIS * 1000 + (System.nanoTime() - BASE_NANOS) / 1000;
+	}
+	
+	/**
+	 * Tells if it's time to send another ping.
+	 * 
+	 * @param interval Time between pings in milliseconds, 0 disables them.
+	 */
+	public synchronized boolean isPingDue(long interval) {
+		return interval > 0 && now() - lastPing >= interval * 1000;
+	}
+	
+	public synchronized Frame createPing() {
+		lastPing = now();
+		return new Frame(Frame.PING, 0, 0, ByteBuffer.allocate(8).putLong(lastPing).array());
+	}
+	
+	/**
+	 * @return Response to the <code>ping</code>, with its time and our clock.
+	 */
+	public static Frame createPong(Frame ping) {
+		final ByteBuffer payload = ByteBuffer.allocate(16);
+		
+		payload.putLong(ByteBuffer.wrap(ping.getPayload()).getLong());
+		payload.putLong(now());
+		
+		return new Frame(Frame.PONG, 0, 0, payload.array());
+	}
+	
+	/**
+	 * Updates round trip time with a response to our ping.
+	 */
+	public synchronized void pongReceived(Frame pong) {
+		final ByteBuffer payload = ByteBuffer.wrap(pong.getPayload());
+		
+		final long sent = payload.getLong();
+		final long remote = payload.getLong();
+		final long now = now();
+		
+		final long sample = now - sent;
+		
+		if (roundTripTime < 0) {
+			roundTripTime = sample;
+			jitter = sample / 2;
+		} else {
+			jitter = (3 * jitter + Math.abs(roundTripTime - sample)) / 4;
+			roundTripTime = (7 * roundTripTime + sample) / 8;
+		}
+		
+		// the other side read its clock about half way
+		clockOffset = remote - (sent + sample / 2);
+	}
+	
+	/**
+	 * @return Smoothed round trip time in milliseconds or -1 if
+	 * it was not measured yet.
+	 */
+	public synchronized float getRoundTripTime() {
+		return roundTripTime < 0 ? -1 : roundTripTime / 1000f;
+	}
+	
+	/**
+	 * @return Smoothed variation of round trip time in milliseconds.
+	 */
+	public synchronized float getJitter() {
+		return jitter / 1000f;
+	}
+	
+	/**
+	 * @return Estimated clock of the other side minus our clock, in microseconds.
+	 */
+	public synchronized long getClockOffset() {
+		return clockOffset;
+	}
+	
+	/**
+	 * @return Copy of the payload preceded by timestamps, with queue
+	 * time set to now.
+	 */
+	public static byte[] stamp(byte[] payload) {
+		final ByteBuffer stamped = ByteBuffer.allocate(TIMESTAMP_SIZE + payload.length);
+		
+		stamped.putLong(now());
+		stamped.putLong(0);
+		stamped.put(payload);
+		
+		return stamped.array();
+	}
+	
+	/**
+	 * Sets send time of timestamped payload to now.
+	 */
+	public static void stampSent(byte[] stamped) {
+		ByteBuffer.wrap(stamped).putLong(8, now());
+	}
+	
+	/**
+	 * @return Payload without timestamps.
+	 */
+	public static byte[] strip(byte[] stamped) {
+		final byte[] payload = new byte[stamped.length - TIMESTAMP_SIZE];
+		System.arraycopy(stamped, TIMESTAMP_SIZE, payload, 0, payload.length);
+		return payload;
+	}
+	
+	/**
+	 * @return How long (in microseconds) the packet was queued by the sender.
+	 */
+	public static long getQueueTime(byte[] stamped) {
+		final ByteBuffer buffer = ByteBuffer.wrap(stamped);
+		return buffer.getLong(8) - buffer.getLong(0);
+	}
+	
+	/**
+	 * @return How long (in microseconds) the packet was on the wire, using
+	 * the estimated clock offset. Can be inaccurate if round trip time was
+	 * not measured yet and the clocks differ.
+	 */
+	public synchronized long getTransitTime(byte[] stamped, long receivedAt) {
+		return receivedAt - (ByteBuffer.wrap(stamped).getLong(8) - clockOffset);
+	}
+}
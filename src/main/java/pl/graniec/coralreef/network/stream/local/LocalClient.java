@@ -0,0 +1,127 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.local;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import pl.graniec.coralreef.network.client.Client;
+import pl.graniec.coralreef.network.client.ConnectionListener;
+import pl.graniec.coralreef.network.exceptions.NetworkException;
+
+/**
+ * Client connecting to a {@link LocalServer} in the same JVM. Packets
+ * are passed to the server as they are, without sockets and
+ * serialization.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class LocalClient extends LocalEndpoint implements Client {
+
+	private final Set<ConnectionListener> connectionListeners = new HashSet<ConnectionListener>();
+	
+	/*
+	 * @see pl.graniec.coralreef.network.client.Client#addConnectionListener(pl.graniec.coralreef.network.client.ConnectionListener)
+	 */
+	public boolean addConnectionListener(ConnectionListener l) {
+		if (l == null) {
+			throw new IllegalArgumentException("cannot take null values");
+		}
+		
+		synchronized (connectionListeners) {
+			return connectionListeners.add(l);
+		}
+	}
+	
+	/**
+	 * Connects to the local server opened on given port. There are no
+	 * hosts in-process, so the host name is not used.
+	 * 
+	 * @see pl.graniec.coralreef.network.client.Client#connect(java.lang.String, int)
+	 */
+	public void connect(String host, int port) throws NetworkException {
+		if (host == null) {
+			throw new IllegalArgumentException("parameters cannot be null");
+		}
+		
+		if (isConnected()) {
+			throw new IllegalStateException("client is already connected");
+		}
+		
+		final LocalServer server = LocalServer.find(port);
+		
+		if (server == null) {
+			throw new NetworkException("no local server on port " + port);
+		}
+		
+		server.accept(this);
+		
+		notifyConnected();
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.client.Client#removeConnectionListener(pl.graniec.coralreef.network.client.ConnectionListener)
+	 */
+	public boolean removeConnectionListener(ConnectionListener l) {
+		synchronized (connectionListeners) {
+			return connectionListeners.remove(l);
+		}
+	}
+	
+	@Override
+	void disconnected(int reason, String reasonString, boolean local) {
+		if (local) {
+			// socket clients don't report their own disconnection either
+			return;
+		}
+		
+		ConnectionListener[] copy;
+		
+		synchronized (connectionListeners) {
+			copy = connectionListeners.toArray(new ConnectionListener[connectionListeners.size()]);
+		}
+		
+		for (ConnectionListener l : copy) {
+			l.clientDisconnected(reason, reasonString);
+		}
+	}
+	
+	private void notifyConnected() {
+		ConnectionListener[] copy;
+		
+		synchronized (connectionListeners) {
+			copy = connectionListeners.toArray(new ConnectionListener[connectionListeners.size()]);
+		}
+		
+		for (ConnectionListener l : copy) {
+			l.clientConnected();
+		}
+	}
+}
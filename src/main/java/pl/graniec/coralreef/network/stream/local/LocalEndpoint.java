@@ -0,0 +1,254 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.local;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import pl.graniec.coralreef.network.DisconnectReason;
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.exceptions.NetworkException;
+import pl.graniec.coralreef.network.stream.frame.PacketCodec;
+
+/**
+ * One side of an in-process connection. Packets sent here are handed
+ * to the peer's listeners without any socket in between.
+ * <p>
+ * Every endpoint notifies its listeners on its own thread, in the
+ * order the peer sent packets, just like socket listeners do. In
+ * synchronous mode listeners are called by the thread that sends.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+abstract class LocalEndpoint {
+
+	/** Runs notifications on the calling thread */
+	private static final Executor DIRECT = new Executor() {
+
+		public void execute(Runnable command) {
+			command.run();
+		}
+		
+	};
+	
+	private final Set<PacketListener> packetListeners = new HashSet<PacketListener>();
+	
+	/** Other side of the connection or <code>null</code> if not connected */
+	private volatile LocalEndpoint peer;
+	
+	/** Runs listener notifications */
+	private Executor executor;
+	
+	/** Send packet copies instead of the packets */
+	private boolean copyOnSend;
+	
+	/**
+	 * Connects this endpoint to its peer. Both sides must be attached
+	 * before anything is sent.
+	 */
+	void attach(LocalEndpoint peer, boolean synchronous, boolean copyOnSend) {
+		this.copyOnSend = copyOnSend;
+		
+		if (synchronous) {
+			executor = DIRECT;
+		} else {
+			executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				
+				public Thread newThread(Runnable r) {
+					final Thread thread = new Thread(r, LocalEndpoint.this.getClass().getSimpleName() + " listener");
+					thread.setDaemon(true);
+					return thread;
+				}
+				
+			});
+		}
+		
+		this.peer = peer;
+	}
+	
+	public boolean addPacketListener(PacketListener l) {
+		if (l == null) {
+			throw new IllegalArgumentException("cannot take null values");
+		}
+		
+		synchronized (packetListeners) {
+			return packetListeners.add(l);
+		}
+	}
+	
+	public boolean removePacketListener(PacketListener l) {
+		synchronized (packetListeners) {
+			return packetListeners.remove(l);
+		}
+	}
+	
+	public boolean isConnected() {
+		return peer != null;
+	}
+	
+	public void send(Object data) throws NotSerializableException, NetworkException {
+		final LocalEndpoint peer = this.peer;
+		
+		if (peer == null) {
+			throw new IllegalStateException("not connected");
+		}
+		
+		if (data != null && !(data instanceof Serializable)) {
+			// the same code must work with socket transports
+			throw new NotSerializableException(data.getClass().getName());
+		}
+		
+		final Object packet = copyOnSend ? copy(data) : data;
+		
+		peer.received(packet);
+	}
+	
+	public void disconnect() {
+		final LocalEndpoint peer = detach();
+		
+		if (peer == null) {
+			throw new IllegalStateException("not connected");
+		}
+		
+		peer.lost();
+		
+		finish(new Runnable() {
+			
+			public void run() {
+				disconnected(DisconnectReason.UserAction, "disconnected", true);
+			}
+			
+		});
+	}
+	
+	/**
+	 * Called when the peer sends a packet.
+	 */
+	private void received(final Object packet) {
+		if (!isConnected()) {
+			// packets sent while disconnecting are lost
+			return;
+		}
+		
+		post(new Runnable() {
+			
+			public void run() {
+				notifyPacketReceived(packet);
+			}
+			
+		});
+	}
+	
+	/**
+	 * Called when the peer disconnects.
+	 */
+	private void lost() {
+		if (detach() == null) {
+			// disconnecting already
+			return;
+		}
+		
+		finish(new Runnable() {
+			
+			public void run() {
+				disconnected(DisconnectReason.UserAction, "disconnected by peer", false);
+			}
+			
+		});
+	}
+	
+	/**
+	 * @return Peer that was connected or <code>null</code> if there was none.
+	 */
+	private synchronized LocalEndpoint detach() {
+		final LocalEndpoint peer = this.peer;
+		this.peer = null;
+		return peer;
+	}
+	
+	/**
+	 * Queues the last notification and stops the listener thread after it.
+	 */
+	private void finish(Runnable notification) {
+		post(notification);
+		
+		if (executor instanceof ExecutorService) {
+			((ExecutorService) executor).shutdown();
+		}
+	}
+	
+	private void post(Runnable notification) {
+		try {
+			executor.execute(notification);
+		} catch (RejectedExecutionException e) {
+			// disconnected in the meantime, so the packet is lost like
+			// it would be with sockets
+		}
+	}
+	
+	private static Object copy(Object data) throws NotSerializableException, NetworkException {
+		try {
+			return PacketCodec.decode(PacketCodec.encode(data));
+		} catch (NotSerializableException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new NetworkException(e);
+		} catch (ClassNotFoundException e) {
+			throw new NetworkException(e);
+		}
+	}
+	
+	private void notifyPacketReceived(Object data) {
+		PacketListener[] copy;
+		
+		synchronized (packetListeners) {
+			copy = packetListeners.toArray(new PacketListener[packetListeners.size()]);
+		}
+		
+		for (PacketListener l : copy) {
+			l.packetReceived(data);
+		}
+	}
+	
+	/**
+	 * Called on listener thread after the last packet was delivered.
+	 * 
+	 * @param local <code>true</code> if this side disconnected.
+	 */
+	abstract void disconnected(int reason, String reasonString, boolean local);
+}
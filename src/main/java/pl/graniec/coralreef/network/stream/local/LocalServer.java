@@ -0,0 +1,258 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.local;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pl.graniec.coralreef.network.exceptions.NetworkException;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.server.Server;
+
+/**
+ * Server for clients living in the same JVM. It listens on a port
+ * number like other servers do, but the port is not a real one, so
+ * only {@link LocalClient}s can connect to it.
+ * <p>
+ * Packets are handed from one side to the other as they are, so both
+ * share the same objects. With {@link #setCopyOnSend(boolean)} every
+ * packet is serialized and the receiver gets its own copy, which keeps
+ * the behavior of socket transports. With
+ * {@link #setSynchronous(boolean)} listeners are called by the thread
+ * that sends, so tests don't have to wait for anything.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class LocalServer implements Server {
+
+	/** First port given to servers opened on port 0 */
+	private static final int FIRST_FREE_PORT = 49152;
+	
+	/** Open servers by port */
+	private static final ConcurrentMap<Integer, LocalServer> servers = new ConcurrentHashMap<Integer, LocalServer>();
+	
+	private static final AtomicInteger nextPort = new AtomicInteger(FIRST_FREE_PORT);
+	
+	private final Set<ConnectionListener> connectionListeners = new HashSet<ConnectionListener>();
+	private final Set<LocalRemoteClient> remoteClients = new HashSet<LocalRemoteClient>();
+	
+	/** Port this server is open on or 0 */
+	private volatile int port;
+	
+	private boolean copyOnSend;
+	private boolean synchronous;
+	
+	/**
+	 * @return Server open on given port or <code>null</code> if there's none.
+	 */
+	static LocalServer find(int port) {
+		return servers.get(port);
+	}
+	
+	/**
+	 * Connects the client to this server.
+	 */
+	void accept(LocalClient client) throws NetworkException {
+		if (!isOpen()) {
+			throw new NetworkException("connection refused");
+		}
+		
+		final LocalRemoteClient remoteClient = new LocalRemoteClient(this);
+		
+		remoteClient.attach(client, synchronous, copyOnSend);
+		client.attach(remoteClient, synchronous, copyOnSend);
+		
+		synchronized (remoteClients) {
+			remoteClients.add(remoteClient);
+		}
+		
+		notifyClientConnected(remoteClient);
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.server.Server#addConnectionListener(pl.graniec.coralreef.network.server.ConnectionListener)
+	 */
+	public boolean addConnectionListener(ConnectionListener l) {
+		if (l == null) {
+			throw new IllegalArgumentException("given object cannot be null");
+		}
+		
+		synchronized (connectionListeners) {
+			return connectionListeners.add(l);
+		}
+	}
+	
+	/**
+	 * Stops accepting new clients. Connected ones stay connected, just
+	 * like with socket servers.
+	 * 
+	 * @see pl.graniec.coralreef.network.server.Server#close()
+	 */
+	public void close() {
+		if (!isOpen()) {
+			throw new IllegalStateException("server is not open");
+		}
+		
+		servers.remove(port, this);
+		port = 0;
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.server.Server#getPort()
+	 */
+	public int getPort() {
+		return port;
+	}
+	
+	/**
+	 * @return <code>true</code> if receivers get copies of sent packets.
+	 */
+	public boolean isCopyOnSend() {
+		return copyOnSend;
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.server.Server#isOpen()
+	 */
+	public boolean isOpen() {
+		return port != 0;
+	}
+	
+	/**
+	 * @return <code>true</code> if listeners are called by sending threads.
+	 */
+	public boolean isSynchronous() {
+		return synchronous;
+	}
+	
+	/**
+	 * Opens the server on given port. Port 0 picks a free one.
+	 * 
+	 * @see pl.graniec.coralreef.network.server.Server#open(int)
+	 */
+	public void open(int port) throws NetworkException {
+		if (port < 0 || port > 0xffff) {
+			throw new IllegalArgumentException("port out of range: " + port);
+		}
+		
+		checkNotOpen();
+		
+		if (port != 0) {
+			if (servers.putIfAbsent(port, this) != null) {
+				throw new NetworkException("port " + port + " is already in use");
+			}
+		} else {
+			do {
+				port = nextPort.getAndIncrement();
+				
+				if (port > 0xffff) {
+					nextPort.compareAndSet(port + 1, FIRST_FREE_PORT);
+					port = 0;
+				}
+				
+			} while (port == 0 || servers.putIfAbsent(port, this) != null);
+		}
+		
+		this.port = port;
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.server.Server#removeConnectionListener(pl.graniec.coralreef.network.server.ConnectionListener)
+	 */
+	public boolean removeConnectionListener(ConnectionListener l) {
+		if (l == null) {
+			throw new IllegalArgumentException("given object cannot be null");
+		}
+		
+		synchronized (connectionListeners) {
+			return connectionListeners.remove(l);
+		}
+	}
+	
+	/**
+	 * Makes receivers get their own copies of sent packets, so no
+	 * object is shared between server and client. Packets are
+	 * serialized to make the copies.
+	 */
+	public void setCopyOnSend(boolean copyOnSend) {
+		checkNotOpen();
+		this.copyOnSend = copyOnSend;
+	}
+	
+	/**
+	 * Makes listeners of both sides run on the thread that sends the
+	 * packet, connects or disconnects, instead of listener threads.
+	 * Everything is delivered when the call returns.
+	 */
+	public void setSynchronous(boolean synchronous) {
+		checkNotOpen();
+		this.synchronous = synchronous;
+	}
+	
+	void notifyClientDisconnected(LocalRemoteClient client, int reason, String reasonString) {
+		synchronized (remoteClients) {
+			if (!remoteClients.remove(client)) {
+				return;
+			}
+		}
+		
+		ConnectionListener[] copy;
+		
+		synchronized (connectionListeners) {
+			copy = connectionListeners.toArray(new ConnectionListener[connectionListeners.size()]);
+		}
+		
+		for (ConnectionListener c : copy) {
+			c.clientDisconnected(client, reason, reasonString);
+		}
+	}
+	
+	private void notifyClientConnected(RemoteClient client) {
+		ConnectionListener[] copy;
+		
+		synchronized (connectionListeners) {
+			copy = connectionListeners.toArray(new ConnectionListener[connectionListeners.size()]);
+		}
+		
+		for (ConnectionListener c : copy) {
+			c.clientConnected(client);
+		}
+	}
+	
+	private void checkNotOpen() {
+		if (isOpen()) {
+			throw new IllegalStateException("server is already open");
+		}
+	}
+}
@@ -0,0 +1,328 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.poll;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import pl.graniec.coralreef.network.stream.shm.WaitStrategy;
+
+/**
+ * Socket that never sleeps in the kernel. Its channel is switched to
+ * non-blocking mode, and reads and writes retry as the wait strategy
+ * says, so data is picked up as soon as it comes instead of waiting
+ * for the thread to be woken up. Reads honor {@link #setSoTimeout(int)}.
+ * <p>
+ * Everything else is done by the socket of the channel.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class BusyPollSocket extends Socket {
+
+	private class PollingInputStream extends InputStream {
+		
+		@Override
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			
+			final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+			
+			synchronized (this) {
+				final int timeout = BusyPollSocket.this.timeout;
+				final long deadline = System.nanoTime() + timeout * 1000000L;
+				
+				for (int attempt = 0; ; ++attempt) {
+					final int count = channel.read(buffer);
+					
+					if (count != 0) {
+						return count;
+					}
+					
+					if (timeout > 0 && System.nanoTime() - deadline >= 0) {
+						throw new SocketTimeoutException("read timed out");
+					}
+					
+					waitStrategy.idle(attempt);
+				}
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			BusyPollSocket.this.close();
+		}
+	}
+	
+	private class PollingOutputStream extends OutputStream {
+		
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+			
+			synchronized (this) {
+				for (int attempt = 0; buffer.hasRemaining(); ) {
+					if (channel.write(buffer) == 0) {
+						waitStrategy.idle(attempt++);
+					} else {
+						attempt = 0;
+					}
+				}
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			BusyPollSocket.this.close();
+		}
+	}
+	
+	private final SocketChannel channel;
+	/** Socket of the channel */
+	private final Socket socket;
+	private final WaitStrategy waitStrategy;
+	
+	private final InputStream in = new PollingInputStream();
+	private final OutputStream out = new PollingOutputStream();
+	
+	private volatile int timeout;
+	
+	/**
+	 * @param channel Connected channel. It's switched to non-blocking mode.
+	 * @param waitStrategy What to do while there's nothing to read or
+	 * no space to write.
+	 */
+	public BusyPollSocket(SocketChannel channel, WaitStrategy waitStrategy) throws IOException {
+		if (waitStrategy == null) {
+			throw new IllegalArgumentException("wait strategy cannot be null");
+		}
+		
+		this.channel = channel;
+		this.socket = channel.socket();
+		this.waitStrategy = waitStrategy;
+		
+		channel.configureBlocking(false);
+	}
+	
+	/*
+	 * @see java.net.Socket#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+	
+	/*
+	 * @see java.net.Socket#getChannel()
+	 */
+	@Override
+	public SocketChannel getChannel() {
+		// the channel is non-blocking, so it can't be used for blocking transfers
+		return null;
+	}
+	
+	/*
+	 * @see java.net.Socket#getInputStream()
+	 */
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return in;
+	}
+	
+	/*
+	 * @see java.net.Socket#getOutputStream()
+	 */
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return out;
+	}
+	
+	/*
+	 * @see java.net.Socket#getInetAddress()
+	 */
+	@Override
+	public InetAddress getInetAddress() {
+		return socket.getInetAddress();
+	}
+	
+	/*
+	 * @see java.net.Socket#getLocalAddress()
+	 */
+	@Override
+	public InetAddress getLocalAddress() {
+		return socket.getLocalAddress();
+	}
+	
+	/*
+	 * @see java.net.Socket#getLocalPort()
+	 */
+	@Override
+	public int getLocalPort() {
+		return socket.getLocalPort();
+	}
+	
+	/*
+	 * @see java.net.Socket#getLocalSocketAddress()
+	 */
+	@Override
+	public SocketAddress getLocalSocketAddress() {
+		return socket.getLocalSocketAddress();
+	}
+	
+	/*
+	 * @see java.net.Socket#getPort()
+	 */
+	@Override
+	public int getPort() {
+		return socket.getPort();
+	}
+	
+	/*
+	 * @see java.net.Socket#getRemoteSocketAddress()
+	 */
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		return socket.getRemoteSocketAddress();
+	}
+	
+	/*
+	 * @see java.net.Socket#getSoTimeout()
+	 */
+	@Override
+	public int getSoTimeout() {
+		return timeout;
+	}
+	
+	/*
+	 * @see java.net.Socket#getTcpNoDelay()
+	 */
+	@Override
+	public boolean getTcpNoDelay() throws SocketException {
+		return socket.getTcpNoDelay();
+	}
+	
+	/*
+	 * @see java.net.Socket#isBound()
+	 */
+	@Override
+	public boolean isBound() {
+		return socket.isBound();
+	}
+	
+	/*
+	 * @see java.net.Socket#isClosed()
+	 */
+	@Override
+	public boolean isClosed() {
+		return !channel.isOpen();
+	}
+	
+	/*
+	 * @see java.net.Socket#isConnected()
+	 */
+	@Override
+	public boolean isConnected() {
+		return channel.isConnected();
+	}
+	
+	/*
+	 * @see java.net.Socket#isInputShutdown()
+	 */
+	@Override
+	public boolean isInputShutdown() {
+		return socket.isInputShutdown();
+	}
+	
+	/*
+	 * @see java.net.Socket#isOutputShutdown()
+	 */
+	@Override
+	public boolean isOutputShutdown() {
+		return socket.isOutputShutdown();
+	}
+	
+	/*
+	 * @see java.net.Socket#setSoTimeout(int)
+	 */
+	@Override
+	public void setSoTimeout(int timeout) throws SocketException {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("timeout cannot be negative");
+		}
+		
+		this.timeout = timeout;
+	}
+	
+	/*
+	 * @see java.net.Socket#setTcpNoDelay(boolean)
+	 */
+	@Override
+	public void setTcpNoDelay(boolean on) throws SocketException {
+		socket.setTcpNoDelay(on);
+	}
+	
+	/*
+	 * @see java.net.Socket#shutdownOutput()
+	 */
+	@Override
+	public void shutdownOutput() throws IOException {
+		synchronized (out) {
+			socket.shutdownOutput();
+		}
+	}
+	
+	/*
+	 * @see java.net.Socket#toString()
+	 */
+	@Override
+	public String toString() {
+		return "BusyPollSocket[" + channel + "]";
+	}
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.rate;
+
+/**
+ * Limits of packets and bytes that a single connection may send, and
+ * what happens when it sends more. Each connection gets its own
+ * {@link RateLimiter} with these limits.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class RateLimit {
+
+	private final double packetsPerSecond;
+	private final int packetBurst;
+	private final double bytesPerSecond;
+	private final int byteBurst;
+	private final RateLimitAction action;
+	
+	/**
+	 * @param packetsPerSecond Packet rate or 0 if not limited.
+	 * @param packetBurst Most packets let through at once.
+	 * @param bytesPerSecond Byte rate or 0 if not limited.
+	 * @param byteBurst Most bytes let through at once.
+	 * @param action What to do with connections that exceed the limits.
+	 */
+	public RateLimit(double packetsPerSecond, int packetBurst, double bytesPerSecond, int byteBurst, RateLimitAction action) {
+		if (packetsPerSecond < 0 || bytesPerSecond < 0) {
+			throw new IllegalArgumentException("rates cannot be negative");
+		}
+		
+		if ((packetsPerSecond > 0 && packetBurst <= 0) || (bytesPerSecond > 0 && byteBurst <= 0)) {
+			throw new IllegalArgumentException("bursts must be positive");
+		}
+		
+		if (action == null) {
+			throw new IllegalArgumentException("action cannot be null");
+		}
+		
+		this.packetsPerSecond = packetsPerSecond;
+		this.packetBurst = packetBurst;
+		this.bytesPerSecond = bytesPerSecond;
+		this.byteBurst = byteBurst;
+		this.action = action;
+	}
+	
+	public RateLimitAction getAction() {
+		return action;
+	}
+	
+	public int getByteBurst() {
+		return byteBurst;
+	}
+	
+	public double getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+	
+	public int getPacketBurst() {
+		return packetBurst;
+	}
+	
+	public double getPacketsPerSecond() {
+		return packetsPerSecond;
+	}
+	
+	/*
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "RateLimit[" + packetsPerSecond + " packets/s, " + bytesPerSecond + " bytes/s, " + action + "]";
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.rate;
+
+/**
+ * Rate limit state of a single connection. It's consulted for every
+ * incoming packet before the packet is decoded.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class RateLimiter {
+
+	private final RateLimit limit;
+	
+	/** <code>null</code> if not limited */
+	private final TokenBucket packets;
+	/** <code>null</code> if not limited */
+	private final TokenBucket bytes;
+	
+	private long violations;
+	
+	public RateLimiter(RateLimit limit, long now) {
+		this.limit = limit;
+		
+		packets = limit.getPacketsPerSecond() > 0
+			? new TokenBucket(limit.getPacketsPerSecond(), limit.getPacketBurst(), now) : null;
+		
+		bytes = limit.getBytesPerSecond() > 0
+			? new TokenBucket(limit.getBytesPerSecond(), limit.getByteBurst(), now) : null;
+	}
+	
+	/**
+	 * Accounts incoming data.
+	 * <p>
+	 * With {@link RateLimitAction#DELAY} the data is always accounted
+	 * and the result tells how long to wait before reading on. With
+	 * other actions data exceeding the limits is not accounted at all.
+	 * 
+	 * @param packetCount Number of packets.
+	 * @param byteCount Number of bytes.
+	 * @param now Current time in nanoseconds.
+	 * @return 0 if data fits in the limits. Otherwise nanoseconds to
+	 * wait with {@link RateLimitAction#DELAY} or 1 with other actions.
+	 */
+	public synchronized long acquire(int packetCount, int byteCount, long now) {
+		long wait = 0;
+		
+		if (limit.getAction() == RateLimitAction.DELAY) {
+			if (packets != null && packetCount > 0) {
+				wait = packets.take(packetCount, now);
+			}
+			
+			if (bytes != null) {
+				wait = Math.max(wait, bytes.take(byteCount, now));
+			}
+			
+		} else {
+			final boolean packetsFit = packets == null || packetCount == 0 || packets.tryTake(packetCount, now);
+			
+			if (!packetsFit || (bytes != null && !bytes.tryTake(byteCount, now))) {
+				if (packetsFit && packets != null) {
+					// give back what was taken, since the packet goes nowhere
+					packets.take(-packetCount, now);
+				}
+				
+				wait = 1;
+			}
+		}
+		
+		if (wait > 0) {
+			++violations;
+		}
+		
+		return wait;
+	}
+	
+	public RateLimitAction getAction() {
+		return limit.getAction();
+	}
+	
+	/**
+	 * @return Number of times data exceeded the limits.
+	 */
+	public synchronized long getViolations() {
+		return violations;
+	}
+}
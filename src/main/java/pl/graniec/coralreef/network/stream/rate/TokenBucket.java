@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.rate;
+
+/**
+ * Token bucket: tokens flow in at a constant rate up to the bucket
+ * capacity, and every unit of work takes some of them out. The
+ * capacity is the biggest burst let through at once.
+ * <p>
+ * Work bigger than the whole capacity passes when the bucket is full
+ * and leaves it in debt, so big packets aren't blocked forever.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class TokenBucket {
+
+	/** Tokens per nanosecond */
+	private final double rate;
+	private final double capacity;
+	
+	private double tokens;
+	private long updated;
+	
+	/**
+	 * Creates a full bucket.
+	 * 
+	 * @param perSecond Tokens coming in every second.
+	 * @param capacity Most tokens in the bucket.
+	 * @param now Current time in nanoseconds.
+	 */
+	public TokenBucket(double perSecond, double capacity, long now) {
+		if (perSecond <= 0 || capacity <= 0) {
+			throw new IllegalArgumentException("rate and capacity must be positive");
+		}
+		
+		this.rate = perSecond / 1000000000.0;
+		this.capacity = capacity;
+		this.tokens = capacity;
+		this.updated = now;
+	}
+	
+	/**
+	 * Takes tokens if there are enough of them.
+	 * 
+	 * @return <code>true</code> if tokens were taken.
+	 */
+	public boolean tryTake(double count, long now) {
+		refill(now);
+		
+		if (tokens < Math.min(count, capacity)) {
+			return false;
+		}
+		
+		tokens -= count;
+		return true;
+	}
+	
+	/**
+	 * Takes tokens even if there's not enough of them.
+	 * 
+	 * @return Nanoseconds until the bucket is out of debt, 0 if it's
+	 * not in debt.
+	 */
+	public long take(double count, long now) {
+		refill(now);
+		
+		tokens -= count;
+		
+		return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / rate);
+	}
+	
+	private void refill(long now) {
+		if (now > updated) {
+			tokens = Math.min(capacity, tokens + (now - updated) * rate);
+			updated = now;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.record;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+import pl.graniec.coralreef.network.stream.frame.Frame;
+import pl.graniec.coralreef.network.stream.frame.FrameReader;
+
+/**
+ * Reads records of a log written by {@link TrafficRecorder}.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class TrafficLog {
+
+	private final DataInputStream in;
+	private final FrameReader reader;
+	
+	public TrafficLog(File file) throws IOException {
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		
+		try {
+			if (in.readInt() != TrafficRecorder.MAGIC) {
+				throw new StreamCorruptedException("not a traffic log: " + file);
+			}
+			
+			final int version = in.readInt();
+			
+			if (version != TrafficRecorder.VERSION) {
+				throw new StreamCorruptedException("unsupported traffic log version: " + version);
+			}
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		
+		reader = new FrameReader(in, Integer.MAX_VALUE - Frame.HEADER_SIZE);
+	}
+	
+	/**
+	 * @return Next record or <code>null</code> at the end of log.
+	 */
+	public TrafficRecord next() throws IOException {
+		
+		final long time;
+		
+		try {
+			time = in.readLong();
+		} catch (EOFException e) {
+			return null;
+		}
+		
+		final byte direction = in.readByte();
+		final int connection = in.readInt();
+		
+		return new TrafficRecord(time, direction, connection, reader.read());
+	}
+	
+	public void close() throws IOException {
+		in.close();
+	}
+}
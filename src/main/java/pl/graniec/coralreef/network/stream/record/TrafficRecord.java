@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.record;
+
+import pl.graniec.coralreef.network.stream.frame.Frame;
+
+/**
+ * Single frame read from a traffic log.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class TrafficRecord {
+
+	private final long time;
+	private final byte direction;
+	private final int connection;
+	private final Frame frame;
+	
+	public TrafficRecord(long time, byte direction, int connection, Frame frame) {
+		this.time = time;
+		this.direction = direction;
+		this.connection = connection;
+		this.frame = frame;
+	}
+	
+	/**
+	 * @return Id of connection that frame belongs to.
+	 */
+	public int getConnection() {
+		return connection;
+	}
+	
+	/**
+	 * @return {@link TrafficRecorder#INBOUND} or {@link TrafficRecorder#OUTBOUND}.
+	 */
+	public byte getDirection() {
+		return direction;
+	}
+	
+	public Frame getFrame() {
+		return frame;
+	}
+	
+	/**
+	 * @return Nanoseconds since recording started.
+	 */
+	public long getTime() {
+		return time;
+	}
+	
+	public boolean isInbound() {
+		return direction == TrafficRecorder.INBOUND;
+	}
+	
+	/*
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return (isInbound() ? "in " : "out ") + connection + " @" + time + "ns " + frame;
+	}
+}
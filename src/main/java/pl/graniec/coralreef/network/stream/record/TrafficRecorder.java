@@ -0,0 +1,197 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.record;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Logger;
+
+import pl.graniec.coralreef.network.stream.frame.Frame;
+
+/**
+ * Appends frames sent and received by a server to a memory-mapped log
+ * file, so the traffic can be examined or replayed later with
+ * {@link TrafficReplay}.
+ * <p>
+ * The log starts with {@link #MAGIC} and version number, then each
+ * record is: nanoseconds since recording started (long), direction
+ * (byte), connection id (int), frame as sent on the wire.
+ * <p>
+ * Recording never interrupts the traffic. If writing to the log fails,
+ * recording is stopped with a warning.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class TrafficRecorder {
+
+	private static final Logger logger = Logger.getLogger(TrafficRecorder.class.getName());
+	
+	/** First bytes of the log file */
+	public static final int MAGIC = 0x43525452;
+	/** Version of log format */
+	public static final int VERSION = 1;
+	
+	/** Frame received from the other side */
+	public static final byte INBOUND = 0;
+	/** Frame sent to the other side */
+	public static final byte OUTBOUND = 1;
+	
+	/** Size of record header before the frame */
+	public static final int RECORD_HEADER_SIZE = 8 + 1 + 4;
+	
+	/** Default size of file region that is mapped at once */
+	public static final int DEFAULT_REGION_SIZE = 16 * 1024 * 1024;
+	
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int regionSize;
+	
+	/** Currently mapped region */
+	private MappedByteBuffer region;
+	/** File position of the current region */
+	private long regionStart;
+	
+	/** Time when recording started */
+	private final long start = System.nanoTime();
+	
+	private long records;
+	/** Written length of the log after it's closed */
+	private long length;
+	private boolean closed;
+	
+	public TrafficRecorder(File file) throws IOException {
+		this(file, DEFAULT_REGION_SIZE);
+	}
+	
+	/**
+	 * Creates recorder that overwrites given file.
+	 * 
+	 * @param regionSize Size of file region mapped at once.
+	 */
+	public TrafficRecorder(File file, int regionSize) throws IOException {
+		if (regionSize < 8) {
+			throw new IllegalArgumentException("region size is too small");
+		}
+		
+		this.regionSize = regionSize;
+		this.file = new RandomAccessFile(file, "rw");
+		this.channel = this.file.getChannel();
+		
+		channel.truncate(0);
+		
+		map(0, regionSize);
+		region.putInt(MAGIC);
+		region.putInt(VERSION);
+	}
+	
+	/**
+	 * Appends the frame to the log.
+	 * 
+	 * @param direction {@link #INBOUND} or {@link #OUTBOUND}.
+	 * @param connection Id of connection that frame belongs to.
+	 */
+	public synchronized void record(byte direction, int connection, Frame frame) {
+		
+		if (closed) {
+			return;
+		}
+		
+		final long time = System.nanoTime() - start;
+		final int length = RECORD_HEADER_SIZE + frame.size();
+		
+		try {
+			if (region.remaining() < length) {
+				map(regionStart + region.position(), Math.max(regionSize, length));
+			}
+		} catch (IOException e) {
+			logger.warning("Traffic recording stopped: " + e.getMessage());
+			close();
+			return;
+		}
+		
+		region.putLong(time);
+		region.put(direction);
+		region.putInt(connection);
+		frame.writeTo(region);
+		
+		++records;
+	}
+	
+	private void map(long position, int size) throws IOException {
+		if (region != null) {
+			region.force();
+		}
+		
+		region = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+		regionStart = position;
+	}
+	
+	/**
+	 * @return Number of recorded frames.
+	 */
+	public synchronized long getRecordCount() {
+		return records;
+	}
+	
+	/**
+	 * @return Bytes of the log written so far.
+	 */
+	public synchronized long getLength() {
+		return closed ? length : regionStart + region.position();
+	}
+	
+	/**
+	 * Stops recording and cuts the file to its written length.
+	 */
+	public synchronized void close() {
+		
+		if (closed) {
+			return;
+		}
+		
+		closed = true;
+		
+		try {
+			region.force();
+			
+			length = regionStart + region.position();
+			region = null;
+			
+			channel.truncate(length);
+			file.close();
+			
+		} catch (IOException e) {
+			logger.warning("Cannot close traffic log: " + e.getMessage());
+		}
+	}
+}
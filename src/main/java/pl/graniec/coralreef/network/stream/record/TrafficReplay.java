@@ -0,0 +1,209 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.record;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import pl.graniec.coralreef.network.stream.frame.Frame;
+import pl.graniec.coralreef.network.stream.frame.FrameWriter;
+
+/**
+ * Plays inbound frames of a traffic log against a running server. Each
+ * recorded connection gets a connection of its own and the frames are
+ * sent in the recorded order, either with the original timing or as fast
+ * as possible. Whatever the server sends back is read and discarded.
+ * <p>
+ * Blob frames are skipped, because their data is not recorded.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class TrafficReplay {
+
+	private static final Logger logger = Logger.getLogger(TrafficReplay.class.getName());
+	
+	/** How long to wait for the server to close replayed connection */
+	private static final int CLOSE_TIMEOUT = 5000;
+	
+	/** Replayed connection with its output */
+	private static class Connection {
+		private final Socket socket;
+		private final FrameWriter writer;
+		/** Reads what server sends */
+		private final Thread sink;
+		
+		public Connection(String host, int port) throws IOException {
+			socket = new Socket(host, port);
+			socket.setTcpNoDelay(true);
+			
+			writer = new FrameWriter(socket.getOutputStream());
+			
+			final InputStream in = socket.getInputStream();
+			
+			sink = new Thread() {
+				@Override
+				public void run() {
+					final byte[] buf = new byte[64 * 1024];
+					
+					try {
+						while (in.read(buf) != -1) {
+							// discard
+						}
+					} catch (IOException e) {
+						// connection is gone
+					}
+				}
+			};
+			
+			sink.setDaemon(true);
+			sink.start();
+		}
+		
+		public void close() throws InterruptedException {
+			try {
+				// let the server read everything before it closes the connection
+				socket.shutdownOutput();
+				sink.join(CLOSE_TIMEOUT);
+			} catch (IOException e) {
+				// closing anyway
+			}
+			
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// ignore the socket closing exception
+			}
+		}
+	}
+	
+	private final File log;
+	private final String host;
+	private final int port;
+	
+	/** Keep original delays between frames */
+	private boolean realTime = true;
+	
+	public TrafficReplay(File log, String host, int port) {
+		this.log = log;
+		this.host = host;
+		this.port = port;
+	}
+	
+	/**
+	 * Makes replay keep the recorded delays between frames, otherwise
+	 * frames are sent as fast as possible.
+	 */
+	public void setRealTime(boolean realTime) {
+		this.realTime = realTime;
+	}
+	
+	/**
+	 * Replays the whole log.
+	 * 
+	 * @return Number of frames sent.
+	 */
+	public long run() throws IOException, InterruptedException {
+		
+		final Map<Integer, Connection> connections = new HashMap<Integer, Connection>();
+		final TrafficLog in = new TrafficLog(log);
+		
+		final long start = System.nanoTime();
+		long sent = 0;
+		
+		try {
+			TrafficRecord record;
+			
+			while ((record = in.next()) != null) {
+				
+				final Frame frame = record.getFrame();
+				
+				if (!record.isInbound() || frame.getType() == Frame.BLOB) {
+					continue;
+				}
+				
+				Connection connection = connections.get(record.getConnection());
+				
+				if (connection == null) {
+					connection = new Connection(host, port);
+					connections.put(record.getConnection(), connection);
+				}
+				
+				if (realTime) {
+					final long delay = record.getTime() - (System.nanoTime() - start);
+					
+					if (delay > 0) {
+						Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+					}
+				}
+				
+				try {
+					connection.writer.write(frame);
+				} catch (IOException e) {
+					logger.warning("Replay of connection " + record.getConnection() + " failed: " + e.getMessage());
+				}
+				
+				++sent;
+			}
+			
+		} finally {
+			in.close();
+			
+			for (Connection connection : connections.values()) {
+				connection.close();
+			}
+		}
+		
+		return sent;
+	}
+	
+	/**
+	 * Command line entry: <code>TrafficReplay &lt;log&gt; &lt;host&gt; &lt;port&gt; [--fast]</code>
+	 */
+	public static void main(String[] args) throws Exception {
+		
+		if (args.length < 3) {
+			System.err.println("usage: TrafficReplay <log> <host> <port> [--fast]");
+			System.exit(1);
+		}
+		
+		final TrafficReplay replay = new TrafficReplay(new File(args[0]), args[1], Integer.parseInt(args[2]));
+		replay.setRealTime(!(args.length > 3 && args[3].equals("--fast")));
+		
+		final long start = System.currentTimeMillis();
+		final long sent = replay.run();
+		
+		System.out.println(sent + " frames replayed in " + (System.currentTimeMillis() - start) + " ms");
+	}
+}
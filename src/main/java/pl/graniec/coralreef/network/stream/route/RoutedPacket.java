@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.route;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.nio.ByteBuffer;
+
+import pl.graniec.coralreef.network.stream.frame.PacketCodec;
+import pl.graniec.coralreef.network.stream.serial.ClassResolver;
+
+/**
+ * Packet with a routing header that can be read without decoding the
+ * packet itself. Listeners get instances of this class for packets
+ * sent with a routing header, check where they should go and either
+ * decode them with {@link #getPacket()} or forward them untouched.
+ * <p>
+ * Encoded routed packet starts with a marker byte, then type (int)
+ * and destination (int) follow and the rest is the serialized packet.
+ * The marker differs from the first byte of every serialized object,
+ * so routed and plain packets can be mixed on one connection. Both
+ * sides of a connection must know routed packets though.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class RoutedPacket {
+
+	/** Size of routing header in bytes */
+	public static final int HEADER_SIZE = 1 + 4 + 4;
+	
+	/** First byte of routed packets, serialized objects start with 0xAC */
+	private static final byte MARKER = 0x52;
+	
+	/** Encoded packet with its header, shared and never modified */
+	private final byte[] data;
+	private final int type;
+	private final int destination;
+	
+	/** Resolves classes of the packet when it's decoded */
+	private final ClassResolver resolver;
+	
+	/** Decoded packet, valid if decoded is set */
+	private Object packet;
+	private boolean decoded;
+	
+	private RoutedPacket(byte[] data, ClassResolver resolver) {
+		final ByteBuffer header = ByteBuffer.wrap(data, 1, HEADER_SIZE - 1);
+		
+		this.data = data;
+		this.type = header.getInt();
+		this.destination = header.getInt();
+		this.resolver = resolver;
+	}
+	
+	/**
+	 * Puts routing header before already encoded packet.
+	 */
+	public static byte[] encode(int type, int destination, byte[] encoded) {
+		final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + encoded.length);
+		
+		buffer.put(MARKER);
+		buffer.putInt(type);
+		buffer.putInt(destination);
+		buffer.put(encoded);
+		
+		return buffer.array();
+	}
+	
+	public static byte[] encode(int type, int destination, Object packet) throws NotSerializableException, IOException {
+		return encode(type, destination, PacketCodec.encode(packet));
+	}
+	
+	/**
+	 * @return <code>true</code> if data is an encoded routed packet.
+	 */
+	public static boolean isRouted(byte[] data) {
+		return data.length >= HEADER_SIZE && data[0] == MARKER;
+	}
+	
+	/**
+	 * Reads routing header of encoded packet. The packet is decoded
+	 * on first call of {@link #getPacket()}.
+	 * 
+	 * @param resolver Resolver of packet classes or <code>null</code>
+	 * for the default resolution.
+	 */
+	public static RoutedPacket fromBytes(byte[] data, ClassResolver resolver) {
+		if (!isRouted(data)) {
+			throw new IllegalArgumentException("data is not a routed packet");
+		}
+		
+		return new RoutedPacket(data, resolver);
+	}
+	
+	/**
+	 * @return Encoded packet with its routing header, exactly as it was
+	 * received. The array is shared and must not be modified.
+	 */
+	public byte[] getData() {
+		return data;
+	}
+	
+	public int getDestination() {
+		return destination;
+	}
+	
+	/**
+	 * Decodes the packet on first call, later calls return the same
+	 * instance.
+	 */
+	public synchronized Object getPacket() throws IOException, ClassNotFoundException {
+		if (!decoded) {
+			packet = PacketCodec.decode(data, HEADER_SIZE, data.length - HEADER_SIZE, resolver);
+			decoded = true;
+		}
+		
+		return packet;
+	}
+	
+	public int getType() {
+		return type;
+	}
+	
+	/**
+	 * @return <code>true</code> if {@link #getPacket()} has already
+	 * decoded the packet.
+	 */
+	public synchronized boolean isDecoded() {
+		return decoded;
+	}
+	
+	/*
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "RoutedPacket[type=" + type + ", destination=" + destination + ", length=" + data.length + "]";
+	}
+}
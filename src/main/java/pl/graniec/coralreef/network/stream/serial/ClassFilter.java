@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.serial;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * List of classes that may be deserialized from incoming packets.
+ * Every class met in a stream is checked, including super classes of
+ * packets and classes of their fields, before it's even loaded.
+ * <p>
+ * Primitive types, strings, boxed primitives and arrays of allowed
+ * types are always allowed. Everything else must be added by name,
+ * by package (<code>com.example.packets.*</code>) or by package with
+ * its sub-packages (<code>com.example.**</code>).
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ClassFilter {
+
+	private static final String[] BASIC_TYPES = {
+		"boolean", "byte", "char", "short", "int", "long", "float", "double",
+		"java.lang.String", "java.lang.Number", "java.lang.Enum",
+		"java.lang.Boolean", "java.lang.Byte", "java.lang.Character", "java.lang.Short",
+		"java.lang.Integer", "java.lang.Long", "java.lang.Float", "java.lang.Double"
+	};
+	
+	private final ConcurrentMap<String, Boolean> classes = new ConcurrentHashMap<String, Boolean>();
+	
+	/** Allowed package prefixes, each ending with a dot */
+	private final List<String> packages = new CopyOnWriteArrayList<String>();
+	
+	/** Prefixes that include sub-packages */
+	private final List<String> trees = new CopyOnWriteArrayList<String>();
+	
+	public ClassFilter() {
+		for (String name : BASIC_TYPES) {
+			classes.put(name, Boolean.TRUE);
+		}
+	}
+	
+	/**
+	 * Allows given classes.
+	 * 
+	 * @return This filter.
+	 */
+	public ClassFilter allow(Class<?>... types) {
+		for (Class<?> type : types) {
+			classes.put(type.getName(), Boolean.TRUE);
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * Allows a class by its name, a package when the name ends with
+	 * <code>.*</code>, or a package with sub-packages when it ends with
+	 * <code>.**</code>.
+	 * 
+	 * @return This filter.
+	 */
+	public ClassFilter allow(String pattern) {
+		if (pattern == null) {
+			throw new IllegalArgumentException("pattern cannot be null");
+		}
+		
+		if (pattern.endsWith(".**")) {
+			trees.add(pattern.substring(0, pattern.length() - 2));
+		} else if (pattern.endsWith(".*")) {
+			packages.add(pattern.substring(0, pattern.length() - 1));
+		} else {
+			classes.put(pattern, Boolean.TRUE);
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * @param name Class name as returned by {@link Class#getName()}.
+	 * @return <code>true</code> if the class may be deserialized.
+	 */
+	public boolean isAllowed(String name) {
+		if (name.startsWith("[")) {
+			return isArrayAllowed(name);
+		}
+		
+		if (classes.containsKey(name)) {
+			return true;
+		}
+		
+		final int dot = name.lastIndexOf('.');
+		
+		if (dot < 0) {
+			return false;
+		}
+		
+		final String parent = name.substring(0, dot + 1);
+		
+		if (packages.contains(parent)) {
+			return true;
+		}
+		
+		for (String tree : trees) {
+			if (parent.startsWith(tree)) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	private boolean isArrayAllowed(String name) {
+		int dimensions = 0;
+		
+		while (dimensions < name.length() && name.charAt(dimensions) == '[') {
+			++dimensions;
+		}
+		
+		if (dimensions == name.length()) {
+			return false;
+		}
+		
+		if (name.charAt(dimensions) != 'L') {
+			// array of primitives
+			return name.length() == dimensions + 1;
+		}
+		
+		if (!name.endsWith(";")) {
+			return false;
+		}
+		
+		return isAllowed(name.substring(dimensions + 1, name.length() - 1));
+	}
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.serial;
+
+import java.io.InvalidClassException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Finds classes of deserialized objects. Classes found once are kept,
+ * so connections don't ask the class loader again for every class in
+ * every stream. One resolver is shared by all connections of a server.
+ * <p>
+ * If there's a {@link ClassFilter}, classes it doesn't allow are
+ * rejected before they're loaded, so none of their code runs.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ClassResolver {
+
+	private static final Map<String, Class<?>> PRIMITIVES = new HashMap<String, Class<?>>();
+	
+	static {
+		final Class<?>[] types = {
+			boolean.class, byte.class, char.class, short.class,
+			int.class, long.class, float.class, double.class, void.class
+		};
+		
+		for (Class<?> type : types) {
+			PRIMITIVES.put(type.getName(), type);
+		}
+	}
+	
+	private final ClassFilter filter;
+	private final ClassLoader loader;
+	
+	private final ConcurrentMap<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
+	
+	/**
+	 * Creates resolver using context class loader of current thread.
+	 * 
+	 * @param filter Allowed classes or <code>null</code> to allow all.
+	 */
+	public ClassResolver(ClassFilter filter) {
+		this(filter, Thread.currentThread().getContextClassLoader());
+	}
+	
+	/**
+	 * @param filter Allowed classes or <code>null</code> to allow all.
+	 * @param loader Loader of the classes or <code>null</code> to use
+	 * the loader of this class.
+	 */
+	public ClassResolver(ClassFilter filter, ClassLoader loader) {
+		this.filter = filter;
+		this.loader = loader != null ? loader : ClassResolver.class.getClassLoader();
+	}
+	
+	/**
+	 * @return Allowed classes or <code>null</code> if all are allowed.
+	 */
+	public ClassFilter getFilter() {
+		return filter;
+	}
+	
+	/**
+	 * @throws InvalidClassException If the filter doesn't allow the class.
+	 * @throws ClassNotFoundException If there's no such class.
+	 */
+	public Class<?> resolve(String name) throws InvalidClassException, ClassNotFoundException {
+		Class<?> type = classes.get(name);
+		
+		if (type != null) {
+			return type;
+		}
+		
+		if (filter != null && !filter.isAllowed(name)) {
+			throw new InvalidClassException(name, "class not allowed");
+		}
+		
+		type = PRIMITIVES.get(name);
+		
+		if (type == null) {
+			// the class is initialized when its object is created
+			type = Class.forName(name, false, loader);
+		}
+		
+		// only existing classes get here, so the map can't grow forever
+		classes.put(name, type);
+		
+		return type;
+	}
+	
+	/**
+	 * @return Number of classes found so far.
+	 */
+	public int size() {
+		return classes.size();
+	}
+}
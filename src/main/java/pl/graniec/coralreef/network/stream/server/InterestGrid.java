@@ -0,0 +1,520 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.server;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.stream.flow.NoCreditException;
+
+/**
+ * Sends updates only to clients interested in the place where they
+ * happened (interest management).
+ * <p>
+ * Every client registers a circular area of interest. Areas and
+ * entities are indexed in a grid of square cells, so finding clients
+ * that should get an update takes only a look at one cell, no matter
+ * how many clients are there. With the framed protocol an update is
+ * serialized only once for all of its receivers. Clients are removed
+ * from the grid automatically when they disconnect.
+ * <p>
+ * Cells should be about as big as typical areas of interest. Much
+ * smaller cells make moving areas expensive, much bigger ones make
+ * the grid check too many clients. Areas that would cover more than
+ * {@link #MAX_AREA_CELLS} cells are not indexed, they're checked on
+ * every update instead.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class InterestGrid {
+
+	/** Most cells that an area is indexed in */
+	public static final int MAX_AREA_CELLS = 1024;
+	
+	/** Area of interest of a client */
+	private static class Area {
+		private final float x;
+		private final float y;
+		private final float radius;
+		
+		/** Range of cells that the area overlaps */
+		private final int minColumn;
+		private final int minRow;
+		private final int maxColumn;
+		private final int maxRow;
+		
+		/** Tells if the area covers too many cells to be indexed */
+		private final boolean large;
+		
+		public Area(float x, float y, float radius, float cellSize) {
+			this.x = x;
+			this.y = y;
+			this.radius = radius;
+			
+			minColumn = cellOf(x - radius, cellSize);
+			minRow = cellOf(y - radius, cellSize);
+			maxColumn = cellOf(x + radius, cellSize);
+			maxRow = cellOf(y + radius, cellSize);
+			
+			large = ((long) maxColumn - minColumn + 1) * ((long) maxRow - minRow + 1) > MAX_AREA_CELLS;
+		}
+		
+		public boolean contains(float px, float py) {
+			final float dx = px - x;
+			final float dy = py - y;
+			
+			return dx * dx + dy * dy <= radius * radius;
+		}
+		
+		public boolean sameCells(Area other) {
+			return other.large == large && other.minColumn == minColumn && other.minRow == minRow
+				&& other.maxColumn == maxColumn && other.maxRow == maxRow;
+		}
+	}
+	
+	/** Position of an entity */
+	private static class Position {
+		private final float x;
+		private final float y;
+		private final Long cell;
+		
+		public Position(float x, float y, float cellSize) {
+			this.x = x;
+			this.y = y;
+			this.cell = key(cellOf(x, cellSize), cellOf(y, cellSize));
+		}
+	}
+	
+	/** Clients and entities of one cell */
+	private static class Cell {
+		private final Set<StreamRemoteClient> clients = new HashSet<StreamRemoteClient>();
+		private final Set<Object> entities = new HashSet<Object>();
+		
+		public boolean isEmpty() {
+			return clients.isEmpty() && entities.isEmpty();
+		}
+	}
+	
+	/** Server that owns this grid */
+	private final StreamServer parent;
+	/** Length of cell side */
+	private final float cellSize;
+	
+	/** Cells that have anything in them, by keys of their column and row */
+	private final Map<Long, Cell> cells = new HashMap<Long, Cell>();
+	/** Areas of interest of clients */
+	private final Map<StreamRemoteClient, Area> areas = new HashMap<StreamRemoteClient, Area>();
+	/** Positions of entities */
+	private final Map<Object, Position> entities = new HashMap<Object, Position>();
+	/** Clients with areas too large to be indexed */
+	private final Set<StreamRemoteClient> large = new HashSet<StreamRemoteClient>();
+	
+	InterestGrid(StreamServer parent, float cellSize) {
+		if (!(cellSize > 0)) {
+			throw new IllegalArgumentException("cell size must be positive");
+		}
+		
+		this.parent = parent;
+		this.cellSize = cellSize;
+	}
+	
+	/**
+	 * @return Cell index, clamped to the range of <code>int</code>.
+	 */
+	private static int cellOf(float coordinate, float cellSize) {
+		return (int) Math.floor(coordinate / cellSize);
+	}
+	
+	private static Long key(long column, long row) {
+		return Long.valueOf((column << 32) | (row & 0xffffffffL));
+	}
+	
+	private static void checkFinite(float value, String name) {
+		if (Float.isNaN(value) || Float.isInfinite(value)) {
+			throw new IllegalArgumentException(name + " must be a finite number");
+		}
+	}
+	
+	private Cell cell(Long key) {
+		Cell cell = cells.get(key);
+		
+		if (cell == null) {
+			cell = new Cell();
+			cells.put(key, cell);
+		}
+		
+		return cell;
+	}
+	
+	private void release(Long key, Cell cell) {
+		if (cell.isEmpty()) {
+			cells.remove(key);
+		}
+	}
+	
+	private void index(StreamRemoteClient client, Area area) {
+		if (area.large) {
+			large.add(client);
+			return;
+		}
+		
+		// longs, so the loop ends at the last int cell too
+		for (long column = area.minColumn; column <= area.maxColumn; ++column) {
+			for (long row = area.minRow; row <= area.maxRow; ++row) {
+				cell(key(column, row)).clients.add(client);
+			}
+		}
+	}
+	
+	private void unindex(StreamRemoteClient client, Area area) {
+		if (area.large) {
+			large.remove(client);
+			return;
+		}
+		
+		for (long column = area.minColumn; column <= area.maxColumn; ++column) {
+			for (long row = area.minRow; row <= area.maxRow; ++row) {
+				final Long key = key(column, row);
+				final Cell cell = cells.get(key);
+				
+				if (cell != null) {
+					cell.clients.remove(client);
+					release(key, cell);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Sets or moves area of interest of the client.
+	 * 
+	 * @param radius Distance from (x, y) that the client is interested in.
+	 */
+	public void setInterest(RemoteClient client, float x, float y, float radius) {
+		
+		if (!(client instanceof StreamRemoteClient)) {
+			throw new IllegalArgumentException("only clients of StreamServer can be in the grid");
+		}
+		
+		checkFinite(x, "x");
+		checkFinite(y, "y");
+		checkFinite(radius, "radius");
+		
+		if (radius < 0) {
+			throw new IllegalArgumentException("radius cannot be negative");
+		}
+		
+		final StreamRemoteClient member = (StreamRemoteClient) client;
+		
+		if (!member.isConnected()) {
+			throw new IllegalStateException("client is not connected");
+		}
+		
+		final Area area = new Area(x, y, radius, cellSize);
+		final Area previous;
+		
+		synchronized (this) {
+			previous = areas.put(member, area);
+			
+			if (previous == null || !previous.sameCells(area)) {
+				if (previous != null) {
+					unindex(member, previous);
+				}
+				
+				index(member, area);
+			}
+		}
+		
+		if (previous == null) {
+			member.joined(this);
+			
+			if (!member.isConnected()) {
+				// disconnected in the meantime and might missed the cleanup
+				removeInterest(member);
+			}
+		}
+	}
+	
+	/**
+	 * Removes area of interest of the client, so it gets no more updates
+	 * from this grid.
+	 * 
+	 * @return <code>false</code> if client had no area.
+	 */
+	public boolean removeInterest(RemoteClient client) {
+		
+		if (client == null) {
+			throw new IllegalArgumentException("given object cannot be null");
+		}
+		
+		synchronized (this) {
+			final Area area = areas.remove(client);
+			
+			if (area == null) {
+				return false;
+			}
+			
+			unindex((StreamRemoteClient) client, area);
+		}
+		
+		((StreamRemoteClient) client).left(this);
+		
+		return true;
+	}
+	
+	/**
+	 * Sets or moves position of an entity.
+	 * 
+	 * @param entity Any object that identifies the entity, compared with
+	 * its <code>equals</code> method.
+	 */
+	public synchronized void setEntity(Object entity, float x, float y) {
+		
+		if (entity == null) {
+			throw new IllegalArgumentException("entity cannot be null");
+		}
+		
+		checkFinite(x, "x");
+		checkFinite(y, "y");
+		
+		final Position position = new Position(x, y, cellSize);
+		final Position previous = entities.put(entity, position);
+		
+		if (previous != null) {
+			if (previous.cell.equals(position.cell)) {
+				return;
+			}
+			
+			final Cell cell = cells.get(previous.cell);
+			cell.entities.remove(entity);
+			release(previous.cell, cell);
+		}
+		
+		cell(position.cell).entities.add(entity);
+	}
+	
+	/**
+	 * @return <code>false</code> if there was no such entity.
+	 */
+	public synchronized boolean removeEntity(Object entity) {
+		final Position position = entities.remove(entity);
+		
+		if (position == null) {
+			return false;
+		}
+		
+		final Cell cell = cells.get(position.cell);
+		cell.entities.remove(entity);
+		release(position.cell, cell);
+		
+		return true;
+	}
+	
+	/**
+	 * @return Clients interested in given point.
+	 */
+	public RemoteClient[] getInterested(float x, float y) {
+		final List<StreamRemoteClient> interested = interested(x, y);
+		return interested.toArray(new RemoteClient[interested.size()]);
+	}
+	
+	private synchronized List<StreamRemoteClient> interested(float x, float y) {
+		final List<StreamRemoteClient> interested = new ArrayList<StreamRemoteClient>();
+		final Cell cell = cells.get(key(cellOf(x, cellSize), cellOf(y, cellSize)));
+		
+		if (cell != null) {
+			for (StreamRemoteClient client : cell.clients) {
+				if (areas.get(client).contains(x, y)) {
+					interested.add(client);
+				}
+			}
+		}
+		
+		for (StreamRemoteClient client : large) {
+			if (areas.get(client).contains(x, y)) {
+				interested.add(client);
+			}
+		}
+		
+		return interested;
+	}
+	
+	/**
+	 * @return Entities in the area of interest of the client, empty if
+	 * client has no area.
+	 */
+	public synchronized Object[] getEntities(RemoteClient client) {
+		final Area area = areas.get(client);
+		
+		if (area == null) {
+			return new Object[0];
+		}
+		
+		final List<Object> visible = new ArrayList<Object>();
+		
+		if (area.large) {
+			for (Map.Entry<Object, Position> entry : entities.entrySet()) {
+				if (area.contains(entry.getValue().x, entry.getValue().y)) {
+					visible.add(entry.getKey());
+				}
+			}
+			
+			return visible.toArray();
+		}
+		
+		for (long column = area.minColumn; column <= area.maxColumn; ++column) {
+			for (long row = area.minRow; row <= area.maxRow; ++row) {
+				final Cell cell = cells.get(key(column, row));
+				
+				if (cell == null) {
+					continue;
+				}
+				
+				for (Object entity : cell.entities) {
+					final Position position = entities.get(entity);
+					
+					if (area.contains(position.x, position.y)) {
+						visible.add(entity);
+					}
+				}
+			}
+		}
+		
+		return visible.toArray();
+	}
+	
+	/**
+	 * Sends update of the entity to clients interested in its position.
+	 * 
+	 * @return Number of clients that the update was sent to.
+	 */
+	public int send(Object entity, Object data) throws NotSerializableException {
+		
+		final Position position;
+		
+		synchronized (this) {
+			position = entities.get(entity);
+		}
+		
+		if (position == null) {
+			throw new IllegalArgumentException("unknown entity " + entity);
+		}
+		
+		return send(position.x, position.y, data);
+	}
+	
+	/**
+	 * Sends update that happened at given point to clients interested in it.
+	 * Like {@link StreamGroup#send(Object)}, it never waits for credits
+	 * of a client.
+	 * 
+	 * @return Number of clients that the update was sent to.
+	 */
+	public int send(float x, float y, Object data) throws NotSerializableException {
+		
+		if (data == null) {
+			throw new IllegalArgumentException("data cannot be null");
+		}
+		
+		checkFinite(x, "x");
+		checkFinite(y, "y");
+		
+		final List<StreamRemoteClient> interested = interested(x, y);
+		
+		if (interested.isEmpty()) {
+			return 0;
+		}
+		
+		int sent = 0;
+		
+		if (!parent.isFramedProtocol()) {
+			// object streams have to serialize it on their own
+			for (StreamRemoteClient client : interested) {
+				if (client.isConnected()) {
+					try {
+						client.send(data);
+						++sent;
+					} catch (IllegalStateException e) {
+						// disconnected meanwhile, the others still get it
+					}
+				}
+			}
+			
+			return sent;
+		}
+		
+		final byte[] payload;
+		
+		try {
+			payload = parent.encode(data);
+		} catch (NotSerializableException e) {
+			throw e;
+		} catch (IOException e) {
+			// this is exception that user should know about
+			e.printStackTrace();
+			return 0;
+		}
+		
+		for (StreamRemoteClient client : interested) {
+			if (client.isConnected()) {
+				try {
+					client.offerPayload(payload);
+					++sent;
+				} catch (NoCreditException e) {
+					// the client can't take more, the others still can
+				}
+			}
+		}
+		
+		return sent;
+	}
+	
+	/**
+	 * @return Number of clients with area of interest.
+	 */
+	public synchronized int size() {
+		return areas.size();
+	}
+	
+	/*
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "InterestGrid[cell size " + cellSize + ", " + size() + " clients]";
+	}
+}
@@ -0,0 +1,298 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.server;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import pl.graniec.coralreef.network.stream.flow.SendCredits;
+import pl.graniec.coralreef.network.stream.shm.WaitStrategy;
+
+/**
+ * Event loop of {@link StreamServer} handling a part of its
+ * connections. All I/O of a connection and its listeners run
+ * on the thread of its shard.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+class Shard extends Thread {
+
+	/** How often connections get their maintenance ticks */
+	private static final int TICK_INTERVAL = 100;
+	
+	private final Selector selector;
+	/** How to wait for events, <code>null</code> to block in selector */
+	private final WaitStrategy waitStrategy;
+	/** Tasks to run on this thread */
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	/** Connections handled by this shard, used only from this thread */
+	private final Set<ShardConnection> connections = new HashSet<ShardConnection>();
+	/** Connections that don't read for a while, used only from this thread */
+	private final Set<ShardConnection> paused = new HashSet<ShardConnection>();
+	/** Number of connections */
+	private final AtomicInteger load = new AtomicInteger();
+	/** Bytes read and written by connections of this shard */
+	private final AtomicLong bytes = new AtomicLong();
+	/** Smoothed bytes per second */
+	private volatile float byteRate;
+	
+	private volatile boolean running = true;
+	
+	Shard(String name, WaitStrategy waitStrategy) throws IOException {
+		super(name);
+		setDaemon(true);
+		
+		this.waitStrategy = waitStrategy;
+		
+		selector = Selector.open();
+	}
+	
+	/**
+	 * Chooses the least loaded shard.
+	 */
+	static Shard leastLoaded(Shard[] shards, ShardBalance balance) {
+		Shard chosen = shards[0];
+		
+		for (Shard shard : shards) {
+			if (balance == ShardBalance.BYTE_RATE && shard.byteRate != chosen.byteRate) {
+				if (shard.byteRate < chosen.byteRate) {
+					chosen = shard;
+				}
+				
+			} else if (shard.load.get() < chosen.load.get()) {
+				chosen = shard;
+			}
+		}
+		
+		return chosen;
+	}
+	
+	void execute(Runnable task) {
+		tasks.add(task);
+		
+		if (waitStrategy != null) {
+			LockSupport.unpark(this);
+		} else {
+			selector.wakeup();
+		}
+	}
+	
+	void register(final ShardConnection connection) {
+		load.incrementAndGet();
+		
+		execute(new Runnable() {
+			public void run() {
+				try {
+					connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+					connections.add(connection);
+				} catch (IOException e) {
+					connection.failed(e);
+				}
+			}
+		});
+	}
+	
+	void interestWrite(final ShardConnection connection) {
+		execute(new Runnable() {
+			public void run() {
+				final SelectionKey key = connection.key;
+				
+				if (key != null && key.isValid()) {
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Called from this thread when connection stops reading.
+	 */
+	void paused(ShardConnection connection) {
+		paused.add(connection);
+	}
+	
+	/**
+	 * Called when connection is closed.
+	 */
+	void removed(ShardConnection connection) {
+		paused.remove(connection);
+		
+		if (connections.remove(connection)) {
+			load.decrementAndGet();
+		}
+	}
+	
+	void transferred(int count) {
+		bytes.addAndGet(count);
+	}
+	
+	int getConnectionCount() {
+		return load.get();
+	}
+	
+	float getByteRate() {
+		return byteRate;
+	}
+	
+	/*
+	 * @see java.lang.Thread#run()
+	 */
+	@Override
+	public void run() {
+		
+		SendCredits.markReaderThread();
+		
+		long lastTick = System.currentTimeMillis();
+		long lastBytes = 0;
+		int idle = 0;
+		
+		while (running) {
+			
+			try {
+				if (waitStrategy == null) {
+					// paused connections are checked more often
+					selector.select(paused.isEmpty() ? TICK_INTERVAL : 1);
+					
+				} else if (selector.selectNow() == 0 && tasks.isEmpty()) {
+					waitStrategy.idle(idle++);
+				} else {
+					idle = 0;
+				}
+				
+			} catch (IOException e) {
+				e.printStackTrace();
+				break;
+			}
+			
+			Runnable task;
+			
+			while ((task = tasks.poll()) != null) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					// don't let it kill the loop
+					e.printStackTrace();
+				}
+			}
+			
+			final Iterator<SelectionKey> itor = selector.selectedKeys().iterator();
+			
+			while (itor.hasNext()) {
+				final SelectionKey key = itor.next();
+				itor.remove();
+				
+				final ShardConnection connection = (ShardConnection) key.attachment();
+				
+				try {
+					
+					if (key.isValid() && key.isReadable()) {
+						connection.read();
+					}
+					
+					if (key.isValid() && key.isWritable()) {
+						connection.flush();
+					}
+					
+				} catch (CancelledKeyException e) {
+					// closed in the meantime
+				} catch (IOException e) {
+					connection.failed(e);
+				}
+			}
+			
+			if (!paused.isEmpty()) {
+				final long now = System.nanoTime();
+				
+				for (ShardConnection connection : paused.toArray(new ShardConnection[paused.size()])) {
+					try {
+						if (connection.resumeIfDue(now)) {
+							paused.remove(connection);
+						}
+					} catch (IOException e) {
+						connection.failed(e);
+					}
+				}
+			}
+			
+			final long now = System.currentTimeMillis();
+			
+			if (now - lastTick >= TICK_INTERVAL) {
+				final long total = bytes.get();
+				
+				byteRate = (byteRate + (total - lastBytes) * 1000f / (now - lastTick)) / 2;
+				
+				lastBytes = total;
+				lastTick = now;
+				
+				for (ShardConnection connection : copyConnections()) {
+					connection.tick(now);
+				}
+			}
+		}
+		
+		for (ShardConnection connection : copyConnections()) {
+			connection.failed(new IOException("server closed"));
+		}
+		
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// ignore the closing exception
+		}
+	}
+	
+	private ShardConnection[] copyConnections() {
+		return connections.toArray(new ShardConnection[connections.size()]);
+	}
+	
+	/**
+	 * Stops the loop. Its connections are reported as lost.
+	 */
+	void shutdown() {
+		running = false;
+		selector.wakeup();
+		LockSupport.unpark(this);
+		
+		try {
+			join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,446 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.server;
+
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.logging.Logger;
+
+import pl.graniec.coralreef.network.stream.blob.BlobTransfer;
+import pl.graniec.coralreef.network.stream.frame.Frame;
+import pl.graniec.coralreef.network.stream.frame.FrameDecoder;
+import pl.graniec.coralreef.network.stream.frame.FrameOutput;
+import pl.graniec.coralreef.network.stream.handshake.Capabilities;
+import pl.graniec.coralreef.network.stream.jfr.NetworkEvents;
+import pl.graniec.coralreef.network.stream.record.TrafficRecorder;
+import pl.graniec.coralreef.network.stream.spool.SpoolingFrameOutput;
+
+/**
+ * Non-blocking connection of a {@link StreamRemoteClient} handled by
+ * one of the server {@link Shard}s.
+ * <p>
+ * Frames that the socket can't take right away wait in a write queue.
+ * When the queue grows past its limit the client can't keep up, so
+ * the connection is closed. A spooling output in front of it, being
+ * the only writer, waits for room instead and keeps the frames in its
+ * spool.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+class ShardConnection implements FrameOutput, SpoolingFrameOutput.Backpressure {
+
+	private static final Logger logger = Logger.getLogger(ShardConnection.class.getName());
+	
+	/** Default size of read buffer, grows for bigger frames */
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	final SocketChannel channel;
+	final Socket socket;
+	final Shard shard;
+	
+	/** Client that frames go to, changes when the client resumes its session */
+	private volatile StreamRemoteClient client;
+	
+	/** Selection key, set by the shard */
+	SelectionKey key;
+	
+	private final FrameDecoder decoder;
+	/** Recorder of incoming frames, <code>null</code> if not recording */
+	private final TrafficRecorder recorder;
+	/** Connection id in recorded traffic */
+	private final int connectionId;
+	private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+	
+	/** Bytes of unsupported blob left to skip */
+	private long skip;
+	/** Tells if HELLO frame was already received */
+	private boolean handshaken;
+	/** HELLO frame waiting for capabilities that follow it */
+	private Frame hello;
+	/** Time when reading starts again, 0 if not paused */
+	private long resumeAt;
+	
+	/** Frames waiting for socket to be writable */
+	private final LinkedList<ByteBuffer> writeQueue = new LinkedList<ByteBuffer>();
+	/** Bytes left to write in the write queue */
+	private int queuedBytes;
+	/** Most bytes in the write queue */
+	private final int writeLimit;
+	
+	/** Set when channel is closed */
+	private boolean closed;
+	/** Set when write queue went past its limit */
+	private boolean overflowed;
+	/** Set when the only writer waits for room, so the limit isn't enforced */
+	private boolean throttled;
+	
+	/** Time when connection was accepted */
+	private final long started = System.currentTimeMillis();
+	
+	/**
+	 * @param writeLimit Most bytes waiting in write queue.
+	 * @param recorder Recorder of incoming frames or <code>null</code>.
+	 */
+	ShardConnection(StreamRemoteClient client, SocketChannel channel, Shard shard, int maxPayload, int writeLimit,
+			TrafficRecorder recorder, int connectionId) throws IOException {
+		this.decoder = new FrameDecoder(maxPayload);
+		this.recorder = recorder;
+		this.connectionId = connectionId;
+		this.writeLimit = writeLimit;
+		this.client = client;
+		this.channel = channel;
+		this.socket = channel.socket();
+		this.shard = shard;
+		
+		channel.configureBlocking(false);
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.stream.frame.FrameOutput#write(pl.graniec.coralreef.network.stream.frame.Frame)
+	 */
+	public void write(Frame frame) throws IOException {
+		final ByteBuffer buffer = frame.toByteBuffer();
+		
+		synchronized (writeQueue) {
+			if (closed || overflowed) {
+				throw new IOException("connection closed");
+			}
+			
+			shard.transferred(buffer.remaining());
+			
+			if (writeQueue.isEmpty()) {
+				// most of the time socket can take it right away
+				channel.write(buffer);
+				
+				if (!buffer.hasRemaining()) {
+					return;
+				}
+			}
+			
+			if (!throttled && queuedBytes + buffer.remaining() > writeLimit) {
+				overflowed = true;
+			} else {
+				writeQueue.add(buffer);
+				queuedBytes += buffer.remaining();
+			}
+		}
+		
+		if (overflowed) {
+			NetworkEvents.overflow("shard write queue", writeLimit);
+			
+			shard.execute(new Runnable() {
+				public void run() {
+					closeNow("write queue limit exceeded");
+				}
+			});
+			
+			throw new IOException("write queue limit exceeded");
+		}
+		
+		shard.interestWrite(this);
+	}
+	
+	/**
+	 * Waits until the write queue is at most half full. From the first
+	 * call on the limit isn't enforced, since the caller keeps to it.
+	 */
+	public void awaitWritable() throws InterruptedException {
+		synchronized (writeQueue) {
+			throttled = true;
+			
+			while (queuedBytes > writeLimit / 2 && !closed && !overflowed) {
+				writeQueue.wait();
+			}
+		}
+	}
+	
+	/**
+	 * Waits until frames written so far leave the write queue.
+	 */
+	void awaitWritten() throws InterruptedException {
+		synchronized (writeQueue) {
+			while (!writeQueue.isEmpty() && !closed) {
+				writeQueue.wait();
+			}
+		}
+	}
+	
+	/**
+	 * Called by the shard when there is data to read.
+	 */
+	void read() throws IOException {
+		
+		final int count = channel.read(readBuffer);
+		
+		if (count < 0) {
+			throw new IOException("connection closed");
+		}
+		
+		shard.transferred(count);
+		
+		process();
+	}
+	
+	/**
+	 * Passes complete frames from read buffer to the client.
+	 */
+	private void process() throws IOException {
+		
+		readBuffer.flip();
+		
+		while (resumeAt == 0) {
+			
+			if (skip > 0) {
+				final int skipped = (int) Math.min(skip, readBuffer.remaining());
+				
+				readBuffer.position(readBuffer.position() + skipped);
+				skip -= skipped;
+				
+				if (skip > 0) {
+					break;
+				}
+			}
+			
+			final Frame frame = decoder.decode(readBuffer);
+			
+			if (frame == null) {
+				break;
+			}
+			
+			if (recorder != null) {
+				recorder.record(TrafficRecorder.INBOUND, connectionId, frame);
+			}
+			
+			if (frame.getType() == Frame.BLOB) {
+				logger.warning("Blobs are not supported by sharded connections, skipping");
+				skip = BlobTransfer.length(frame);
+				continue;
+			}
+			
+			try {
+				
+				if (handshaken) {
+					client.shardFrameReceived(frame);
+					
+				} else if (hello != null) {
+					handshaken = true;
+					
+					// connection can be taken over by resumed session
+					client = client.shardHelloReceived(hello, StreamRemoteClient.capabilitiesReceived(frame));
+					hello = null;
+					
+				} else {
+					if (frame.getType() != Frame.HELLO) {
+						throw new IOException("expected HELLO frame but got " + frame);
+					}
+					
+					if (frame.hasFlag(Frame.FLAG_CAPABILITIES)) {
+						// wait for the next frame
+						hello = frame;
+						continue;
+					}
+					
+					handshaken = true;
+					client = client.shardHelloReceived(frame, null);
+				}
+				
+			} catch (ClassNotFoundException e) {
+				e.printStackTrace();
+			} catch (InvalidClassException e) {
+				logger.severe(e.getMessage());
+			}
+			
+			if (isClosed()) {
+				return;
+			}
+		}
+		
+		client.shardReadFinished();
+		
+		final int required = skip > 0 ? -1 : decoder.requiredLength(readBuffer);
+		
+		if (required > readBuffer.capacity()) {
+			// next frame won't fit
+			final ByteBuffer bigger = ByteBuffer.allocate(required);
+			bigger.put(readBuffer);
+			readBuffer = bigger;
+			
+		} else if (readBuffer.capacity() > BUFFER_SIZE && readBuffer.remaining() <= BUFFER_SIZE) {
+			// big frame is gone, so give back the memory
+			final ByteBuffer smaller = ByteBuffer.allocate(BUFFER_SIZE);
+			smaller.put(readBuffer);
+			readBuffer = smaller;
+			
+		} else {
+			readBuffer.compact();
+		}
+	}
+	
+	/**
+	 * Stops reading for given time. Must be called from the shard thread.
+	 */
+	void pause(long nanos) {
+		resumeAt = Math.max(1, System.nanoTime() + nanos);
+		
+		if (key != null && key.isValid()) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+		
+		shard.paused(this);
+	}
+	
+	/**
+	 * Starts reading again if the pause is over and the client can take
+	 * more frames.
+	 * 
+	 * @return <code>true</code> if connection is not paused anymore.
+	 */
+	boolean resumeIfDue(long now) throws IOException {
+		if (now - resumeAt < 0 || !client.shardReadable()) {
+			return false;
+		}
+		
+		resumeAt = 0;
+		
+		if (key != null && key.isValid()) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		}
+		
+		// frames that came before the pause
+		process();
+		
+		return resumeAt == 0;
+	}
+	
+	/**
+	 * Called by the shard when socket is writable.
+	 */
+	void flush() throws IOException {
+		synchronized (writeQueue) {
+			while (!writeQueue.isEmpty()) {
+				final ByteBuffer buffer = writeQueue.getFirst();
+				
+				queuedBytes -= channel.write(buffer);
+				
+				if (buffer.hasRemaining()) {
+					// writers waiting for room
+					writeQueue.notifyAll();
+					return;
+				}
+				
+				writeQueue.removeFirst();
+			}
+			
+			writeQueue.notifyAll();
+			
+			if (key != null && key.isValid()) {
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			}
+		}
+	}
+	
+	/**
+	 * Called by the shard every now and then.
+	 */
+	void tick(long now) {
+		if (!handshaken && now - started > StreamRemoteClient.HANDSHAKE_TIMEOUT) {
+			failed(new IOException("handshake timed out"));
+			return;
+		}
+		
+		client.shardTick();
+	}
+	
+	private boolean isClosed() {
+		synchronized (writeQueue) {
+			return closed;
+		}
+	}
+	
+	/**
+	 * Closes the connection after sending what's left in write queue.
+	 */
+	void close() {
+		shard.execute(new Runnable() {
+			public void run() {
+				try {
+					flush();
+				} catch (IOException e) {
+					// closing anyway
+				}
+				
+				closeNow("connection closed");
+			}
+		});
+	}
+	
+	/**
+	 * Closes the connection immediately and reports it to the client.
+	 * Must be called from the shard thread.
+	 */
+	private void closeNow(String reason) {
+		synchronized (writeQueue) {
+			if (closed) {
+				return;
+			}
+			
+			closed = true;
+			writeQueue.clear();
+			queuedBytes = 0;
+			writeQueue.notifyAll();
+		}
+		
+		if (key != null) {
+			key.cancel();
+		}
+		
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// ignore the closing exception
+		}
+		
+		shard.removed(this);
+		
+		client.shardClosed(this, reason);
+	}
+	
+	/**
+	 * Called by the shard when connection is broken.
+	 */
+	void failed(IOException e) {
+		closeNow(e.getMessage());
+	}
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.server;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.stream.flow.NoCreditException;
+import pl.graniec.coralreef.network.stream.route.RoutedPacket;
+
+/**
+ * Named group of remote clients (a room) of {@link StreamServer}.
+ * <p>
+ * Membership is kept in concurrent structures, so clients can join and
+ * leave from any thread without locking the whole server. Clients leave
+ * all of their groups automatically when they disconnect.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class StreamGroup {
+
+	/** Server that owns this group */
+	private final StreamServer parent;
+	/** Name of this group */
+	private final Object name;
+	
+	/** Members of this group */
+	private final ConcurrentHashMap<StreamRemoteClient, Boolean> members = new ConcurrentHashMap<StreamRemoteClient, Boolean>();
+	
+	StreamGroup(StreamServer parent, Object name) {
+		this.parent = parent;
+		this.name = name;
+	}
+	
+	/**
+	 * @return <code>true</code> if given client is a member of this group.
+	 */
+	public boolean contains(RemoteClient client) {
+		return members.containsKey(client);
+	}
+	
+	/**
+	 * @return Snapshot of current members.
+	 */
+	public RemoteClient[] getMembers() {
+		final Set<StreamRemoteClient> keys = members.keySet();
+		return keys.toArray(new RemoteClient[keys.size()]);
+	}
+	
+	public Object getName() {
+		return name;
+	}
+	
+	/**
+	 * Adds client to this group.
+	 * 
+	 * @return <code>false</code> if client was already a member.
+	 */
+	public boolean join(RemoteClient client) {
+		
+		if (!(client instanceof StreamRemoteClient)) {
+			throw new IllegalArgumentException("only clients of StreamServer can join the group");
+		}
+		
+		final StreamRemoteClient member = (StreamRemoteClient) client;
+		
+		if (!member.isConnected()) {
+			throw new IllegalStateException("client is not connected");
+		}
+		
+		if (members.putIfAbsent(member, Boolean.TRUE) != null) {
+			return false;
+		}
+		
+		member.joined(this);
+		
+		if (!member.isConnected()) {
+			// disconnected in the meantime and might missed the cleanup
+			leave(member);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Removes client from this group.
+	 * 
+	 * @return <code>false</code> if client was not a member.
+	 */
+	public boolean leave(RemoteClient client) {
+		
+		if (client == null) {
+			throw new IllegalArgumentException("given object cannot be null");
+		}
+		
+		if (members.remove(client) == null) {
+			return false;
+		}
+		
+		((StreamRemoteClient) client).left(this);
+		
+		return true;
+	}
+	
+	/**
+	 * Sends packet to every member of this group. With the framed protocol
+	 * the packet is serialized only once, no matter how many members
+	 * are there.
+	 * <p>
+	 * Sending never waits for credits of a member, whatever the send
+	 * policy is. The packet waits in the member's queue instead, and
+	 * members whose queue is full miss it.
+	 */
+	public void send(Object data) throws NotSerializableException {
+		
+		if (data == null) {
+			throw new IllegalArgumentException("data cannot be null");
+		}
+		
+		if (!parent.isFramedProtocol()) {
+			// object streams have to serialize it on their own
+			for (StreamRemoteClient member : members.keySet()) {
+				if (member.isConnected()) {
+					try {
+						member.send(data);
+					} catch (IllegalStateException e) {
+						// disconnected meanwhile, the others still get it
+					}
+				}
+			}
+			
+			return;
+		}
+		
+		final byte[] payload;
+		
+		try {
+			payload = parent.encode(data);
+		} catch (NotSerializableException e) {
+			throw e;
+		} catch (IOException e) {
+			// this is exception that user should know about
+			e.printStackTrace();
+			return;
+		}
+		
+		sendPayload(payload);
+	}
+	
+	/**
+	 * Sends received routed packet to every member of this group as it
+	 * is, without decoding it. Requires the framed protocol.
+	 */
+	public void forward(RoutedPacket packet) {
+		
+		if (packet == null) {
+			throw new IllegalArgumentException("packet cannot be null");
+		}
+		
+		if (!parent.isFramedProtocol()) {
+			throw new IllegalStateException("routed packets require the framed protocol");
+		}
+		
+		sendPayload(packet.getData());
+	}
+	
+	private void sendPayload(byte[] payload) {
+		for (StreamRemoteClient member : members.keySet()) {
+			if (member.isConnected()) {
+				try {
+					member.offerPayload(payload);
+				} catch (NoCreditException e) {
+					// the member can't take more, the others still can
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return Number of members.
+	 */
+	public int size() {
+		return members.size();
+	}
+	
+	/*
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "StreamGroup[" + name + ", " + members.size() + " members]";
+	}
+}
@@ -28,8 +28,12 @@
  */
 package pl.graniec.coralreef.network.stream.server;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.InvalidClassException;
 import java.io.NotSerializableException;
 import java.io.ObjectInputStream;
@@ -37,15 +41,53 @@ import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import pl.graniec.coralreef.network.DisconnectReason;
 import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.exceptions.NetworkException;
 import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.stream.BatchPacketListener;
+import pl.graniec.coralreef.network.stream.blob.BlobListener;
+import pl.graniec.coralreef.network.stream.blob.BlobTransfer;
+import pl.graniec.coralreef.network.stream.conflate.ConflatingQueue;
+import pl.graniec.coralreef.network.stream.decode.OrderedDecoder;
+import pl.graniec.coralreef.network.stream.flow.NoCreditException;
+import pl.graniec.coralreef.network.stream.flow.ReceiveCredits;
+import pl.graniec.coralreef.network.stream.flow.SendCredits;
+import pl.graniec.coralreef.network.stream.frame.Compression;
+import pl.graniec.coralreef.network.stream.frame.FragmentAssembler;
+import pl.graniec.coralreef.network.stream.frame.Frame;
+import pl.graniec.coralreef.network.stream.frame.FrameOutput;
+import pl.graniec.coralreef.network.stream.frame.FrameReader;
+import pl.graniec.coralreef.network.stream.frame.FrameWriter;
+import pl.graniec.coralreef.network.stream.handshake.Capabilities;
+import pl.graniec.coralreef.network.stream.jfr.NetworkEvents;
+import pl.graniec.coralreef.network.stream.latency.LatencyListener;
+import pl.graniec.coralreef.network.stream.latency.LatencyTracker;
+import pl.graniec.coralreef.network.stream.latency.TimestampingFrameOutput;
+import pl.graniec.coralreef.network.stream.rate.RateLimiter;
+import pl.graniec.coralreef.network.stream.record.RecordingFrameOutput;
+import pl.graniec.coralreef.network.stream.record.RecordingFrameReader;
+import pl.graniec.coralreef.network.stream.record.TrafficRecorder;
+import pl.graniec.coralreef.network.stream.route.RoutedPacket;
+import pl.graniec.coralreef.network.stream.serial.ResolvingObjectInputStream;
+import pl.graniec.coralreef.network.stream.session.Session;
+import pl.graniec.coralreef.network.stream.spool.Spool;
+import pl.graniec.coralreef.network.stream.spool.SpoolingFrameOutput;
 
 /**
  * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
@@ -57,11 +99,34 @@ public class StreamRemoteClient implements RemoteClient {
 	
 	private class Listener extends Thread {
 
+		/** Socket that this listener reads from */
+		private final Socket socket;
+		/** Frame reader, <code>null</code> if object streams are used */
+		private final FrameReader reader;
+		/** Tells if HELLO frame was already received */
+		private boolean handshaken;
+		
+		public Listener(Socket socket, FrameReader reader, boolean handshaken) {
+			this.socket = socket;
+			this.reader = reader;
+			this.handshaken = handshaken;
+		}
+		
 		/*
 		 * @see java.lang.Thread#run()
 		 */
 		@Override
 		public void run() {
+			SendCredits.markReaderThread();
+			
+			if (reader != null) {
+				readFrames();
+			} else {
+				readObjects();
+			}
+		}
+		
+		private void readObjects() {
 			
 			Object object;
 			
@@ -74,7 +139,7 @@ public class StreamRemoteClient implements RemoteClient {
 						final InputStream is = socket.getInputStream();
 						// just now because constructor of object input stream waits
 						// for header from other side
-						ois = new ObjectInputStream(is);
+						ois = new ResolvingObjectInputStream(is, parent.getClassResolver());
 					}
 					
 					object = ois.readObject();
@@ -97,31 +162,214 @@ public class StreamRemoteClient implements RemoteClient {
 				
 			}
 		}
+		
+		private void readFrames() {
+			
+			try {
+				
+				if (!handshaken) {
+					final Frame hello = reader.read(HANDSHAKE_TIMEOUT);
+					
+					if (hello.getType() != Frame.HELLO) {
+						throw new IOException("expected HELLO frame but got " + hello);
+					}
+					
+					Capabilities offered = null;
+					
+					if (hello.hasFlag(Frame.FLAG_CAPABILITIES)) {
+						offered = capabilitiesReceived(reader.read(HANDSHAKE_TIMEOUT));
+					}
+					
+					handshaken = true;
+					
+					if (parent.helloReceived(StreamRemoteClient.this, hello, offered) != StreamRemoteClient.this) {
+						// connection was taken over by resumed session
+						return;
+					}
+				}
+				
+				int lingering = 0;
+				
+				while (!isInterrupted()) {
+					
+					try {
+						frameReceived(reader.read(), reader.getInputStream());
+						
+						// deliver when everything that came at once is decoded
+						if (packetBuffer.size() >= MAX_BATCH || reader.getInputStream().available() == 0) {
+							flushBuffer();
+						}
+						
+						pingIfDue();
+					} catch (SocketTimeoutException e) {
+						if (socket.isOutputShutdown() && ++lingering * SO_TIMEOUT > DRAIN_TIMEOUT) {
+							throw new IOException("client didn't close the connection");
+						}
+						
+						// nothing came in, so good time for some maintenance
+						flushBuffer();
+						sendPendingAck();
+						pingIfDue();
+					} catch (ClassNotFoundException e) {
+						e.printStackTrace();
+					} catch (InvalidClassException e) {
+						logger.severe(e.getMessage());
+					}
+				}
+				
+			} catch (IOException e) {
+				awaitDecoded();
+				flushBuffer();
+				connectionLost(socket, e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Takes packets from the conflating queue when the connection is
+	 * ready for more.
+	 */
+	private class Sender extends Thread {
+		
+		public Sender() {
+			super("ConflationSender-" + connectionId);
+			setDaemon(true);
+		}
+		
+		/*
+		 * @see java.lang.Thread#run()
+		 */
+		@Override
+		public void run() {
+			try {
+				byte[] payload;
+				
+				while ((payload = conflating.take()) != null) {
+					
+					// packets wait here, where they still can be replaced
+					awaitWritten();
+					
+					try {
+						sendCredits.send(payload, payloadOutput);
+					} catch (NoCreditException e) {
+						logger.fine("Packet dropped: " + e.getMessage());
+					}
+				}
+			} catch (InterruptedException e) {
+				// finish
+			}
+		}
 	}
 	
 	/** Timeout for socket while waiting for incoming packet */
 	private static final int SO_TIMEOUT = 100;
 	/** Limit of incoming packets for buffer while there is no listeners */
 	private static final int BUFFER_LIMIT = 1024;
+	/** Most packets delivered to batch listeners at once */
+	private static final int MAX_BATCH = 256;
+	/** Most packets of one client on decoder threads at once */
+	private static final int DECODE_LIMIT = 256;
+	/** How often paused sharded connection checks if decoders have room */
+	private static final long DECODE_PAUSE = 1000000;
+	/** How long to wait for HELLO frame */
+	static final int HANDSHAKE_TIMEOUT = 5000;
+	/** How long disconnect waits for spooled frames to be sent */
+	private static final int DRAIN_TIMEOUT = 5000;
 	
 
 	/** Parent Server */
 	private final StreamServer parent;
-	/** Socket of this client */
-	private final Socket socket;
+	/** Id of connection that this client was created for */
+	private final int connectionId;
+	/** Socket of this client, can change when session is resumed */
+	volatile Socket socket;
 	
 	/** Output */
 	ObjectOutputStream oos;
 	/** Input */
 	ObjectInputStream ois;
 	/** The listener */
-	private final Listener listener = new Listener();
+	private Listener listener;
+	/** Connection handled by a shard, <code>null</code> if client has its own thread */
+	private volatile ShardConnection connection;
+	
+	/** Frame output, <code>null</code> if not connected or object streams are used */
+	private FrameOutput writer;
+	/** Guards writer and socket replacement */
+	private final Object writeLock = new Object();
+	/** Session of this client if resumption is enabled */
+	private Session session;
+	/** Features agreed with the client, <code>null</code> if it didn't negotiate them */
+	private volatile Capabilities capabilities;
+	/** Time when connection was lost, 0 if connection is alive */
+	private long detachedSince;
+	/** Set when this client will never be connected again */
+	private volatile boolean closed;
 	
 	/** Disconnection reason if should be notified */
 	private int reason = DisconnectReason.Reset;
 	
 	/** Packet listeners */
 	private final Set<PacketListener> packetListeners = new HashSet<PacketListener>();
+	/** Batch packet listeners */
+	private final Set<BatchPacketListener> batchPacketListeners = new HashSet<BatchPacketListener>();
+	/** Blob listeners */
+	private final Set<BlobListener> blobListeners = new HashSet<BlobListener>();
+	/** Latency listeners */
+	private final Set<LatencyListener> latencyListeners = new HashSet<LatencyListener>();
+	
+	/** Round trip time of this client */
+	private final LatencyTracker latency = new LatencyTracker();
+	
+	/** Joins fragments of incoming packets */
+	private final FragmentAssembler assembler;
+	/** Ids of outgoing fragmented packets */
+	private final AtomicInteger messageIds = new AtomicInteger();
+	
+	/** Credits for packets sent to the client */
+	private final SendCredits sendCredits;
+	/** Credits granted to the client, <code>null</code> if flow control is disabled */
+	private final ReceiveCredits receiveCredits;
+	
+	/** Limits packets coming from the client, <code>null</code> if not limited */
+	private final RateLimiter rateLimiter;
+	/** Ids of fragmented packets dropped by the rate limiter, used by reader only */
+	private final Set<Integer> droppedMessages = new HashSet<Integer>();
+	
+	/** Writes packets that got their credits */
+	private final SendCredits.Output payloadOutput = new SendCredits.Output() {
+		
+		public void sendPayload(byte[] payload) {
+			writePayload(payload);
+		}
+		
+	};
+	
+	/** Outgoing packets waiting for the sender, <code>null</code> if conflation is disabled */
+	private final ConflatingQueue conflating;
+	
+	/** Takes packets from decoder threads */
+	private final OrderedDecoder.Output decodedOutput = new OrderedDecoder.Output() {
+		
+		public void decoded(List<Object> packets) {
+			for (Object packet : packets) {
+				addToBuffer(packet);
+			}
+			
+			flushBuffer();
+		}
+		
+	};
+	
+	/** Decodes packets on decoder threads of the server, <code>null</code> if reader decodes them */
+	private final OrderedDecoder decoder;
+	/** Held while packets are passed to listeners, so they keep their order */
+	private final Object deliveryLock = new Object();
+	
+	/** Groups that this client is member of */
+	private final ConcurrentHashMap<StreamGroup, Boolean> groups = new ConcurrentHashMap<StreamGroup, Boolean>();
+	/** Interest grids where this client has its area */
+	private final ConcurrentHashMap<InterestGrid, Boolean> grids = new ConcurrentHashMap<InterestGrid, Boolean>();
 
 	/**
 	 * If packet is received and there's no packet listener at time
@@ -142,17 +390,69 @@ public class StreamRemoteClient implements RemoteClient {
 	 * @throws IOException
 	 */
 	public StreamRemoteClient(StreamServer parent, Socket socket) throws IOException {
+		this(parent, socket, null);
+	}
+	
+	/**
+	 * @param shard Shard that handles the connection or <code>null</code>
+	 * to use own thread. Socket must have a channel then.
+	 */
+	StreamRemoteClient(StreamServer parent, Socket socket, Shard shard) throws IOException {
 		this.parent = parent;
 		this.socket = socket;
+		this.connectionId = parent.nextConnectionId();
+		this.assembler = new FragmentAssembler(parent.getMaxMessageSize());
+		this.sendCredits = new SendCredits(parent.getSendPolicy(), parent.getSendQueueLimit());
+		this.receiveCredits = parent.getReceiveWindow() > 0 ? new ReceiveCredits(parent.getReceiveWindow()) : null;
+		this.rateLimiter = parent.getRateLimit() != null ? new RateLimiter(parent.getRateLimit(), System.nanoTime()) : null;
+		
+		final ExecutorService decoders = parent.getDecoders();
+		this.decoder = decoders != null ? new OrderedDecoder(decoders, decodedOutput, DECODE_LIMIT) : null;
+		
+		if (parent.isConflation()) {
+			// its sender starts when the client is welcomed, since this
+			// one may turn out to be a connection of resumed session
+			conflating = new ConflatingQueue(parent.getSendQueueLimit());
+		} else {
+			conflating = null;
+		}
+		
+		if (shard != null) {
+			connection = new ShardConnection(this, socket.getChannel(), shard, parent.getMaxFrameSize(),
+					parent.getShardWriteLimit(), parent.getTrafficRecorder(), connectionId);
+			writer = createOutput(socket, connection, connectionId);
+			
+			shard.register(connection);
+			return;
+		}
 		
 		// socket configuration
 		socket.setSoTimeout(SO_TIMEOUT);
 		
-		// output
-		final OutputStream os = socket.getOutputStream();
-		oos = new ObjectOutputStream(os);
+		FrameReader reader = null;
+		
+		if (parent.isFramedProtocol()) {
+			writer = createOutput(socket, null, connectionId);
+			
+			try {
+				final InputStream in = new BufferedInputStream(socket.getInputStream());
+				final TrafficRecorder recorder = parent.getTrafficRecorder();
+				
+				reader = recorder != null
+					? new RecordingFrameReader(in, recorder, connectionId, parent.getMaxFrameSize())
+					: new FrameReader(in, parent.getMaxFrameSize());
+			} catch (IOException e) {
+				closeOutput(writer);
+				throw e;
+			}
+		} else {
+			// output
+			final OutputStream os = socket.getOutputStream();
+			oos = new ObjectOutputStream(os);
+		}
 		
 		// run the listener thread
+		listener = new Listener(socket, reader, false);
 		listener.start();
 	}
 	
@@ -170,6 +470,55 @@ public class StreamRemoteClient implements RemoteClient {
 		}
 	}
 
+	/**
+	 * Adds listener that receives packets in batches.
+	 */
+	public boolean addBatchPacketListener(BatchPacketListener l) {
+		
+		if (l == null) {
+			throw new IllegalArgumentException("given object cannot be null");
+		}
+		
+		synchronized (batchPacketListeners) {
+			return batchPacketListeners.add(l);
+		}
+	}
+	
+	/**
+	 * Adds listener of blobs sent by the client.
+	 */
+	public boolean addBlobListener(BlobListener l) {
+		
+		if (l == null) {
+			throw new IllegalArgumentException("given object cannot be null");
+		}
+		
+		synchronized (blobListeners) {
+			return blobListeners.add(l);
+		}
+	}
+	
+	/**
+	 * Adds listener of latency of packets that the client sends
+	 * with timestamps.
+	 */
+	public boolean addLatencyListener(LatencyListener l) {
+		
+		if (l == null) {
+			throw new IllegalArgumentException("given object cannot be null");
+		}
+		
+		synchronized (latencyListeners) {
+			return latencyListeners.add(l);
+		}
+	}
+	
+	private BlobListener[] copyBlobListeners() {
+		synchronized (blobListeners) {
+			return blobListeners.toArray(new BlobListener[blobListeners.size()]);
+		}
+	}
+	
 	/*
 	 * @see pl.graniec.coralreef.network.server.RemoteClient#disconnect()
 	 */
@@ -179,23 +528,140 @@ public class StreamRemoteClient implements RemoteClient {
 			throw new IllegalStateException("client not connected");
 		}
 		
+		reason = DisconnectReason.UserAction;
+		
+		if (conflating != null) {
+			// queued packets go before the CLOSE frame
+			try {
+				conflating.awaitDrained(DRAIN_TIMEOUT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		if (parent.isFramedProtocol()) {
+			
+			final FrameOutput output;
+			final boolean detached;
+			
+			synchronized (writeLock) {
+				closed = true;
+				output = writer;
+				detached = writer == null;
+				
+				if (!detached) {
+					try {
+						writer.write(new Frame(Frame.CLOSE, 0, 0, null));
+					} catch (IOException e) {
+						// closing anyway
+					}
+				}
+			}
+			
+			if (detached) {
+				// there's no listener that could report it
+				notifyClientDisconnected(reason, "disconnected while waiting for session resume");
+				return;
+			}
+			
+			if (connection == null && output instanceof SpoolingFrameOutput && drain((SpoolingFrameOutput) output)) {
+				// client closes the connection when it reads everything
+				return;
+			}
+		}
+		
+		closeConnection(socket, connection);
+	}
+	
+	/**
+	 * Closes socket or shard connection of this client.
+	 */
+	private static void closeConnection(Socket socket, ShardConnection connection) {
+		if (connection != null) {
+			// frames queued before go first
+			connection.close();
+			return;
+		}
+		
 		try {
-			reason = DisconnectReason.UserAction;
 			socket.close();
 		} catch (IOException e) {
 			// ignore the socket closing exception
 		}
 	}
 
+	/**
+	 * Waits until spooled frames are sent and half-closes the socket,
+	 * so the client can read them before the connection is closed.
+	 * 
+	 * @return <code>false</code> if socket should be closed right away.
+	 */
+	private boolean drain(SpoolingFrameOutput output) {
+		try {
+			if (!output.awaitDrained(DRAIN_TIMEOUT)) {
+				return false;
+			}
+			
+			socket.shutdownOutput();
+			return true;
+			
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			// close it then
+		}
+		
+		return false;
+	}
+	
 	/*
 	 * @see pl.graniec.coralreef.network.server.RemoteClient#isConnected()
 	 */
 	public boolean isConnected() {
+		if (parent.isFramedProtocol()) {
+			// with resumable session this is true also
+			// while waiting for the client to come back
+			return !closed;
+		}
+		
 		return socket.isConnected();
 	}
+	
+	/**
+	 * @return Smoothed round trip time to this client in milliseconds,
+	 * or -1 if it was not measured yet.
+	 * @see StreamServer#setPingInterval(long)
+	 */
+	public float getRoundTripTime() {
+		return latency.getRoundTripTime();
+	}
+	
+	/**
+	 * @return Smoothed variation of round trip time in milliseconds.
+	 */
+	public float getRoundTripJitter() {
+		return latency.getJitter();
+	}
+	
+	/**
+	 * Tells if connection of this client has been lost and
+	 * its session waits to be resumed.
+	 */
+	public boolean isDetached() {
+		synchronized (writeLock) {
+			return detachedSince != 0;
+		}
+	}
 
 	private void notifyClientDisconnected(int reason, String reasonString) {
 		
+		// threads waiting for credits won't get them
+		sendCredits.close();
+		
+		if (conflating != null) {
+			conflating.close();
+		}
+		
 		// this synchronization is because the disconnection can be reported
 		// earlier that client connection. This prevents that situation.
 		synchronized (parent.remoteClients) {
@@ -224,6 +690,22 @@ public class StreamRemoteClient implements RemoteClient {
 //		}
 	}
 	
+	private void notifyPacketLatency(Object data, byte[] stamped, long receivedAt) {
+		
+		LatencyListener[] copy;
+		
+		synchronized (latencyListeners) {
+			copy = latencyListeners.toArray(new LatencyListener[latencyListeners.size()]);
+		}
+		
+		final long queueTime = LatencyTracker.getQueueTime(stamped);
+		final long transitTime = latency.getTransitTime(stamped, receivedAt);
+		
+		for (LatencyListener l : copy) {
+			l.packetLatency(data, queueTime, transitTime);
+		}
+	}
+	
 	/*
 	 * @see pl.graniec.coralreef.network.server.RemoteClient#removePacketListener(pl.graniec.coralreef.network.PacketListener)
 	 */
@@ -238,6 +720,39 @@ public class StreamRemoteClient implements RemoteClient {
 		}
 	}
 	
+	public boolean removeBatchPacketListener(BatchPacketListener l) {
+		
+		if (l == null) {
+			throw new IllegalArgumentException("given object cannot be null");
+		}
+		
+		synchronized (batchPacketListeners) {
+			return batchPacketListeners.remove(l);
+		}
+	}
+	
+	public boolean removeLatencyListener(LatencyListener l) {
+		
+		if (l == null) {
+			throw new IllegalArgumentException("given object cannot be null");
+		}
+		
+		synchronized (latencyListeners) {
+			return latencyListeners.remove(l);
+		}
+	}
+	
+	public boolean removeBlobListener(BlobListener l) {
+		
+		if (l == null) {
+			throw new IllegalArgumentException("given object cannot be null");
+		}
+		
+		synchronized (blobListeners) {
+			return blobListeners.remove(l);
+		}
+	}
+	
 	/*
 	 * @see pl.graniec.coralreef.network.server.RemoteClient#send(java.lang.Object)
 	 */
@@ -251,6 +766,11 @@ public class StreamRemoteClient implements RemoteClient {
 			throw new IllegalStateException("client is not connected");
 		}
 		
+		if (parent.isFramedProtocol()) {
+			sendFrame(data);
+			return;
+		}
+		
 		try {
 			oos.writeObject(data);
 			oos.flush();
@@ -271,47 +791,1140 @@ public class StreamRemoteClient implements RemoteClient {
 		}
 	}
 	
-	private void addToBuffer(Object packet) {
-		synchronized (packetBuffer) {
-			
-			if (packetBuffer.size() >= BUFFER_LIMIT) {
-				logger.warning(
-						"Packet buffer reaches its limit. This probably means " +
-						"that there is a bug in application because there's no " +
-						"packet listener to receive this data."
-				);
-				return;
-			}
-			
-			packetBuffer.add(packet);
+	/**
+	 * Sends packet with a routing header, so the receiver can see
+	 * where the packet goes without decoding it. Requires the framed
+	 * protocol.
+	 * 
+	 * @see RoutedPacket
+	 */
+	public void sendRouted(int type, int destination, Object data) throws NotSerializableException {
+		
+		if (data == null) {
+			throw new IllegalArgumentException("data cannot be null");
 		}
-	}
-	
-	private void flushBuffer() {
 		
-		if (packetBuffer.size() == 0) {
+		checkRouting();
+		
+		final byte[] encoded;
+		
+		try {
+			encoded = encode(data);
+		} catch (NotSerializableException e) {
+			throw e;
+		} catch (IOException e) {
+			// this is exception that user should know about
+			e.printStackTrace();
 			return;
 		}
 		
-		PacketListener[] copy;
+		sendPayload(RoutedPacket.encode(type, destination, encoded));
+	}
+	
+	/**
+	 * Sends received routed packet to this client as it is, without
+	 * decoding and encoding it again.
+	 */
+	public void forward(RoutedPacket packet) {
 		
-		synchronized (packetListeners) {
-			copy = packetListeners.toArray(new PacketListener[packetListeners.size()]);
+		if (packet == null) {
+			throw new IllegalArgumentException("packet cannot be null");
 		}
 		
-		if (copy.length == 0) {
-			return;
+		checkRouting();
+		sendPayload(packet.getData());
+	}
+	
+	private void checkRouting() {
+		if (!isConnected()) {
+			throw new IllegalStateException("client is not connected");
 		}
 		
-		synchronized (packetBuffer) {
-			for (PacketListener l : copy) {
-				for (Object data : packetBuffer) {
-					l.packetReceived(data);
-				}
-			}
+		if (!parent.isFramedProtocol()) {
+			throw new IllegalStateException("routed packets require the framed protocol");
+		}
+	}
+	
+	/**
+	 * Sends the whole file as a blob.
+	 * 
+	 * @see #sendFile(String, FileChannel, long, long)
+	 */
+	public void sendFile(File file) throws NetworkException {
+		
+		if (file == null) {
+			throw new IllegalArgumentException("file cannot be null");
+		}
+		
+		try {
+			final FileInputStream in = new FileInputStream(file);
+			
+			try {
+				final FileChannel channel = in.getChannel();
+				sendFile(file.getName(), channel, 0, channel.size());
+			} finally {
+				in.close();
+			}
+			
+		} catch (IOException e) {
+			throw new NetworkException(e);
+		}
+	}
+	
+	/**
+	 * Sends region of a file as a blob. The client receives it with a
+	 * {@link BlobListener}. Data goes straight from the file to the
+	 * socket if the server has zero copy blobs enabled, otherwise it's
+	 * copied through the heap.
+	 * <p>
+	 * Requires the framed protocol. Other packets wait until the blob
+	 * is sent, and blobs are not sent again when session is resumed.
+	 * Packets still in the conflating queue may be sent after the blob.
+	 */
+	public void sendFile(String name, FileChannel channel, long position, long count) throws NetworkException {
+		
+		if (name == null || channel == null) {
+			throw new IllegalArgumentException("parameters cannot be null");
+		}
+		
+		if (!parent.isFramedProtocol()) {
+			throw new IllegalStateException("blobs require the framed protocol");
+		}
+		
+		if (connection != null) {
+			throw new IllegalStateException("blobs are not supported by sharded connections");
+		}
+		
+		synchronized (writeLock) {
+			
+			if (writer == null) {
+				throw new IllegalStateException("client is not connected");
+			}
+			
+			FrameOutput output = writer;
+			
+			try {
+				if (output instanceof SpoolingFrameOutput) {
+					// blob goes straight to the socket, so spooled frames must go first
+					final SpoolingFrameOutput spooling = (SpoolingFrameOutput) output;
+					
+					if (!spooling.awaitDrained(0)) {
+						throw new NetworkException("connection lost while sending spooled frames");
+					}
+					
+					output = spooling.getOutput();
+				}
+				
+				BlobTransfer.send(output, socket.getOutputStream(), socket.getChannel(), name, channel, position, count);
+			} catch (IOException e) {
+				throw new NetworkException(e);
+			} catch (InterruptedException e) {
+				throw new NetworkException(e);
+			}
+		}
+	}
+	
+	private void sendFrame(Object data) throws NotSerializableException {
+		
+		final byte[] payload;
+		
+		try {
+			payload = encode(data);
+		} catch (NotSerializableException e) {
+			throw e;
+		} catch (IOException e) {
+			// this is exception that user should know about
+			e.printStackTrace();
+			return;
+		}
+		
+		sendPayload(payload);
+	}
+	
+	/**
+	 * Sends packet that replaces queued packet with the same key, if it
+	 * wasn't sent yet. Packets of different keys and packets sent with
+	 * {@link #send(Object)} keep their order. Without conflation enabled
+	 * on the server it's the same as {@link #send(Object)}.
+	 * 
+	 * @param key Key of the packet, like id of an entity which position
+	 * the packet updates. Compared with its <code>equals</code> method.
+	 * @see StreamServer#setConflation(boolean)
+	 */
+	public void sendConflated(Object key, Object data) throws NotSerializableException {
+		
+		if (key == null) {
+			throw new IllegalArgumentException("key cannot be null");
+		}
+		
+		if (conflating == null) {
+			send(data);
+			return;
+		}
+		
+		if (data == null) {
+			throw new IllegalArgumentException("data cannot be null");
+		}
+		
+		if (!isConnected()) {
+			throw new IllegalStateException("client is not connected");
+		}
+		
+		final byte[] payload;
+		
+		try {
+			payload = encode(data);
+		} catch (NotSerializableException e) {
+			throw e;
+		} catch (IOException e) {
+			// this is exception that user should know about
+			e.printStackTrace();
+			return;
+		}
+		
+		sendPayload(payload, key);
+	}
+	
+	/**
+	 * Sends already encoded packet using the framed protocol, as soon
+	 * as the client gives credits for it.
+	 * 
+	 * @throws NoCreditException If client has no credits and the send
+	 * policy doesn't let the packet wait.
+	 */
+	void sendPayload(byte[] payload) {
+		sendPayload(payload, null);
+	}
+	
+	/**
+	 * Sends already encoded packet like {@link #sendPayload(byte[])},
+	 * but never waits for credits or room in the conflating queue.
+	 * Used when sending to many clients, so a slow one doesn't hold up
+	 * the others.
+	 * 
+	 * @throws NoCreditException If the packet cannot be sent or queued.
+	 */
+	void offerPayload(byte[] payload) {
+		if (conflating == null) {
+			sendCredits.offer(payload, payloadOutput);
+			return;
+		}
+		
+		if (!conflating.tryOffer(null, payload)) {
+			NetworkEvents.overflow("conflating queue", parent.getSendQueueLimit());
+			throw new NoCreditException("send queue is full");
+		}
+	}
+	
+	/**
+	 * @param key Conflation key of the packet or <code>null</code> if
+	 * it should never be replaced.
+	 */
+	private void sendPayload(byte[] payload, Object key) {
+		if (conflating == null) {
+			sendCredits.send(payload, payloadOutput);
+			return;
+		}
+		
+		try {
+			conflating.offer(key, payload);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new NoCreditException("interrupted while waiting for room in the queue");
+		}
+	}
+	
+	/**
+	 * Waits until frames written so far are on their way to the client,
+	 * if the connection queues them.
+	 */
+	private void awaitWritten() throws InterruptedException {
+		final ShardConnection connection = this.connection;
+		
+		if (connection != null) {
+			connection.awaitWritten();
+			return;
+		}
+		
+		final FrameOutput output;
+		
+		synchronized (writeLock) {
+			output = writer;
+		}
+		
+		if (output instanceof SpoolingFrameOutput) {
+			((SpoolingFrameOutput) output).awaitDrained(0);
+		}
+	}
+	
+	private void writePayload(byte[] payload) {
+		
+		final int fragmentSize = getFragmentSize();
+		
+		if (payload.length <= fragmentSize) {
+			writeData(Frame.PACKET, payload);
+			return;
+		}
+		
+		// big packet goes in pieces, so other packets can be sent in between
+		final int messageId = messageIds.incrementAndGet();
+		
+		for (int offset = 0; offset < payload.length; offset += fragmentSize) {
+			final int length = Math.min(fragmentSize, payload.length - offset);
+			
+			writeData(Frame.FRAGMENT, FragmentAssembler.createFragment(messageId, payload, offset, length));
+			Thread.yield();
+		}
+	}
+	
+	/**
+	 * @return Size of packet fragments that fit in frames agreed with the client.
+	 */
+	private int getFragmentSize() {
+		final Capabilities agreed = capabilities;
+		
+		if (agreed == null) {
+			return parent.getFragmentSize();
+		}
+		
+		final int fits = agreed.getMaxFrameSize() - FragmentAssembler.HEADER_SIZE - LatencyTracker.TIMESTAMP_SIZE;
+		return Math.min(parent.getFragmentSize(), fits);
+	}
+	
+	private void writeData(byte type, byte[] payload) {
+		
+		byte flags = 0;
+		
+		final Capabilities agreed = capabilities;
+		
+		if (agreed != null && agreed.isCompressed()) {
+			final byte[] compressed = Compression.compress(payload);
+			
+			if (compressed != null) {
+				payload = compressed;
+				flags = Frame.FLAG_COMPRESSED;
+			}
+		}
+		
+		if (parent.isPacketTimestamps()) {
+			payload = LatencyTracker.stamp(payload);
+			flags |= Frame.FLAG_TIMESTAMP;
+		}
+		
+		synchronized (writeLock) {
+			
+			final Frame frame;
+			
+			if (session != null) {
+				// stored in replay buffer even if not connected right now
+				frame = session.createFrame(type, flags, payload);
+			} else {
+				frame = new Frame(type, flags, 0, 0, payload);
+			}
+			
+			if (writer == null) {
+				return;
+			}
+			
+			try {
+				writer.write(frame);
+			} catch (IOException e) {
+				// listener will notice broken connection
+			}
+		}
+	}
+	
+	private void sendPendingAck() {
+		synchronized (writeLock) {
+			if (session == null || writer == null || !session.isAckPending()) {
+				return;
+			}
+			
+			try {
+				writer.write(session.createAck());
+			} catch (IOException e) {
+				// listener will notice broken connection
+			}
+		}
+	}
+	
+	private void pingIfDue() {
+		final Capabilities agreed = capabilities;
+		
+		if (latency.isPingDue(agreed != null ? agreed.getHeartbeat() : parent.getPingInterval())) {
+			writeControl(latency.createPing());
+		}
+	}
+	
+	/**
+	 * Writes frame that is not a part of the session.
+	 */
+	private void writeControl(Frame frame) {
+		synchronized (writeLock) {
+			if (writer == null) {
+				return;
+			}
+			
+			try {
+				writer.write(frame);
+			} catch (IOException e) {
+				// listener will notice broken connection
+			}
+		}
+	}
+	
+	private void frameReceived(Frame frame, InputStream in) throws IOException, ClassNotFoundException {
+		switch (frame.getType()) {
+			case Frame.PACKET:
+			case Frame.FRAGMENT:
+				final long receivedAt = LatencyTracker.now();
+				
+				if (session != null) {
+					session.acknowledged(frame.getAcknowledgment());
+					
+					if (!session.received(frame.getSequence())) {
+						// duplicate from replay
+						return;
+					}
+				}
+				
+				final boolean stamped = frame.hasFlag(Frame.FLAG_TIMESTAMP);
+				byte[] payload = stamped ? LatencyTracker.strip(frame.getPayload()) : frame.getPayload();
+				
+				if (frame.hasFlag(Frame.FLAG_COMPRESSED)) {
+					payload = Compression.decompress(payload, parent.getMaxFrameSize());
+				}
+				
+				// packets dropped by the rate limit still count in the session
+				if (rateLimiter == null || admit(frame, payload)) {
+					final byte[] data = frame.getType() == Frame.PACKET
+						? payload : assembler.add(payload);
+					
+					if (data != null && decoder != null) {
+						// delivered by decoder threads in order of arrival
+						decodeLater(data, stamped ? frame.getPayload() : null, receivedAt);
+					} else if (data != null) {
+						final Object packet = decodeOrRelease(data);
+						
+						if (stamped) {
+							notifyPacketLatency(packet, frame.getPayload(), receivedAt);
+						}
+						
+						// delivered by the listener with the rest of the batch
+						addToBuffer(packet);
+					}
+				}
+				
+				if (session != null && session.isAckRequired()) {
+					sendPendingAck();
+				}
+				break;
+				
+			case Frame.ACK:
+				if (session != null) {
+					session.acknowledged(frame.getAcknowledgment());
+				}
+				break;
+				
+			case Frame.BLOB:
+				// packets sent before the blob go first
+				awaitDecoded();
+				flushBuffer();
+				BlobTransfer.receive(frame, in, copyBlobListeners());
+				break;
+				
+			case Frame.PING:
+				writeControl(LatencyTracker.createPong(frame));
+				break;
+				
+			case Frame.PONG:
+				latency.pongReceived(frame);
+				break;
+				
+			case Frame.CREDIT:
+				sendCredits.grant(frame.getAcknowledgment(), payloadOutput);
+				break;
+				
+			case Frame.CLOSE:
+				reason = DisconnectReason.UserAction;
+				closed = true;
+				throw new IOException("connection closed by client");
+				
+			default:
+				logger.warning("Unexpected frame " + frame + " ignored");
+		}
+	}
+	
+	/**
+	 * Passes packet to decoder threads, waiting if too many packets of
+	 * this client are already there. Sharded connection stops reading
+	 * instead.
+	 * 
+	 * @param stamped Payload with send timestamps or <code>null</code>
+	 * if the packet wasn't stamped.
+	 */
+	private void decodeLater(final byte[] data, final byte[] stamped, final long receivedAt) throws InterruptedIOException {
+		final Callable<Object> task = new Callable<Object>() {
+			
+			public Object call() {
+				return decode(data, stamped, receivedAt);
+			}
+			
+		};
+		
+		final ShardConnection connection = this.connection;
+		
+		try {
+			if (connection == null) {
+				decoder.add(task);
+				return;
+			}
+			
+			// shard cannot wait, it serves other connections too
+			decoder.add(task, false);
+			
+			if (decoder.isFull()) {
+				connection.pause(DECODE_PAUSE);
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("interrupted while waiting for decoder threads");
+		}
+	}
+	
+	/**
+	 * Encodes packet sent to this client.
+	 */
+	private byte[] encode(Object data) throws NotSerializableException, IOException {
+		final NetworkEvents.Span span = NetworkEvents.beginPacketSent();
+		final byte[] payload = parent.encode(data);
+		
+		if (span != null) {
+			span.packet(NetworkEvents.SERVER, connectionId, data, payload.length);
+		}
+		
+		return payload;
+	}
+	
+	/**
+	 * Decodes packet received from this client.
+	 */
+	private Object decode(byte[] data) throws IOException, ClassNotFoundException {
+		final NetworkEvents.Span span = NetworkEvents.beginPacketReceived();
+		final Object packet = parent.decode(data);
+		
+		if (span != null) {
+			span.packet(NetworkEvents.SERVER, connectionId, packet, data.length);
+		}
+		
+		return packet;
+	}
+	
+	/**
+	 * Decodes packet on the reading thread. A packet that cannot be
+	 * decoded never reaches listeners, so its credit is freed here.
+	 */
+	private Object decodeOrRelease(byte[] data) throws IOException, ClassNotFoundException {
+		try {
+			return decode(data);
+		} catch (ClassNotFoundException e) {
+			grantCredits(1);
+			throw e;
+		} catch (InvalidClassException e) {
+			grantCredits(1);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Decodes packet on a decoder thread.
+	 * 
+	 * @return Decoded packet or <code>null</code> if it cannot be decoded.
+	 */
+	private Object decode(byte[] data, byte[] stamped, long receivedAt) {
+		try {
+			final Object packet = decode(data);
+			
+			if (stamped != null) {
+				notifyPacketLatency(packet, stamped, receivedAt);
+			}
+			
+			return packet;
+			
+		} catch (ClassNotFoundException e) {
+			e.printStackTrace();
+			grantCredits(1);
+		} catch (InvalidClassException e) {
+			logger.severe(e.getMessage());
+			grantCredits(1);
+		} catch (IOException e) {
+			// reader would drop the connection for that
+			logger.warning("Packet decoding failed: " + e.getMessage());
+			closeConnection(socket, connection);
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Waits until packets on decoder threads reach listeners.
+	 */
+	private void awaitDecoded() {
+		if (decoder == null) {
+			return;
+		}
+		
+		try {
+			decoder.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Checks the packet against the rate limit. Fragmented packets are
+	 * checked whole at their first fragment, and the rest of their
+	 * fragments share the decision.
+	 * 
+	 * @return <code>true</code> if the packet should be decoded.
+	 * @throws IOException If the client should be disconnected.
+	 */
+	private boolean admit(Frame frame, byte[] payload) throws IOException {
+		int size = frame.size();
+		
+		if (frame.getType() == Frame.FRAGMENT) {
+			final ByteBuffer header = ByteBuffer.wrap(payload);
+			final Integer messageId = Integer.valueOf(header.getInt());
+			final int total = header.getInt();
+			final int offset = header.getInt();
+			
+			if (offset != 0) {
+				if (offset + payload.length - FragmentAssembler.HEADER_SIZE >= total) {
+					return !droppedMessages.remove(messageId);
+				}
+				
+				return !droppedMessages.contains(messageId);
+			}
+			
+			size = total;
+			
+			final long wait = rateLimiter.acquire(1, size, System.nanoTime());
+			
+			if (wait > 0 && !rateLimitExceeded(wait)) {
+				if (payload.length - FragmentAssembler.HEADER_SIZE < total) {
+					droppedMessages.add(messageId);
+				}
+				
+				return false;
+			}
+			
+			return true;
+		}
+		
+		final long wait = rateLimiter.acquire(1, size, System.nanoTime());
+		return wait == 0 || rateLimitExceeded(wait);
+	}
+	
+	/**
+	 * Handles a packet that exceeded the rate limit.
+	 * 
+	 * @return <code>true</code> if the packet should be decoded anyway.
+	 * @throws IOException If the client should be disconnected.
+	 */
+	private boolean rateLimitExceeded(long wait) throws IOException {
+		parent.rateLimitExceeded();
+		
+		switch (rateLimiter.getAction()) {
+			case DELAY:
+				final ShardConnection connection = this.connection;
+				
+				if (connection != null) {
+					// shard cannot sleep, so the connection stops reading
+					connection.pause(wait);
+					return true;
+				}
+				
+				try {
+					Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return true;
+				
+			case DISCONNECT:
+				synchronized (writeLock) {
+					// don't keep the session for a flooding client
+					closed = true;
+				}
+				throw new IOException("rate limit exceeded");
+				
+			default:
+				// the client's credit is freed as if listeners consumed it
+				grantCredits(1);
+				return false;
+		}
+	}
+	
+	/**
+	 * Called when reading from <code>socket</code> failed.
+	 */
+	private void connectionLost(Socket socket, String reasonString) {
+		
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// ignore the socket closing exception
+		}
+		
+		synchronized (writeLock) {
+			if (socket != this.socket) {
+				// this socket was already replaced by resumed connection
+				return;
+			}
+			
+			closeOutput(writer);
+			writer = null;
+			
+			if (session != null && !closed) {
+				// wait for the client to come back
+				detachedSince = System.currentTimeMillis();
+				logger.fine("Connection of session " + session.getToken() + " lost: " + reasonString);
+				return;
+			}
+			
+			closed = true;
+		}
+		
+		notifyClientDisconnected(reason, reasonString);
+	}
+	
+	/**
+	 * Creates frame output for given socket or shard connection,
+	 * spooling one if the server have overflow spool enabled.
+	 */
+	private FrameOutput createOutput(Socket socket, ShardConnection connection, int connectionId) throws IOException {
+		
+		FrameOutput frameWriter = connection != null ? connection : new FrameWriter(socket.getOutputStream());
+		
+		final TrafficRecorder recorder = parent.getTrafficRecorder();
+		
+		if (recorder != null) {
+			frameWriter = new RecordingFrameOutput(frameWriter, recorder, connectionId);
+		}
+		
+		if (parent.isPacketTimestamps()) {
+			frameWriter = new TimestampingFrameOutput(frameWriter);
+		}
+		
+		if (!parent.isOverflowSpool() || parent.getBusyPoll() != null) {
+			// busy polling writes right away
+			return frameWriter;
+		}
+		
+		final Spool spool = new Spool(parent.getSpoolDirectory(), "client", parent.getSpoolDiskLimit());
+		return new SpoolingFrameOutput(frameWriter, socket, spool, parent.getSpoolMemoryLimit(), connection);
+	}
+	
+	/**
+	 * Releases spool of given output, if any.
+	 */
+	private static void closeOutput(FrameOutput output) {
+		if (output instanceof SpoolingFrameOutput) {
+			((SpoolingFrameOutput) output).close();
+		}
+	}
+	
+	/**
+	 * Parses capabilities frame that follows HELLO.
+	 */
+	static Capabilities capabilitiesReceived(Frame frame) throws IOException {
+		if (frame.getType() != Frame.CAPABILITIES) {
+			throw new IOException("expected CAPABILITIES frame but got " + frame);
+		}
+		
+		return Capabilities.fromBytes(frame.getPayload());
+	}
+	
+	/**
+	 * Writes WELCOME frame, followed by agreed capabilities if any.
+	 */
+	private void writeWelcome(FrameOutput writer, byte flags, long acknowledgment, byte[] token, Capabilities agreed) throws IOException {
+		capabilities = agreed;
+		
+		if (agreed == null) {
+			writer.write(new Frame(Frame.WELCOME, flags, 0, acknowledgment, token));
+			return;
+		}
+		
+		writer.write(new Frame(Frame.WELCOME, (byte) (flags | Frame.FLAG_CAPABILITIES), 0, acknowledgment, token));
+		writer.write(new Frame(Frame.CAPABILITIES, 0, 0, agreed.toBytes()));
+	}
+	
+	/**
+	 * Sends WELCOME frame to a newly connected client.
+	 * 
+	 * @param agreed Capabilities agreed with the client or <code>null</code>.
+	 */
+	void welcome(Session session, Capabilities agreed) throws IOException {
+		synchronized (writeLock) {
+			this.session = session;
+			
+			final byte[] token = session != null ? Session.tokenToBytes(session.getToken()) : null;
+			writeWelcome(writer, (byte) 0, 0, token, agreed);
+			
+			if (receiveCredits != null) {
+				writer.write(new Frame(Frame.CREDIT, 0, receiveCredits.getLimit(), null));
+			}
+		}
+		
+		if (conflating != null) {
+			new Sender().start();
+		}
+	}
+	
+	/**
+	 * Tells if session can be resumed by client that sent given HELLO frame.
+	 */
+	boolean canResume(Frame hello) {
+		synchronized (writeLock) {
+			return session != null && !closed
+				&& session.canResume(hello.getAcknowledgment(), hello.getSequence());
+		}
+	}
+	
+	/**
+	 * Takes over a new connection of the client and sends all
+	 * packets that the client have missed.
+	 * 
+	 * @param candidate Client created for the new connection.
+	 * @param agreed Capabilities agreed with the client or <code>null</code>.
+	 */
+	void resume(StreamRemoteClient candidate, Frame hello, Capabilities agreed) throws IOException {
+		
+		final Socket socket = candidate.socket;
+		final ShardConnection connection = candidate.connection;
+		
+		// the candidate's output, and its spool, goes on with the session
+		final FrameOutput writer;
+		
+		synchronized (candidate.writeLock) {
+			writer = candidate.writer;
+			candidate.writer = null;
+		}
+		
+		final Socket previous;
+		final ShardConnection previousConnection;
+		
+		synchronized (writeLock) {
+			previous = this.socket;
+			previousConnection = this.connection;
+			
+			closeOutput(this.writer);
+			
+			this.socket = socket;
+			this.connection = connection;
+			this.writer = writer;
+			detachedSince = 0;
+			
+			try {
+				final byte[] token = Session.tokenToBytes(session.getToken());
+				writeWelcome(writer, Frame.FLAG_RESUMED, session.getLastReceived(), token, agreed);
+				
+				if (receiveCredits != null) {
+					writer.write(new Frame(Frame.CREDIT, 0, receiveCredits.getLimit(), null));
+				}
+				
+				for (Frame frame : session.framesToReplay(hello.getAcknowledgment())) {
+					writer.write(frame);
+				}
+				
+			} catch (IOException e) {
+				closeOutput(writer);
+				this.writer = null;
+				detachedSince = System.currentTimeMillis();
+				throw e;
+			}
+		}
+		
+		if (previous != socket) {
+			// old connection might be still alive on our side
+			closeConnection(previous, previousConnection);
+		}
+		
+		if (connection == null) {
+			listener = new Listener(socket, candidate.listener.reader, true);
+			listener.start();
+		}
+		
+		logger.fine("Session " + session.getToken() + " resumed");
+	}
+	
+	/**
+	 * Closes the session if client didn't come back in time.
+	 */
+	void expireSession(long now, long timeout) {
+		synchronized (writeLock) {
+			if (detachedSince == 0 || closed || now - detachedSince < timeout) {
+				return;
+			}
+			
+			closed = true;
+		}
+		
+		notifyClientDisconnected(reason, "session expired");
+	}
+	
+	/**
+	 * Closes the client without any notification.
+	 */
+	void terminate() {
+		sendCredits.close();
+		
+		if (conflating != null) {
+			conflating.close();
+		}
+		
+		synchronized (writeLock) {
+			closed = true;
+			closeOutput(writer);
+			writer = null;
+		}
+		
+		closeConnection(socket, connection);
+	}
+	
+	/**
+	 * Called by shard for HELLO frame of new connection, and its
+	 * capabilities if the client sent them.
+	 * 
+	 * @return Client that takes the connection.
+	 */
+	StreamRemoteClient shardHelloReceived(Frame hello, Capabilities offered) throws IOException {
+		return parent.helloReceived(this, hello, offered);
+	}
+	
+	/**
+	 * Called by shard for every other incoming frame.
+	 */
+	void shardFrameReceived(Frame frame) throws IOException, ClassNotFoundException {
+		frameReceived(frame, null);
+	}
+	
+	/**
+	 * Called by the shard before paused connection starts reading again.
+	 * 
+	 * @return <code>false</code> if decoder threads have no room for
+	 * more packets of this client.
+	 */
+	boolean shardReadable() {
+		return decoder == null || !decoder.isFull();
+	}
+	
+	/**
+	 * Called by shard after all frames from one read were passed
+	 * to {@link #shardFrameReceived(Frame)}.
+	 */
+	void shardReadFinished() {
+		flushBuffer();
+		pingIfDue();
+	}
+	
+	/**
+	 * Called by shard every now and then.
+	 */
+	void shardTick() {
+		flushBuffer();
+		sendPendingAck();
+		pingIfDue();
+	}
+	
+	/**
+	 * Called by shard when connection is closed.
+	 */
+	void shardClosed(final ShardConnection connection, final String reasonString) {
+		if (decoder == null) {
+			flushBuffer();
+			connectionLost(connection.socket, reasonString);
+			return;
+		}
+		
+		// the shard can't wait for listeners, so the client is let go
+		// by a decoder thread after packets that came before
+		decoder.addCompletion(new Runnable() {
+			
+			public void run() {
+				flushBuffer();
+				connectionLost(connection.socket, reasonString);
+			}
+			
+		});
+	}
+	
+	/**
+	 * @return Packets that can be sent before the client grants more
+	 * credits or -1 if the client doesn't limit them.
+	 */
+	public long getSendCredits() {
+		return sendCredits.getCredits();
+	}
+	
+	/**
+	 * @return Features agreed with the client in the handshake or
+	 * <code>null</code> if the client didn't negotiate them.
+	 */
+	public Capabilities getCapabilities() {
+		return capabilities;
+	}
+	
+	/**
+	 * @return Number of packets of this client that exceeded the rate
+	 * limit.
+	 */
+	public long getRateViolations() {
+		return rateLimiter != null ? rateLimiter.getViolations() : 0;
+	}
+	
+	/**
+	 * @return Number of packets waiting for credits.
+	 */
+	public int getSendQueueSize() {
+		return sendCredits.getQueued();
+	}
+	
+	/**
+	 * @return Number of packets replaced by newer ones before they were
+	 * sent, 0 if conflation is disabled.
+	 */
+	public long getConflatedPackets() {
+		return conflating != null ? conflating.getConflated() : 0;
+	}
+	
+	/**
+	 * @return Snapshot of groups that this client is member of.
+	 */
+	public StreamGroup[] getGroups() {
+		final Set<StreamGroup> keys = groups.keySet();
+		return keys.toArray(new StreamGroup[keys.size()]);
+	}
+	
+	void joined(StreamGroup group) {
+		groups.put(group, Boolean.TRUE);
+	}
+	
+	void left(StreamGroup group) {
+		groups.remove(group);
+	}
+	
+	void joined(InterestGrid grid) {
+		grids.put(grid, Boolean.TRUE);
+	}
+	
+	void left(InterestGrid grid) {
+		grids.remove(grid);
+	}
+	
+	/**
+	 * Removes this client from all of its groups and interest grids.
+	 */
+	void leaveGroups() {
+		for (StreamGroup group : groups.keySet()) {
+			group.leave(this);
+		}
+		
+		for (InterestGrid grid : grids.keySet()) {
+			grid.removeInterest(this);
+		}
+	}
+	
+	/**
+	 * @return Id of connection that this client was created for,
+	 * as used by traffic recorder.
+	 */
+	int getConnectionId() {
+		return connectionId;
+	}
+	
+	UUID getSessionToken() {
+		synchronized (writeLock) {
+			return session != null ? session.getToken() : null;
+		}
+	}
+	
+	private void addToBuffer(Object packet) {
+		synchronized (packetBuffer) {
+			
+			if (packetBuffer.size() >= BUFFER_LIMIT) {
+				NetworkEvents.overflow("packet buffer", BUFFER_LIMIT);
+				logger.warning(
+						"Packet buffer reaches its limit. This probably means " +
+						"that there is a bug in application because there's no " +
+						"packet listener to receive this data."
+				);
+				
+				// dropped, so the client's credit is freed right away
+				grantCredits(1);
+				return;
+			}
+			
+			packetBuffer.add(packet);
+		}
+	}
+	
+	private void flushBuffer() {
+		
+		if (packetBuffer.size() == 0) {
+			return;
+		}
+		
+		PacketListener[] copy;
+		BatchPacketListener[] batchCopy;
+		
+		synchronized (packetListeners) {
+			copy = packetListeners.toArray(new PacketListener[packetListeners.size()]);
+		}
+		
+		synchronized (batchPacketListeners) {
+			batchCopy = batchPacketListeners.toArray(new BatchPacketListener[batchPacketListeners.size()]);
+		}
+		
+		if (copy.length == 0 && batchCopy.length == 0) {
+			return;
+		}
+		
+		synchronized (deliveryLock) {
+			final List<Object> batch;
+			
+			synchronized (packetBuffer) {
+				batch = Collections.unmodifiableList(new ArrayList<Object>(packetBuffer));
+				packetBuffer.clear();
+			}
+			
+			for (PacketListener l : copy) {
+				for (Object data : batch) {
+					l.packetReceived(data);
+				}
+			}
+			
+			for (BatchPacketListener l : batchCopy) {
+				l.packetsReceived(batch);
+			}
+			
+			grantCredits(batch.size());
+		}
+	}
+	
+	/**
+	 * Gives the client new credits if listeners have consumed enough.
+	 */
+	private void grantCredits(int consumed) {
+		if (receiveCredits == null) {
+			return;
+		}
+		
+		final long limit = receiveCredits.consumed(consumed);
+		
+		if (limit >= 0) {
+			writeControl(new Frame(Frame.CREDIT, 0, limit, null));
 		}
-		
-		packetBuffer.clear();
 	}
 
 }
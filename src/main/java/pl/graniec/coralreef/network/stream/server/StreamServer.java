@@ -28,18 +28,55 @@
  */
 package pl.graniec.coralreef.network.stream.server;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.NotSerializableException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
 
+import pl.graniec.coralreef.network.DisconnectReason;
 import pl.graniec.coralreef.network.exceptions.NetworkException;
 import pl.graniec.coralreef.network.server.ConnectionListener;
 import pl.graniec.coralreef.network.server.RemoteClient;
 import pl.graniec.coralreef.network.server.Server;
+import pl.graniec.coralreef.network.stream.cache.EncodedCache;
+import pl.graniec.coralreef.network.stream.flow.CreditPolicy;
+import pl.graniec.coralreef.network.stream.flow.SendCredits;
+import pl.graniec.coralreef.network.stream.frame.FragmentAssembler;
+import pl.graniec.coralreef.network.stream.frame.Frame;
+import pl.graniec.coralreef.network.stream.frame.FrameReader;
+import pl.graniec.coralreef.network.stream.frame.PacketCodec;
+import pl.graniec.coralreef.network.stream.handshake.Capabilities;
+import pl.graniec.coralreef.network.stream.jfr.NetworkEvents;
+import pl.graniec.coralreef.network.stream.latency.LatencyTracker;
+import pl.graniec.coralreef.network.stream.poll.BusyPollSocket;
+import pl.graniec.coralreef.network.stream.rate.RateLimit;
+import pl.graniec.coralreef.network.stream.record.TrafficRecorder;
+import pl.graniec.coralreef.network.stream.route.RoutedPacket;
+import pl.graniec.coralreef.network.stream.session.ReplayBuffer;
+import pl.graniec.coralreef.network.stream.serial.ClassFilter;
+import pl.graniec.coralreef.network.stream.serial.ClassResolver;
+import pl.graniec.coralreef.network.stream.session.Session;
+import pl.graniec.coralreef.network.stream.shm.SharedMemory;
+import pl.graniec.coralreef.network.stream.shm.WaitStrategy;
+import pl.graniec.coralreef.network.stream.unix.UnixSockets;
 
 /**
  * Server that uses TCP stream sockets to transfer packets between client
@@ -50,6 +87,8 @@ import pl.graniec.coralreef.network.server.Server;
  */
 public class StreamServer implements Server {
 
+	private static final Logger logger = Logger.getLogger(StreamServer.class.getName());
+	
 	private class Listener extends Thread {
 		/*
 		 * @see java.lang.Thread#run()
@@ -68,8 +107,28 @@ public class StreamServer implements Server {
 				
 				try {
 					
-					final Socket remoteSocket = socket.accept();
+					Socket remoteSocket = socket.accept();
+					
+					try {
+						// small packets shouldn't wait for each other
+						remoteSocket.setTcpNoDelay(true);
+					} catch (SocketException e) {
+						// connection is already broken, client will notice
+					}
 					
+					if (framedProtocol) {
+						// only sockets with channels can be handled by shards
+						final Shard shard = shards != null && remoteSocket.getChannel() != null
+							? Shard.leastLoaded(shards, shardBalance) : null;
+						
+						if (shard == null && busyPoll != null && remoteSocket.getChannel() != null) {
+							remoteSocket = new BusyPollSocket(remoteSocket.getChannel(), busyPoll);
+						}
+						
+						// client will be reported after it says HELLO
+						new StreamRemoteClient(StreamServer.this, remoteSocket, shard);
+						continue;
+					}
 					
 					// this below is all synchronized because remote client can report disconnection
 					// before library user can be notified about client connection. Synchronization will
@@ -89,6 +148,7 @@ public class StreamServer implements Server {
 					
 				} catch (SocketTimeoutException e) {
 					// timeout is expected one
+					expireSessions();
 					
 				} catch (IOException e) {
 					// disconnection occurs
@@ -105,6 +165,16 @@ public class StreamServer implements Server {
 	}
 
 	private static final int SO_TIMEOUT = 100;
+	/** Default time to wait for a client to resume its session */
+	private static final long DEFAULT_SESSION_TIMEOUT = 30000;
+	/** Default limit of outgoing bytes queued in memory when spooling */
+	private static final int DEFAULT_SPOOL_MEMORY_LIMIT = 256 * 1024;
+	/** Default limit of spool files size for each client */
+	private static final long DEFAULT_SPOOL_DISK_LIMIT = 64L * 1024 * 1024;
+	/** Default limit of bytes waiting for credits of each client */
+	private static final int DEFAULT_SEND_QUEUE_LIMIT = 1024 * 1024;
+	/** Default limit of bytes waiting to be written to a sharded connection */
+	private static final int DEFAULT_SHARD_WRITE_LIMIT = 4 * 1024 * 1024;
 	
 	/** Stream socket */
 	private ServerSocket socket;
@@ -116,6 +186,77 @@ public class StreamServer implements Server {
 	/** Connection listeners */
 	private final Set<ConnectionListener> connectionListeners = new HashSet<ConnectionListener>();
 	
+	/** Use frames instead of plain object streams */
+	private boolean framedProtocol;
+	/** Allow clients to resume their sessions after connection loss */
+	private boolean sessionResumption;
+	/** How long to wait for a client to resume its session */
+	private long sessionTimeout = DEFAULT_SESSION_TIMEOUT;
+	/** Replay buffer limit of frames for each session */
+	private int replayBufferFrames = ReplayBuffer.DEFAULT_MAX_FRAMES;
+	/** Replay buffer limit of bytes for each session */
+	private int replayBufferBytes = ReplayBuffer.DEFAULT_MAX_BYTES;
+	/** Resumable sessions by their tokens */
+	private final Map<UUID, StreamRemoteClient> sessions = new HashMap<UUID, StreamRemoteClient>();
+	/** Packets bigger than that are sent in fragments */
+	private int fragmentSize = FragmentAssembler.DEFAULT_FRAGMENT_SIZE;
+	/** Limit of incoming packet size */
+	private int maxMessageSize = FragmentAssembler.DEFAULT_MAX_MESSAGE_SIZE;
+	/** Limit of incoming frame payload size */
+	private int maxFrameSize = FrameReader.DEFAULT_MAX_PAYLOAD;
+	/** Offer clients compression of payloads */
+	private boolean compression;
+	/** Spill outgoing frames of slow clients to disk */
+	private boolean overflowSpool;
+	/** Replace queued packets of clients with newer ones of the same key */
+	private boolean conflation;
+	/** Directory of spool files, <code>null</code> for the default temporary directory */
+	private File spoolDirectory;
+	/** Limit of outgoing bytes queued in memory for each client */
+	private int spoolMemoryLimit = DEFAULT_SPOOL_MEMORY_LIMIT;
+	/** Limit of spool files size for each client */
+	private long spoolDiskLimit = DEFAULT_SPOOL_DISK_LIMIT;
+	/** Time between pings of each client, 0 if disabled */
+	private volatile long pingInterval;
+	/** Send packets with timestamps */
+	private boolean packetTimestamps;
+	/** Encoded forms of packets sent many times, <code>null</code> if disabled */
+	private volatile EncodedCache encodedCache;
+	/** Packets each client may send ahead of listeners, 0 if flow control is disabled */
+	private int receiveWindow;
+	/** What sending does when a client has no credits */
+	private CreditPolicy sendPolicy = CreditPolicy.BLOCK;
+	/** Most bytes waiting for credits of each client */
+	private int sendQueueLimit = DEFAULT_SEND_QUEUE_LIMIT;
+	/** Number of shards handling connections, 0 if each client has its own thread */
+	private int shardCount;
+	/** Most bytes waiting to be written to each sharded connection */
+	private int shardWriteLimit = DEFAULT_SHARD_WRITE_LIMIT;
+	/** How new connections are assigned to shards */
+	private ShardBalance shardBalance = ShardBalance.CONNECTIONS;
+	/** Shards of open server, <code>null</code> if not sharded */
+	private Shard[] shards;
+	/** Number of threads decoding packets of all clients, 0 if each client decodes its own */
+	private int decoderThreads;
+	/** Decoder threads of open server, <code>null</code> if clients decode their own packets */
+	private volatile ExecutorService decoders;
+	/** How connection threads and shards wait for data, <code>null</code> if they block */
+	private WaitStrategy busyPoll;
+	/** Accept sockets with channels, so blobs are sent without copying */
+	private boolean zeroCopyBlobs;
+	/** Limits of packets coming from each client, <code>null</code> if not limited */
+	private RateLimit rateLimit;
+	/** Packets of all clients that exceeded the rate limit */
+	private final AtomicLong rateViolations = new AtomicLong();
+	/** Finds classes of packets received from all clients */
+	private ClassResolver classResolver = new ClassResolver(null, StreamServer.class.getClassLoader());
+	/** Records frames of all clients if set */
+	private TrafficRecorder trafficRecorder;
+	/** Source of connection ids */
+	private final AtomicInteger connectionIds = new AtomicInteger();
+	/** Groups by their names */
+	private final ConcurrentHashMap<Object, StreamGroup> groups = new ConcurrentHashMap<Object, StreamGroup>();
+	
 	/*
 	 * @see pl.graniec.coralreef.network.server.Server#addConnectionListener(pl.graniec.coralreef.network.server.ConnectionListener)
 	 */
@@ -146,6 +287,9 @@ public class StreamServer implements Server {
 			e.printStackTrace();
 		}
 		
+		stopShards();
+		stopDecoders();
+		
 		// then close the socket
 		try {
 			socket.close();
@@ -156,6 +300,306 @@ public class StreamServer implements Server {
 		
 	}
 
+	/**
+	 * Creates a group of clients or returns existing one with the same name.
+	 */
+	public StreamGroup createGroup(Object name) {
+		
+		if (name == null) {
+			throw new IllegalArgumentException("given object cannot be null");
+		}
+		
+		final StreamGroup group = new StreamGroup(this, name);
+		final StreamGroup existing = groups.putIfAbsent(name, group);
+		
+		return existing != null ? existing : group;
+	}
+	
+	/**
+	 * Creates a grid that sends updates only to clients interested in
+	 * their area. Each grid is independent, like one for every map.
+	 * 
+	 * @param cellSize Length of side of grid cells, in the same units
+	 * as positions and areas.
+	 */
+	public InterestGrid createInterestGrid(float cellSize) {
+		return new InterestGrid(this, cellSize);
+	}
+	
+	private void startShards() throws IOException {
+		if (shardCount == 0) {
+			return;
+		}
+		
+		final Shard[] shards = new Shard[shardCount];
+		
+		try {
+			for (int i = 0; i < shards.length; ++i) {
+				shards[i] = new Shard("StreamServer-shard-" + i, busyPoll);
+			}
+		} catch (IOException e) {
+			for (Shard shard : shards) {
+				if (shard != null) {
+					shard.shutdown();
+				}
+			}
+			
+			throw e;
+		}
+		
+		for (Shard shard : shards) {
+			shard.start();
+		}
+		
+		this.shards = shards;
+	}
+	
+	private void stopShards() {
+		if (shards == null) {
+			return;
+		}
+		
+		for (Shard shard : shards) {
+			shard.shutdown();
+		}
+		
+		shards = null;
+	}
+	
+	private void startDecoders() {
+		if (decoderThreads == 0) {
+			return;
+		}
+		
+		final AtomicInteger ids = new AtomicInteger();
+		
+		decoders = Executors.newFixedThreadPool(decoderThreads, new ThreadFactory() {
+			
+			public Thread newThread(final Runnable r) {
+				final Runnable task = new Runnable() {
+					
+					public void run() {
+						// decoder threads deliver packets to listeners
+						SendCredits.markReaderThread();
+						r.run();
+					}
+					
+				};
+				
+				final Thread thread = new Thread(task, "StreamServer-decoder-" + ids.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+			
+		});
+	}
+	
+	private void stopDecoders() {
+		final ExecutorService decoders = this.decoders;
+		
+		if (decoders == null) {
+			return;
+		}
+		
+		// packets already scheduled are still decoded
+		decoders.shutdown();
+		this.decoders = null;
+	}
+	
+	private void expireSessions() {
+		
+		if (!sessionResumption) {
+			return;
+		}
+		
+		StreamRemoteClient[] copy;
+		
+		synchronized (sessions) {
+			copy = sessions.values().toArray(new StreamRemoteClient[sessions.size()]);
+		}
+		
+		final long now = System.currentTimeMillis();
+		
+		for (StreamRemoteClient c : copy) {
+			c.expireSession(now, sessionTimeout);
+		}
+	}
+	
+	public int getFragmentSize() {
+		return fragmentSize;
+	}
+	
+	/**
+	 * Decodes packet received with the framed protocol. Routed packets
+	 * are left encoded, only their header is read.
+	 */
+	Object decode(byte[] data) throws IOException, ClassNotFoundException {
+		if (RoutedPacket.isRouted(data)) {
+			return RoutedPacket.fromBytes(data, classResolver);
+		}
+		
+		return PacketCodec.decode(data, classResolver);
+	}
+	
+	/**
+	 * Encodes packet for the framed protocol, using encoded cache if set.
+	 */
+	byte[] encode(Object data) throws NotSerializableException, IOException {
+		final EncodedCache cache = encodedCache;
+		return cache != null ? cache.encode(data) : PacketCodec.encode(data);
+	}
+	
+	/**
+	 * @return Classes allowed in incoming packets or <code>null</code>
+	 * if all are allowed.
+	 */
+	public ClassFilter getClassFilter() {
+		return classResolver.getFilter();
+	}
+	
+	/**
+	 * @return Decoder threads shared by clients or <code>null</code> if
+	 * every client decodes its own packets.
+	 */
+	ExecutorService getDecoders() {
+		return decoders;
+	}
+	
+	ClassResolver getClassResolver() {
+		return classResolver;
+	}
+	
+	int getReceiveWindow() {
+		return receiveWindow;
+	}
+	
+	/**
+	 * @return Number of connections of each shard, empty if the
+	 * server is not open or not sharded.
+	 */
+	public int[] getShardConnections() {
+		final Shard[] shards = this.shards;
+		
+		if (shards == null) {
+			return new int[0];
+		}
+		
+		final int[] counts = new int[shards.length];
+		
+		for (int i = 0; i < shards.length; ++i) {
+			counts[i] = shards[i].getConnectionCount();
+		}
+		
+		return counts;
+	}
+	
+	/**
+	 * @return Smoothed bytes per second read and written by
+	 * connections of each shard, empty if the server is not open
+	 * or not sharded.
+	 */
+	public float[] getShardByteRates() {
+		final Shard[] shards = this.shards;
+		
+		if (shards == null) {
+			return new float[0];
+		}
+		
+		final float[] rates = new float[shards.length];
+		
+		for (int i = 0; i < shards.length; ++i) {
+			rates[i] = shards[i].getByteRate();
+		}
+		
+		return rates;
+	}
+	
+	int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+	
+	int getShardWriteLimit() {
+		return shardWriteLimit;
+	}
+	
+	/**
+	 * @return Capabilities offered to clients in the handshake.
+	 */
+	Capabilities getCapabilities() {
+		return new Capabilities(
+				Capabilities.CODEC_SERIALIZATION,
+				compression ? Capabilities.COMPRESSION_DEFLATE : 0,
+				(int) Math.min(pingInterval, Integer.MAX_VALUE),
+				maxFrameSize
+		);
+	}
+	
+	WaitStrategy getBusyPoll() {
+		return busyPoll;
+	}
+	
+	RateLimit getRateLimit() {
+		return rateLimit;
+	}
+	
+	/**
+	 * @return Number of packets of all clients that exceeded the rate
+	 * limit since the server was created.
+	 */
+	public long getRateViolations() {
+		return rateViolations.get();
+	}
+	
+	void rateLimitExceeded() {
+		rateViolations.incrementAndGet();
+	}
+	
+	CreditPolicy getSendPolicy() {
+		return sendPolicy;
+	}
+	
+	int getSendQueueLimit() {
+		return sendQueueLimit;
+	}
+	
+	/**
+	 * @return Encoded cache used by this server or <code>null</code>.
+	 */
+	public EncodedCache getEncodedCache() {
+		return encodedCache;
+	}
+	
+	public long getPingInterval() {
+		return pingInterval;
+	}
+	
+	TrafficRecorder getTrafficRecorder() {
+		return trafficRecorder;
+	}
+	
+	int nextConnectionId() {
+		return connectionIds.incrementAndGet();
+	}
+	
+	File getSpoolDirectory() {
+		return spoolDirectory;
+	}
+	
+	long getSpoolDiskLimit() {
+		return spoolDiskLimit;
+	}
+	
+	int getSpoolMemoryLimit() {
+		return spoolMemoryLimit;
+	}
+	
+	/**
+	 * @return Group with given name or <code>null</code> if there's no such group.
+	 */
+	public StreamGroup getGroup(Object name) {
+		return groups.get(name);
+	}
+	
 	/*
 	 * @see pl.graniec.coralreef.network.server.Server#getPort()
 	 */
@@ -170,6 +614,84 @@ public class StreamServer implements Server {
 		}
 	}
 
+	/**
+	 * Handles HELLO frame of a new connection. If it carries a token of
+	 * session that can be resumed, then the connection is handed over to
+	 * the client owning that session. Otherwise <code>candidate</code>
+	 * becomes a new client.
+	 * 
+	 * @param offered Capabilities of the client or <code>null</code> if
+	 * it doesn't negotiate them.
+	 * @return Client that owns the connection from now on.
+	 */
+	StreamRemoteClient helloReceived(StreamRemoteClient candidate, Frame hello, Capabilities offered) throws IOException {
+		
+		final UUID token = Session.tokenFromBytes(hello.getPayload());
+		final Capabilities agreed = offered != null ? getCapabilities().negotiate(offered) : null;
+		
+		synchronized (remoteClients) {
+			
+			if (sessionResumption && token != null) {
+				
+				StreamRemoteClient previous;
+				
+				synchronized (sessions) {
+					previous = sessions.get(token);
+				}
+				
+				if (previous != null) {
+					if (previous.canResume(hello)) {
+						previous.resume(candidate, hello, agreed);
+						return previous;
+					}
+					
+					logger.fine("Session " + token + " cannot be resumed");
+					
+					// the client will start over, so the old one is gone
+					previous.terminate();
+					notifyClientDisconnected(previous, DisconnectReason.Reset, "session cannot be resumed");
+				}
+			}
+			
+			Session session = null;
+			
+			if (sessionResumption && hello.hasFlag(Frame.FLAG_SESSION)) {
+				session = new Session(UUID.randomUUID(), new ReplayBuffer(replayBufferFrames, replayBufferBytes));
+				
+				synchronized (sessions) {
+					sessions.put(session.getToken(), candidate);
+				}
+			}
+			
+			candidate.welcome(session, agreed);
+			
+			remoteClients.add(candidate);
+			notifyClientConnected(candidate);
+			
+			return candidate;
+		}
+	}
+	
+	public int getMaxMessageSize() {
+		return maxMessageSize;
+	}
+	
+	public boolean isPacketTimestamps() {
+		return packetTimestamps;
+	}
+	
+	public boolean isOverflowSpool() {
+		return overflowSpool;
+	}
+	
+	public boolean isConflation() {
+		return conflation;
+	}
+	
+	public boolean isFramedProtocol() {
+		return framedProtocol;
+	}
+	
 	/*
 	 * @see pl.graniec.coralreef.network.server.Server#isOpen()
 	 */
@@ -179,7 +701,12 @@ public class StreamServer implements Server {
 		return socket != null && socket.isBound();
 	}
 
-	private void notifyClientConnected(RemoteClient client) {
+	private void notifyClientConnected(StreamRemoteClient client) {
+		final Socket socket = client.socket;
+		
+		NetworkEvents.connected(NetworkEvents.SERVER, client.getConnectionId(),
+				socket != null ? String.valueOf(socket.getRemoteSocketAddress()) : null);
+		
 		ConnectionListener[] copy;
 		
 		synchronized (connectionListeners) {
@@ -191,7 +718,15 @@ public class StreamServer implements Server {
 		}
 	}
 
-	void notifyClientDisconnected(RemoteClient client, int reason, String reasonString) {
+	void notifyClientDisconnected(StreamRemoteClient client, int reason, String reasonString) {
+		
+		final UUID token = client.getSessionToken();
+		
+		if (token != null) {
+			synchronized (sessions) {
+				sessions.remove(token);
+			}
+		}
 		
 		synchronized (remoteClients) {
 			// first remove this client from the list
@@ -202,6 +737,10 @@ public class StreamServer implements Server {
 			}
 		}
 		
+		client.leaveGroups();
+		
+		NetworkEvents.disconnected(NetworkEvents.SERVER, client.getConnectionId(), reasonString);
+		
 		// make a copy of listeners and invoke each of it
 		ConnectionListener[] copy;
 		
@@ -220,11 +759,21 @@ public class StreamServer implements Server {
 	public void open(int port) throws NetworkException {
 		try {
 			
-			socket = new ServerSocket(port);
+			if (zeroCopyBlobs || shardCount > 0 || busyPoll != null) {
+				// adaptors of channels lock them during timed reads on older
+				// runtimes, so they're used only by features that need them
+				socket = ServerSocketChannel.open().socket();
+				socket.bind(new InetSocketAddress(port));
+			} else {
+				socket = new ServerSocket(port);
+			}
 			
 			// configure socket
 			socket.setSoTimeout(SO_TIMEOUT);
 			
+			startShards();
+			startDecoders();
+			
 			// run accept listener
 			acceptListener = new Listener();
 			acceptListener.start();
@@ -245,6 +794,89 @@ public class StreamServer implements Server {
 		}
 	}
 	
+	/**
+	 * Opens the server on a Unix domain socket bound to given path.
+	 * Processes on the same machine connect with
+	 * {@link pl.graniec.coralreef.network.stream.client.StreamClient#connect(File)} and skip the TCP stack. The
+	 * socket file must not exist, and it's removed when the server
+	 * closes. {@link #getPort()} returns -1 for such server.
+	 * <p>
+	 * Unix domain sockets require Java 16 or later.
+	 * 
+	 * @see UnixSockets#isSupported()
+	 */
+	public void open(File path) throws NetworkException {
+		if (path == null) {
+			throw new IllegalArgumentException("path cannot be null");
+		}
+		
+		checkNotOpen();
+		
+		final ServerSocket socket;
+		
+		try {
+			socket = UnixSockets.bind(path);
+		} catch (IOException e) {
+			throw new NetworkException(e);
+		}
+		
+		open(socket);
+	}
+	
+	/**
+	 * Opens the server on a server socket bound by other means, like
+	 * {@link UnixSockets#bind(File)} or {@link SharedMemory#bind(File)}.
+	 * The server takes the socket over and closes it in {@link #close()}.
+	 */
+	public void open(ServerSocket socket) throws NetworkException {
+		if (socket == null) {
+			throw new IllegalArgumentException("socket cannot be null");
+		}
+		
+		checkNotOpen();
+		
+		try {
+			this.socket = socket;
+			
+			// configure socket
+			socket.setSoTimeout(SO_TIMEOUT);
+			
+			startShards();
+			startDecoders();
+			
+			// run accept listener
+			acceptListener = new Listener();
+			acceptListener.start();
+			
+		} catch (IOException e) {
+			try {
+				socket.close();
+			} catch (IOException e1) {
+				// ignore
+			}
+			
+			this.socket = null;
+			throw new NetworkException(e);
+		}
+	}
+	
+	/**
+	 * Removes the group. Its members stay connected.
+	 * 
+	 * @return Removed group or <code>null</code> if there was no such group.
+	 */
+	public StreamGroup removeGroup(Object name) {
+		final StreamGroup group = groups.remove(name);
+		
+		if (group != null) {
+			for (RemoteClient member : group.getMembers()) {
+				group.leave(member);
+			}
+		}
+		
+		return group;
+	}
+	
 	/*
 	 * @see pl.graniec.coralreef.network.server.Server#removeConnectionListener(pl.graniec.coralreef.network.server.ConnectionListener)
 	 */
@@ -258,6 +890,472 @@ public class StreamServer implements Server {
 			return connectionListeners.remove(l);
 		}
 	}
+	
+	/**
+	 * Sets size of fragments that big packets are split into when the
+	 * framed protocol is used. Smaller packets can be sent between the
+	 * fragments, so big transfers don't hold them back.
+	 */
+	public void setFragmentSize(int fragmentSize) {
+		if (fragmentSize <= 0) {
+			throw new IllegalArgumentException("fragment size must be positive");
+		}
+		
+		this.fragmentSize = fragmentSize;
+	}
+	
+	/**
+	 * Sets limit of incoming packet size when the framed protocol is used.
+	 * Bigger packets are discarded before they're assembled.
+	 */
+	public void setMaxMessageSize(int maxMessageSize) {
+		checkNotOpen();
+		
+		if (maxMessageSize <= 0) {
+			throw new IllegalArgumentException("message size must be positive");
+		}
+		
+		this.maxMessageSize = maxMessageSize;
+	}
+	
+	/**
+	 * Makes server use frames instead of plain object streams.
+	 * Clients must be configured the same way.
+	 */
+	public void setFramedProtocol(boolean framedProtocol) {
+		checkNotOpen();
+		this.framedProtocol = framedProtocol;
+	}
+	
+	/**
+	 * Makes blobs go straight from files to sockets of clients, without
+	 * copying them through the heap. Sockets of clients get channels
+	 * for this, which are not used otherwise, as reads with timeout
+	 * hold a lock of the channel on Java 8 to 12. Shards and busy
+	 * polling use channels anyway.
+	 * <p>
+	 * This enables the framed protocol.
+	 */
+	public void setZeroCopyBlobs(boolean zeroCopyBlobs) {
+		checkNotOpen();
+		
+		this.zeroCopyBlobs = zeroCopyBlobs;
+		
+		if (zeroCopyBlobs) {
+			framedProtocol = true;
+		}
+	}
+	
+	/**
+	 * Makes outgoing frames of clients that can't keep up go to
+	 * memory-mapped spool files instead of blocking the sender.
+	 * They're sent from there when the client catches up. Spool files
+	 * are deleted when client disconnects.
+	 * <p>
+	 * This enables the framed protocol.
+	 * 
+	 * @see #setOverflowSpoolLimits(File, int, long)
+	 */
+	public void setOverflowSpool(boolean overflowSpool) {
+		checkNotOpen();
+		
+		this.overflowSpool = overflowSpool;
+		
+		if (overflowSpool) {
+			framedProtocol = true;
+		}
+	}
+	
+	/**
+	 * Gives every client a conflating queue of outgoing packets. Packets
+	 * sent with {@link StreamRemoteClient#sendConflated(Object, Object)}
+	 * replace packets of the same key that are still queued, so a slow
+	 * client gets only the latest update of each key. Other packets keep
+	 * their order.
+	 * <p>
+	 * Each client gets a thread that takes packets from its queue when
+	 * the connection is ready for more. Senders wait only when the queue
+	 * exceeds the send queue limit. Works with the framed protocol only.
+	 * 
+	 * @see #setSendPolicy(CreditPolicy, int)
+	 */
+	public void setConflation(boolean conflation) {
+		checkNotOpen();
+		
+		this.conflation = conflation;
+		
+		if (conflation) {
+			framedProtocol = true;
+		}
+	}
+	
+	/**
+	 * Sets where and how much outgoing data is kept for each client
+	 * when overflow spool is enabled. Client that exceeds the disk
+	 * limit is disconnected.
+	 * 
+	 * @param directory Directory of spool files, <code>null</code> for
+	 * the default temporary directory.
+	 * @param memoryLimit Bytes queued in memory before spilling to disk.
+	 * @param diskLimit Bytes of spool files.
+	 */
+	public void setOverflowSpoolLimits(File directory, int memoryLimit, long diskLimit) {
+		checkNotOpen();
+		
+		if (memoryLimit < 0 || diskLimit <= 0) {
+			throw new IllegalArgumentException("invalid limits");
+		}
+		
+		this.spoolDirectory = directory;
+		this.spoolMemoryLimit = memoryLimit;
+		this.spoolDiskLimit = diskLimit;
+	}
+	
+	/**
+	 * Limits classes that clients can send to the ones allowed by given
+	 * filter. Any other class is rejected before it's loaded, so
+	 * clients cannot make the server run code of classes that happen to
+	 * be on its classpath. Packets with rejected classes are logged and
+	 * dropped; with object streams the connection is lost, because the
+	 * rest of the stream cannot be read.
+	 * <p>
+	 * Found classes are cached for all clients either way. They're
+	 * loaded by the class loader of this library, as plain object
+	 * streams would do, no matter which thread opens the server.
+	 * 
+	 * @param filter Allowed classes or <code>null</code> to allow all.
+	 */
+	public void setClassFilter(ClassFilter filter) {
+		checkNotOpen();
+		classResolver = new ClassResolver(filter, StreamServer.class.getClassLoader());
+	}
+	
+	/**
+	 * Enables flow control of packets coming from clients. Each client
+	 * may send at most <code>window</code> packets that listeners
+	 * haven't consumed yet; it gets new credits as they are consumed.
+	 * This keeps memory used by slow listeners bounded. Clients of older
+	 * versions ignore the credits.
+	 * 
+	 * @param window Number of packets or 0 to disable flow control.
+	 */
+	public void setReceiveWindow(int window) {
+		checkNotOpen();
+		
+		if (window < 0) {
+			throw new IllegalArgumentException("window cannot be negative");
+		}
+		
+		this.receiveWindow = window;
+		
+		if (window > 0) {
+			framedProtocol = true;
+		}
+	}
+	
+	/**
+	 * Makes the server handle connections by a few event loop threads
+	 * instead of a thread for each client. Every accepted connection is
+	 * assigned to the least loaded shard, and all of its reading, writing
+	 * and listener calls happen on the thread of that shard, so listeners
+	 * should never block. Works with the framed protocol only.
+	 * <p>
+	 * Sharded connections don't support blobs, and they are closed
+	 * together with the server. Sockets without channels, like Unix
+	 * domain and shared memory ones, still get their own threads.
+	 * 
+	 * @param count Number of shards or 0 to use thread for each client.
+	 * @see #setShardBalance(ShardBalance)
+	 * @see #setShardWriteLimit(int)
+	 */
+	public void setShards(int count) {
+		checkNotOpen();
+		
+		if (count < 0) {
+			throw new IllegalArgumentException("number of shards cannot be negative");
+		}
+		
+		this.shardCount = count;
+		
+		if (count > 0) {
+			framedProtocol = true;
+		}
+	}
+	
+	/**
+	 * Sets how many bytes may wait to be written to each sharded
+	 * connection. Writing never blocks shards, so a client that doesn't
+	 * keep up is disconnected when it goes past the limit. With overflow
+	 * spool, frames that don't fit go to the spool instead. The default
+	 * is 4 MB.
+	 */
+	public void setShardWriteLimit(int bytes) {
+		checkNotOpen();
+		
+		if (bytes <= 0) {
+			throw new IllegalArgumentException("limit must be positive");
+		}
+		
+		this.shardWriteLimit = bytes;
+	}
+	
+	/**
+	 * Enables or disables shards, one for every available processor.
+	 * 
+	 * @see #setShards(int)
+	 */
+	public void setShards(boolean enabled) {
+		setShards(enabled ? Runtime.getRuntime().availableProcessors() : 0);
+	}
+	
+	/**
+	 * Moves decoding of incoming packets off the threads that read them.
+	 * Reading threads, or shards, only assemble frames and pass their
+	 * payloads to a pool of decoder threads shared by all clients, so
+	 * one client that sends a lot of big packets can use many processors.
+	 * Listeners of each client still get packets in order they came,
+	 * one call at a time, but they're called by decoder threads.
+	 * Works with the framed protocol only.
+	 * 
+	 * @param threads Number of decoder threads or 0 to decode packets
+	 * on threads that read them.
+	 */
+	public void setDecoderThreads(int threads) {
+		checkNotOpen();
+		
+		if (threads < 0) {
+			throw new IllegalArgumentException("number of threads cannot be negative");
+		}
+		
+		this.decoderThreads = threads;
+		
+		if (threads > 0) {
+			framedProtocol = true;
+		}
+	}
+	
+	/**
+	 * Offers clients compression of packets. It's used for connections
+	 * of clients that enabled it too, and only for payloads that get
+	 * smaller. Works with the framed protocol only.
+	 */
+	public void setCompression(boolean compression) {
+		checkNotOpen();
+		
+		this.compression = compression;
+		
+		if (compression) {
+			framedProtocol = true;
+		}
+	}
+	
+	/**
+	 * Sets limit of payload size of frames coming from clients. Clients
+	 * that negotiate it in the handshake split their packets into
+	 * fragments that fit.
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		checkNotOpen();
+		
+		if (maxFrameSize <= FragmentAssembler.HEADER_SIZE + LatencyTracker.TIMESTAMP_SIZE) {
+			throw new IllegalArgumentException("frame size too small");
+		}
+		
+		this.maxFrameSize = maxFrameSize;
+	}
+	
+	/**
+	 * Enables low latency mode for the price of CPU time. Sockets of
+	 * clients become non-blocking and their threads, or shards if the
+	 * server is sharded, poll them as the wait strategy says instead of
+	 * sleeping until the kernel wakes them up. Sent frames are always
+	 * written to the socket by the sending thread, so the overflow spool
+	 * is not used in this mode. Works with the framed protocol only.
+	 * 
+	 * @param strategy How to wait for data, like
+	 * {@link WaitStrategy#BUSY_SPIN}, or <code>null</code> to block.
+	 */
+	public void setBusyPoll(WaitStrategy strategy) {
+		checkNotOpen();
+		
+		this.busyPoll = strategy;
+		
+		if (strategy != null) {
+			framedProtocol = true;
+		}
+	}
+	
+	/**
+	 * Sets how new connections are assigned to shards. The default is
+	 * the shard with fewest connections.
+	 */
+	public void setShardBalance(ShardBalance balance) {
+		checkNotOpen();
+		
+		if (balance == null) {
+			throw new IllegalArgumentException("balance cannot be null");
+		}
+		
+		this.shardBalance = balance;
+	}
+	
+	/**
+	 * Limits packets and bytes that each client may send. Every
+	 * connection gets its own token buckets checked before incoming
+	 * packets are decoded, so a flooding client cannot take the decoding
+	 * time of others. Works with the framed protocol only.
+	 * 
+	 * @param limit Limits or <code>null</code> to disable them.
+	 */
+	public void setRateLimit(RateLimit limit) {
+		checkNotOpen();
+		
+		this.rateLimit = limit;
+		
+		if (limit != null) {
+			framedProtocol = true;
+		}
+	}
+	
+	/**
+	 * Sets what sending to a client does when the client uses flow
+	 * control and has no credits left: the sending thread waits, or
+	 * {@link pl.graniec.coralreef.network.stream.flow.NoCreditException}
+	 * is thrown, or the packet waits in a queue of up to
+	 * <code>queueLimit</code> bytes. The default is to wait.
+	 * <p>
+	 * Packet listeners never wait, because they run on threads that
+	 * read the credits. What they send is queued instead, up to the
+	 * same limit.
+	 * <p>
+	 * Groups skip members that cannot take the packet.
+	 */
+	public void setSendPolicy(CreditPolicy policy, int queueLimit) {
+		checkNotOpen();
+		
+		if (policy == null) {
+			throw new IllegalArgumentException("policy cannot be null");
+		}
+		
+		if (queueLimit < 0) {
+			throw new IllegalArgumentException("queue limit cannot be negative");
+		}
+		
+		this.sendPolicy = policy;
+		this.sendQueueLimit = queueLimit;
+	}
+	
+	/**
+	 * Sets cache of encoded packets used by all send paths with the
+	 * framed protocol: both clients and groups. Packets that
+	 * implement {@link pl.graniec.coralreef.network.stream.cache.ImmutablePacket}
+	 * or {@link pl.graniec.coralreef.network.stream.cache.VersionedPacket}
+	 * are then serialized once and the bytes reused for next sends.
+	 * <p>
+	 * The same cache can be shared by many servers and clients.
+	 * 
+	 * @param cache Cache to use or <code>null</code> to disable caching.
+	 */
+	public void setEncodedCache(EncodedCache cache) {
+		this.encodedCache = cache;
+	}
+	
+	/**
+	 * Makes server send packets with the time they were queued and
+	 * written to the socket, so clients can tell their queueing and
+	 * transit latency. Clients must support the framed protocol
+	 * of this version.
+	 * <p>
+	 * This enables the framed protocol.
+	 */
+	public void setPacketTimestamps(boolean packetTimestamps) {
+		checkNotOpen();
+		
+		this.packetTimestamps = packetTimestamps;
+		
+		if (packetTimestamps) {
+			framedProtocol = true;
+		}
+	}
+	
+	/**
+	 * Sets how often (in milliseconds) each client is pinged to measure
+	 * its round trip time, 0 disables pinging. Works with the framed protocol.
+	 * 
+	 * @see StreamRemoteClient#getRoundTripTime()
+	 */
+	public void setPingInterval(long pingInterval) {
+		if (pingInterval < 0) {
+			throw new IllegalArgumentException("interval cannot be negative");
+		}
+		
+		this.pingInterval = pingInterval;
+	}
+	
+	/**
+	 * Makes server record all frames that its clients send and receive.
+	 * The recorder is not closed by the server.
+	 * <p>
+	 * Requires the framed protocol.
+	 * 
+	 * @param recorder Recorder to use or <code>null</code> to record nothing.
+	 * @see pl.graniec.coralreef.network.stream.record.TrafficReplay
+	 */
+	public void setTrafficRecorder(TrafficRecorder recorder) {
+		checkNotOpen();
+		this.trafficRecorder = recorder;
+	}
+	
+	/**
+	 * Sets limits of unacknowledged packets kept for each session.
+	 * When exceeded, the oldest packets are dropped and session
+	 * might not be resumable anymore.
+	 */
+	public void setReplayBufferLimits(int frames, int bytes) {
+		checkNotOpen();
+		
+		if (frames <= 0 || bytes <= 0) {
+			throw new IllegalArgumentException("limits must be positive");
+		}
+		
+		this.replayBufferFrames = frames;
+		this.replayBufferBytes = bytes;
+	}
+	
+	/**
+	 * Allows clients to resume their sessions after a connection loss.
+	 * Packets that were sent but not received by the other side are
+	 * then sent again and the client isn't reported as disconnected.
+	 * <p>
+	 * This enables the framed protocol.
+	 */
+	public void setSessionResumption(boolean sessionResumption) {
+		checkNotOpen();
+		
+		this.sessionResumption = sessionResumption;
+		
+		if (sessionResumption) {
+			framedProtocol = true;
+		}
+	}
+	
+	/**
+	 * Sets how long (in milliseconds) the session waits for its client
+	 * to come back before it's reported as disconnected.
+	 */
+	public void setSessionTimeout(long sessionTimeout) {
+		if (sessionTimeout < 0) {
+			throw new IllegalArgumentException("timeout cannot be negative");
+		}
+		
+		this.sessionTimeout = sessionTimeout;
+	}
+	
+	private void checkNotOpen() {
+		if (isOpen()) {
+			throw new IllegalStateException("server is already open");
+		}
+	}
 
 
 }
@@ -0,0 +1,149 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.session;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import pl.graniec.coralreef.network.stream.frame.Frame;
+
+/**
+ * Bounded buffer of sent but not yet acknowledged frames.
+ * <p>
+ * If buffer reaches its limits then the oldest frames are discarded.
+ * Session can be resumed only if the other side have received all
+ * of the discarded frames.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ReplayBuffer {
+
+	/** Default limit of frames */
+	public static final int DEFAULT_MAX_FRAMES = 1024;
+	/** Default limit of bytes */
+	public static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+	
+	private final int maxFrames;
+	private final int maxBytes;
+	
+	private final LinkedList<Frame> frames = new LinkedList<Frame>();
+	
+	/** Sum of all buffered frame sizes */
+	private int bytes;
+	
+	/** Highest sequence number discarded without acknowledgment */
+	private long discarded;
+	
+	public ReplayBuffer() {
+		this(DEFAULT_MAX_FRAMES, DEFAULT_MAX_BYTES);
+	}
+	
+	public ReplayBuffer(int maxFrames, int maxBytes) {
+		if (maxFrames <= 0 || maxBytes <= 0) {
+			throw new IllegalArgumentException("limits must be positive");
+		}
+		
+		this.maxFrames = maxFrames;
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * Stores the frame. Frames must be added in order of
+	 * their sequence numbers.
+	 */
+	public synchronized void add(Frame frame) {
+		frames.add(frame);
+		bytes += frame.size();
+		
+		while (frames.size() > maxFrames || (bytes > maxBytes && frames.size() > 1)) {
+			final Frame oldest = frames.removeFirst();
+			bytes -= oldest.size();
+			discarded = oldest.getSequence();
+		}
+	}
+	
+	/**
+	 * Releases all frames with sequence number lower or equal to
+	 * <code>acknowledgment</code>.
+	 */
+	public synchronized void acknowledge(long acknowledgment) {
+		final Iterator<Frame> itor = frames.iterator();
+		
+		while (itor.hasNext()) {
+			final Frame frame = itor.next();
+			
+			if (frame.getSequence() > acknowledgment) {
+				break;
+			}
+			
+			bytes -= frame.size();
+			itor.remove();
+		}
+	}
+	
+	/**
+	 * Tells if all frames that the other side is missing are still here.
+	 * 
+	 * @param lastReceived Last sequence number received by the other side.
+	 */
+	public synchronized boolean canReplay(long lastReceived) {
+		return lastReceived >= discarded;
+	}
+	
+	/**
+	 * @return Frames that have sequence number greater than
+	 * <code>lastReceived</code>, in order.
+	 */
+	public synchronized List<Frame> framesAfter(long lastReceived) {
+		final List<Frame> result = new ArrayList<Frame>();
+		
+		for (Frame frame : frames) {
+			if (frame.getSequence() > lastReceived) {
+				result.add(frame);
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * @return Highest sequence number that was dropped because
+	 * of buffer limits.
+	 */
+	public synchronized long getDiscarded() {
+		return discarded;
+	}
+	
+	public synchronized int size() {
+		return frames.size();
+	}
+}
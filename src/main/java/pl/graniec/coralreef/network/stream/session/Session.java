@@ -0,0 +1,211 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.session;
+
+import java.util.List;
+import java.util.UUID;
+
+import pl.graniec.coralreef.network.stream.frame.Frame;
+
+/**
+ * State of a resumable session on one side of a connection.
+ * <p>
+ * Session numbers outgoing packets, keeps them in {@link ReplayBuffer}
+ * until the other side acknowledges them and remembers the last
+ * received sequence number, so that after reconnection both sides
+ * can send only what the other one missed.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class Session {
+
+	/** Send a standalone acknowledgment after that many packets */
+	private static final int ACK_INTERVAL = 32;
+	
+	private final UUID token;
+	private final ReplayBuffer replayBuffer;
+	
+	/** Sequence number of last sent packet */
+	private long lastSent;
+	/** Sequence number of last received packet */
+	private long lastReceived;
+	/** Received packets that wasn't acknowledged yet */
+	private int unacknowledged;
+	
+	public Session(UUID token, ReplayBuffer replayBuffer) {
+		if (token == null || replayBuffer == null) {
+			throw new IllegalArgumentException("parameters cannot be null");
+		}
+		
+		this.token = token;
+		this.replayBuffer = replayBuffer;
+	}
+	
+	/**
+	 * Creates a packet frame with next sequence number and stores it
+	 * in replay buffer.
+	 */
+	public Frame createPacket(byte[] payload) {
+		return createFrame(Frame.PACKET, payload);
+	}
+	
+	/**
+	 * Creates a data frame of given type with next sequence number
+	 * and stores it in replay buffer.
+	 */
+	public Frame createFrame(byte type, byte[] payload) {
+		return createFrame(type, (byte) 0, payload);
+	}
+	
+	/**
+	 * Creates a data frame of given type and flags with next sequence
+	 * number and stores it in replay buffer.
+	 */
+	public synchronized Frame createFrame(byte type, byte flags, byte[] payload) {
+		final Frame frame = new Frame(type, flags, ++lastSent, lastReceived, payload);
+		
+		replayBuffer.add(frame);
+		unacknowledged = 0;
+		
+		return frame;
+	}
+	
+	/**
+	 * Creates a standalone acknowledgment frame.
+	 */
+	public synchronized Frame createAck() {
+		unacknowledged = 0;
+		return new Frame(Frame.ACK, 0, lastReceived, null);
+	}
+	
+	/**
+	 * Registers incoming packet.
+	 * 
+	 * @return <code>false</code> if packet was already received before
+	 * and should be ignored.
+	 */
+	public synchronized boolean received(long sequence) {
+		if (sequence <= lastReceived) {
+			return false;
+		}
+		
+		lastReceived = sequence;
+		++unacknowledged;
+		
+		return true;
+	}
+	
+	public void acknowledged(long acknowledgment) {
+		replayBuffer.acknowledge(acknowledgment);
+	}
+	
+	/**
+	 * @return <code>true</code> if there are so many unacknowledged
+	 * packets that acknowledgment should be sent right now.
+	 */
+	public synchronized boolean isAckRequired() {
+		return unacknowledged >= ACK_INTERVAL;
+	}
+	
+	public synchronized boolean isAckPending() {
+		return unacknowledged > 0;
+	}
+	
+	/**
+	 * Tells if this session can be resumed by the other side.
+	 * 
+	 * @param peerLastReceived Last packet received by the other side.
+	 * @param peerDiscarded Last packet that other side have discarded from its
+	 * replay buffer.
+	 */
+	public synchronized boolean canResume(long peerLastReceived, long peerDiscarded) {
+		return replayBuffer.canReplay(peerLastReceived) && lastReceived >= peerDiscarded;
+	}
+	
+	/**
+	 * @return Frames to send again after reconnection.
+	 */
+	public List<Frame> framesToReplay(long peerLastReceived) {
+		replayBuffer.acknowledge(peerLastReceived);
+		return replayBuffer.framesAfter(peerLastReceived);
+	}
+	
+	public long getDiscarded() {
+		return replayBuffer.getDiscarded();
+	}
+	
+	public synchronized long getLastReceived() {
+		return lastReceived;
+	}
+	
+	public UUID getToken() {
+		return token;
+	}
+	
+	/**
+	 * Writes token as frame payload.
+	 */
+	public static byte[] tokenToBytes(UUID token) {
+		final byte[] bytes = new byte[16];
+		
+		long msb = token.getMostSignificantBits();
+		long lsb = token.getLeastSignificantBits();
+		
+		for (int i = 7; i >= 0; --i) {
+			bytes[i] = (byte) msb;
+			bytes[i + 8] = (byte) lsb;
+			msb >>>= 8;
+			lsb >>>= 8;
+		}
+		
+		return bytes;
+	}
+	
+	/**
+	 * Reads token from frame payload.
+	 * 
+	 * @return Token or <code>null</code> if payload doesn't contain one.
+	 */
+	public static UUID tokenFromBytes(byte[] bytes) {
+		if (bytes == null || bytes.length != 16) {
+			return null;
+		}
+		
+		long msb = 0;
+		long lsb = 0;
+		
+		for (int i = 0; i < 8; ++i) {
+			msb = (msb << 8) | (bytes[i] & 0xff);
+			lsb = (lsb << 8) | (bytes[i + 8] & 0xff);
+		}
+		
+		return new UUID(msb, lsb);
+	}
+}
@@ -0,0 +1,244 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.shm;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads and writes of buffer fields with acquire and release ordering
+ * that also holds between processes mapping the same file. A volatile
+ * Java field can't give that, as every process has its own copy.
+ * <p>
+ * HotSpot and OpenJDK based runtimes are supported: <code>sun.misc.Unsafe</code>
+ * is used on the buffer address when it can be found, which covers
+ * Java 5 and newer, otherwise the byte buffer view var handles of
+ * Java 9 and newer. Both are reached through reflection. Fields are
+ * kept in native byte order and must be aligned to their size.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+final class OrderedAccess {
+
+	private static final Object unsafe;
+	private static final long addressOffset;
+	private static final long arrayOffset;
+	
+	private static final Method putOrderedLong;
+	private static final Method getLongVolatile;
+	private static final Method putOrderedInt;
+	private static final Method getIntVolatile;
+	
+	/** Method handles of var handle access modes, used without unsafe */
+	private static final Object setLongRelease;
+	private static final Object getLongAcquire;
+	private static final Object setIntRelease;
+	private static final Object getIntAcquire;
+	private static final Method invokeWithArguments;
+	
+	static {
+		Object u = null;
+		long address = -1;
+		long array = -1;
+		Method[] methods = new Method[4];
+		
+		try {
+			final Class<?> type = Class.forName("sun.misc.Unsafe");
+			final Field field = type.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			u = field.get(null);
+			
+			final Method objectFieldOffset = type.getMethod("objectFieldOffset", Field.class);
+			address = ((Long) objectFieldOffset.invoke(u, Buffer.class.getDeclaredField("address"))).longValue();
+			array = ((Integer) type.getMethod("arrayBaseOffset", Class.class).invoke(u, byte[].class)).longValue();
+			
+			methods[0] = type.getMethod("putOrderedLong", Object.class, long.class, long.class);
+			methods[1] = type.getMethod("getLongVolatile", Object.class, long.class);
+			methods[2] = type.getMethod("putOrderedInt", Object.class, long.class, int.class);
+			methods[3] = type.getMethod("getIntVolatile", Object.class, long.class);
+		} catch (Throwable t) {
+			u = null;
+		}
+		
+		unsafe = u;
+		addressOffset = address;
+		arrayOffset = array;
+		putOrderedLong = methods[0];
+		getLongVolatile = methods[1];
+		putOrderedInt = methods[2];
+		getIntVolatile = methods[3];
+		
+		Object[] handles = new Object[4];
+		Method invoke = null;
+		
+		if (u == null) {
+			try {
+				final Class<?> handlesType = Class.forName("java.lang.invoke.MethodHandles");
+				final Class<?> varHandle = Class.forName("java.lang.invoke.VarHandle");
+				final Class<?> accessMode = Class.forName("java.lang.invoke.VarHandle$AccessMode");
+				final Method view = handlesType.getMethod("byteBufferViewVarHandle", Class.class, ByteOrder.class);
+				final Method toMethodHandle = varHandle.getMethod("toMethodHandle", accessMode);
+				
+				final Object longs = view.invoke(null, long[].class, ByteOrder.nativeOrder());
+				final Object ints = view.invoke(null, int[].class, ByteOrder.nativeOrder());
+				
+				handles[0] = toMethodHandle.invoke(longs, accessMode.getField("SET_RELEASE").get(null));
+				handles[1] = toMethodHandle.invoke(longs, accessMode.getField("GET_ACQUIRE").get(null));
+				handles[2] = toMethodHandle.invoke(ints, accessMode.getField("SET_RELEASE").get(null));
+				handles[3] = toMethodHandle.invoke(ints, accessMode.getField("GET_ACQUIRE").get(null));
+				
+				invoke = Class.forName("java.lang.invoke.MethodHandle").getMethod("invokeWithArguments", Object[].class);
+			} catch (Throwable t) {
+				handles = new Object[4];
+				invoke = null;
+			}
+		}
+		
+		setLongRelease = handles[0];
+		getLongAcquire = handles[1];
+		setIntRelease = handles[2];
+		getIntAcquire = handles[3];
+		invokeWithArguments = invoke;
+	}
+	
+	private OrderedAccess() {
+	}
+	
+	/**
+	 * @return <code>true</code> if this Java runtime gives ordered
+	 * access to buffers.
+	 */
+	static boolean isSupported() {
+		return unsafe != null || invokeWithArguments != null;
+	}
+	
+	/**
+	 * Stores a long, so that the stores made before it are seen by
+	 * everyone who sees this one.
+	 */
+	static void putLongRelease(ByteBuffer buffer, int index, long value) {
+		if (unsafe != null) {
+			call(putOrderedLong, array(buffer), offset(buffer, index, 8), Long.valueOf(value));
+		} else {
+			handle(setLongRelease, buffer, Integer.valueOf(index), Long.valueOf(value));
+		}
+	}
+	
+	/**
+	 * Loads a long, so that the loads made after it see everything
+	 * stored before the matching release.
+	 */
+	static long getLongAcquire(ByteBuffer buffer, int index) {
+		if (unsafe != null) {
+			return ((Long) call(getLongVolatile, array(buffer), offset(buffer, index, 8))).longValue();
+		} else {
+			return ((Long) handle(getLongAcquire, buffer, Integer.valueOf(index))).longValue();
+		}
+	}
+	
+	static void putIntRelease(ByteBuffer buffer, int index, int value) {
+		if (unsafe != null) {
+			call(putOrderedInt, array(buffer), offset(buffer, index, 4), Integer.valueOf(value));
+		} else {
+			handle(setIntRelease, buffer, Integer.valueOf(index), Integer.valueOf(value));
+		}
+	}
+	
+	static int getIntAcquire(ByteBuffer buffer, int index) {
+		if (unsafe != null) {
+			return ((Integer) call(getIntVolatile, array(buffer), offset(buffer, index, 4))).intValue();
+		} else {
+			return ((Integer) handle(getIntAcquire, buffer, Integer.valueOf(index))).intValue();
+		}
+	}
+	
+	private static Object array(ByteBuffer buffer) {
+		return buffer.hasArray() ? buffer.array() : null;
+	}
+	
+	/**
+	 * @return Offset of the index from the array base for heap buffers,
+	 * or its address for direct ones.
+	 */
+	private static Long offset(ByteBuffer buffer, int index, int size) {
+		if (index < 0 || index > buffer.capacity() - size) {
+			throw new IndexOutOfBoundsException(String.valueOf(index));
+		}
+		
+		if (buffer.hasArray()) {
+			return Long.valueOf(arrayOffset + buffer.arrayOffset() + index);
+		}
+		
+		final Long address = (Long) call(getLongVolatile, buffer, Long.valueOf(addressOffset));
+		return Long.valueOf(address.longValue() + index);
+	}
+	
+	private static Object call(Method method, Object... args) {
+		try {
+			return method.invoke(unsafe, args);
+		} catch (InvocationTargetException e) {
+			throw rethrow(e.getCause());
+		} catch (IllegalAccessException e) {
+			throw rethrow(e);
+		}
+	}
+	
+	private static Object handle(Object handle, Object... args) {
+		if (handle == null) {
+			throw new UnsupportedOperationException("ordered buffer access is not supported by this Java runtime");
+		}
+		
+		try {
+			return invokeWithArguments.invoke(handle, (Object) args);
+		} catch (InvocationTargetException e) {
+			throw rethrow(e.getCause());
+		} catch (IllegalAccessException e) {
+			throw rethrow(e);
+		}
+	}
+	
+	private static RuntimeException rethrow(Throwable cause) {
+		if (cause instanceof RuntimeException) {
+			return (RuntimeException) cause;
+		}
+		
+		if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		
+		final IllegalStateException e = new IllegalStateException(String.valueOf(cause));
+		e.initCause(cause);
+		return e;
+	}
+}
@@ -0,0 +1,225 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.shm;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+/**
+ * Single-producer, single-consumer byte queue in a buffer that may be
+ * shared with another process through a mapped file. One thread
+ * writes and one thread reads; neither of them ever locks.
+ * <p>
+ * The header holds the write position, the read position and the
+ * closed flags of both sides. Positions only grow; they are published
+ * after the data they cover, so the other side never sees bytes that
+ * are not written yet. The positions are kept in separate cache lines,
+ * so the two sides don't slow each other down.
+ * <p>
+ * The header fields are stored with release and read with acquire
+ * ordering on the memory itself, so it holds between processes too.
+ * See {@link OrderedAccess} for the Java runtimes that support it.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class RingBuffer {
+
+	/** Header size in bytes */
+	public static final int HEADER_SIZE = 192;
+	
+	private static final int WRITE_POSITION = 0;
+	private static final int READ_POSITION = 64;
+	private static final int WRITER_CLOSED = 128;
+	private static final int READER_CLOSED = 132;
+	
+	private final ByteBuffer header;
+	private final ByteBuffer data;
+	
+	private final int capacity;
+	private final int mask;
+	
+	/** Read position the writer saw last time */
+	private long readLimit;
+	/** Write position the reader saw last time */
+	private long writeLimit;
+	
+	/**
+	 * @param header Header of {@link #HEADER_SIZE} bytes. It must be
+	 * zeroed when the buffer is created.
+	 * @param data Data of the buffer. Its capacity must be a power of two.
+	 * @throws UnsupportedOperationException If the Java runtime gives no
+	 * ordered access to buffers.
+	 */
+	public RingBuffer(ByteBuffer header, ByteBuffer data) {
+		if (!OrderedAccess.isSupported()) {
+			throw new UnsupportedOperationException("ordered buffer access is not supported by this Java runtime");
+		}
+		
+		this.header = header;
+		this.data = data;
+		
+		capacity = data.capacity();
+		
+		if (Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("capacity must be a power of two");
+		}
+		
+		if (header.capacity() < HEADER_SIZE) {
+			throw new IllegalArgumentException("header is too small");
+		}
+		
+		mask = capacity - 1;
+	}
+	
+	/**
+	 * @return Number of bytes waiting to be read.
+	 */
+	public int available() {
+		final int available = (int) (OrderedAccess.getLongAcquire(header, WRITE_POSITION) - OrderedAccess.getLongAcquire(header, READ_POSITION));
+		return Math.max(available, 0);
+	}
+	
+	public int capacity() {
+		return capacity;
+	}
+	
+	/**
+	 * Closes the reading side. Writes fail from now on.
+	 */
+	public void closeReader() {
+		OrderedAccess.putIntRelease(header, READER_CLOSED, 1);
+	}
+	
+	/**
+	 * Closes the writing side. The reader gets end of stream after it
+	 * reads everything that was written.
+	 */
+	public void closeWriter() {
+		OrderedAccess.putIntRelease(header, WRITER_CLOSED, 1);
+	}
+	
+	public boolean isReaderClosed() {
+		return OrderedAccess.getIntAcquire(header, READER_CLOSED) != 0;
+	}
+	
+	public boolean isWriterClosed() {
+		return OrderedAccess.getIntAcquire(header, WRITER_CLOSED) != 0;
+	}
+	
+	/**
+	 * Reads as many bytes as are available, up to <code>len</code>.
+	 * 
+	 * @return Number of bytes read, 0 if the buffer is empty or -1 if
+	 * the writer is closed and everything was read.
+	 */
+	public int read(byte[] b, int off, int len) {
+		final long position = OrderedAccess.getLongAcquire(header, READ_POSITION);
+		
+		if (position == writeLimit || writeLimit - position < len) {
+			// check if the writer is closed before looking at its
+			// position, so bytes written right before closing count
+			final boolean closed = isWriterClosed();
+			
+			writeLimit = OrderedAccess.getLongAcquire(header, WRITE_POSITION);
+			
+			if (position == writeLimit) {
+				return closed ? -1 : 0;
+			}
+		}
+		
+		final int count = (int) Math.min(len, writeLimit - position);
+		copy(position, b, off, count, false);
+		
+		// give the space back
+		OrderedAccess.putLongRelease(header, READ_POSITION, position + count);
+		
+		return count;
+	}
+	
+	/**
+	 * Writes as many bytes as there's room for, up to <code>len</code>.
+	 * 
+	 * @return Number of bytes written, 0 if the buffer is full.
+	 * @throws SocketException If the reader is closed.
+	 */
+	public int write(byte[] b, int off, int len) throws IOException {
+		if (isReaderClosed()) {
+			throw new SocketException("connection reset");
+		}
+		
+		final long position = OrderedAccess.getLongAcquire(header, WRITE_POSITION);
+		
+		if (capacity - (position - readLimit) < len) {
+			readLimit = OrderedAccess.getLongAcquire(header, READ_POSITION);
+			
+			if (position - readLimit == capacity) {
+				return 0;
+			}
+		}
+		
+		final int count = (int) Math.min(len, capacity - (position - readLimit));
+		copy(position, b, off, count, true);
+		
+		// publish the data
+		OrderedAccess.putLongRelease(header, WRITE_POSITION, position + count);
+		
+		return count;
+	}
+	
+	/**
+	 * Copies bytes between the array and the buffer, wrapping around
+	 * its end.
+	 */
+	private void copy(long position, byte[] b, int off, int count, boolean write) {
+		final int index = (int) (position & mask);
+		final int first = Math.min(count, capacity - index);
+		
+		final ByteBuffer view = data.duplicate();
+		
+		view.position(index);
+		
+		if (write) {
+			view.put(b, off, first);
+		} else {
+			view.get(b, off, first);
+		}
+		
+		if (first < count) {
+			view.position(0);
+			
+			if (write) {
+				view.put(b, off + first, count - first);
+			} else {
+				view.get(b, off + first, count - first);
+			}
+		}
+	}
+}
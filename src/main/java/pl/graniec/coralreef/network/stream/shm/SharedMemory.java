@@ -0,0 +1,265 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.shm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Opens connections between processes of one machine that go through
+ * shared memory instead of sockets.
+ * <p>
+ * The server listens in a directory. A client connects by creating a
+ * file there with two {@link RingBuffer}s, one for each direction, and
+ * waits until the server maps it too. The file is removed as soon as
+ * both sides have it mapped.
+ * <p>
+ * The returned sockets work with
+ * {@link pl.graniec.coralreef.network.stream.server.StreamServer#open(java.net.ServerSocket)}
+ * and
+ * {@link pl.graniec.coralreef.network.stream.client.StreamClient#connect(java.net.Socket)},
+ * so both protocols and all listeners work the same way as with TCP.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public final class SharedMemory {
+
+	/** Default size of each ring buffer */
+	public static final int DEFAULT_CAPACITY = 1024 * 1024;
+	
+	/** How long clients wait for the server to accept them */
+	private static final long CONNECT_TIMEOUT = 5000;
+	
+	/** File marking that the server listens in the directory */
+	static final String MARKER = "server";
+	
+	/** Suffix of connection files ready to be accepted */
+	static final String SUFFIX = ".ring";
+	
+	static final int MAGIC = 0x43525348;
+	static final int VERSION = 1;
+	
+	/*
+	 * Connection file layout.
+	 */
+	private static final int MAGIC_OFFSET = 0;
+	private static final int VERSION_OFFSET = 4;
+	private static final int CAPACITY_OFFSET = 8;
+	private static final int STATE_OFFSET = 12;
+	private static final int FILE_HEADER_SIZE = 64;
+	
+	private static final int REQUESTED = 0;
+	private static final int ACCEPTED = 1;
+	
+	private SharedMemory() {
+	}
+	
+	/**
+	 * Starts listening in given directory with the default wait
+	 * strategy.
+	 */
+	public static SharedMemoryServerSocket bind(File directory) throws IOException {
+		return bind(directory, WaitStrategy.BACKOFF);
+	}
+	
+	/**
+	 * Starts listening in given directory. It's created if it doesn't
+	 * exist. Only one server can listen in a directory at a time.
+	 * 
+	 * @param waitStrategy Strategy used by connections accepted here.
+	 */
+	public static SharedMemoryServerSocket bind(File directory, WaitStrategy waitStrategy) throws IOException {
+		if (directory == null || waitStrategy == null) {
+			throw new IllegalArgumentException("parameters cannot be null");
+		}
+		
+		checkSupported();
+		
+		directory.mkdirs();
+		
+		final File marker = new File(directory, MARKER);
+		
+		if (!marker.createNewFile()) {
+			throw new IOException("a server already listens in " + directory);
+		}
+		
+		return new SharedMemoryServerSocket(directory, marker, waitStrategy);
+	}
+	
+	/**
+	 * Connects to the server listening in given directory using
+	 * default capacity and wait strategy.
+	 */
+	public static SharedMemorySocket connect(File directory) throws IOException {
+		return connect(directory, DEFAULT_CAPACITY, WaitStrategy.BACKOFF);
+	}
+	
+	/**
+	 * Connects to the server listening in given directory.
+	 * 
+	 * @param capacity Size of each ring buffer. It must be a power of two.
+	 */
+	public static SharedMemorySocket connect(File directory, int capacity, WaitStrategy waitStrategy) throws IOException {
+		if (directory == null || waitStrategy == null) {
+			throw new IllegalArgumentException("parameters cannot be null");
+		}
+		
+		checkSupported();
+		
+		if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("capacity must be a power of two");
+		}
+		
+		final File marker = new File(directory, MARKER);
+		
+		if (!marker.exists()) {
+			throw new ConnectException("connection refused");
+		}
+		
+		// the file gets its final name when it's ready
+		final File temporary = File.createTempFile("connection", ".tmp", directory);
+		final String name = temporary.getName();
+		final File file = new File(directory, name.substring(0, name.length() - 4) + SUFFIX);
+		
+		final MappedByteBuffer map;
+		
+		try {
+			map = map(temporary, FILE_HEADER_SIZE + 2 * (RingBuffer.HEADER_SIZE + capacity));
+			
+			map.putInt(MAGIC_OFFSET, MAGIC);
+			map.putInt(VERSION_OFFSET, VERSION);
+			map.putInt(CAPACITY_OFFSET, capacity);
+			map.putInt(STATE_OFFSET, REQUESTED);
+			
+			if (!temporary.renameTo(file)) {
+				throw new IOException("cannot rename " + temporary);
+			}
+		} catch (IOException e) {
+			temporary.delete();
+			throw e;
+		}
+		
+		final long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+		
+		while (map.getInt(STATE_OFFSET) != ACCEPTED) {
+			
+			if (!marker.exists()) {
+				file.delete();
+				throw new ConnectException("connection refused");
+			}
+			
+			if (System.currentTimeMillis() > deadline) {
+				file.delete();
+				throw new SocketTimeoutException("connect timed out");
+			}
+			
+			LockSupport.parkNanos(100000);
+		}
+		
+		// client writes to the first buffer and reads from the second
+		return new SharedMemorySocket(map, ring(map, 1, capacity), ring(map, 0, capacity), waitStrategy);
+	}
+	
+	/**
+	 * Maps connection file of a client and accepts it.
+	 * 
+	 * @return Socket or <code>null</code> if the file is not a valid connection.
+	 */
+	static SharedMemorySocket accept(File file, WaitStrategy waitStrategy) throws IOException {
+		final long length = file.length();
+		
+		if (length < FILE_HEADER_SIZE) {
+			return null;
+		}
+		
+		final MappedByteBuffer map = map(file, (int) length);
+		
+		// both sides have it mapped now
+		file.delete();
+		
+		final int capacity = map.getInt(CAPACITY_OFFSET);
+		
+		if (map.getInt(MAGIC_OFFSET) != MAGIC
+				|| map.getInt(VERSION_OFFSET) != VERSION
+				|| length != FILE_HEADER_SIZE + 2L * (RingBuffer.HEADER_SIZE + capacity)) {
+			return null;
+		}
+		
+		final SharedMemorySocket socket = new SharedMemorySocket(map, ring(map, 0, capacity), ring(map, 1, capacity), waitStrategy);
+		
+		map.putInt(STATE_OFFSET, ACCEPTED);
+		
+		return socket;
+	}
+	
+	private static MappedByteBuffer map(File file, int size) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		
+		try {
+			raf.setLength(size);
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			// the mapping stays valid
+			raf.close();
+		}
+	}
+	
+	private static void checkSupported() throws IOException {
+		if (!OrderedAccess.isSupported()) {
+			throw new IOException("shared memory is not supported by this Java runtime");
+		}
+	}
+	
+	/**
+	 * @param index 0 for client to server buffer, 1 for the other one.
+	 */
+	private static RingBuffer ring(MappedByteBuffer map, int index, int capacity) {
+		final int header = FILE_HEADER_SIZE + index * RingBuffer.HEADER_SIZE;
+		final int data = FILE_HEADER_SIZE + 2 * RingBuffer.HEADER_SIZE + index * capacity;
+		
+		return new RingBuffer(slice(map, header, RingBuffer.HEADER_SIZE), slice(map, data, capacity));
+	}
+	
+	private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+		final ByteBuffer view = buffer.duplicate();
+		
+		view.position(offset);
+		view.limit(offset + length);
+		
+		return view.slice();
+	}
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.shm;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Server socket accepting shared memory connections. It looks for new
+ * connection files in its directory.
+ * 
+ * @see SharedMemory#bind(File)
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class SharedMemoryServerSocket extends ServerSocket {
+
+	/** How often the directory is checked for new connections */
+	private static final long POLL_NANOS = 1000000;
+	
+	private static final FileFilter CONNECTIONS = new FileFilter() {
+
+		public boolean accept(File file) {
+			return file.getName().endsWith(SharedMemory.SUFFIX);
+		}
+		
+	};
+	
+	private final File directory;
+	private final File marker;
+	
+	private final WaitStrategy waitStrategy;
+	
+	private volatile int timeout;
+	private volatile boolean closed;
+	
+	SharedMemoryServerSocket(File directory, File marker, WaitStrategy waitStrategy) throws IOException {
+		this.directory = directory;
+		this.marker = marker;
+		this.waitStrategy = waitStrategy;
+	}
+	
+	/*
+	 * @see java.net.ServerSocket#accept()
+	 */
+	@Override
+	public synchronized Socket accept() throws IOException {
+		final int timeout = this.timeout;
+		final long deadline = System.currentTimeMillis() + timeout;
+		
+		while (true) {
+			if (closed) {
+				throw new SocketException("socket closed");
+			}
+			
+			final File[] files = directory.listFiles(CONNECTIONS);
+			
+			if (files != null) {
+				for (File file : files) {
+					try {
+						final Socket socket = SharedMemory.accept(file, waitStrategy);
+						
+						if (socket != null) {
+							return socket;
+						}
+					} catch (IOException e) {
+						// client gave up in the meantime
+					}
+				}
+			}
+			
+			if (Thread.currentThread().isInterrupted()) {
+				throw new SocketTimeoutException("accept interrupted");
+			}
+			
+			if (timeout > 0 && System.currentTimeMillis() >= deadline) {
+				throw new SocketTimeoutException("accept timed out");
+			}
+			
+			LockSupport.parkNanos(POLL_NANOS);
+		}
+	}
+	
+	/*
+	 * @see java.net.ServerSocket#close()
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		marker.delete();
+	}
+	
+	/*
+	 * @see java.net.ServerSocket#getLocalPort()
+	 */
+	@Override
+	public int getLocalPort() {
+		return -1;
+	}
+	
+	/*
+	 * @see java.net.ServerSocket#getSoTimeout()
+	 */
+	@Override
+	public int getSoTimeout() {
+		return timeout;
+	}
+	
+	/*
+	 * @see java.net.ServerSocket#isBound()
+	 */
+	@Override
+	public boolean isBound() {
+		return !closed;
+	}
+	
+	/*
+	 * @see java.net.ServerSocket#isClosed()
+	 */
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+	
+	/*
+	 * @see java.net.ServerSocket#setSoTimeout(int)
+	 */
+	@Override
+	public void setSoTimeout(int timeout) throws SocketException {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("timeout cannot be negative");
+		}
+		
+		this.timeout = timeout;
+	}
+	
+	/*
+	 * @see java.net.ServerSocket#toString()
+	 */
+	@Override
+	public String toString() {
+		return "SharedMemoryServerSocket[" + directory + "]";
+	}
+}
@@ -0,0 +1,299 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.shm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Socket sending bytes through a pair of {@link RingBuffer}s in a
+ * file mapped by both processes. Reads honor
+ * {@link #setSoTimeout(int)} and end early when the reading thread is
+ * interrupted, so listeners can stop as they do with real sockets.
+ * <p>
+ * Processes cannot see each other die, so a connection to a killed
+ * process stays open until a heartbeat or a timeout notices it.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class SharedMemorySocket extends Socket {
+
+	private class RingInputStream extends InputStream {
+		
+		@Override
+		public int available() throws IOException {
+			return in.available();
+		}
+		
+		@Override
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+		
+		@Override
+		public synchronized int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			
+			final int timeout = SharedMemorySocket.this.timeout;
+			final long deadline = System.nanoTime() + timeout * 1000000L;
+			
+			int attempt = 0;
+			
+			while (true) {
+				checkNotClosed();
+				
+				final int count = in.read(b, off, len);
+				
+				if (count != 0) {
+					return count;
+				}
+				
+				if (Thread.currentThread().isInterrupted()) {
+					throw new SocketTimeoutException("read interrupted");
+				}
+				
+				if (timeout > 0 && System.nanoTime() - deadline >= 0) {
+					throw new SocketTimeoutException("read timed out");
+				}
+				
+				waitStrategy.idle(attempt);
+				
+				if (attempt < Integer.MAX_VALUE) {
+					++attempt;
+				}
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			SharedMemorySocket.this.close();
+		}
+	}
+	
+	private class RingOutputStream extends OutputStream {
+		
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			int attempt = 0;
+			
+			while (len > 0) {
+				checkNotClosed();
+				
+				if (outputShutdown) {
+					throw new SocketException("socket output is shutdown");
+				}
+				
+				final int count = out.write(b, off, len);
+				
+				if (count > 0) {
+					off += count;
+					len -= count;
+					attempt = 0;
+					continue;
+				}
+				
+				waitStrategy.idle(attempt);
+				
+				if (attempt < Integer.MAX_VALUE) {
+					++attempt;
+				}
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			SharedMemorySocket.this.close();
+		}
+	}
+	
+	/** Keeps the mapping alive as long as the socket */
+	@SuppressWarnings("unused")
+	private final MappedByteBuffer map;
+	
+	private final RingBuffer in;
+	private final RingBuffer out;
+	
+	private final WaitStrategy waitStrategy;
+	
+	private final InputStream inputStream = new RingInputStream();
+	private final OutputStream outputStream = new RingOutputStream();
+	
+	private volatile int timeout;
+	private volatile boolean closed;
+	private volatile boolean outputShutdown;
+	
+	SharedMemorySocket(MappedByteBuffer map, RingBuffer in, RingBuffer out, WaitStrategy waitStrategy) {
+		this.map = map;
+		this.in = in;
+		this.out = out;
+		this.waitStrategy = waitStrategy;
+	}
+	
+	private void checkNotClosed() throws SocketException {
+		if (closed) {
+			throw new SocketException("socket closed");
+		}
+	}
+	
+	/*
+	 * @see java.net.Socket#close()
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		
+		out.closeWriter();
+		in.closeReader();
+	}
+	
+	/*
+	 * @see java.net.Socket#getInputStream()
+	 */
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return inputStream;
+	}
+	
+	/*
+	 * @see java.net.Socket#getLocalPort()
+	 */
+	@Override
+	public int getLocalPort() {
+		return -1;
+	}
+	
+	/*
+	 * @see java.net.Socket#getOutputStream()
+	 */
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return outputStream;
+	}
+	
+	/*
+	 * @see java.net.Socket#getPort()
+	 */
+	@Override
+	public int getPort() {
+		return 0;
+	}
+	
+	/*
+	 * @see java.net.Socket#getSoTimeout()
+	 */
+	@Override
+	public int getSoTimeout() {
+		return timeout;
+	}
+	
+	/*
+	 * @see java.net.Socket#isBound()
+	 */
+	@Override
+	public boolean isBound() {
+		return true;
+	}
+	
+	/*
+	 * @see java.net.Socket#isClosed()
+	 */
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+	
+	/*
+	 * @see java.net.Socket#isConnected()
+	 */
+	@Override
+	public boolean isConnected() {
+		return true;
+	}
+	
+	/*
+	 * @see java.net.Socket#isOutputShutdown()
+	 */
+	@Override
+	public boolean isOutputShutdown() {
+		return outputShutdown;
+	}
+	
+	/*
+	 * @see java.net.Socket#setSoTimeout(int)
+	 */
+	@Override
+	public void setSoTimeout(int timeout) throws SocketException {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("timeout cannot be negative");
+		}
+		
+		this.timeout = timeout;
+	}
+	
+	/*
+	 * @see java.net.Socket#setTcpNoDelay(boolean)
+	 */
+	@Override
+	public void setTcpNoDelay(boolean on) {
+		// bytes are visible to the other side as soon as they're written
+	}
+	
+	/*
+	 * @see java.net.Socket#shutdownOutput()
+	 */
+	@Override
+	public void shutdownOutput() throws IOException {
+		checkNotClosed();
+		
+		outputShutdown = true;
+		out.closeWriter();
+	}
+	
+	/*
+	 * @see java.net.Socket#toString()
+	 */
+	@Override
+	public String toString() {
+		return "SharedMemorySocket[capacity=" + in.capacity() + "]";
+	}
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.shm;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decides what a thread does while a ring buffer is empty or full.
+ * Processes sharing memory cannot wake each other up, so the thread
+ * spins for a while, then yields, and then parks for short periods
+ * until there's something to do. Busy polling sockets and server
+ * shards wait the same way to skip the kernel wake-up.
+ * <p>
+ * Spinning gives the lowest latency for the price of a busy core.
+ * Parking saves the core, but a packet may wait up to the park time.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class WaitStrategy {
+
+	/** Never gives the core away */
+	public static final WaitStrategy BUSY_SPIN = new WaitStrategy(Integer.MAX_VALUE, 0, 0);
+	
+	/** Spins briefly and parks for up to 50 microseconds */
+	public static final WaitStrategy BACKOFF = new WaitStrategy(10000, 100, 50000);
+	
+	private final int spins;
+	private final int yields;
+	private final long parkNanos;
+	
+	/**
+	 * @param spins Number of checks made before yielding.
+	 * @param yields Number of checks made with yielding before parking.
+	 * @param parkNanos Longest park time in nanoseconds.
+	 */
+	public WaitStrategy(int spins, int yields, long parkNanos) {
+		if (spins < 0 || yields < 0 || parkNanos < 0) {
+			throw new IllegalArgumentException("values cannot be negative");
+		}
+		
+		this.spins = spins;
+		this.yields = yields;
+		this.parkNanos = parkNanos;
+	}
+	
+	/**
+	 * Waits a moment before the next check.
+	 * 
+	 * @param attempt Number of checks that failed so far.
+	 */
+	public void idle(int attempt) {
+		if (attempt < spins) {
+			return;
+		}
+		
+		if (attempt - spins < yields || parkNanos == 0) {
+			Thread.yield();
+			return;
+		}
+		
+		// park a bit longer every time, up to the limit
+		final int step = Math.min(attempt - spins - yields, 20);
+		LockSupport.parkNanos(Math.min(parkNanos, 1000L << step));
+	}
+}
@@ -0,0 +1,252 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.spool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+
+/**
+ * First-in first-out queue of byte records kept in memory-mapped
+ * segment files, so it can grow without using the heap.
+ * <p>
+ * Each record is stored as its length followed by its bytes. Segments
+ * are created when the last one is full and deleted as soon as they're
+ * read to the end. Sum of segment sizes never exceeds the disk limit.
+ * <p>
+ * This class is not thread-safe.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class Spool {
+
+	/** Default size of a single segment file */
+	public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+	
+	private class Segment {
+		private final File file;
+		private final FileChannel channel;
+		/** Written from 0 to position, read from readPosition */
+		private final MappedByteBuffer buffer;
+		private int readPosition;
+		
+		public Segment(int size) throws IOException {
+			file = File.createTempFile(prefix, ".spool", directory);
+			
+			final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			
+			try {
+				channel = raf.getChannel();
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			} catch (IOException e) {
+				raf.close();
+				file.delete();
+				throw e;
+			}
+		}
+		
+		public boolean isRead() {
+			return readPosition == buffer.position();
+		}
+		
+		public void delete() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// nothing to do about it
+			}
+			
+			// mapping can outlive the channel on some systems
+			if (!file.delete()) {
+				file.deleteOnExit();
+			}
+		}
+	}
+	
+	/** Where segment files are created */
+	private final File directory;
+	/** Prefix of segment file names */
+	private final String prefix;
+	/** Size of regular segment */
+	private final int segmentSize;
+	/** Limit of all segment sizes together */
+	private final long maxBytes;
+	
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	
+	/** Sum of segment sizes */
+	private long allocated;
+	/** Number of records waiting to be read */
+	private int count;
+	
+	public Spool(File directory, String prefix, long maxBytes) {
+		this(directory, prefix, DEFAULT_SEGMENT_SIZE, maxBytes);
+	}
+	
+	/**
+	 * @param directory Directory for segment files, <code>null</code> for
+	 * the default temporary directory.
+	 * @param prefix Prefix of segment file names, at least three characters long.
+	 * @param segmentSize Size of a single segment file. Bigger records get
+	 * a segment of their own.
+	 * @param maxBytes Limit of disk space used by this spool.
+	 */
+	public Spool(File directory, String prefix, int segmentSize, long maxBytes) {
+		if (segmentSize <= 0 || maxBytes <= 0) {
+			throw new IllegalArgumentException("sizes must be positive");
+		}
+		
+		this.directory = directory;
+		this.prefix = prefix;
+		this.segmentSize = segmentSize;
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * Appends remaining bytes of <code>record</code> at the end of this spool.
+	 * 
+	 * @return <code>false</code> if the record doesn't fit in the disk limit.
+	 * @throws IOException If segment file cannot be created.
+	 */
+	public boolean append(ByteBuffer record) throws IOException {
+		
+		final int length = 4 + record.remaining();
+		Segment last = segments.isEmpty() ? null : segments.getLast();
+		
+		if (last == null || last.buffer.remaining() < length) {
+			final int size = Math.max(segmentSize, length);
+			
+			if (allocated + size > maxBytes) {
+				return false;
+			}
+			
+			last = new Segment(size);
+			segments.add(last);
+			allocated += size;
+		}
+		
+		last.buffer.putInt(record.remaining());
+		last.buffer.put(record);
+		
+		++count;
+		return true;
+	}
+	
+	/**
+	 * Removes the first record from this spool.
+	 * 
+	 * @return The record or <code>null</code> if spool is empty.
+	 */
+	public byte[] poll() {
+		
+		if (count == 0) {
+			return null;
+		}
+		
+		Segment first = segments.getFirst();
+		
+		while (first.isRead()) {
+			removeFirst();
+			first = segments.getFirst();
+		}
+		
+		final ByteBuffer buffer = first.buffer;
+		final int length = buffer.getInt(first.readPosition);
+		
+		final byte[] record = new byte[length];
+		
+		final ByteBuffer view = buffer.duplicate();
+		view.position(first.readPosition + 4);
+		view.get(record);
+		
+		first.readPosition += 4 + length;
+		--count;
+		
+		if (first.isRead()) {
+			if (segments.size() > 1) {
+				removeFirst();
+			} else {
+				// last segment can be filled again from the beginning
+				first.buffer.clear();
+				first.readPosition = 0;
+			}
+		}
+		
+		return record;
+	}
+	
+	private void removeFirst() {
+		final Segment segment = segments.removeFirst();
+		allocated -= segment.buffer.capacity();
+		segment.delete();
+	}
+	
+	public boolean isEmpty() {
+		return count == 0;
+	}
+	
+	/**
+	 * @return Limit of disk space used by this spool.
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+	
+	/**
+	 * @return Number of records in this spool.
+	 */
+	public int size() {
+		return count;
+	}
+	
+	/**
+	 * @return Disk space currently used by segment files.
+	 */
+	public long getAllocated() {
+		return allocated;
+	}
+	
+	/**
+	 * Discards all records and deletes segment files.
+	 */
+	public void close() {
+		for (Segment segment : segments) {
+			segment.delete();
+		}
+		
+		segments.clear();
+		allocated = 0;
+		count = 0;
+	}
+}
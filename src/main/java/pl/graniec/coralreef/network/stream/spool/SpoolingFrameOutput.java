@@ -0,0 +1,283 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.spool;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.logging.Logger;
+
+import pl.graniec.coralreef.network.stream.frame.Frame;
+import pl.graniec.coralreef.network.stream.frame.FrameDecoder;
+import pl.graniec.coralreef.network.stream.frame.FrameOutput;
+import pl.graniec.coralreef.network.stream.jfr.NetworkEvents;
+
+/**
+ * Frame output that never blocks the sender. Frames are queued in memory
+ * up to a byte limit and spilled to a {@link Spool} beyond it, then
+ * written to the socket by a separate thread as fast as the other side
+ * reads them.
+ * <p>
+ * If the spool runs out of space, the socket is closed, so the connection
+ * is reported as lost by its reader.
+ * <p>
+ * Outputs that queue frames instead of blocking tell through
+ * {@link Backpressure} when they can take more, so frames that don't
+ * fit stay in the spool.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class SpoolingFrameOutput implements FrameOutput {
+
+	/**
+	 * Output that queues frames instead of blocking the writer.
+	 */
+	public interface Backpressure {
+		/**
+		 * Waits until the output can take more frames.
+		 */
+		void awaitWritable() throws InterruptedException;
+	}
+
+	private static final Logger logger = Logger.getLogger(SpoolingFrameOutput.class.getName());
+	
+	/** Where frames are finally written */
+	private final FrameOutput output;
+	/** Socket to close when something goes wrong */
+	private final Socket socket;
+	/** Frames that don't fit in memory */
+	private final Spool spool;
+	/** Limit of bytes queued in memory */
+	private final int memoryLimit;
+	/** Tells when output can take more frames, <code>null</code> if it blocks */
+	private final Backpressure backpressure;
+	
+	private final LinkedList<Frame> memory = new LinkedList<Frame>();
+	/** Sum of frame sizes queued in memory */
+	private int memoryBytes;
+	/** Tells if drainer is writing a frame right now */
+	private boolean writing;
+	private boolean closed;
+	
+	private final FrameDecoder decoder = new FrameDecoder(Integer.MAX_VALUE - Frame.HEADER_SIZE);
+	
+	private final Thread drainer = new Thread("SpoolDrainer") {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+	
+	public SpoolingFrameOutput(FrameOutput output, Socket socket, Spool spool, int memoryLimit) {
+		this(output, socket, spool, memoryLimit, null);
+	}
+	
+	/**
+	 * @param backpressure Tells when the output can take more frames,
+	 * <code>null</code> if writing to it blocks.
+	 */
+	public SpoolingFrameOutput(FrameOutput output, Socket socket, Spool spool, int memoryLimit, Backpressure backpressure) {
+		if (memoryLimit < 0) {
+			throw new IllegalArgumentException("memory limit cannot be negative");
+		}
+		
+		this.output = output;
+		this.socket = socket;
+		this.spool = spool;
+		this.memoryLimit = memoryLimit;
+		this.backpressure = backpressure;
+		
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.stream.frame.FrameOutput#write(pl.graniec.coralreef.network.stream.frame.Frame)
+	 */
+	public void write(Frame frame) throws IOException {
+		synchronized (this) {
+			if (closed) {
+				throw new IOException("output is closed");
+			}
+			
+			// once spilled, frames go to the spool until it's drained to keep them in order
+			if (spool.isEmpty() && memoryBytes + frame.size() <= memoryLimit) {
+				memory.add(frame);
+				memoryBytes += frame.size();
+				notifyAll();
+				return;
+			}
+			
+			try {
+				if (spool.append(frame.toByteBuffer())) {
+					notifyAll();
+					return;
+				}
+			} catch (IOException e) {
+				logger.warning("Cannot spool outgoing frame: " + e.getMessage());
+			}
+		}
+		
+		NetworkEvents.overflow("spool", spool.getMaxBytes());
+		failed("spool limit exceeded");
+		throw new IOException("spool limit exceeded");
+	}
+	
+	/**
+	 * Waits until everything queued so far is written.
+	 * 
+	 * @param timeout Time limit in milliseconds, 0 means no limit.
+	 * @return <code>true</code> if all frames were written.
+	 */
+	public synchronized boolean awaitDrained(long timeout) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + timeout;
+		
+		while (!closed && (writing || !memory.isEmpty() || !spool.isEmpty())) {
+			
+			if (timeout == 0) {
+				wait();
+				continue;
+			}
+			
+			final long left = deadline - System.currentTimeMillis();
+			
+			if (left <= 0) {
+				return false;
+			}
+			
+			wait(left);
+		}
+		
+		return !closed;
+	}
+	
+	/**
+	 * @return Number of frames waiting in the spool.
+	 */
+	public synchronized int getSpooled() {
+		return spool.size();
+	}
+	
+	/**
+	 * @return Output that frames are written to, for use after
+	 * {@link #awaitDrained(long)}.
+	 */
+	public FrameOutput getOutput() {
+		return output;
+	}
+	
+	/**
+	 * Discards all queued frames and deletes the spool files.
+	 */
+	public synchronized void close() {
+		closed = true;
+		
+		memory.clear();
+		memoryBytes = 0;
+		spool.close();
+		
+		notifyAll();
+	}
+	
+	private void drain() {
+		
+		Frame frame;
+		
+		try {
+			while (true) {
+				if (backpressure != null) {
+					// frames wait here, and in the spool, for the output to catch up
+					backpressure.awaitWritable();
+				}
+				
+				if ((frame = next()) == null) {
+					break;
+				}
+				
+				output.write(frame);
+			}
+			
+		} catch (InterruptedException e) {
+			// finish
+		} catch (IOException e) {
+			failed(e.getMessage());
+		}
+	}
+	
+	/**
+	 * @return Next frame to write or <code>null</code> if output is closed.
+	 */
+	private synchronized Frame next() throws InterruptedException, IOException {
+		
+		writing = false;
+		notifyAll();
+		
+		while (!closed) {
+			
+			if (!memory.isEmpty()) {
+				final Frame frame = memory.removeFirst();
+				memoryBytes -= frame.size();
+				
+				writing = true;
+				return frame;
+			}
+			
+			final byte[] record = spool.poll();
+			
+			if (record != null) {
+				writing = true;
+				return decoder.decode(ByteBuffer.wrap(record));
+			}
+			
+			wait();
+		}
+		
+		return null;
+	}
+	
+	private void failed(String reason) {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+		}
+		
+		logger.fine("Spooling output failed: " + reason);
+		
+		close();
+		
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// reader will notice it anyway
+		}
+	}
+}
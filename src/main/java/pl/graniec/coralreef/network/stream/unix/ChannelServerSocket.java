@@ -0,0 +1,189 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.unix;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Server socket working on top of a server socket channel that has
+ * no socket of its own, like Unix domain socket channels. Accepted
+ * connections are {@link ChannelSocket}s.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ChannelServerSocket extends ServerSocket {
+
+	private final ServerSocketChannel channel;
+	private final Selector selector;
+	
+	/** File to remove on close or <code>null</code> */
+	private final File path;
+	
+	private volatile int timeout;
+	
+	/**
+	 * @param channel Bound channel. It's switched to non-blocking mode.
+	 * @param path Socket file to delete on close, may be <code>null</code>.
+	 */
+	public ChannelServerSocket(ServerSocketChannel channel, File path) throws IOException {
+		this.channel = channel;
+		this.path = path;
+		
+		channel.configureBlocking(false);
+		
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+	
+	/*
+	 * @see java.net.ServerSocket#accept()
+	 */
+	@Override
+	public Socket accept() throws IOException {
+		synchronized (selector) {
+			final int timeout = this.timeout;
+			final long deadline = System.currentTimeMillis() + timeout;
+			
+			while (true) {
+				final SocketChannel accepted = channel.accept();
+				
+				if (accepted != null) {
+					return new ChannelSocket(accepted);
+				}
+				
+				long wait = 0;
+				
+				if (timeout > 0) {
+					wait = deadline - System.currentTimeMillis();
+					
+					if (wait <= 0) {
+						throw new SocketTimeoutException("accept timed out");
+					}
+				}
+				
+				try {
+					selector.select(wait);
+					selector.selectedKeys().clear();
+				} catch (ClosedSelectorException e) {
+					throw new SocketException("socket closed");
+				}
+				
+				if (!channel.isOpen()) {
+					throw new SocketException("socket closed");
+				}
+			}
+		}
+	}
+	
+	/*
+	 * @see java.net.ServerSocket#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			channel.close();
+			selector.close();
+		} finally {
+			if (path != null) {
+				path.delete();
+			}
+		}
+	}
+	
+	/*
+	 * @see java.net.ServerSocket#getChannel()
+	 */
+	@Override
+	public ServerSocketChannel getChannel() {
+		return null;
+	}
+	
+	/*
+	 * @see java.net.ServerSocket#getLocalPort()
+	 */
+	@Override
+	public int getLocalPort() {
+		return -1;
+	}
+	
+	/*
+	 * @see java.net.ServerSocket#getSoTimeout()
+	 */
+	@Override
+	public int getSoTimeout() {
+		return timeout;
+	}
+	
+	/*
+	 * @see java.net.ServerSocket#isBound()
+	 */
+	@Override
+	public boolean isBound() {
+		return channel.isOpen();
+	}
+	
+	/*
+	 * @see java.net.ServerSocket#isClosed()
+	 */
+	@Override
+	public boolean isClosed() {
+		return !channel.isOpen();
+	}
+	
+	/*
+	 * @see java.net.ServerSocket#setSoTimeout(int)
+	 */
+	@Override
+	public void setSoTimeout(int timeout) throws SocketException {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("timeout cannot be negative");
+		}
+		
+		this.timeout = timeout;
+	}
+	
+	/*
+	 * @see java.net.ServerSocket#toString()
+	 */
+	@Override
+	public String toString() {
+		return "ChannelServerSocket[" + path + "]";
+	}
+}
@@ -0,0 +1,303 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.unix;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Socket working on top of a socket channel that has no socket of
+ * its own, like Unix domain socket channels. Reads honor
+ * {@link #setSoTimeout(int)}, so the channel can be used everywhere
+ * a regular socket is.
+ * <p>
+ * Only methods that matter for stream connections are supported.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ChannelSocket extends Socket {
+
+	private class ChannelInputStream extends InputStream {
+		
+		@Override
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			
+			final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+			
+			synchronized (readSelector) {
+				final int timeout = ChannelSocket.this.timeout;
+				final long deadline = System.currentTimeMillis() + timeout;
+				
+				while (true) {
+					final int count = channel.read(buffer);
+					
+					if (count != 0) {
+						return count;
+					}
+					
+					long wait = 0;
+					
+					if (timeout > 0) {
+						wait = deadline - System.currentTimeMillis();
+						
+						if (wait <= 0) {
+							throw new SocketTimeoutException("read timed out");
+						}
+					}
+					
+					select(readSelector, wait);
+				}
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			ChannelSocket.this.close();
+		}
+	}
+	
+	private class ChannelOutputStream extends OutputStream {
+		
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+			
+			synchronized (writeSelector) {
+				while (buffer.hasRemaining()) {
+					if (channel.write(buffer) == 0) {
+						select(writeSelector, 0);
+					}
+				}
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			ChannelSocket.this.close();
+		}
+	}
+	
+	private final SocketChannel channel;
+	
+	/** Waits for data to read */
+	private final Selector readSelector;
+	/** Waits for space in socket buffer */
+	private final Selector writeSelector;
+	
+	private final InputStream in = new ChannelInputStream();
+	private final OutputStream out = new ChannelOutputStream();
+	
+	private volatile int timeout;
+	private volatile boolean outputShutdown;
+	
+	/**
+	 * @param channel Connected channel. It's switched to non-blocking mode.
+	 */
+	public ChannelSocket(SocketChannel channel) throws IOException {
+		this.channel = channel;
+		
+		channel.configureBlocking(false);
+		
+		readSelector = Selector.open();
+		writeSelector = Selector.open();
+		
+		channel.register(readSelector, SelectionKey.OP_READ);
+		channel.register(writeSelector, SelectionKey.OP_WRITE);
+	}
+	
+	private void select(Selector selector, long timeout) throws IOException {
+		try {
+			selector.select(timeout);
+			selector.selectedKeys().clear();
+		} catch (ClosedSelectorException e) {
+			throw new SocketException("socket closed");
+		}
+		
+		if (!channel.isOpen()) {
+			throw new SocketException("socket closed");
+		}
+	}
+	
+	/*
+	 * @see java.net.Socket#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			channel.close();
+		} finally {
+			readSelector.close();
+			writeSelector.close();
+		}
+	}
+	
+	/*
+	 * @see java.net.Socket#getChannel()
+	 */
+	@Override
+	public SocketChannel getChannel() {
+		// the channel is non-blocking, so it can't be used for blocking transfers
+		return null;
+	}
+	
+	/*
+	 * @see java.net.Socket#getInputStream()
+	 */
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return in;
+	}
+	
+	/*
+	 * @see java.net.Socket#getOutputStream()
+	 */
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return out;
+	}
+	
+	/*
+	 * @see java.net.Socket#getLocalPort()
+	 */
+	@Override
+	public int getLocalPort() {
+		return -1;
+	}
+	
+	/*
+	 * @see java.net.Socket#getPort()
+	 */
+	@Override
+	public int getPort() {
+		return 0;
+	}
+	
+	/*
+	 * @see java.net.Socket#getSoTimeout()
+	 */
+	@Override
+	public int getSoTimeout() {
+		return timeout;
+	}
+	
+	/*
+	 * @see java.net.Socket#isBound()
+	 */
+	@Override
+	public boolean isBound() {
+		return true;
+	}
+	
+	/*
+	 * @see java.net.Socket#isClosed()
+	 */
+	@Override
+	public boolean isClosed() {
+		return !channel.isOpen();
+	}
+	
+	/*
+	 * @see java.net.Socket#isConnected()
+	 */
+	@Override
+	public boolean isConnected() {
+		return true;
+	}
+	
+	/*
+	 * @see java.net.Socket#isOutputShutdown()
+	 */
+	@Override
+	public boolean isOutputShutdown() {
+		return outputShutdown;
+	}
+	
+	/*
+	 * @see java.net.Socket#setSoTimeout(int)
+	 */
+	@Override
+	public void setSoTimeout(int timeout) throws SocketException {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("timeout cannot be negative");
+		}
+		
+		this.timeout = timeout;
+	}
+	
+	/*
+	 * @see java.net.Socket#setTcpNoDelay(boolean)
+	 */
+	@Override
+	public void setTcpNoDelay(boolean on) {
+		// there's no Nagle's algorithm here
+	}
+	
+	/*
+	 * @see java.net.Socket#shutdownOutput()
+	 */
+	@Override
+	public void shutdownOutput() throws IOException {
+		synchronized (writeSelector) {
+			UnixSockets.shutdownOutput(channel);
+			outputShutdown = true;
+		}
+	}
+	
+	/*
+	 * @see java.net.Socket#toString()
+	 */
+	@Override
+	public String toString() {
+		return "ChannelSocket[" + channel + "]";
+	}
+}
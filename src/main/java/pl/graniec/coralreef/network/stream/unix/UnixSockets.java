@@ -0,0 +1,162 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.unix;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Opens Unix domain sockets. They are available since Java 16, so
+ * the runtime API is reached through reflection and this class
+ * reports {@link #isSupported()} false on older runtimes.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public final class UnixSockets {
+
+	private UnixSockets() {
+	}
+	
+	/**
+	 * @return <code>true</code> if this Java runtime can open Unix
+	 * domain sockets.
+	 */
+	public static boolean isSupported() {
+		try {
+			Class.forName("java.net.UnixDomainSocketAddress");
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Binds a new server socket to given path. The file must not
+	 * exist, and it's removed when the server socket closes.
+	 */
+	public static ChannelServerSocket bind(File path) throws IOException {
+		final SocketAddress address = address(path);
+		final ServerSocketChannel channel = (ServerSocketChannel) invoke(
+				ServerSocketChannel.class, "open", null,
+				new Class<?>[] { type("java.net.ProtocolFamily") }, unixFamily());
+		
+		try {
+			invoke(ServerSocketChannel.class, "bind", channel,
+					new Class<?>[] { SocketAddress.class }, address);
+			
+			return new ChannelServerSocket(channel, path);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Connects to a server socket bound to given path.
+	 */
+	public static ChannelSocket connect(File path) throws IOException {
+		final SocketChannel channel = SocketChannel.open(address(path));
+		
+		try {
+			return new ChannelSocket(channel);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Shuts down the sending side of a channel.
+	 */
+	static void shutdownOutput(SocketChannel channel) throws IOException {
+		invoke(SocketChannel.class, "shutdownOutput", channel, new Class<?>[0]);
+	}
+	
+	private static SocketAddress address(File path) throws IOException {
+		if (!isSupported()) {
+			throw new IOException("Unix domain sockets are not supported by this Java runtime");
+		}
+		
+		return (SocketAddress) invoke(
+				type("java.net.UnixDomainSocketAddress"), "of", null,
+				new Class<?>[] { String.class }, path.getPath());
+	}
+	
+	private static Class<?> type(String name) throws IOException {
+		try {
+			return Class.forName(name);
+		} catch (ClassNotFoundException e) {
+			final IOException ioe = new IOException("Unix domain sockets are not supported by this Java runtime");
+			ioe.initCause(e);
+			throw ioe;
+		}
+	}
+	
+	private static Object unixFamily() throws IOException {
+		try {
+			final Class<?> type = Class.forName("java.net.StandardProtocolFamily");
+			return type.getField("UNIX").get(null);
+		} catch (Exception e) {
+			final IOException ioe = new IOException("Unix domain sockets are not supported by this Java runtime");
+			ioe.initCause(e);
+			throw ioe;
+		}
+	}
+	
+	private static Object invoke(Class<?> type, String name, Object target, Class<?>[] parameters, Object... args) throws IOException {
+		try {
+			final Method method = type.getMethod(name, parameters);
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			final Throwable cause = e.getCause();
+			
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			
+			final IOException ioe = new IOException(String.valueOf(cause));
+			ioe.initCause(cause);
+			throw ioe;
+		} catch (Exception e) {
+			final IOException ioe = new IOException("cannot call " + name + ": " + e);
+			ioe.initCause(e);
+			throw ioe;
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.stream.client.ClientEngine;
+import pl.graniec.coralreef.network.stream.client.StreamClient;
+import pl.graniec.coralreef.network.stream.server.StreamRemoteClient;
+import pl.graniec.coralreef.network.stream.server.StreamServer;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class BatchPacketListenerTest {
+
+	private static final int PACKETS = 2000;
+	
+	final StreamServer server = new StreamServer();
+	
+	final List<Object> received = new ArrayList<Object>();
+	int batches;
+	
+	StreamRemoteClient remoteClient;
+	
+	final BatchPacketListener listener = new BatchPacketListener() {
+
+		public void packetsReceived(List<Object> packets) {
+			synchronized (received) {
+				received.addAll(packets);
+				++batches;
+			}
+		}
+		
+	};
+	
+	@Before
+	public void setUp() throws Exception {
+		server.setFramedProtocol(true);
+		
+		server.addConnectionListener(new ConnectionListener() {
+
+			public void clientConnected(RemoteClient client) {
+				remoteClient = (StreamRemoteClient) client;
+				remoteClient.addBatchPacketListener(listener);
+			}
+
+			public void clientDisconnected(RemoteClient client,
+					int reason, String reasonString) {
+			}
+			
+		});
+		
+		server.open(0);
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		if (server.isOpen()) {
+			server.close();
+		}
+	}
+	
+	private void assertReceived() {
+		synchronized (received) {
+			assertEquals(PACKETS, received.size());
+			
+			for (int i = 0; i < PACKETS; ++i) {
+				assertEquals(i, received.get(i));
+			}
+			
+			// many packets came at once
+			assertTrue(batches < PACKETS);
+		}
+	}
+	
+	@Test
+	public void testServer() throws Exception {
+		final StreamClient client = new StreamClient();
+		client.setFramedProtocol(true);
+		client.connect("localhost", server.getPort());
+		
+		for (int i = 0; i < PACKETS; ++i) {
+			client.send(i);
+		}
+		
+		Thread.sleep(300);
+		
+		client.disconnect();
+		
+		assertReceived();
+	}
+	
+	@Test
+	public void testClient() throws Exception {
+		final StreamClient client = new StreamClient();
+		client.setFramedProtocol(true);
+		client.addBatchPacketListener(listener);
+		client.connect("localhost", server.getPort());
+		
+		Thread.sleep(50);
+		
+		for (int i = 0; i < PACKETS; ++i) {
+			remoteClient.send(i);
+		}
+		
+		Thread.sleep(300);
+		
+		client.disconnect();
+		
+		assertReceived();
+	}
+	
+	@Test
+	public void testEngineClient() throws Exception {
+		final ClientEngine engine = new ClientEngine(1);
+		
+		try {
+			final StreamClient client = new StreamClient(engine);
+			client.addBatchPacketListener(listener);
+			client.connect("localhost", server.getPort());
+			
+			Thread.sleep(50);
+			
+			for (int i = 0; i < PACKETS; ++i) {
+				remoteClient.send(i);
+			}
+			
+			Thread.sleep(300);
+			
+			client.disconnect();
+			
+			assertReceived();
+			
+		} finally {
+			engine.shutdown();
+		}
+	}
+
+}
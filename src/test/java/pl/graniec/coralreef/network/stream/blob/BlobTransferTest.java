@@ -0,0 +1,206 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.blob;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.stream.client.StreamClient;
+import pl.graniec.coralreef.network.stream.server.StreamRemoteClient;
+import pl.graniec.coralreef.network.stream.server.StreamServer;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class BlobTransferTest {
+
+	final StreamServer server = new StreamServer();
+	final StreamClient client = new StreamClient();
+	
+	final byte[] content = new byte[300000];
+	
+	File file;
+	String receivedName;
+	byte[] receivedContent;
+	Object receivedPacket;
+	
+	StreamRemoteClient remoteClient;
+	
+	@Before
+	public void setUp() throws Exception {
+		for (int i = 0; i < content.length; ++i) {
+			content[i] = (byte) (i * 31);
+		}
+		
+		file = File.createTempFile("blob", ".bin");
+		
+		final FileOutputStream out = new FileOutputStream(file);
+		out.write(content);
+		out.close();
+		
+		server.setFramedProtocol(true);
+		client.setFramedProtocol(true);
+		
+		server.addConnectionListener(new ConnectionListener() {
+
+			public void clientConnected(RemoteClient client) {
+				remoteClient = (StreamRemoteClient) client;
+				
+				remoteClient.addBlobListener(new BlobListener() {
+
+					public void blobReceived(String name, BlobInputStream data) throws IOException {
+						final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+						final byte[] buf = new byte[4096];
+						int count;
+						
+						while ((count = data.read(buf)) != -1) {
+							bytes.write(buf, 0, count);
+						}
+						
+						receivedName = name;
+						receivedContent = bytes.toByteArray();
+					}
+					
+				});
+				
+				remoteClient.addPacketListener(new PacketListener() {
+
+					public void packetReceived(Object data) {
+						receivedPacket = data;
+					}
+					
+				});
+			}
+
+			public void clientDisconnected(RemoteClient client,
+					int reason, String reasonString) {
+			}
+			
+		});
+		
+		server.open(0);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (client.isConnected()) {
+			client.disconnect();
+		}
+		
+		if (server.isOpen()) {
+			server.close();
+		}
+		
+		file.delete();
+	}
+	
+	@Test
+	public void testSendFile() throws Exception {
+		client.connect("localhost", server.getPort());
+		
+		client.sendFile(file);
+		
+		// packets still work after the blob
+		client.send("after");
+		
+		Thread.sleep(300);
+		
+		assertEquals(file.getName(), receivedName);
+		assertTrue(Arrays.equals(content, receivedContent));
+		assertEquals("after", receivedPacket);
+	}
+	
+	@Test
+	public void testZeroCopy() throws Exception {
+		server.close();
+		server.setZeroCopyBlobs(true);
+		server.open(0);
+		
+		client.setZeroCopyBlobs(true);
+		client.connect("localhost", server.getPort());
+		
+		client.sendFile(file);
+		
+		Thread.sleep(300);
+		
+		assertEquals(file.getName(), receivedName);
+		assertTrue(Arrays.equals(content, receivedContent));
+	}
+	
+	@Test
+	public void testSaveTo() throws Exception {
+		final File target = File.createTempFile("blob", ".copy");
+		
+		client.addBlobListener(new BlobListener() {
+
+			public void blobReceived(String name, BlobInputStream data) throws IOException {
+				data.saveTo(target);
+			}
+			
+		});
+		
+		client.connect("localhost", server.getPort());
+		
+		Thread.sleep(50);
+		
+		remoteClient.sendFile(file);
+		
+		Thread.sleep(300);
+		
+		final byte[] copy = new byte[(int) target.length()];
+		final FileInputStream in = new FileInputStream(target);
+		
+		try {
+			int offset = 0;
+			while (offset < copy.length) {
+				offset += in.read(copy, offset, copy.length - offset);
+			}
+		} finally {
+			in.close();
+			target.delete();
+		}
+		
+		assertTrue(Arrays.equals(content, copy));
+	}
+
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.cache;
+
+import static org.junit.Assert.*;
+
+import java.io.Serializable;
+
+import org.junit.Test;
+
+import pl.graniec.coralreef.network.stream.frame.PacketCodec;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class EncodedCacheTest {
+
+	private static class Room implements ImmutablePacket, Serializable {
+		private static final long serialVersionUID = 1L;
+		
+		final String description;
+		
+		public Room(String description) {
+			this.description = description;
+		}
+	}
+	
+	private static class Leaderboard implements VersionedPacket, Serializable {
+		private static final long serialVersionUID = 1L;
+		
+		final long version;
+		
+		public Leaderboard(long version) {
+			this.version = version;
+		}
+		
+		public Object getPacketKey() {
+			return "leaderboard";
+		}
+		
+		public long getPacketVersion() {
+			return version;
+		}
+	}
+	
+	/**
+	 * Test method for {@link pl.graniec.coralreef.network.stream.cache.EncodedCache#encode(java.lang.Object)}.
+	 */
+	@Test
+	public void testEncode() throws Exception {
+		final EncodedCache cache = new EncodedCache(10000);
+		
+		final Room room = new Room("a dark cave");
+		final byte[] first = cache.encode(room);
+		
+		assertSame(first, cache.encode(room));
+		
+		// equal content but different instance
+		assertNotSame(first, cache.encode(new Room("a dark cave")));
+		
+		assertSame(cache.encode(new Leaderboard(1)), cache.encode(new Leaderboard(1)));
+		assertNotSame(cache.encode(new Leaderboard(1)), cache.encode(new Leaderboard(2)));
+		
+		// not cached at all
+		cache.encode("plain");
+		
+		assertEquals(3, cache.getHits());
+		assertEquals(4, cache.getMisses());
+		assertEquals(4, cache.size());
+		
+		assertEquals("a dark cave", ((Room) PacketCodec.decode(first)).description);
+	}
+	
+	/**
+	 * Test method for {@link pl.graniec.coralreef.network.stream.cache.EncodedCache#encode(java.lang.Object)}.
+	 */
+	@Test
+	public void testEviction() throws Exception {
+		final Room first = new Room("first");
+		final Room second = new Room("second");
+		
+		final int size = PacketCodec.encode(first).length;
+		final EncodedCache cache = new EncodedCache(size * 2 + 1);
+		
+		final byte[] encoded = cache.encode(first);
+		cache.encode(second);
+		
+		// first is now the most recently used
+		cache.encode(first);
+		cache.encode(new Room("third"));
+		
+		assertEquals(1, cache.getEvictions());
+		assertTrue(cache.getBytes() <= size * 2 + 1);
+		
+		assertSame(encoded, cache.encode(first));
+		
+		final long misses = cache.getMisses();
+		cache.encode(second);
+		assertEquals(misses + 1, cache.getMisses());
+	}
+
+}
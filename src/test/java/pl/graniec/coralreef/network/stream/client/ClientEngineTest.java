@@ -0,0 +1,253 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.client;
+
+import static org.junit.Assert.*;
+
+import java.io.NotSerializableException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.exceptions.NetworkException;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.stream.server.StreamServer;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ClientEngineTest {
+
+	private static final int CLIENTS = 50;
+	
+	final StreamServer server = new StreamServer();
+	ClientEngine engine;
+	
+	final AtomicInteger connections = new AtomicInteger();
+	final AtomicInteger disconnections = new AtomicInteger();
+	final AtomicInteger echoes = new AtomicInteger();
+	
+	@Before
+	public void setUp() throws Exception {
+		engine = new ClientEngine(2);
+		
+		server.setFramedProtocol(true);
+		server.addConnectionListener(new ConnectionListener() {
+
+			public void clientConnected(final RemoteClient client) {
+				connections.incrementAndGet();
+				
+				// echo everything back
+				client.addPacketListener(new PacketListener() {
+
+					public void packetReceived(Object data) {
+						try {
+							client.send(data);
+						} catch (NotSerializableException e) {
+							fail(e.getMessage());
+						} catch (NetworkException e) {
+							fail(e.getMessage());
+						}
+					}
+					
+				});
+			}
+
+			public void clientDisconnected(RemoteClient client,
+					int reason, String reasonString) {
+				disconnections.incrementAndGet();
+			}
+			
+		});
+		
+		server.open(0);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		engine.shutdown();
+		
+		if (server.isOpen()) {
+			server.close();
+		}
+	}
+
+	/**
+	 * Test method for {@link pl.graniec.coralreef.network.stream.client.StreamClient#connectAsync(java.lang.String, int)}.
+	 */
+	@Test
+	public void testConnectAsync() throws Exception {
+		final List<StreamClient> clients = new ArrayList<StreamClient>();
+		final List<Future<StreamClient>> futures = new ArrayList<Future<StreamClient>>();
+		
+		for (int i = 0; i < CLIENTS; ++i) {
+			final StreamClient client = new StreamClient(engine);
+			
+			client.addPacketListener(new PacketListener() {
+
+				public void packetReceived(Object data) {
+					assertEquals("ping", data);
+					echoes.incrementAndGet();
+				}
+				
+			});
+			
+			clients.add(client);
+			futures.add(client.connectAsync("localhost", server.getPort()));
+		}
+		
+		for (Future<StreamClient> future : futures) {
+			assertTrue(future.get(5, TimeUnit.SECONDS).isConnected());
+		}
+		
+		assertEquals(CLIENTS, engine.getConnectionCount());
+		
+		for (StreamClient client : clients) {
+			client.send("ping");
+		}
+		
+		Thread.sleep(200);
+		
+		assertEquals(CLIENTS, connections.get());
+		assertEquals(CLIENTS, echoes.get());
+		
+		for (StreamClient client : clients) {
+			client.disconnect();
+		}
+		
+		Thread.sleep(300);
+		
+		assertEquals(CLIENTS, disconnections.get());
+		assertEquals(0, engine.getConnectionCount());
+	}
+	
+	@Test
+	public void testConnectRefused() throws Exception {
+		final int port = server.getPort();
+		server.close();
+		
+		final StreamClient client = new StreamClient(engine);
+		
+		try {
+			client.connect("localhost", port);
+			fail("connected to closed server");
+		} catch (NetworkException e) {
+			// expected
+		}
+		
+		assertFalse(client.isConnected());
+	}
+	
+	@Test
+	public void testConnectUnknownHost() throws Exception {
+		final StreamClient client = new StreamClient(engine);
+		
+		try {
+			client.connectAsync("no.such.host.invalid", server.getPort()).get();
+			fail("connected to unknown host");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof NetworkException);
+		}
+		
+		// the failed attempt doesn't stay in the way
+		client.connect("localhost", server.getPort());
+		
+		assertTrue(client.isConnected());
+		
+		client.disconnect();
+	}
+	
+	@Test
+	public void testWriteLimit() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		
+		// server stops reading after the first packet
+		server.addConnectionListener(new ConnectionListener() {
+
+			public void clientConnected(RemoteClient client) {
+				client.addPacketListener(new PacketListener() {
+
+					public void packetReceived(Object data) {
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							e.printStackTrace();
+						}
+					}
+					
+				});
+			}
+
+			public void clientDisconnected(RemoteClient client,
+					int reason, String reasonString) {
+			}
+			
+		});
+		
+		engine.setWriteLimit(64 * 1024);
+		
+		final StreamClient client = new StreamClient(engine);
+		client.connect("localhost", server.getPort());
+		
+		// random data doesn't compress
+		final byte[] data = new byte[8 * 1024];
+		new Random().nextBytes(data);
+		
+		try {
+			for (int i = 0; i < 2000 && client.isConnected(); ++i) {
+				try {
+					client.send(data);
+				} catch (IllegalStateException e) {
+					// disconnected in the meantime
+				}
+			}
+			
+			for (int i = 0; i < 20 && client.isConnected(); ++i) {
+				Thread.sleep(100);
+			}
+			
+			assertFalse(client.isConnected());
+		} finally {
+			release.countDown();
+		}
+	}
+
+}
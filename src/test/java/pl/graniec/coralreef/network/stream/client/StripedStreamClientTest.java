@@ -0,0 +1,222 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.client;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.exceptions.NetworkException;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.stream.server.StreamServer;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class StripedStreamClientTest {
+
+	final StreamServer server = new StreamServer();
+	final StripedStreamClient client = new StripedStreamClient(4);
+	
+	final List<RemoteClient> remoteClients = new ArrayList<RemoteClient>();
+	/** Received values by key */
+	final Map<String, List<Integer>> received = new HashMap<String, List<Integer>>();
+	
+	@Before
+	public void setUp() throws Exception {
+		server.addConnectionListener(new ConnectionListener() {
+
+			public void clientConnected(RemoteClient client) {
+				synchronized (remoteClients) {
+					remoteClients.add(client);
+				}
+				
+				client.addPacketListener(new PacketListener() {
+
+					public void packetReceived(Object data) {
+						final String[] parts = ((String) data).split(":");
+						
+						synchronized (received) {
+							List<Integer> values = received.get(parts[0]);
+							
+							if (values == null) {
+								values = new ArrayList<Integer>();
+								received.put(parts[0], values);
+							}
+							
+							values.add(Integer.valueOf(parts[1]));
+						}
+					}
+					
+				});
+			}
+
+			public void clientDisconnected(RemoteClient client,
+					int reason, String reasonString) {
+			}
+			
+		});
+		
+		server.open(0);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (client.isConnected()) {
+			client.disconnect();
+		}
+		
+		if (server.isOpen()) {
+			server.close();
+		}
+	}
+
+	/**
+	 * Test method for {@link pl.graniec.coralreef.network.stream.client.StripedStreamClient#send(java.lang.Object, java.lang.Object)}.
+	 */
+	@Test
+	public void testSend() throws Exception {
+		client.connect("localhost", server.getPort());
+		
+		Thread.sleep(50);
+		
+		synchronized (remoteClients) {
+			assertEquals(4, remoteClients.size());
+		}
+		
+		final String[] keys = {"a", "b", "c", "d", "e"};
+		
+		for (int i = 0; i < 100; ++i) {
+			for (String key : keys) {
+				client.send(key, key + ":" + i);
+			}
+		}
+		
+		Thread.sleep(200);
+		
+		synchronized (received) {
+			for (String key : keys) {
+				final List<Integer> values = received.get(key);
+				
+				assertEquals(100, values.size());
+				
+				for (int i = 0; i < 100; ++i) {
+					assertEquals(i, values.get(i).intValue());
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testPartialConnectFailure() throws Exception {
+		final AtomicInteger connections = new AtomicInteger();
+		final AtomicInteger disconnections = new AtomicInteger();
+		
+		client.addConnectionListener(new pl.graniec.coralreef.network.client.ConnectionListener() {
+
+			public void clientConnected() {
+				connections.incrementAndGet();
+			}
+
+			public void clientDisconnected(int reason, String reasonString) {
+				disconnections.incrementAndGet();
+			}
+			
+		});
+		
+		// takes three connections, drops the fourth one and then the others
+		final ServerSocket socket = new ServerSocket(0);
+		
+		final Thread acceptor = new Thread() {
+			/*
+			 * @see java.lang.Thread#run()
+			 */
+			@Override
+			public void run() {
+				final List<Socket> accepted = new ArrayList<Socket>();
+				
+				try {
+					for (int i = 0; i < 3; ++i) {
+						final Socket s = socket.accept();
+						new ObjectOutputStream(s.getOutputStream()).flush();
+						accepted.add(s);
+					}
+					
+					socket.accept().close();
+					
+					// while the client is rolling back
+					Thread.sleep(50);
+					
+					for (Socket s : accepted) {
+						s.close();
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		
+		acceptor.start();
+		
+		try {
+			client.connect("localhost", socket.getLocalPort());
+			fail("connected with a stripe missing");
+		} catch (NetworkException e) {
+			// expected
+		}
+		
+		acceptor.join();
+		
+		Thread.sleep(200);
+		
+		assertFalse(client.isConnected());
+		assertEquals(0, connections.get());
+		assertEquals(0, disconnections.get());
+		
+		socket.close();
+	}
+
+}
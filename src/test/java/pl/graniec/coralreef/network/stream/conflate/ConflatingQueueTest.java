@@ -0,0 +1,205 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.conflate;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.stream.client.StreamClient;
+import pl.graniec.coralreef.network.stream.server.StreamRemoteClient;
+import pl.graniec.coralreef.network.stream.server.StreamServer;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ConflatingQueueTest {
+
+	final StreamServer server = new StreamServer();
+	final StreamClient client = new StreamClient();
+	
+	final List<Object> received = new ArrayList<Object>();
+	
+	volatile StreamRemoteClient remote;
+	
+	@After
+	public void tearDown() throws Exception {
+		if (client.isConnected()) {
+			client.disconnect();
+		}
+		
+		if (server.isOpen()) {
+			server.close();
+		}
+	}
+	
+	@Test
+	public void testQueue() throws Exception {
+		final ConflatingQueue queue = new ConflatingQueue(10);
+		
+		queue.offer("a", new byte[] { 1 });
+		queue.offer(null, new byte[] { 2 });
+		queue.offer("b", new byte[] { 3 });
+		queue.offer("a", new byte[] { 4, 4 });
+		queue.offer(null, new byte[] { 5 });
+		
+		assertEquals(4, queue.size());
+		assertEquals(5, queue.getBytes());
+		assertEquals(1, queue.getConflated());
+		
+		// replaced in place
+		assertArrayEquals(new byte[] { 4, 4 }, queue.take());
+		assertArrayEquals(new byte[] { 2 }, queue.take());
+		assertArrayEquals(new byte[] { 3 }, queue.take());
+		
+		// taken packet is not replaced anymore
+		queue.offer("a", new byte[] { 6 });
+		
+		assertArrayEquals(new byte[] { 5 }, queue.take());
+		assertArrayEquals(new byte[] { 6 }, queue.take());
+		assertEquals(0, queue.getBytes());
+		
+		queue.close();
+		assertNull(queue.take());
+	}
+	
+	@Test
+	public void testLimit() throws Exception {
+		final ConflatingQueue queue = new ConflatingQueue(4);
+		
+		queue.offer("a", new byte[3]);
+		
+		final Thread sender = new Thread() {
+			@Override
+			public void run() {
+				try {
+					queue.offer(null, new byte[3]);
+				} catch (InterruptedException e) {
+					fail();
+				}
+			}
+		};
+		
+		sender.start();
+		Thread.sleep(100);
+		
+		// no room for the second packet, but replacing needs none
+		assertTrue(sender.isAlive());
+		queue.offer("a", new byte[2]);
+		
+		assertEquals(2, queue.take().length);
+		assertFalse(queue.awaitDrained(50));
+		
+		sender.join(1000);
+		assertFalse(sender.isAlive());
+		assertEquals(3, queue.take().length);
+	}
+	
+	@Test
+	public void testSlowClient() throws Exception {
+		server.setConflation(true);
+		server.addConnectionListener(new ConnectionListener() {
+
+			public void clientConnected(RemoteClient client) {
+				remote = (StreamRemoteClient) client;
+			}
+
+			public void clientDisconnected(RemoteClient client,
+					int reason, String reasonString) {
+			}
+			
+		});
+		
+		server.open(0);
+		
+		// listener takes its time, so credits come slowly
+		client.setReceiveWindow(2);
+		client.addPacketListener(new PacketListener() {
+
+			public void packetReceived(Object data) {
+				synchronized (received) {
+					received.add(data);
+				}
+				
+				try {
+					Thread.sleep(5);
+				} catch (InterruptedException e) {
+					// finish
+				}
+			}
+			
+		});
+		
+		client.connect("localhost", server.getPort());
+		Thread.sleep(100);
+		
+		for (int i = 0; i < 200; ++i) {
+			remote.sendConflated("ship", i);
+			
+			if (i % 50 == 0) {
+				remote.send("chat " + i);
+			}
+		}
+		
+		Thread.sleep(500);
+		
+		synchronized (received) {
+			final List<Object> chat = new ArrayList<Object>();
+			int positions = 0;
+			int last = -1;
+			
+			for (Object o : received) {
+				if (o instanceof String) {
+					chat.add(o);
+				} else {
+					assertTrue((Integer) o > last);
+					last = (Integer) o;
+					++positions;
+				}
+			}
+			
+			assertEquals(4, chat.size());
+			assertEquals("chat 0", chat.get(0));
+			assertEquals("chat 150", chat.get(3));
+			
+			// the latest update always comes
+			assertEquals(199, last);
+			assertTrue(positions < 100);
+			assertEquals(200 - positions, remote.getConflatedPackets());
+		}
+	}
+}
@@ -0,0 +1,310 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.decode;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Test;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.stream.client.StreamClient;
+import pl.graniec.coralreef.network.stream.server.StreamServer;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class OrderedDecoderTest {
+
+	final ExecutorService executor = Executors.newFixedThreadPool(4);
+	
+	final StreamServer server = new StreamServer();
+	final StreamClient client = new StreamClient();
+	
+	final List<Object> received = new ArrayList<Object>();
+	final List<String> threads = new ArrayList<String>();
+	
+	@After
+	public void tearDown() throws Exception {
+		executor.shutdown();
+		
+		if (client.isConnected()) {
+			client.disconnect();
+		}
+		
+		if (server.isOpen()) {
+			server.close();
+		}
+	}
+	
+	@Test
+	public void testOrder() throws Exception {
+		final OrderedDecoder decoder = new OrderedDecoder(executor, new OrderedDecoder.Output() {
+			
+			public void decoded(List<Object> packets) {
+				synchronized (received) {
+					received.addAll(packets);
+				}
+			}
+			
+		}, 16);
+		
+		final Random random = new Random(7);
+		
+		for (int i = 0; i < 100; ++i) {
+			final int packet = i;
+			final int delay = random.nextInt(3);
+			
+			decoder.add(new Callable<Object>() {
+				
+				public Object call() throws Exception {
+					Thread.sleep(delay);
+					
+					if (packet % 10 == 5) {
+						throw new Exception("broken packet");
+					}
+					
+					return packet % 10 == 9 ? null : packet;
+				}
+				
+			});
+			
+			assertTrue(decoder.getPending() <= 16);
+		}
+		
+		decoder.await();
+		
+		assertEquals(0, decoder.getPending());
+		
+		synchronized (received) {
+			// broken and skipped packets are not passed
+			assertEquals(80, received.size());
+			
+			int previous = -1;
+			
+			for (Object o : received) {
+				final int packet = (Integer) o;
+				
+				assertTrue(packet > previous);
+				assertTrue(packet % 10 != 5 && packet % 10 != 9);
+				
+				previous = packet;
+			}
+		}
+		
+		executor.shutdown();
+		
+		// decoded right away once the executor is gone
+		decoder.add(new Callable<Object>() {
+			
+			public Object call() throws Exception {
+				return 100;
+			}
+			
+		});
+		
+		synchronized (received) {
+			assertEquals(100, received.get(received.size() - 1));
+		}
+	}
+	
+	@Test
+	public void testNoWait() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		
+		final OrderedDecoder decoder = new OrderedDecoder(executor, new OrderedDecoder.Output() {
+			
+			public void decoded(List<Object> packets) {
+				synchronized (received) {
+					received.addAll(packets);
+				}
+			}
+			
+		}, 2);
+		
+		for (int i = 0; i < 3; ++i) {
+			final int packet = i;
+			
+			decoder.add(new Callable<Object>() {
+				
+				public Object call() throws Exception {
+					release.await();
+					return packet;
+				}
+				
+			}, false);
+		}
+		
+		// went past the limit without waiting
+		assertTrue(decoder.isFull());
+		assertEquals(3, decoder.getPending());
+		
+		release.countDown();
+		decoder.await();
+		
+		assertFalse(decoder.isFull());
+		
+		synchronized (received) {
+			assertEquals(3, received.size());
+		}
+	}
+	
+	@Test
+	public void testCompletion() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<Integer> seenByCompletion = new ArrayList<Integer>();
+		
+		final OrderedDecoder decoder = new OrderedDecoder(executor, new OrderedDecoder.Output() {
+			
+			public void decoded(List<Object> packets) {
+				synchronized (received) {
+					received.addAll(packets);
+				}
+			}
+			
+		}, 4);
+		
+		for (int i = 0; i < 2; ++i) {
+			final int packet = i;
+			
+			decoder.add(new Callable<Object>() {
+				
+				public Object call() throws Exception {
+					release.await();
+					return packet;
+				}
+				
+			});
+		}
+		
+		// doesn't wait for the packets before it
+		decoder.addCompletion(new Runnable() {
+			
+			public void run() {
+				synchronized (received) {
+					seenByCompletion.add(received.size());
+				}
+			}
+			
+		});
+		
+		decoder.add(new Callable<Object>() {
+			
+			public Object call() throws Exception {
+				return 2;
+			}
+			
+		});
+		
+		synchronized (received) {
+			assertTrue(received.isEmpty());
+			assertTrue(seenByCompletion.isEmpty());
+		}
+		
+		release.countDown();
+		decoder.await();
+		
+		synchronized (received) {
+			assertEquals(3, received.size());
+			assertEquals(1, seenByCompletion.size());
+			assertEquals(2, (int) seenByCompletion.get(0));
+		}
+	}
+	
+	private void receive() throws Exception {
+		server.setDecoderThreads(4);
+		
+		server.addConnectionListener(new ConnectionListener() {
+
+			public void clientConnected(RemoteClient client) {
+				client.addPacketListener(new PacketListener() {
+
+					public void packetReceived(Object data) {
+						synchronized (received) {
+							received.add(data);
+							threads.add(Thread.currentThread().getName());
+						}
+					}
+					
+				});
+			}
+
+			public void clientDisconnected(RemoteClient client,
+					int reason, String reasonString) {
+			}
+			
+		});
+		
+		server.open(0);
+		
+		client.setFramedProtocol(true);
+		client.connect("localhost", server.getPort());
+		
+		for (int i = 0; i < 200; ++i) {
+			// big packets take longer to decode than small ones
+			client.send(i % 20 == 0 ? new int[10000 + i] : new int[i]);
+		}
+		
+		Thread.sleep(500);
+		
+		synchronized (received) {
+			assertEquals(200, received.size());
+			
+			for (int i = 0; i < 200; ++i) {
+				assertEquals(i % 20 == 0 ? 10000 + i : i, ((int[]) received.get(i)).length);
+			}
+			
+			for (String thread : threads) {
+				assertTrue(thread.startsWith("StreamServer-decoder-"));
+			}
+		}
+	}
+	
+	@Test
+	public void testReceive() throws Exception {
+		receive();
+	}
+	
+	@Test
+	public void testReceiveSharded() throws Exception {
+		server.setShards(2);
+		receive();
+	}
+}
@@ -0,0 +1,411 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.flow;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.stream.client.StreamClient;
+import pl.graniec.coralreef.network.stream.serial.ClassFilter;
+import pl.graniec.coralreef.network.stream.server.StreamGroup;
+import pl.graniec.coralreef.network.stream.server.StreamRemoteClient;
+import pl.graniec.coralreef.network.stream.server.StreamServer;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class FlowControlTest {
+
+	private static final int WINDOW = 10;
+	
+	final StreamServer server = new StreamServer();
+	final StreamClient client = new StreamClient();
+	
+	final List<Object> received = new ArrayList<Object>();
+	final CountDownLatch release = new CountDownLatch(1);
+	
+	StreamRemoteClient remoteClient;
+	
+	/** Packets that client's send has returned for */
+	volatile int sent;
+	/** Most packets sent but not consumed */
+	volatile int maxPending;
+	
+	final PacketListener slowListener = new PacketListener() {
+
+		public void packetReceived(Object data) {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				return;
+			}
+			
+			synchronized (received) {
+				received.add(data);
+				maxPending = Math.max(maxPending, sent - received.size());
+			}
+		}
+		
+	};
+	
+	@Before
+	public void setUp() throws Exception {
+		server.setReceiveWindow(WINDOW);
+		
+		server.addConnectionListener(new ConnectionListener() {
+
+			public void clientConnected(RemoteClient client) {
+				remoteClient = (StreamRemoteClient) client;
+				client.addPacketListener(slowListener);
+			}
+
+			public void clientDisconnected(RemoteClient client,
+					int reason, String reasonString) {
+			}
+			
+		});
+		
+		server.open(0);
+		client.setFramedProtocol(true);
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		release.countDown();
+		
+		if (client.isConnected()) {
+			client.disconnect();
+		}
+		
+		if (server.isOpen()) {
+			server.close();
+		}
+	}
+	
+	private void connect() throws Exception {
+		client.connect("localhost", server.getPort());
+		
+		// initial credits
+		Thread.sleep(100);
+		assertEquals(WINDOW, client.getSendCredits());
+	}
+	
+	private void assertReceived(int count) {
+		synchronized (received) {
+			assertEquals(count, received.size());
+			
+			for (int i = 0; i < count; ++i) {
+				assertEquals(i, received.get(i));
+			}
+		}
+	}
+	
+	@Test
+	public void testBlock() throws Exception {
+		connect();
+		
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					// release anyway
+				}
+				
+				release.countDown();
+			}
+		}.start();
+		
+		for (int i = 0; i < 500; ++i) {
+			client.send(i);
+			++sent;
+		}
+		
+		Thread.sleep(200);
+		
+		assertReceived(500);
+		assertTrue(maxPending <= WINDOW);
+	}
+	
+	@Test
+	public void testFail() throws Exception {
+		client.setSendPolicy(CreditPolicy.FAIL, 0);
+		connect();
+		
+		for (int i = 0; i < WINDOW; ++i) {
+			client.send(i);
+		}
+		
+		try {
+			client.send(WINDOW);
+			fail("there are no credits left");
+		} catch (NoCreditException e) {
+			// expected
+		}
+		
+		release.countDown();
+		Thread.sleep(200);
+		
+		assertReceived(WINDOW);
+		
+		// consumed packets gave new credits
+		assertEquals(WINDOW, client.getSendCredits());
+	}
+	
+	@Test
+	public void testQueue() throws Exception {
+		client.setSendPolicy(CreditPolicy.QUEUE, 1024 * 1024);
+		connect();
+		
+		for (int i = 0; i < 100; ++i) {
+			client.send(i);
+		}
+		
+		assertEquals(90, client.getSendQueueSize());
+		
+		release.countDown();
+		Thread.sleep(300);
+		
+		assertEquals(0, client.getSendQueueSize());
+		assertReceived(100);
+	}
+	
+	@Test
+	public void testServerSending() throws Exception {
+		final List<Object> clientReceived = new ArrayList<Object>();
+		
+		client.setReceiveWindow(WINDOW);
+		client.addPacketListener(new PacketListener() {
+
+			public void packetReceived(Object data) {
+				synchronized (clientReceived) {
+					clientReceived.add(data);
+				}
+			}
+			
+		});
+		
+		client.connect("localhost", server.getPort());
+		
+		Thread.sleep(100);
+		assertEquals(WINDOW, remoteClient.getSendCredits());
+		
+		for (int i = 0; i < 100; ++i) {
+			remoteClient.send(i);
+		}
+		
+		Thread.sleep(200);
+		
+		synchronized (clientReceived) {
+			assertEquals(100, clientReceived.size());
+		}
+		
+		// flow control doesn't break disconnection
+		client.disconnect();
+		Thread.sleep(100);
+		assertFalse(remoteClient.isConnected());
+	}
+	
+	@Test
+	public void testReplyFromListener() throws Exception {
+		final List<Object> replies = new ArrayList<Object>();
+		
+		client.setReceiveWindow(4);
+		client.addPacketListener(new PacketListener() {
+
+			public void packetReceived(Object data) {
+				try {
+					Thread.sleep(5);
+				} catch (InterruptedException e) {
+					return;
+				}
+				
+				synchronized (replies) {
+					replies.add(data);
+				}
+			}
+			
+		});
+		
+		release.countDown();
+		connect();
+		
+		// replies are sent by the thread that reads the credits
+		remoteClient.addPacketListener(new PacketListener() {
+
+			public void packetReceived(Object data) {
+				try {
+					remoteClient.send(data);
+				} catch (Exception e) {
+					fail(e.getMessage());
+				}
+			}
+			
+		});
+		
+		for (int i = 0; i < 40; ++i) {
+			client.send(i);
+		}
+		
+		Thread.sleep(1000);
+		
+		synchronized (replies) {
+			assertEquals(40, replies.size());
+			
+			for (int i = 0; i < 40; ++i) {
+				assertEquals(i, replies.get(i));
+			}
+		}
+		
+		assertReceived(40);
+	}
+	
+	@Test
+	public void testRejectedPackets() throws Exception {
+		server.close();
+		server.setClassFilter(new ClassFilter());
+		server.open(0);
+		
+		release.countDown();
+		connect();
+		
+		final Thread sender = new Thread() {
+			@Override
+			public void run() {
+				try {
+					// rejected packets give their credits back too
+					for (int i = 0; i < 3 * WINDOW; ++i) {
+						client.send(new Date());
+					}
+					
+					client.send(0);
+				} catch (Exception e) {
+					fail(e.getMessage());
+				}
+			}
+		};
+		
+		sender.start();
+		sender.join(2000);
+		
+		assertFalse(sender.isAlive());
+		
+		Thread.sleep(200);
+		
+		assertReceived(1);
+	}
+	
+	@Test
+	public void testGroupSend() throws Exception {
+		final List<Object> slowReceived = new ArrayList<Object>();
+		final List<Object> fastReceived = new ArrayList<Object>();
+		
+		client.setReceiveWindow(2);
+		client.addPacketListener(new PacketListener() {
+
+			public void packetReceived(Object data) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				
+				synchronized (slowReceived) {
+					slowReceived.add(data);
+				}
+			}
+			
+		});
+		
+		client.connect("localhost", server.getPort());
+		Thread.sleep(100);
+		
+		final StreamRemoteClient slow = remoteClient;
+		
+		final StreamClient fastClient = new StreamClient();
+		fastClient.setFramedProtocol(true);
+		fastClient.addPacketListener(new PacketListener() {
+
+			public void packetReceived(Object data) {
+				synchronized (fastReceived) {
+					fastReceived.add(data);
+				}
+			}
+			
+		});
+		
+		fastClient.connect("localhost", server.getPort());
+		Thread.sleep(100);
+		
+		try {
+			final StreamGroup group = server.createGroup("room");
+			
+			group.join(slow);
+			group.join(remoteClient);
+			
+			// the slow member's packets wait in its queue, not the sender
+			for (int i = 0; i < 50; ++i) {
+				group.send(i);
+			}
+			
+			Thread.sleep(200);
+			
+			synchronized (fastReceived) {
+				assertEquals(50, fastReceived.size());
+			}
+			
+			release.countDown();
+			Thread.sleep(300);
+			
+			synchronized (slowReceived) {
+				assertEquals(50, slowReceived.size());
+				
+				for (int i = 0; i < 50; ++i) {
+					assertEquals(i, slowReceived.get(i));
+				}
+			}
+		} finally {
+			fastClient.disconnect();
+		}
+	}
+
+}
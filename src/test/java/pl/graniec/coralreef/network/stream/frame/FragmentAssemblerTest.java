@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.frame;
+
+import static org.junit.Assert.*;
+
+import java.io.StreamCorruptedException;
+
+import org.junit.Test;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class FragmentAssemblerTest {
+
+	private static byte[] message(int length, int seed) {
+		final byte[] message = new byte[length];
+		
+		for (int i = 0; i < length; ++i) {
+			message[i] = (byte) (i * seed);
+		}
+		
+		return message;
+	}
+	
+	/**
+	 * Test method for {@link pl.graniec.coralreef.network.stream.frame.FragmentAssembler#add(byte[])}.
+	 */
+	@Test
+	public void testInterleaved() throws Exception {
+		final FragmentAssembler assembler = new FragmentAssembler();
+		
+		final byte[] first = message(1000, 3);
+		final byte[] second = message(700, 7);
+		
+		assertNull(assembler.add(FragmentAssembler.createFragment(1, first, 0, 400)));
+		assertNull(assembler.add(FragmentAssembler.createFragment(2, second, 0, 400)));
+		assertNull(assembler.add(FragmentAssembler.createFragment(1, first, 400, 400)));
+		
+		assertEquals(2, assembler.getPartialCount());
+		
+		assertArrayEquals(second, assembler.add(FragmentAssembler.createFragment(2, second, 400, 300)));
+		assertArrayEquals(first, assembler.add(FragmentAssembler.createFragment(1, first, 800, 200)));
+		
+		assertEquals(0, assembler.getPartialCount());
+	}
+	
+	/**
+	 * Test method for {@link pl.graniec.coralreef.network.stream.frame.FragmentAssembler#add(byte[])}.
+	 */
+	@Test
+	public void testMaxMessageSize() throws Exception {
+		final FragmentAssembler assembler = new FragmentAssembler(500);
+		final byte[] message = message(1000, 5);
+		
+		assertNull(assembler.add(FragmentAssembler.createFragment(1, message, 0, 500)));
+		assertNull(assembler.add(FragmentAssembler.createFragment(1, message, 500, 500)));
+		
+		assertEquals(0, assembler.getPartialCount());
+	}
+
+	
+	@Test
+	public void testOutOfOrder() throws Exception {
+		final FragmentAssembler assembler = new FragmentAssembler();
+		final byte[] message = message(1000, 3);
+		
+		assertNull(assembler.add(FragmentAssembler.createFragment(1, message, 0, 400)));
+		
+		try {
+			// counting it twice would complete the message with a hole
+			assembler.add(FragmentAssembler.createFragment(1, message, 0, 400));
+			fail("fragment repeated");
+		} catch (StreamCorruptedException e) {
+			// expected
+		}
+		
+		try {
+			assembler.add(FragmentAssembler.createFragment(2, message, 400, 400));
+			fail("message doesn't start with its first fragment");
+		} catch (StreamCorruptedException e) {
+			// expected
+		}
+	}
+	
+	@Test
+	public void testBufferedLimit() throws Exception {
+		final FragmentAssembler assembler = new FragmentAssembler(100 * 1000 * 1000, 1500);
+		
+		// announced length takes no memory yet
+		final byte[] huge = new byte[100 * 1000 * 1000];
+		assertNull(assembler.add(FragmentAssembler.createFragment(1, huge, 0, 10)));
+		
+		final byte[] first = message(1000, 3);
+		final byte[] second = message(1000, 7);
+		
+		assertNull(assembler.add(FragmentAssembler.createFragment(2, first, 0, 400)));
+		assertNull(assembler.add(FragmentAssembler.createFragment(3, second, 0, 400)));
+		assertNull(assembler.add(FragmentAssembler.createFragment(2, first, 400, 400)));
+		
+		try {
+			assembler.add(FragmentAssembler.createFragment(3, second, 400, 400));
+			fail("both messages don't fit in the limit");
+		} catch (StreamCorruptedException e) {
+			// expected
+		}
+		
+		assertArrayEquals(first, assembler.add(FragmentAssembler.createFragment(2, first, 800, 200)));
+	}
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.handshake;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.stream.client.StreamClient;
+import pl.graniec.coralreef.network.stream.frame.Compression;
+import pl.graniec.coralreef.network.stream.server.StreamRemoteClient;
+import pl.graniec.coralreef.network.stream.server.StreamServer;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class CapabilitiesTest {
+
+	final StreamServer server = new StreamServer();
+	final StreamClient client = new StreamClient();
+	
+	final List<Object> received = new ArrayList<Object>();
+	
+	volatile StreamRemoteClient remote;
+	
+	@After
+	public void tearDown() throws Exception {
+		if (client.isConnected()) {
+			client.disconnect();
+		}
+		
+		if (server.isOpen()) {
+			server.close();
+		}
+	}
+	
+	@Test
+	public void testNegotiate() throws Exception {
+		final Capabilities local = new Capabilities(
+				Capabilities.CODEC_SERIALIZATION, Capabilities.COMPRESSION_DEFLATE, 0, 65536);
+		final Capabilities remote = new Capabilities(
+				Capabilities.CODEC_SERIALIZATION | 0x02, 0, 5000, 4096);
+		
+		final Capabilities agreed = local.negotiate(Capabilities.fromBytes(remote.toBytes()));
+		
+		assertEquals(Capabilities.CODEC_SERIALIZATION, agreed.getCodecs());
+		assertFalse(agreed.isCompressed());
+		assertEquals(5000, agreed.getHeartbeat());
+		assertEquals(4096, agreed.getMaxFrameSize());
+		
+		try {
+			local.negotiate(new Capabilities(0x02, 0, 0, 4096));
+			fail("no common codec");
+		} catch (IOException e) {
+			// expected
+		}
+		
+		try {
+			Capabilities.fromBytes(new byte[] { 1, 1, Capabilities.VERSION });
+			fail("truncated");
+		} catch (StreamCorruptedException e) {
+			// expected
+		}
+	}
+	
+	@Test
+	public void testCompression() throws Exception {
+		assertNull(Compression.compress(new byte[16]));
+		
+		final byte[] data = new byte[4096];
+		final byte[] compressed = Compression.compress(data);
+		
+		assertTrue(compressed.length < data.length);
+		assertArrayEquals(data, Compression.decompress(compressed, data.length));
+		
+		try {
+			Compression.decompress(compressed, data.length - 1);
+			fail("over the limit");
+		} catch (StreamCorruptedException e) {
+			// expected
+		}
+	}
+	
+	@Test
+	public void testHandshake() throws Exception {
+		server.setCompression(true);
+		server.setMaxFrameSize(8192);
+		
+		server.addConnectionListener(new ConnectionListener() {
+
+			public void clientConnected(final RemoteClient client) {
+				remote = (StreamRemoteClient) client;
+				
+				client.addPacketListener(new PacketListener() {
+
+					public void packetReceived(Object data) {
+						try {
+							client.send(data);
+						} catch (Exception e) {
+							fail(e.getMessage());
+						}
+					}
+					
+				});
+			}
+
+			public void clientDisconnected(RemoteClient client,
+					int reason, String reasonString) {
+			}
+			
+		});
+		
+		server.open(0);
+		
+		client.setCompression(true);
+		client.addPacketListener(new PacketListener() {
+
+			public void packetReceived(Object data) {
+				synchronized (received) {
+					received.add(data);
+				}
+			}
+			
+		});
+		
+		client.connect("localhost", server.getPort());
+		
+		final StringBuilder text = new StringBuilder();
+		
+		for (int i = 0; i < 5000; ++i) {
+			text.append("reef ");
+		}
+		
+		client.send(text.toString());
+		client.send(1);
+		
+		Thread.sleep(300);
+		
+		synchronized (received) {
+			assertEquals(2, received.size());
+			assertEquals(text.toString(), received.get(0));
+			assertEquals(1, received.get(1));
+		}
+		
+		assertTrue(client.getCapabilities().isCompressed());
+		assertEquals(8192, client.getCapabilities().getMaxFrameSize());
+		assertEquals(8192, remote.getCapabilities().getMaxFrameSize());
+	}
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.jfr;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.stream.client.StreamClient;
+import pl.graniec.coralreef.network.stream.server.StreamServer;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class NetworkEventsTest {
+
+	private static final String[] EVENTS = {
+		"pl.graniec.coralreef.Connect",
+		"pl.graniec.coralreef.Disconnect",
+		"pl.graniec.coralreef.PacketSent",
+		"pl.graniec.coralreef.PacketReceived"
+	};
+	
+	final StreamServer server = new StreamServer();
+	final StreamClient client = new StreamClient();
+	
+	@After
+	public void tearDown() throws Exception {
+		if (client.isConnected()) {
+			client.disconnect();
+		}
+		
+		if (server.isOpen()) {
+			server.close();
+		}
+	}
+	
+	@Test
+	public void testInvalidSettings() {
+		try {
+			NetworkEvents.setPacketSampling(0);
+			fail("sampling rate must be positive");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		
+		try {
+			NetworkEvents.setStallThreshold(-1);
+			fail("threshold cannot be negative");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+	
+	@Test
+	public void testNotRecording() {
+		// nothing is enabled outside of recording
+		assertNull(NetworkEvents.beginPacketSent());
+		assertNull(NetworkEvents.beginStall());
+	}
+	
+	@Test
+	public void testEvents() throws Exception {
+		if (!NetworkEvents.isAvailable()) {
+			// no flight recorder in this runtime
+			return;
+		}
+		
+		final Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+		final Object recording = recordingClass.newInstance();
+		
+		for (String name : EVENTS) {
+			recordingClass.getMethod("enable", String.class).invoke(recording, name);
+		}
+		
+		recordingClass.getMethod("start").invoke(recording);
+		
+		final List<Object> received = new ArrayList<Object>();
+		
+		server.setFramedProtocol(true);
+		server.addConnectionListener(new ConnectionListener() {
+
+			public void clientConnected(RemoteClient client) {
+				client.addPacketListener(new PacketListener() {
+
+					public void packetReceived(Object data) {
+						synchronized (received) {
+							received.add(data);
+						}
+					}
+					
+				});
+			}
+
+			public void clientDisconnected(RemoteClient client,
+					int reason, String reasonString) {
+			}
+			
+		});
+		
+		server.open(0);
+		
+		client.setFramedProtocol(true);
+		client.connect("localhost", server.getPort());
+		
+		client.send("reef");
+		
+		Thread.sleep(500);
+		
+		client.disconnect();
+		
+		Thread.sleep(500);
+		
+		assertEquals(1, received.size());
+		
+		recordingClass.getMethod("stop").invoke(recording);
+		
+		final File file = File.createTempFile("events", ".jfr");
+		
+		try {
+			final Object path = File.class.getMethod("toPath").invoke(file);
+			final Class<?> pathClass = Class.forName("java.nio.file.Path");
+			
+			recordingClass.getMethod("dump", pathClass).invoke(recording, path);
+			
+			final List<?> events = (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile")
+					.getMethod("readAllEvents", pathClass).invoke(null, path);
+			
+			final Class<?> eventClass = Class.forName("jdk.jfr.consumer.RecordedEvent");
+			final Method getEventType = eventClass.getMethod("getEventType");
+			final Method getString = eventClass.getMethod("getString", String.class);
+			final Method getName = Class.forName("jdk.jfr.EventType").getMethod("getName");
+			
+			final List<String> names = new ArrayList<String>();
+			
+			for (Object event : events) {
+				final String name = (String) getName.invoke(getEventType.invoke(event));
+				
+				if (name.startsWith("pl.graniec.coralreef.")) {
+					names.add(name + "/" + getString.invoke(event, "side"));
+				}
+				
+				if (name.endsWith(".PacketReceived")) {
+					assertEquals(String.class.getName(), getString.invoke(event, "packetClass"));
+				}
+			}
+			
+			for (String name : EVENTS) {
+				assertTrue(name, names.contains(name + "/" + NetworkEvents.SERVER) || name.endsWith("Sent"));
+				assertTrue(name, names.contains(name + "/" + NetworkEvents.CLIENT) || name.endsWith("Received"));
+			}
+			
+		} finally {
+			recordingClass.getMethod("close").invoke(recording);
+			file.delete();
+		}
+	}
+}
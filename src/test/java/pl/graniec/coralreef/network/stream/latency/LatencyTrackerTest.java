@@ -0,0 +1,179 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.latency;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.stream.client.StreamClient;
+import pl.graniec.coralreef.network.stream.frame.Frame;
+import pl.graniec.coralreef.network.stream.server.StreamRemoteClient;
+import pl.graniec.coralreef.network.stream.server.StreamServer;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class LatencyTrackerTest {
+
+	final StreamServer server = new StreamServer();
+	final StreamClient client = new StreamClient();
+	
+	StreamRemoteClient remoteClient;
+	Object latencyPacket;
+	long queueTime = -1;
+	long transitTime = -1;
+	
+	@After
+	public void tearDown() throws Exception {
+		if (client.isConnected()) {
+			client.disconnect();
+		}
+		
+		if (server.isOpen()) {
+			server.close();
+		}
+	}
+	
+	/**
+	 * Test method for {@link pl.graniec.coralreef.network.stream.latency.LatencyTracker#stamp(byte[])}.
+	 */
+	@Test
+	public void testStamp() throws Exception {
+		final byte[] payload = new byte[] { 1, 2, 3 };
+		final byte[] stamped = LatencyTracker.stamp(payload);
+		
+		assertEquals(LatencyTracker.TIMESTAMP_SIZE + 3, stamped.length);
+		
+		Thread.sleep(20);
+		LatencyTracker.stampSent(stamped);
+		
+		assertTrue(LatencyTracker.getQueueTime(stamped) >= 20000);
+		assertTrue(Arrays.equals(payload, LatencyTracker.strip(stamped)));
+	}
+	
+	/**
+	 * Test method for {@link pl.graniec.coralreef.network.stream.latency.LatencyTracker#pongReceived(Frame)}.
+	 */
+	@Test
+	public void testPongReceived() throws Exception {
+		final LatencyTracker tracker = new LatencyTracker();
+		
+		assertEquals(-1f, tracker.getRoundTripTime(), 0f);
+		
+		final Frame ping = tracker.createPing();
+		Thread.sleep(20);
+		tracker.pongReceived(LatencyTracker.createPong(ping));
+		
+		assertTrue(tracker.getRoundTripTime() >= 20);
+		assertTrue(tracker.getJitter() > 0);
+		
+		// same clock on both sides
+		assertTrue(Math.abs(tracker.getClockOffset()) < 20000);
+		
+		assertFalse(tracker.isPingDue(0));
+		assertFalse(tracker.isPingDue(1000));
+	}
+	
+	@Test
+	public void testConnection() throws Exception {
+		server.setPingInterval(20);
+		server.setPacketTimestamps(true);
+		
+		client.setPingInterval(20);
+		client.setPacketTimestamps(true);
+		
+		server.addConnectionListener(new ConnectionListener() {
+
+			public void clientConnected(RemoteClient client) {
+				remoteClient = (StreamRemoteClient) client;
+				
+				remoteClient.addPacketListener(new PacketListener() {
+
+					public void packetReceived(Object data) {
+					}
+					
+				});
+				
+				remoteClient.addLatencyListener(new LatencyListener() {
+
+					public void packetLatency(Object data, long queue, long transit) {
+						latencyPacket = data;
+						queueTime = queue;
+						transitTime = transit;
+					}
+					
+				});
+			}
+
+			public void clientDisconnected(RemoteClient client,
+					int reason, String reasonString) {
+			}
+			
+		});
+		
+		final Object[] received = new Object[1];
+		
+		client.addPacketListener(new PacketListener() {
+
+			public void packetReceived(Object data) {
+				received[0] = data;
+			}
+			
+		});
+		
+		server.open(0);
+		client.connect("localhost", server.getPort());
+		
+		Thread.sleep(300);
+		
+		assertTrue(client.getRoundTripTime() >= 0);
+		assertTrue(remoteClient.getRoundTripTime() >= 0);
+		
+		client.send("measured");
+		remoteClient.send("back");
+		
+		Thread.sleep(100);
+		
+		// timestamps are not visible to packet listeners
+		assertEquals("back", received[0]);
+		
+		assertEquals("measured", latencyPacket);
+		assertTrue(queueTime >= 0);
+		assertTrue(transitTime >= 0 && transitTime < 100000);
+	}
+
+}
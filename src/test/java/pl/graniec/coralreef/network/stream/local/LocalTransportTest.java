@@ -0,0 +1,232 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.local;
+
+import static org.junit.Assert.*;
+
+import java.io.NotSerializableException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pl.graniec.coralreef.network.DisconnectReason;
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.exceptions.NetworkException;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class LocalTransportTest {
+
+	final LocalServer server = new LocalServer();
+	final LocalClient client = new LocalClient();
+	
+	final List<Object> serverReceived = new ArrayList<Object>();
+	final List<Object> clientReceived = new ArrayList<Object>();
+	
+	RemoteClient remoteClient;
+	int serverDisconnections;
+	int clientDisconnections;
+	
+	@Before
+	public void setUp() throws Exception {
+		server.addConnectionListener(new ConnectionListener() {
+
+			public void clientConnected(RemoteClient client) {
+				remoteClient = client;
+				client.addPacketListener(new PacketListener() {
+
+					public void packetReceived(Object data) {
+						synchronized (serverReceived) {
+							serverReceived.add(data);
+						}
+					}
+					
+				});
+			}
+
+			public void clientDisconnected(RemoteClient client,
+					int reason, String reasonString) {
+				++serverDisconnections;
+			}
+			
+		});
+		
+		client.addConnectionListener(new pl.graniec.coralreef.network.client.ConnectionListener() {
+
+			public void clientConnected() {
+			}
+
+			public void clientDisconnected(int reason, String reasonString) {
+				assertEquals(DisconnectReason.UserAction, reason);
+				++clientDisconnections;
+			}
+			
+		});
+		
+		client.addPacketListener(new PacketListener() {
+
+			public void packetReceived(Object data) {
+				synchronized (clientReceived) {
+					clientReceived.add(data);
+				}
+			}
+			
+		});
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		if (client.isConnected()) {
+			client.disconnect();
+		}
+		
+		if (server.isOpen()) {
+			server.close();
+		}
+	}
+	
+	@Test
+	public void testSynchronous() throws Exception {
+		server.setSynchronous(true);
+		server.open(0);
+		
+		client.connect("localhost", server.getPort());
+		assertNotNull(remoteClient);
+		
+		final List<Integer> packet = new ArrayList<Integer>();
+		packet.add(1);
+		
+		client.send(packet);
+		remoteClient.send("reply");
+		
+		// delivered before send returned
+		assertEquals(1, serverReceived.size());
+		assertSame(packet, serverReceived.get(0));
+		assertEquals("reply", clientReceived.get(0));
+		
+		remoteClient.disconnect();
+		
+		assertFalse(client.isConnected());
+		assertFalse(remoteClient.isConnected());
+		assertEquals(1, serverDisconnections);
+		assertEquals(1, clientDisconnections);
+	}
+	
+	@Test
+	public void testCopyOnSend() throws Exception {
+		server.setSynchronous(true);
+		server.setCopyOnSend(true);
+		server.open(0);
+		
+		client.connect("localhost", server.getPort());
+		
+		final ArrayList<Integer> packet = new ArrayList<Integer>();
+		packet.add(1);
+		
+		client.send(packet);
+		
+		assertNotSame(packet, serverReceived.get(0));
+		assertEquals(packet, serverReceived.get(0));
+	}
+	
+	@Test
+	public void testListenerThread() throws Exception {
+		server.open(0);
+		
+		client.connect("localhost", server.getPort());
+		
+		for (int i = 0; i < 1000; ++i) {
+			client.send(i);
+		}
+		
+		client.disconnect();
+		
+		Thread.sleep(100);
+		
+		synchronized (serverReceived) {
+			assertEquals(1000, serverReceived.size());
+			
+			for (int i = 0; i < 1000; ++i) {
+				assertEquals(i, serverReceived.get(i));
+			}
+		}
+		
+		assertEquals(1, serverDisconnections);
+		
+		// client disconnected itself
+		assertEquals(0, clientDisconnections);
+	}
+	
+	@Test
+	public void testNotSerializable() throws Exception {
+		server.open(0);
+		client.connect("localhost", server.getPort());
+		
+		try {
+			client.send(new Object());
+			fail("packets must be serializable");
+		} catch (NotSerializableException e) {
+			// expected
+		}
+	}
+	
+	@Test
+	public void testPorts() throws Exception {
+		server.open(0);
+		
+		final LocalServer other = new LocalServer();
+		
+		try {
+			other.open(server.getPort());
+			fail("port is taken");
+		} catch (NetworkException e) {
+			// expected
+		}
+		
+		final int port = server.getPort();
+		server.close();
+		
+		try {
+			client.connect("localhost", port);
+			fail("nothing to connect to");
+		} catch (NetworkException e) {
+			// expected
+		}
+		
+		assertFalse(client.isConnected());
+	}
+
+}
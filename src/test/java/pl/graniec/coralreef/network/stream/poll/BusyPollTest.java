@@ -0,0 +1,192 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.poll;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.stream.client.StreamClient;
+import pl.graniec.coralreef.network.stream.server.StreamServer;
+import pl.graniec.coralreef.network.stream.shm.WaitStrategy;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class BusyPollTest {
+
+	final StreamServer server = new StreamServer();
+	final StreamClient client = new StreamClient();
+	
+	final List<Object> received = new ArrayList<Object>();
+	
+	volatile boolean disconnected;
+	
+	@After
+	public void tearDown() throws Exception {
+		if (client.isConnected()) {
+			client.disconnect();
+		}
+		
+		if (server.isOpen()) {
+			server.close();
+		}
+	}
+	
+	@Test
+	public void testSocket() throws Exception {
+		final ServerSocketChannel acceptor = ServerSocketChannel.open();
+		acceptor.socket().bind(new InetSocketAddress("localhost", 0));
+		
+		try {
+			final SocketChannel channel = SocketChannel.open(acceptor.socket().getLocalSocketAddress());
+			final SocketChannel peer = acceptor.accept();
+			
+			final BusyPollSocket socket = new BusyPollSocket(channel, WaitStrategy.BACKOFF);
+			socket.setSoTimeout(50);
+			socket.setTcpNoDelay(true);
+			
+			assertTrue(socket.getTcpNoDelay());
+			assertNull(socket.getChannel());
+			
+			final InputStream in = socket.getInputStream();
+			
+			try {
+				in.read();
+				fail("nothing was sent");
+			} catch (SocketTimeoutException e) {
+				// expected
+			}
+			
+			peer.socket().getOutputStream().write(new byte[] { 1, 2, 3 });
+			
+			final byte[] data = new byte[3];
+			assertEquals(3, in.read(data, 0, 3));
+			assertEquals(3, data[2]);
+			
+			socket.getOutputStream().write(new byte[] { 4 });
+			assertEquals(4, peer.socket().getInputStream().read());
+			
+			peer.close();
+			assertEquals(-1, in.read());
+			
+			socket.close();
+			assertTrue(socket.isClosed());
+			
+		} finally {
+			acceptor.close();
+		}
+	}
+	
+	private void echo(WaitStrategy strategy) throws Exception {
+		server.setBusyPoll(strategy);
+		
+		server.addConnectionListener(new ConnectionListener() {
+
+			public void clientConnected(final RemoteClient client) {
+				client.addPacketListener(new PacketListener() {
+
+					public void packetReceived(Object data) {
+						try {
+							client.send(data);
+						} catch (Exception e) {
+							fail(e.getMessage());
+						}
+					}
+					
+				});
+			}
+
+			public void clientDisconnected(RemoteClient client,
+					int reason, String reasonString) {
+				disconnected = true;
+			}
+			
+		});
+		
+		server.open(0);
+		
+		client.setBusyPoll(strategy);
+		client.addPacketListener(new PacketListener() {
+
+			public void packetReceived(Object data) {
+				synchronized (received) {
+					received.add(data);
+				}
+			}
+			
+		});
+		
+		client.connect("localhost", server.getPort());
+		
+		for (int i = 0; i < 100; ++i) {
+			client.send(i);
+		}
+		
+		Thread.sleep(200);
+		
+		synchronized (received) {
+			assertEquals(100, received.size());
+			
+			for (int i = 0; i < 100; ++i) {
+				assertEquals(i, received.get(i));
+			}
+		}
+		
+		client.disconnect();
+		
+		Thread.sleep(200);
+		
+		assertTrue(disconnected);
+	}
+	
+	@Test
+	public void testEcho() throws Exception {
+		echo(WaitStrategy.BACKOFF);
+	}
+	
+	@Test
+	public void testEchoSharded() throws Exception {
+		server.setShards(2);
+		echo(new WaitStrategy(1000, 10, 100000));
+	}
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.rate;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.stream.client.StreamClient;
+import pl.graniec.coralreef.network.stream.server.StreamServer;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class RateLimitTest {
+
+	private static final long SECOND = 1000000000L;
+	
+	final StreamServer server = new StreamServer();
+	final StreamClient client = new StreamClient();
+	
+	final List<Object> received = new ArrayList<Object>();
+	
+	volatile boolean disconnected;
+	
+	@After
+	public void tearDown() throws Exception {
+		if (client.isConnected()) {
+			client.disconnect();
+		}
+		
+		if (server.isOpen()) {
+			server.close();
+		}
+	}
+	
+	private void open(RateLimit limit) throws Exception {
+		server.setRateLimit(limit);
+		
+		server.addConnectionListener(new ConnectionListener() {
+
+			public void clientConnected(RemoteClient client) {
+				client.addPacketListener(new PacketListener() {
+
+					public void packetReceived(Object data) {
+						synchronized (received) {
+							received.add(data);
+						}
+					}
+					
+				});
+			}
+
+			public void clientDisconnected(RemoteClient client,
+					int reason, String reasonString) {
+				disconnected = true;
+			}
+			
+		});
+		
+		server.open(0);
+		client.setFramedProtocol(true);
+		client.connect("localhost", server.getPort());
+	}
+	
+	@Test
+	public void testTokenBucket() {
+		final TokenBucket bucket = new TokenBucket(10, 5, 0);
+		
+		for (int i = 0; i < 5; ++i) {
+			assertTrue(bucket.tryTake(1, 0));
+		}
+		
+		assertFalse(bucket.tryTake(1, 0));
+		
+		// one token every 100ms
+		assertTrue(bucket.tryTake(1, SECOND / 10));
+		assertFalse(bucket.tryTake(1, SECOND / 10));
+		
+		// never more than capacity
+		assertTrue(bucket.tryTake(5, 10 * SECOND));
+		assertFalse(bucket.tryTake(1, 10 * SECOND));
+	}
+	
+	@Test
+	public void testTokenBucketDebt() {
+		final TokenBucket bucket = new TokenBucket(10, 5, 0);
+		
+		// bigger than capacity passes when full
+		assertTrue(bucket.tryTake(8, 0));
+		assertFalse(bucket.tryTake(1, SECOND / 10));
+		
+		assertEquals(0, new TokenBucket(10, 5, 0).take(5, 0));
+		// 4 tokens short
+		final long wait = bucket.take(2, SECOND / 10);
+		assertEquals(SECOND * 4 / 10, wait, 1);
+	}
+	
+	@Test
+	public void testLimiterBytes() {
+		final RateLimiter limiter = new RateLimiter(new RateLimit(0, 0, 1000, 100, RateLimitAction.DROP), 0);
+		
+		assertEquals(0, limiter.acquire(1, 60, 0));
+		assertTrue(limiter.acquire(1, 60, 0) > 0);
+		assertEquals(0, limiter.acquire(1, 40, 0));
+		
+		assertEquals(0, limiter.acquire(1, 60, SECOND / 10));
+		assertTrue(limiter.acquire(1, 60, SECOND / 10) > 0);
+		assertEquals(2, limiter.getViolations());
+	}
+	
+	@Test
+	public void testDrop() throws Exception {
+		open(new RateLimit(1, 10, 0, 0, RateLimitAction.DROP));
+		
+		for (int i = 0; i < 30; ++i) {
+			client.send(i);
+		}
+		
+		Thread.sleep(300);
+		
+		synchronized (received) {
+			assertEquals(10, received.size());
+			
+			for (int i = 0; i < 10; ++i) {
+				assertEquals(i, received.get(i));
+			}
+		}
+		
+		assertEquals(20, server.getRateViolations());
+		assertTrue(client.isConnected());
+	}
+	
+	@Test
+	public void testDelay() throws Exception {
+		open(new RateLimit(20, 5, 0, 0, RateLimitAction.DELAY));
+		
+		for (int i = 0; i < 10; ++i) {
+			client.send(i);
+		}
+		
+		// five go at once, the next five every 50ms
+		Thread.sleep(120);
+		
+		synchronized (received) {
+			assertTrue(received.size() < 10);
+		}
+		
+		Thread.sleep(300);
+		
+		synchronized (received) {
+			assertEquals(10, received.size());
+		}
+	}
+	
+	@Test
+	public void testDelaySharded() throws Exception {
+		server.setShards(1);
+		testDelay();
+	}
+	
+	@Test
+	public void testDisconnect() throws Exception {
+		open(new RateLimit(1, 10, 0, 0, RateLimitAction.DISCONNECT));
+		
+		for (int i = 0; i < 11; ++i) {
+			client.send(i);
+		}
+		
+		Thread.sleep(300);
+		
+		assertTrue(disconnected);
+		assertEquals(1, server.getRateViolations());
+	}
+}
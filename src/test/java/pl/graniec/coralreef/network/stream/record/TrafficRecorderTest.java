@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.record;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pl.graniec.coralreef.network.stream.frame.Frame;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class TrafficRecorderTest {
+
+	File file;
+	
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("traffic", ".log");
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		file.delete();
+	}
+	
+	/**
+	 * Test method for {@link pl.graniec.coralreef.network.stream.record.TrafficRecorder#record(byte, int, Frame)}.
+	 */
+	@Test
+	public void testRecord() throws Exception {
+		// small regions, so the log has to be mapped many times
+		final TrafficRecorder recorder = new TrafficRecorder(file, 100);
+		
+		for (int i = 1; i <= 50; ++i) {
+			final byte direction = i % 2 == 0 ? TrafficRecorder.INBOUND : TrafficRecorder.OUTBOUND;
+			recorder.record(direction, i % 3, new Frame(Frame.PACKET, i, 0, new byte[i * 3]));
+		}
+		
+		// bigger than a region
+		recorder.record(TrafficRecorder.INBOUND, 7, new Frame(Frame.PACKET, 51, 0, new byte[1000]));
+		
+		assertEquals(51, recorder.getRecordCount());
+		
+		recorder.close();
+		
+		assertEquals(recorder.getLength(), file.length());
+		
+		final TrafficLog log = new TrafficLog(file);
+		long time = 0;
+		
+		for (int i = 1; i <= 50; ++i) {
+			final TrafficRecord record = log.next();
+			
+			assertEquals(i % 2 == 0, record.isInbound());
+			assertEquals(i % 3, record.getConnection());
+			assertEquals(i, record.getFrame().getSequence());
+			assertEquals(i * 3, record.getFrame().getPayload().length);
+			assertTrue(record.getTime() >= time);
+			
+			time = record.getTime();
+		}
+		
+		assertEquals(1000, log.next().getFrame().getPayload().length);
+		assertNull(log.next());
+		
+		log.close();
+	}
+
+}
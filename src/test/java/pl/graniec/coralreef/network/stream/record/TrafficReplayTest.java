@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.record;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.stream.client.StreamClient;
+import pl.graniec.coralreef.network.stream.server.StreamServer;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class TrafficReplayTest {
+
+	File file;
+	
+	final StreamServer recorded = new StreamServer();
+	final StreamServer replayed = new StreamServer();
+	
+	final AtomicInteger recordedPackets = new AtomicInteger();
+	final AtomicInteger replayedPackets = new AtomicInteger();
+	final AtomicInteger replayedConnections = new AtomicInteger();
+	
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("traffic", ".log");
+		
+		recorded.setFramedProtocol(true);
+		replayed.setFramedProtocol(true);
+		
+		recorded.addConnectionListener(counter(recordedPackets, new AtomicInteger()));
+		replayed.addConnectionListener(counter(replayedPackets, replayedConnections));
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		if (recorded.isOpen()) {
+			recorded.close();
+		}
+		
+		if (replayed.isOpen()) {
+			replayed.close();
+		}
+		
+		file.delete();
+	}
+	
+	private static ConnectionListener counter(final AtomicInteger packets, final AtomicInteger connections) {
+		return new ConnectionListener() {
+
+			public void clientConnected(RemoteClient client) {
+				connections.incrementAndGet();
+				
+				client.addPacketListener(new PacketListener() {
+
+					public void packetReceived(Object data) {
+						packets.incrementAndGet();
+					}
+					
+				});
+			}
+
+			public void clientDisconnected(RemoteClient client,
+					int reason, String reasonString) {
+			}
+			
+		};
+	}
+	
+	/**
+	 * Test method for {@link pl.graniec.coralreef.network.stream.record.TrafficReplay#run()}.
+	 */
+	@Test
+	public void testReplay() throws Exception {
+		recordAndReplay();
+	}
+	
+	@Test
+	public void testReplaySharded() throws Exception {
+		// shards read frames without a frame reader
+		recorded.setShards(2);
+		recordAndReplay();
+	}
+	
+	private void recordAndReplay() throws Exception {
+		final TrafficRecorder recorder = new TrafficRecorder(file);
+		recorded.setTrafficRecorder(recorder);
+		recorded.open(0);
+		
+		for (int c = 0; c < 3; ++c) {
+			final StreamClient client = new StreamClient();
+			client.setFramedProtocol(true);
+			client.connect("localhost", recorded.getPort());
+			
+			for (int i = 0; i < 100; ++i) {
+				client.send("packet " + i);
+			}
+			
+			client.disconnect();
+		}
+		
+		Thread.sleep(200);
+		
+		recorded.close();
+		recorder.close();
+		
+		assertEquals(300, recordedPackets.get());
+		
+		replayed.open(0);
+		
+		final TrafficReplay replay = new TrafficReplay(file, "localhost", replayed.getPort());
+		replay.setRealTime(false);
+		
+		// HELLO, CAPABILITIES, packets and CLOSE of each connection
+		assertEquals(3 * 103, replay.run());
+		
+		Thread.sleep(200);
+		
+		assertEquals(3, replayedConnections.get());
+		assertEquals(300, replayedPackets.get());
+	}
+
+}
@@ -0,0 +1,236 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.route;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.stream.client.StreamClient;
+import pl.graniec.coralreef.network.stream.frame.PacketCodec;
+import pl.graniec.coralreef.network.stream.server.StreamGroup;
+import pl.graniec.coralreef.network.stream.server.StreamRemoteClient;
+import pl.graniec.coralreef.network.stream.server.StreamServer;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class RoutedPacketTest {
+
+	final StreamServer backend = new StreamServer();
+	final StreamServer gateway = new StreamServer();
+	
+	/** Gateway connection to the backend */
+	final StreamClient upstream = new StreamClient();
+	final StreamClient client = new StreamClient();
+	
+	final List<Object> forwarded = new ArrayList<Object>();
+	final List<Object> received = new ArrayList<Object>();
+	
+	@After
+	public void tearDown() throws Exception {
+		if (client.isConnected()) {
+			client.disconnect();
+		}
+		
+		if (upstream.isConnected()) {
+			upstream.disconnect();
+		}
+		
+		if (gateway.isOpen()) {
+			gateway.close();
+		}
+		
+		if (backend.isOpen()) {
+			backend.close();
+		}
+	}
+	
+	@Test
+	public void testEncoding() throws Exception {
+		final byte[] data = RoutedPacket.encode(3, 42, "reef");
+		
+		assertTrue(RoutedPacket.isRouted(data));
+		assertFalse(RoutedPacket.isRouted(PacketCodec.encode("reef")));
+		
+		final RoutedPacket packet = RoutedPacket.fromBytes(data, null);
+		
+		assertEquals(3, packet.getType());
+		assertEquals(42, packet.getDestination());
+		assertFalse(packet.isDecoded());
+		
+		assertEquals("reef", packet.getPacket());
+		assertTrue(packet.isDecoded());
+		assertSame(packet.getPacket(), packet.getPacket());
+		
+		assertSame(data, packet.getData());
+	}
+	
+	@Test
+	public void testForward() throws Exception {
+		backend.setFramedProtocol(true);
+		backend.addConnectionListener(new ConnectionListener() {
+
+			public void clientConnected(final RemoteClient client) {
+				client.addPacketListener(new PacketListener() {
+
+					public void packetReceived(Object data) {
+						try {
+							final RoutedPacket packet = (RoutedPacket) data;
+							
+							synchronized (received) {
+								received.add(packet.getPacket());
+							}
+							
+							// answer goes back through the gateway
+							((StreamRemoteClient) client).sendRouted(2, packet.getDestination(), "pong");
+						} catch (Exception e) {
+							fail(e.getMessage());
+						}
+					}
+					
+				});
+			}
+
+			public void clientDisconnected(RemoteClient client,
+					int reason, String reasonString) {
+			}
+			
+		});
+		
+		backend.open(0);
+		
+		gateway.setFramedProtocol(true);
+		
+		final StreamGroup players = gateway.createGroup("players");
+		
+		gateway.addConnectionListener(new ConnectionListener() {
+
+			public void clientConnected(final RemoteClient client) {
+				players.join(client);
+				
+				client.addPacketListener(new PacketListener() {
+
+					public void packetReceived(Object data) {
+						final RoutedPacket packet = (RoutedPacket) data;
+						
+						synchronized (forwarded) {
+							forwarded.add(packet);
+						}
+						
+						upstream.forward(packet);
+					}
+					
+				});
+			}
+
+			public void clientDisconnected(RemoteClient client,
+					int reason, String reasonString) {
+			}
+			
+		});
+		
+		gateway.open(0);
+		
+		upstream.setFramedProtocol(true);
+		upstream.addPacketListener(new PacketListener() {
+
+			public void packetReceived(Object data) {
+				final RoutedPacket packet = (RoutedPacket) data;
+				
+				synchronized (forwarded) {
+					forwarded.add(packet);
+				}
+				
+				players.forward(packet);
+			}
+			
+		});
+		
+		upstream.connect("localhost", backend.getPort());
+		
+		final List<Object> answers = new ArrayList<Object>();
+		
+		client.setFramedProtocol(true);
+		client.addPacketListener(new PacketListener() {
+
+			public void packetReceived(Object data) {
+				try {
+					synchronized (answers) {
+						answers.add(((RoutedPacket) data).getPacket());
+					}
+				} catch (Exception e) {
+					fail(e.getMessage());
+				}
+			}
+			
+		});
+		
+		client.connect("localhost", gateway.getPort());
+		
+		for (int i = 0; i < 10; ++i) {
+			client.sendRouted(1, 7, i);
+		}
+		
+		Thread.sleep(300);
+		
+		synchronized (received) {
+			assertEquals(10, received.size());
+			
+			for (int i = 0; i < 10; ++i) {
+				assertEquals(i, received.get(i));
+			}
+		}
+		
+		synchronized (answers) {
+			assertEquals(10, answers.size());
+			assertEquals("pong", answers.get(0));
+		}
+		
+		synchronized (forwarded) {
+			assertEquals(20, forwarded.size());
+			
+			for (Object o : forwarded) {
+				final RoutedPacket packet = (RoutedPacket) o;
+				
+				// the gateway never decodes what it forwards
+				assertFalse(packet.isDecoded());
+				assertEquals(7, packet.getDestination());
+			}
+		}
+	}
+}
@@ -0,0 +1,259 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.serial;
+
+import static org.junit.Assert.*;
+
+import java.io.InvalidClassException;
+import java.io.Serializable;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.stream.client.StreamClient;
+import pl.graniec.coralreef.network.stream.frame.PacketCodec;
+import pl.graniec.coralreef.network.stream.server.StreamServer;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ClassResolverTest {
+
+	static class Position implements Serializable {
+		private static final long serialVersionUID = 1L;
+		
+		int x, y;
+		Integer[] history = { 1, 2 };
+		int[] raw = { 3 };
+	}
+	
+	static int initialized;
+	
+	static class Hostile implements Serializable {
+		private static final long serialVersionUID = 1L;
+		
+		static {
+			++initialized;
+		}
+	}
+	
+	/**
+	 * Test method for {@link pl.graniec.coralreef.network.stream.serial.ClassFilter#isAllowed(java.lang.String)}.
+	 */
+	@Test
+	public void testFilter() {
+		final ClassFilter filter = new ClassFilter()
+			.allow(Position.class)
+			.allow("com.example.packets.*")
+			.allow("org.example.**");
+		
+		assertTrue(filter.isAllowed("int"));
+		assertTrue(filter.isAllowed("java.lang.Integer"));
+		assertTrue(filter.isAllowed(Position.class.getName()));
+		assertTrue(filter.isAllowed("com.example.packets.Move"));
+		assertFalse(filter.isAllowed("com.example.packets.sub.Move"));
+		assertTrue(filter.isAllowed("org.example.a.b.Move"));
+		assertTrue(filter.isAllowed("[[I"));
+		assertTrue(filter.isAllowed("[Ljava.lang.String;"));
+		
+		assertFalse(filter.isAllowed("java.util.HashMap"));
+		assertFalse(filter.isAllowed("[Ljava.util.HashMap;"));
+		assertFalse(filter.isAllowed("Move"));
+	}
+	
+	/**
+	 * Test method for {@link pl.graniec.coralreef.network.stream.serial.ClassResolver#resolve(java.lang.String)}.
+	 */
+	@Test
+	public void testResolve() throws Exception {
+		final ClassResolver resolver = new ClassResolver(new ClassFilter().allow(Position.class));
+		final Position position = new Position();
+		
+		position.x = 5;
+		
+		final Position decoded = (Position) PacketCodec.decode(PacketCodec.encode(position), resolver);
+		
+		assertEquals(5, decoded.x);
+		assertEquals(Integer.valueOf(2), decoded.history[1]);
+		
+		// classes are cached
+		final int size = resolver.size();
+		assertTrue(size > 0);
+		assertSame(Position.class, resolver.resolve(Position.class.getName()));
+		
+		PacketCodec.decode(PacketCodec.encode(position), resolver);
+		assertEquals(size, resolver.size());
+	}
+	
+	/**
+	 * Test method for {@link pl.graniec.coralreef.network.stream.serial.ClassResolver#resolve(java.lang.String)}.
+	 */
+	@Test
+	public void testReject() throws Exception {
+		final ClassResolver resolver = new ClassResolver(new ClassFilter());
+		
+		try {
+			PacketCodec.decode(PacketCodec.encode(new Date()), resolver);
+			fail("Date is not allowed");
+		} catch (InvalidClassException e) {
+			// expected
+		}
+		
+		try {
+			resolver.resolve(Hostile.class.getName());
+			fail("Hostile is not allowed");
+		} catch (InvalidClassException e) {
+			// expected
+		}
+		
+		// resolving without a filter doesn't initialize the class either
+		assertEquals(Hostile.class.getName(), new ClassResolver(null).resolve(Hostile.class.getName()).getName());
+		assertEquals(0, initialized);
+	}
+	
+	/**
+	 * Test method for {@link pl.graniec.coralreef.network.stream.server.StreamServer#setClassFilter(ClassFilter)}.
+	 */
+	@Test
+	public void testServer() throws Exception {
+		final StreamServer server = new StreamServer();
+		final List<Object> received = new ArrayList<Object>();
+		
+		server.setFramedProtocol(true);
+		server.setClassFilter(new ClassFilter());
+		
+		server.addConnectionListener(new ConnectionListener() {
+
+			public void clientConnected(RemoteClient client) {
+				client.addPacketListener(new PacketListener() {
+
+					public void packetReceived(Object data) {
+						synchronized (received) {
+							received.add(data);
+						}
+					}
+					
+				});
+			}
+
+			public void clientDisconnected(RemoteClient client,
+					int reason, String reasonString) {
+			}
+			
+		});
+		
+		server.open(0);
+		
+		final StreamClient client = new StreamClient();
+		client.setFramedProtocol(true);
+		client.connect("localhost", server.getPort());
+		
+		client.send("first");
+		client.send(new Date());
+		client.send("second");
+		
+		Thread.sleep(200);
+		
+		client.disconnect();
+		server.close();
+		
+		synchronized (received) {
+			assertEquals(2, received.size());
+			assertEquals("first", received.get(0));
+			assertEquals("second", received.get(1));
+		}
+	}
+	
+	@Test
+	public void testContextLoader() throws Exception {
+		final List<Object> received = new ArrayList<Object>();
+		final Thread thread = Thread.currentThread();
+		final ClassLoader previous = thread.getContextClassLoader();
+		
+		final StreamServer server;
+		
+		// a loader that sees only system classes doesn't change anything
+		thread.setContextClassLoader(new URLClassLoader(new URL[0], null));
+		
+		try {
+			server = new StreamServer();
+		} finally {
+			thread.setContextClassLoader(previous);
+		}
+		
+		server.setFramedProtocol(true);
+		
+		server.addConnectionListener(new ConnectionListener() {
+
+			public void clientConnected(RemoteClient client) {
+				client.addPacketListener(new PacketListener() {
+
+					public void packetReceived(Object data) {
+						synchronized (received) {
+							received.add(data);
+						}
+					}
+					
+				});
+			}
+
+			public void clientDisconnected(RemoteClient client,
+					int reason, String reasonString) {
+			}
+			
+		});
+		
+		server.open(0);
+		
+		final StreamClient client = new StreamClient();
+		client.setFramedProtocol(true);
+		client.connect("localhost", server.getPort());
+		
+		client.send(new Position());
+		
+		Thread.sleep(200);
+		
+		client.disconnect();
+		server.close();
+		
+		synchronized (received) {
+			assertEquals(1, received.size());
+			assertTrue(received.get(0) instanceof Position);
+		}
+	}
+
+}
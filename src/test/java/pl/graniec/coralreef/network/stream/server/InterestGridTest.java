@@ -0,0 +1,234 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.server;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.stream.client.StreamClient;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class InterestGridTest {
+
+	final StreamServer server = new StreamServer();
+	
+	final StreamClient[] clients = { new StreamClient(), new StreamClient(), new StreamClient() };
+	final List<List<Object>> received = new ArrayList<List<Object>>();
+	
+	final List<RemoteClient> remotes = new ArrayList<RemoteClient>();
+	
+	@After
+	public void tearDown() throws Exception {
+		for (StreamClient client : clients) {
+			if (client.isConnected()) {
+				client.disconnect();
+			}
+		}
+		
+		if (server.isOpen()) {
+			server.close();
+		}
+	}
+	
+	private void connect() throws Exception {
+		server.setFramedProtocol(true);
+		server.addConnectionListener(new ConnectionListener() {
+
+			public void clientConnected(RemoteClient client) {
+				synchronized (remotes) {
+					remotes.add(client);
+				}
+			}
+
+			public void clientDisconnected(RemoteClient client,
+					int reason, String reasonString) {
+			}
+			
+		});
+		
+		server.open(0);
+		
+		for (StreamClient client : clients) {
+			final List<Object> packets = new ArrayList<Object>();
+			received.add(packets);
+			
+			client.setFramedProtocol(true);
+			client.addPacketListener(new PacketListener() {
+
+				public void packetReceived(Object data) {
+					synchronized (packets) {
+						packets.add(data);
+					}
+				}
+				
+			});
+			
+			client.connect("localhost", server.getPort());
+			
+			// keep order of remote clients same as local ones
+			Thread.sleep(100);
+		}
+	}
+	
+	private List<Object> received(int client) {
+		final List<Object> packets = received.get(client);
+		
+		synchronized (packets) {
+			return new ArrayList<Object>(packets);
+		}
+	}
+	
+	@Test
+	public void testSend() throws Exception {
+		connect();
+		
+		final InterestGrid grid = server.createInterestGrid(10);
+		
+		grid.setInterest(remotes.get(0), 0, 0, 15);
+		grid.setInterest(remotes.get(1), 100, 100, 15);
+		grid.setInterest(remotes.get(2), 10, 10, 30);
+		
+		assertEquals(3, grid.size());
+		
+		grid.setEntity("tree", 5, 5);
+		grid.setEntity("rock", 95, 95);
+		grid.setEntity("fish", -100, 50);
+		
+		assertEquals(2, grid.send("tree", "tree moved"));
+		assertEquals(1, grid.send("rock", "rock moved"));
+		assertEquals(0, grid.send("fish", "fish moved"));
+		
+		// in cell of the first client but out of its range
+		assertEquals(1, grid.send(14, 14, "far corner"));
+		
+		Thread.sleep(200);
+		
+		assertEquals(Arrays.asList((Object) "tree moved"), received(0));
+		assertEquals(Arrays.asList((Object) "rock moved"), received(1));
+		assertEquals(Arrays.asList((Object) "tree moved", "far corner"), received(2));
+		
+		assertEquals(Arrays.asList((Object) "tree"), Arrays.asList(grid.getEntities(remotes.get(0))));
+		assertEquals(1, grid.getEntities(remotes.get(2)).length);
+		
+		// areas and entities move
+		grid.setInterest(remotes.get(1), 0, 0, 10);
+		grid.setEntity("rock", 3, -3);
+		
+		assertEquals(3, grid.getInterested(3, -3).length);
+		assertEquals(0, grid.getInterested(95, 95).length);
+		
+		assertTrue(grid.removeEntity("rock"));
+		assertFalse(grid.removeEntity("rock"));
+		
+		assertTrue(grid.removeInterest(remotes.get(2)));
+		assertFalse(grid.removeInterest(remotes.get(2)));
+		
+		assertEquals(2, grid.getInterested(5, 5).length);
+	}
+	
+	@Test
+	public void testDisconnect() throws Exception {
+		connect();
+		
+		final InterestGrid grid = server.createInterestGrid(10);
+		
+		for (RemoteClient remote : remotes) {
+			grid.setInterest(remote, 0, 0, 5);
+		}
+		
+		clients[0].disconnect();
+		Thread.sleep(200);
+		
+		assertEquals(2, grid.size());
+		assertEquals(2, grid.send(1, 1, "still here"));
+	}
+
+	
+	@Test
+	public void testLargeArea() throws Exception {
+		connect();
+		
+		final InterestGrid grid = server.createInterestGrid(1);
+		
+		// would cover hundreds of millions of cells
+		grid.setInterest(remotes.get(0), 0, 0, 1e4f);
+		// next to the last cell
+		grid.setInterest(remotes.get(1), Float.MAX_VALUE, 0, 1);
+		grid.setInterest(remotes.get(2), 0, 0, 1);
+		
+		grid.setEntity("ship", 9000, 0);
+		grid.setEntity("boat", 0, 0);
+		
+		assertEquals(1, grid.getInterested(9000, 0).length);
+		assertEquals(2, grid.getInterested(0, 0).length);
+		assertEquals(2, grid.getEntities(remotes.get(0)).length);
+		assertEquals(1, grid.send("ship", "ship moved"));
+		
+		// small again
+		grid.setInterest(remotes.get(0), 9000, 0, 1);
+		
+		assertEquals(Arrays.asList((Object) "ship"), Arrays.asList(grid.getEntities(remotes.get(0))));
+		assertEquals(1, grid.getInterested(0, 0).length);
+		
+		assertTrue(grid.removeInterest(remotes.get(1)));
+		
+		try {
+			grid.setInterest(remotes.get(0), Float.NaN, 0, 1);
+			fail("coordinates must be finite");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		
+		try {
+			grid.setInterest(remotes.get(0), 0, 0, Float.POSITIVE_INFINITY);
+			fail("radius must be finite");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		
+		try {
+			grid.setEntity("ship", 0, Float.NEGATIVE_INFINITY);
+			fail("coordinates must be finite");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
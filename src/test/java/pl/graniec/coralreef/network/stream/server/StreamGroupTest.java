@@ -0,0 +1,162 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.server;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.stream.client.StreamClient;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class StreamGroupTest {
+
+	final StreamServer server = new StreamServer();
+	final List<StreamClient> clients = new ArrayList<StreamClient>();
+	final List<RemoteClient> remoteClients = new ArrayList<RemoteClient>();
+	final AtomicInteger received = new AtomicInteger();
+	
+	@Before
+	public void setUp() throws Exception {
+		server.setFramedProtocol(true);
+		server.addConnectionListener(new ConnectionListener() {
+
+			public void clientConnected(RemoteClient client) {
+				synchronized (remoteClients) {
+					remoteClients.add(client);
+				}
+			}
+
+			public void clientDisconnected(RemoteClient client,
+					int reason, String reasonString) {
+			}
+			
+		});
+		
+		server.open(0);
+		
+		for (int i = 0; i < 3; ++i) {
+			final StreamClient client = new StreamClient();
+			client.setFramedProtocol(true);
+			client.addPacketListener(new PacketListener() {
+
+				public void packetReceived(Object data) {
+					assertEquals("hello room", data);
+					received.incrementAndGet();
+				}
+				
+			});
+			
+			client.connect("localhost", server.getPort());
+			clients.add(client);
+		}
+		
+		Thread.sleep(50);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (StreamClient client : clients) {
+			if (client.isConnected()) {
+				client.disconnect();
+			}
+		}
+		
+		if (server.isOpen()) {
+			server.close();
+		}
+	}
+
+	/**
+	 * Test method for {@link pl.graniec.coralreef.network.stream.server.StreamGroup#send(java.lang.Object)}.
+	 */
+	@Test
+	public void testSend() throws Exception {
+		final StreamGroup group = server.createGroup("room");
+		
+		assertSame(group, server.createGroup("room"));
+		assertSame(group, server.getGroup("room"));
+		
+		assertTrue(group.join(remoteClients.get(0)));
+		assertTrue(group.join(remoteClients.get(1)));
+		assertFalse(group.join(remoteClients.get(1)));
+		
+		group.send("hello room");
+		
+		Thread.sleep(50);
+		
+		assertEquals(2, received.get());
+	}
+	
+	/**
+	 * Test method for {@link pl.graniec.coralreef.network.stream.server.StreamGroup#leave(pl.graniec.coralreef.network.server.RemoteClient)}.
+	 */
+	@Test
+	public void testLeave() throws Exception {
+		final StreamGroup group = server.createGroup("room");
+		final StreamGroup other = server.createGroup("other");
+		
+		for (RemoteClient client : remoteClients) {
+			group.join(client);
+		}
+		
+		other.join(remoteClients.get(0));
+		
+		assertEquals(3, group.size());
+		assertEquals(2, ((StreamRemoteClient) remoteClients.get(0)).getGroups().length);
+		
+		assertTrue(group.leave(remoteClients.get(2)));
+		assertFalse(group.contains(remoteClients.get(2)));
+		
+		// disconnection removes client from all groups
+		remoteClients.get(0).disconnect();
+		
+		Thread.sleep(200);
+		
+		assertEquals(1, group.size());
+		assertEquals(0, other.size());
+		
+		assertSame(group, server.removeGroup("room"));
+		assertNull(server.getGroup("room"));
+		assertEquals(0, group.size());
+	}
+
+}
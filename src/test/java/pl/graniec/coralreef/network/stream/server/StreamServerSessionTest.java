@@ -0,0 +1,254 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.server;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.stream.client.StreamClient;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class StreamServerSessionTest {
+
+	final StreamServer server = new StreamServer();
+	final StreamClient client = new StreamClient();
+	
+	final List<Object> received = new ArrayList<Object>();
+	
+	StreamRemoteClient remoteClient;
+	int connections;
+	int disconnections;
+	
+	@Before
+	public void setUp() throws Exception {
+		server.setSessionResumption(true);
+		client.setSessionResumption(true);
+		
+		server.addConnectionListener(new ConnectionListener() {
+
+			public void clientConnected(RemoteClient client) {
+				remoteClient = (StreamRemoteClient) client;
+				++connections;
+			}
+
+			public void clientDisconnected(RemoteClient client,
+					int reason, String reasonString) {
+				++disconnections;
+			}
+			
+		});
+		
+		client.addPacketListener(new PacketListener() {
+
+			public void packetReceived(Object data) {
+				synchronized (received) {
+					received.add(data);
+				}
+			}
+			
+		});
+		
+		server.open(0);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (client.isConnected()) {
+			client.disconnect();
+		}
+		
+		if (server.isOpen()) {
+			server.close();
+		}
+	}
+	
+	@Test
+	public void testResume() throws Exception {
+		client.connect("localhost", server.getPort());
+		
+		Thread.sleep(50);
+		
+		assertNotNull(remoteClient);
+		assertFalse(client.isResumed());
+		
+		remoteClient.send("first");
+		
+		Thread.sleep(50);
+		
+		// break the connection
+		remoteClient.socket.close();
+		
+		Thread.sleep(200);
+		
+		assertFalse(client.isConnected());
+		assertTrue(remoteClient.isConnected());
+		assertTrue(remoteClient.isDetached());
+		
+		remoteClient.send("second");
+		
+		client.connect("localhost", server.getPort());
+		
+		Thread.sleep(50);
+		
+		assertTrue(client.isResumed());
+		assertFalse(remoteClient.isDetached());
+		
+		assertEquals(1, connections);
+		assertEquals(0, disconnections);
+		
+		synchronized (received) {
+			assertEquals(2, received.size());
+			assertEquals("first", received.get(0));
+			assertEquals("second", received.get(1));
+		}
+		
+		client.disconnect();
+		
+		Thread.sleep(200);
+		
+		assertEquals(1, disconnections);
+	}
+	
+	@Test
+	public void testResumeWithConflation() throws Exception {
+		server.close();
+		server.setConflation(true);
+		server.open(0);
+		
+		client.connect("localhost", server.getPort());
+		
+		Thread.sleep(50);
+		
+		assertEquals(1, countThreads("ConflationSender-"));
+		
+		for (int i = 0; i < 3; ++i) {
+			remoteClient.socket.close();
+			
+			Thread.sleep(200);
+			
+			client.connect("localhost", server.getPort());
+			
+			Thread.sleep(50);
+			
+			assertTrue(client.isResumed());
+		}
+		
+		// connections of resumed session don't get own senders
+		assertEquals(1, countThreads("ConflationSender-"));
+		
+		client.disconnect();
+		
+		Thread.sleep(200);
+		
+		assertEquals(0, countThreads("ConflationSender-"));
+	}
+	
+	@Test
+	public void testResumeWithSpool() throws Exception {
+		server.close();
+		server.setOverflowSpool(true);
+		server.open(0);
+		
+		client.connect("localhost", server.getPort());
+		
+		Thread.sleep(50);
+		
+		for (int i = 0; i < 3; ++i) {
+			remoteClient.socket.close();
+			
+			Thread.sleep(200);
+			
+			client.connect("localhost", server.getPort());
+			
+			Thread.sleep(50);
+			
+			assertTrue(client.isResumed());
+		}
+		
+		// the session keeps one spool, whatever connection it uses
+		assertEquals(1, countThreads("SpoolDrainer"));
+		
+		remoteClient.send("after resume");
+		
+		Thread.sleep(100);
+		
+		synchronized (received) {
+			assertEquals("after resume", received.get(received.size() - 1));
+		}
+	}
+	
+	private static int countThreads(String prefix) {
+		int count = 0;
+		
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().startsWith(prefix)) {
+				++count;
+			}
+		}
+		
+		return count;
+	}
+	
+	@Test
+	public void testExpire() throws Exception {
+		server.setSessionTimeout(50);
+		
+		client.connect("localhost", server.getPort());
+		
+		Thread.sleep(50);
+		
+		remoteClient.socket.close();
+		
+		Thread.sleep(400);
+		
+		assertEquals(1, disconnections);
+		assertFalse(remoteClient.isConnected());
+		
+		// server doesn't know this session anymore
+		client.connect("localhost", server.getPort());
+		
+		Thread.sleep(50);
+		
+		assertFalse(client.isResumed());
+		assertEquals(2, connections);
+	}
+
+}
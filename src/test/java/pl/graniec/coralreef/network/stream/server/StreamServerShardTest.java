@@ -0,0 +1,428 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.server;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.stream.client.StreamClient;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class StreamServerShardTest {
+
+	private static final int SHARDS = 4;
+	
+	final StreamServer server = new StreamServer();
+	final List<StreamClient> clients = new ArrayList<StreamClient>();
+	
+	/** Threads that server listeners were called from */
+	final List<String> threads = new ArrayList<String>();
+	
+	volatile StreamRemoteClient remoteClient;
+	volatile int connections;
+	volatile int disconnections;
+	
+	@Before
+	public void setUp() throws Exception {
+		server.setShards(SHARDS);
+		server.setSessionResumption(true);
+		
+		server.addConnectionListener(new ConnectionListener() {
+
+			public void clientConnected(final RemoteClient client) {
+				remoteClient = (StreamRemoteClient) client;
+				++connections;
+				
+				client.addPacketListener(new PacketListener() {
+
+					public void packetReceived(Object data) {
+						synchronized (threads) {
+							threads.add(Thread.currentThread().getName());
+						}
+						
+						try {
+							// echo
+							client.send(data);
+						} catch (Exception e) {
+							fail(e.getMessage());
+						}
+					}
+					
+				});
+			}
+
+			public void clientDisconnected(RemoteClient client,
+					int reason, String reasonString) {
+				++disconnections;
+			}
+			
+		});
+		
+		server.open(0);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (StreamClient client : clients) {
+			if (client.isConnected()) {
+				client.disconnect();
+			}
+		}
+		
+		if (server.isOpen()) {
+			server.close();
+		}
+	}
+	
+	private StreamClient connect(final List<Object> received) throws Exception {
+		final StreamClient client = new StreamClient();
+		client.setFramedProtocol(true);
+		client.setSessionResumption(true);
+		
+		client.addPacketListener(new PacketListener() {
+
+			public void packetReceived(Object data) {
+				synchronized (received) {
+					received.add(data);
+				}
+			}
+			
+		});
+		
+		client.connect("localhost", server.getPort());
+		clients.add(client);
+		
+		return client;
+	}
+	
+	@Test
+	public void testBalance() throws Exception {
+		final List<Object> received = new ArrayList<Object>();
+		
+		for (int i = 0; i < SHARDS * 2; ++i) {
+			connect(received).send(i);
+		}
+		
+		Thread.sleep(200);
+		
+		final int[] counts = server.getShardConnections();
+		assertEquals(SHARDS, counts.length);
+		
+		for (int count : counts) {
+			assertEquals(2, count);
+		}
+		
+		synchronized (received) {
+			assertEquals(SHARDS * 2, received.size());
+		}
+		
+		synchronized (threads) {
+			for (String name : threads) {
+				assertTrue(name, name.startsWith("StreamServer-shard-"));
+			}
+		}
+	}
+	
+	@Test
+	public void testDisconnect() throws Exception {
+		final StreamClient client = connect(new ArrayList<Object>());
+		
+		Thread.sleep(100);
+		
+		remoteClient.disconnect();
+		
+		Thread.sleep(200);
+		
+		assertFalse(client.isConnected());
+		assertEquals(1, disconnections);
+		
+		for (int count : server.getShardConnections()) {
+			assertEquals(0, count);
+		}
+	}
+	
+	@Test
+	public void testResume() throws Exception {
+		final List<Object> received = new ArrayList<Object>();
+		final StreamClient client = connect(received);
+		
+		Thread.sleep(100);
+		
+		final StreamRemoteClient first = remoteClient;
+		
+		// break the connection
+		first.socket.close();
+		
+		Thread.sleep(200);
+		
+		assertFalse(client.isConnected());
+		
+		client.connect("localhost", server.getPort());
+		client.send("after");
+		
+		Thread.sleep(200);
+		
+		assertTrue(client.isResumed());
+		assertEquals(1, connections);
+		assertEquals(0, disconnections);
+		
+		synchronized (received) {
+			assertEquals(1, received.size());
+			assertEquals("after", received.get(0));
+		}
+	}
+	
+	@Test
+	public void testClose() throws Exception {
+		final StreamClient client = connect(new ArrayList<Object>());
+		
+		Thread.sleep(100);
+		
+		server.close();
+		
+		Thread.sleep(200);
+		
+		assertFalse(client.isConnected());
+	}
+
+	
+	/**
+	 * Connects client that doesn't read until the latch is released.
+	 */
+	private StreamClient connectStalled(List<Object> received, final CountDownLatch release) throws Exception {
+		final StreamClient client = connect(received);
+		
+		client.addPacketListener(new PacketListener() {
+
+			public void packetReceived(Object data) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					// stop waiting
+				}
+			}
+			
+		});
+		
+		return client;
+	}
+	
+	@Test
+	public void testWriteLimit() throws Exception {
+		server.close();
+		server.setShardWriteLimit(64 * 1024);
+		server.open(0);
+		
+		final CountDownLatch release = new CountDownLatch(1);
+		final StreamClient client = connectStalled(new ArrayList<Object>(), release);
+		
+		try {
+			client.send("stall");
+			Thread.sleep(100);
+			
+			for (int i = 0; i < 400; ++i) {
+				remoteClient.send(new byte[64 * 1024]);
+			}
+			
+			Thread.sleep(300);
+			
+			for (int count : server.getShardConnections()) {
+				assertEquals(0, count);
+			}
+		} finally {
+			release.countDown();
+		}
+		
+		Thread.sleep(200);
+		
+		assertFalse(client.isConnected());
+	}
+	
+	@Test
+	public void testWriteLimitWithSpool() throws Exception {
+		server.close();
+		server.setShardWriteLimit(64 * 1024);
+		server.setOverflowSpool(true);
+		server.open(0);
+		
+		final List<Object> received = new ArrayList<Object>();
+		final CountDownLatch release = new CountDownLatch(1);
+		final StreamClient client = connectStalled(received, release);
+		
+		try {
+			client.send("stall");
+			Thread.sleep(100);
+			
+			for (int i = 0; i < 400; ++i) {
+				remoteClient.send(new byte[64 * 1024]);
+			}
+			
+			Thread.sleep(300);
+			
+			// frames wait in the spool
+			assertTrue(client.isConnected());
+		} finally {
+			release.countDown();
+		}
+		
+		Thread.sleep(2000);
+		
+		synchronized (received) {
+			// the echo and all the data
+			assertEquals(401, received.size());
+		}
+	}
+
+	
+	@Test
+	public void testSlowListenerWithDecoders() throws Exception {
+		server.close();
+		server.setShards(1);
+		server.setDecoderThreads(2);
+		server.open(0);
+		
+		final CountDownLatch release = new CountDownLatch(1);
+		final StreamClient slow = connect(new ArrayList<Object>());
+		
+		Thread.sleep(100);
+		
+		remoteClient.addPacketListener(new PacketListener() {
+
+			public void packetReceived(Object data) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					// stop waiting
+				}
+			}
+			
+		});
+		
+		final List<Object> received = new ArrayList<Object>();
+		
+		try {
+			// more than decoder threads take from one client
+			for (int i = 0; i < 1000; ++i) {
+				slow.send(i);
+			}
+			
+			Thread.sleep(200);
+			
+			// shares the shard with the slow one
+			final StreamClient other = connect(received);
+			
+			for (int i = 0; i < 10; ++i) {
+				other.send(i);
+			}
+			
+			Thread.sleep(300);
+			
+			synchronized (received) {
+				assertEquals(10, received.size());
+			}
+		} finally {
+			release.countDown();
+		}
+		
+		// echoes of the slow client go before it disconnects
+		Thread.sleep(300);
+	}
+	
+	@Test
+	public void testSlowListenerClosed() throws Exception {
+		server.close();
+		server.setShards(1);
+		server.setDecoderThreads(2);
+		server.open(0);
+		
+		final CountDownLatch release = new CountDownLatch(1);
+		final StreamClient slow = connect(new ArrayList<Object>());
+		
+		Thread.sleep(100);
+		
+		remoteClient.addPacketListener(new PacketListener() {
+
+			public void packetReceived(Object data) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					// stop waiting
+				}
+			}
+			
+		});
+		
+		final List<Object> received = new ArrayList<Object>();
+		
+		try {
+			slow.send(0);
+			
+			Thread.sleep(100);
+			
+			// the shard lets the client go without waiting for its listener
+			slow.disconnect();
+			
+			Thread.sleep(100);
+			
+			final StreamClient other = connect(received);
+			
+			for (int i = 0; i < 10; ++i) {
+				other.send(i);
+			}
+			
+			Thread.sleep(300);
+			
+			synchronized (received) {
+				assertEquals(10, received.size());
+			}
+			
+			assertEquals(0, disconnections);
+		} finally {
+			release.countDown();
+		}
+		
+		Thread.sleep(100);
+		
+		// reported once its packets reached listeners
+		assertEquals(1, disconnections);
+	}
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.session;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import pl.graniec.coralreef.network.stream.frame.Frame;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ReplayBufferTest {
+
+	private static Frame packet(long sequence, int length) {
+		return new Frame(Frame.PACKET, sequence, 0, new byte[length]);
+	}
+	
+	/**
+	 * Test method for {@link pl.graniec.coralreef.network.stream.session.ReplayBuffer#acknowledge(long)}.
+	 */
+	@Test
+	public void testAcknowledge() {
+		final ReplayBuffer buffer = new ReplayBuffer(10, 1024);
+		
+		for (int i = 1; i <= 5; ++i) {
+			buffer.add(packet(i, 10));
+		}
+		
+		buffer.acknowledge(3);
+		
+		assertEquals(2, buffer.size());
+		
+		final List<Frame> frames = buffer.framesAfter(3);
+		
+		assertEquals(2, frames.size());
+		assertEquals(4, frames.get(0).getSequence());
+		assertEquals(5, frames.get(1).getSequence());
+		
+		assertTrue(buffer.canReplay(3));
+	}
+	
+	/**
+	 * Test method for {@link pl.graniec.coralreef.network.stream.session.ReplayBuffer#canReplay(long)}.
+	 */
+	@Test
+	public void testLimits() {
+		final ReplayBuffer buffer = new ReplayBuffer(3, 1024);
+		
+		for (int i = 1; i <= 5; ++i) {
+			buffer.add(packet(i, 10));
+		}
+		
+		assertEquals(3, buffer.size());
+		assertEquals(2, buffer.getDiscarded());
+		
+		assertFalse(buffer.canReplay(1));
+		assertTrue(buffer.canReplay(2));
+		
+		final ReplayBuffer small = new ReplayBuffer(10, 2 * (Frame.HEADER_SIZE + 10));
+		
+		for (int i = 1; i <= 3; ++i) {
+			small.add(packet(i, 10));
+		}
+		
+		assertEquals(2, small.size());
+		assertEquals(1, small.getDiscarded());
+	}
+
+}
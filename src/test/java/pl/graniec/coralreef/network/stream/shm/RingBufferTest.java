@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.shm;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class RingBufferTest {
+
+	final RingBuffer ring = new RingBuffer(ByteBuffer.allocateDirect(RingBuffer.HEADER_SIZE), ByteBuffer.allocateDirect(16));
+	
+	/**
+	 * Test method for {@link pl.graniec.coralreef.network.stream.shm.RingBuffer#write(byte[], int, int)}.
+	 */
+	@Test
+	public void testWrapAround() throws Exception {
+		final byte[] buffer = new byte[16];
+		
+		for (int i = 0; i < 10; ++i) {
+			assertEquals(10, ring.write(new byte[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 }, 0, 10));
+			assertEquals(10, ring.available());
+			
+			assertEquals(10, ring.read(buffer, 0, 16));
+			assertEquals(9, buffer[9]);
+		}
+		
+		assertEquals(0, ring.read(buffer, 0, 16));
+	}
+	
+	/**
+	 * Test method for {@link pl.graniec.coralreef.network.stream.shm.RingBuffer#write(byte[], int, int)}.
+	 */
+	@Test
+	public void testFull() throws Exception {
+		assertEquals(16, ring.write(new byte[20], 0, 20));
+		assertEquals(0, ring.write(new byte[1], 0, 1));
+		
+		assertEquals(4, ring.read(new byte[4], 0, 4));
+		assertEquals(4, ring.write(new byte[20], 0, 20));
+	}
+	
+	/**
+	 * Test method for {@link pl.graniec.coralreef.network.stream.shm.RingBuffer#closeWriter()}.
+	 */
+	@Test
+	public void testClose() throws Exception {
+		ring.write(new byte[3], 0, 3);
+		ring.closeWriter();
+		
+		// written bytes come first
+		assertEquals(3, ring.read(new byte[16], 0, 16));
+		assertEquals(-1, ring.read(new byte[16], 0, 16));
+		
+		ring.closeReader();
+		
+		try {
+			ring.write(new byte[1], 0, 1);
+			fail("reader is closed");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+	
+	/**
+	 * Test method for {@link pl.graniec.coralreef.network.stream.shm.RingBuffer#read(byte[], int, int)}.
+	 */
+	@Test
+	public void testConcurrent() throws Exception {
+		final RingBuffer ring = new RingBuffer(ByteBuffer.allocateDirect(RingBuffer.HEADER_SIZE), ByteBuffer.allocateDirect(1024));
+		final byte[] data = new byte[1000000];
+		
+		new Random(1).nextBytes(data);
+		
+		final Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					int off = 0;
+					
+					while (off < data.length) {
+						off += ring.write(data, off, Math.min(300, data.length - off));
+					}
+					
+					ring.closeWriter();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		
+		writer.start();
+		
+		final byte[] received = new byte[data.length];
+		int off = 0;
+		int count;
+		
+		while ((count = ring.read(received, off, Math.min(500, received.length - off))) >= 0) {
+			off += count;
+		}
+		
+		writer.join();
+		
+		assertEquals(data.length, off);
+		assertArrayEquals(data, received);
+	}
+
+}
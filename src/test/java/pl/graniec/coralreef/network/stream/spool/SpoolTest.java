@@ -0,0 +1,135 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.spool;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class SpoolTest {
+
+	File directory;
+	
+	@Before
+	public void setUp() throws Exception {
+		directory = File.createTempFile("spool", "");
+		directory.delete();
+		directory.mkdir();
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		
+		directory.delete();
+	}
+	
+	private static ByteBuffer record(int value, int length) {
+		final ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.putInt(value);
+		buffer.rewind();
+		return buffer;
+	}
+	
+	/**
+	 * Test method for {@link pl.graniec.coralreef.network.stream.spool.Spool#poll()}.
+	 */
+	@Test
+	public void testOrder() throws Exception {
+		final Spool spool = new Spool(directory, "test", 100, 10000);
+		
+		for (int i = 0; i < 50; ++i) {
+			assertTrue(spool.append(record(i, 20)));
+		}
+		
+		assertEquals(50, spool.size());
+		assertTrue(directory.listFiles().length > 1);
+		
+		for (int i = 0; i < 50; ++i) {
+			final byte[] data = spool.poll();
+			
+			assertEquals(20, data.length);
+			assertEquals(i, ByteBuffer.wrap(data).getInt());
+		}
+		
+		assertNull(spool.poll());
+		assertTrue(spool.isEmpty());
+		
+		// read segments are deleted
+		assertEquals(1, directory.listFiles().length);
+		
+		spool.close();
+		
+		assertEquals(0, directory.listFiles().length);
+	}
+	
+	/**
+	 * Test method for {@link pl.graniec.coralreef.network.stream.spool.Spool#append(ByteBuffer)}.
+	 */
+	@Test
+	public void testLimit() throws Exception {
+		final Spool spool = new Spool(directory, "test", 100, 300);
+		
+		int appended = 0;
+		
+		while (spool.append(record(appended, 20))) {
+			++appended;
+		}
+		
+		// four records in each of three segments
+		assertEquals(12, appended);
+		assertEquals(300, spool.getAllocated());
+		
+		// record bigger than segment gets its own one
+		spool.poll();
+		assertFalse(spool.append(record(0, 200)));
+		
+		spool.close();
+		
+		final Spool big = new Spool(directory, "test", 100, 300);
+		
+		assertTrue(big.append(record(7, 200)));
+		assertEquals(204, big.getAllocated());
+		assertEquals(7, ByteBuffer.wrap(big.poll()).getInt());
+		
+		big.close();
+	}
+
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.spool;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pl.graniec.coralreef.network.stream.frame.Frame;
+import pl.graniec.coralreef.network.stream.frame.FrameReader;
+import pl.graniec.coralreef.network.stream.frame.FrameWriter;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class SpoolingFrameOutputTest {
+
+	ServerSocket serverSocket;
+	Socket sender;
+	Socket receiver;
+	
+	@Before
+	public void setUp() throws Exception {
+		serverSocket = new ServerSocket(0);
+		sender = new Socket("localhost", serverSocket.getLocalPort());
+		receiver = serverSocket.accept();
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		sender.close();
+		receiver.close();
+		serverSocket.close();
+	}
+	
+	private SpoolingFrameOutput createOutput(long diskLimit) throws IOException {
+		final Spool spool = new Spool(null, "test", 64 * 1024, diskLimit);
+		return new SpoolingFrameOutput(new FrameWriter(sender.getOutputStream()), sender, spool, 64 * 1024);
+	}
+	
+	/**
+	 * Test method for {@link pl.graniec.coralreef.network.stream.spool.SpoolingFrameOutput#write(Frame)}.
+	 */
+	@Test
+	public void testSlowReader() throws Exception {
+		final SpoolingFrameOutput output = createOutput(64L * 1024 * 1024);
+		
+		// much more than socket buffers can take, but nobody reads yet
+		for (int i = 1; i <= 2000; ++i) {
+			output.write(new Frame(Frame.PACKET, i, 0, new byte[10000]));
+		}
+		
+		assertTrue(output.getSpooled() > 0);
+		
+		final FrameReader reader = new FrameReader(new BufferedInputStream(receiver.getInputStream()));
+		
+		for (int i = 1; i <= 2000; ++i) {
+			assertEquals(i, reader.read(5000).getSequence());
+		}
+		
+		assertTrue(output.awaitDrained(1000));
+		assertEquals(0, output.getSpooled());
+		
+		output.close();
+	}
+	
+	/**
+	 * Test method for {@link pl.graniec.coralreef.network.stream.spool.SpoolingFrameOutput#write(Frame)}.
+	 */
+	@Test
+	public void testDiskLimit() throws Exception {
+		final SpoolingFrameOutput output = createOutput(1024 * 1024);
+		
+		try {
+			for (int i = 1; i <= 2000; ++i) {
+				output.write(new Frame(Frame.PACKET, i, 0, new byte[10000]));
+			}
+			
+			fail("spool limit should be exceeded");
+		} catch (IOException e) {
+			// expected
+		}
+		
+		assertTrue(sender.isClosed());
+	}
+
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.stream.unix;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.stream.client.StreamClient;
+import pl.graniec.coralreef.network.stream.server.StreamServer;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class UnixSocketsTest {
+
+	final StreamServer server = new StreamServer();
+	final StreamClient client = new StreamClient();
+	
+	final List<Object> serverReceived = new ArrayList<Object>();
+	final List<Object> clientReceived = new ArrayList<Object>();
+	
+	File path;
+	RemoteClient remoteClient;
+	
+	@Before
+	public void setUp() throws Exception {
+		Assume.assumeTrue(UnixSockets.isSupported());
+		
+		path = File.createTempFile("coralreef", ".sock");
+		path.delete();
+		
+		server.addConnectionListener(new ConnectionListener() {
+
+			public void clientConnected(RemoteClient client) {
+				remoteClient = client;
+				client.addPacketListener(new PacketListener() {
+
+					public void packetReceived(Object data) {
+						synchronized (serverReceived) {
+							serverReceived.add(data);
+						}
+					}
+					
+				});
+			}
+
+			public void clientDisconnected(RemoteClient client,
+					int reason, String reasonString) {
+			}
+			
+		});
+		
+		client.addPacketListener(new PacketListener() {
+
+			public void packetReceived(Object data) {
+				synchronized (clientReceived) {
+					clientReceived.add(data);
+				}
+			}
+			
+		});
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		if (client.isConnected()) {
+			client.disconnect();
+		}
+		
+		if (server.isOpen()) {
+			server.close();
+		}
+		
+		if (path != null) {
+			path.delete();
+		}
+	}
+	
+	private void exchange() throws Exception {
+		server.open(path);
+		assertTrue(path.exists());
+		assertEquals(-1, server.getPort());
+		
+		client.connect(path);
+		
+		Thread.sleep(100);
+		assertNotNull(remoteClient);
+		
+		for (int i = 0; i < 100; ++i) {
+			client.send(i);
+			remoteClient.send("packet " + i);
+		}
+		
+		Thread.sleep(300);
+		
+		synchronized (serverReceived) {
+			assertEquals(100, serverReceived.size());
+			
+			for (int i = 0; i < 100; ++i) {
+				assertEquals(i, serverReceived.get(i));
+			}
+		}
+		
+		synchronized (clientReceived) {
+			assertEquals(100, clientReceived.size());
+			
+			for (int i = 0; i < 100; ++i) {
+				assertEquals("packet " + i, clientReceived.get(i));
+			}
+		}
+		
+		client.disconnect();
+		server.close();
+		
+		assertFalse(path.exists());
+	}
+	
+	@Test
+	public void testObjectStreams() throws Exception {
+		exchange();
+	}
+	
+	@Test
+	public void testFramedProtocol() throws Exception {
+		server.setFramedProtocol(true);
+		client.setFramedProtocol(true);
+		
+		exchange();
+	}
+	
+	@Test
+	public void testNoServer() throws Exception {
+		try {
+			client.connect(path);
+			fail("there is no server to connect to");
+		} catch (Exception e) {
+			// expected
+		}
+		
+		assertFalse(client.isConnected());
+	}
+
+}